@@ -0,0 +1,26 @@
+package com.frs.blockd;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler always on, so every run reports
+ * the allocation rate per operation (<code>gc.alloc.rate.norm</code>) next
+ * to the timings. Takes the usual JMH command line, e.g.
+ * <code>java -jar benchmarks.jar Codec -f 1</code>.
+ */
+public final class Benchmarks {
+
+    private Benchmarks() {
+        // Static main only.
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build()).run();
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.frs.blockd;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-line costs of the codec, done the way
+ * <code>SimpleClient.writeCommand()</code> and <code>readResponse()</code>
+ * do them: encode into the reused buffer and write it out, and split a
+ * line off the input and parse it into the reused response. Steady state
+ * should allocate nothing but the strings a caller asks for.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final byte[] ACQUIRED = line("{\"status\":\"LOCKACQUIRED\",\"lockId\":\"orders/4711\",\"nonce\":42}");
+    private static final byte[] ESCAPED = line("{\"status\":\"LOCKRELEASED\",\"lockId\":\"a\\\"b\\\\c\\u00e9\",\"nonce\":43}");
+    private static final byte[] SHOW = line("{\"locks\":[{\"lockId\":\"a\",\"mode\":\"W\"},{\"lockId\":\"b\",\"mode\":\"R\"},"
+                                            + "{\"lockId\":\"c\",\"mode\":\"W\"},{\"lockId\":\"d\",\"mode\":\"R\"}]}");
+
+    private static final LockKey KEY = LockKey.of("orders/4711");
+
+    private final CommandEncoder encoder = new CommandEncoder();
+    private final ResponseParser parser = new ResponseParser();
+    private final Response response = new Response();
+    private final LineReader lineReader = new LineReader(256);
+    private final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) {
+            // Discards.
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            // Discards.
+        }
+    };
+    private ByteArrayInputStream acquiredStream;
+    private long nonce;
+
+    @Setup
+    public void setUp() {
+
+        acquiredStream = new ByteArrayInputStream(ACQUIRED);
+    }
+
+    @Benchmark
+    public void encodeAcquire() throws IOException {
+
+        encoder.command(PendingRequest.Kind.ACQUIRE, "orders/4711", 5000, "W", ++nonce).writeTo(sink);
+    }
+
+    @Benchmark
+    public void encodeAcquireKey() throws IOException {
+
+        encoder.command(PendingRequest.Kind.ACQUIRE, KEY.getLockId(), KEY.encoded(), 5000, "W", ++nonce)
+               .writeTo(sink);
+    }
+
+    @Benchmark
+    public void encodeRelease() throws IOException {
+
+        encoder.command(PendingRequest.Kind.RELEASE, "orders/4711", CommandEncoder.NO_TIMEOUT, null, ++nonce)
+               .writeTo(sink);
+    }
+
+    @Benchmark
+    public String parseAcquired() throws IOException {
+
+        parser.parse(ACQUIRED, 0, ACQUIRED.length - 1, response);
+        return (response.getStatus());
+    }
+
+    @Benchmark
+    public boolean parseEscapedLockId() throws IOException {
+
+        parser.parse(ESCAPED, 0, ESCAPED.length - 1, response);
+        return (response.lockIdEquals("a\"b\\cé"));
+    }
+
+    @Benchmark
+    public void parseShow(Blackhole blackhole) throws IOException {
+
+        parser.parse(SHOW, 0, SHOW.length - 1, response);
+        blackhole.consume(response.getLocks());
+    }
+
+    /**
+     * A whole <code>readResponse()</code>: split the line off the stream,
+     * then parse it.
+     */
+    @Benchmark
+    public String readResponse() throws IOException {
+
+        acquiredStream.reset();
+        lineReader.clear();
+        lineReader.readLine(acquiredStream);
+        parser.parse(lineReader.buffer(), lineReader.lineStart(), lineReader.lineLength(), response);
+        return (response.getStatus());
+    }
+
+    private static byte[] line(String json) {
+
+        return ((json + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.frs.blockd;
+
+/**
+ * A log-linear histogram of latencies in nanoseconds, in the manner of
+ * HdrHistogram with two significant digits: values below 256 have a bucket
+ * each, and above that every power of two is split into 128 buckets, so a
+ * recorded value is off by less than 1%. Recording is a shift and an
+ * increment; not thread safe, so keep one per thread and {@link #add} them.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS];
+    private long count;
+    private long max;
+    private double sum;
+
+    void record(long nanos) {
+
+        long value = Math.max(0, nanos);
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    void add(LatencyHistogram other) {
+
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long getCount() {
+
+        return (count);
+    }
+
+    long getMax() {
+
+        return (max);
+    }
+
+    double getMean() {
+
+        return (count == 0 ? 0 : sum / count);
+    }
+
+    /**
+     * The value below which the given percentage of the recorded values
+     * fall, as the highest value of its bucket.
+     *
+     * @param percentile From 0 to 100.
+     * @return
+     */
+    long getValueAtPercentile(double percentile) {
+
+        if (count == 0) {
+            return (0);
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return (Math.min(highest(i), max));
+            }
+        }
+        return (max);
+    }
+
+    static int index(long value) {
+
+        if (value < 2 * SUB_BUCKETS) {
+            return ((int) value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (exponent * SUB_BUCKETS + (int) (value >>> exponent));
+    }
+
+    static long highest(int index) {
+
+        if (index < 2 * SUB_BUCKETS) {
+            return (index);
+        }
+        int exponent = index / SUB_BUCKETS - 1;
+        long subBucket = index - exponent * SUB_BUCKETS;
+        return (((subBucket + 1) << exponent) - 1);
+    }
+
+}
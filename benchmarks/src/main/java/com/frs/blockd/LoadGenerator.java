@@ -0,0 +1,303 @@
+package com.frs.blockd;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives ACQUIRE/RELEASE pairs at a fixed rate against blockd, or against
+ * an embedded {@link StandInServer}, and prints latency percentiles and
+ * throughput.
+ * <p>
+ * Each thread owns one client and works through a schedule of intended
+ * start times. Latency is measured from the intended start, not from when
+ * the thread got round to it, so a stall is charged to every request it
+ * held up instead of only to the one that hit it (coordinated omission).
+ * The uncorrected service time is printed alongside for comparison.
+ * <p>
+ * <code>java -cp target/benchmarks.jar com.frs.blockd.LoadGenerator --help</code>
+ */
+public final class LoadGenerator {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private final List<String> servers = new ArrayList<String>();
+    private int rate = 1000;
+    private int duration = 10;
+    private int warmup = 2;
+    private int threads = 4;
+    private int keys = 1000;
+    private String mode = "W";
+    private int timeout = 1000;
+    private boolean pipelined;
+    private int latency;
+    private int jitter;
+    private double contention;
+    private int contentionHold = 1;
+
+    private LoadGenerator() {
+        // From main only.
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        LoadGenerator generator = new LoadGenerator();
+        if (!generator.parse(args)) {
+            usage(System.err);
+            System.exit(2);
+        }
+        generator.run(System.out);
+    }
+
+    private static void usage(PrintStream out) {
+
+        out.println("Usage: LoadGenerator [options]");
+        out.println("  --server HOST:PORT      blockd to drive; repeat for a ClusterClient over several");
+        out.println("                          (default: an embedded stand-in server)");
+        out.println("  --rate N                ACQUIRE/RELEASE pairs per second over all threads (1000)");
+        out.println("  --duration S            seconds to measure (10)");
+        out.println("  --warmup S              seconds to run before measuring (2)");
+        out.println("  --threads N             threads, each with its own client (4)");
+        out.println("  --keys N                distinct lock ids (1000)");
+        out.println("  --mode W|R              lock mode (W)");
+        out.println("  --timeout MS            ACQUIRE timeout (1000)");
+        out.println("  --pipelined             use pipelined clients");
+        out.println("  --latency MS[:JITTER]   stand-in answer latency and jitter (0)");
+        out.println("  --contention P[:HOLD]   stand-in: chance a free lock is held elsewhere, for HOLD ms (0)");
+    }
+
+    private boolean parse(String[] args) {
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if ("--pipelined".equals(option)) {
+                    pipelined = true;
+                    continue;
+                }
+                if ("--help".equals(option) || i + 1 >= args.length) {
+                    return (false);
+                }
+                String value = args[++i];
+                switch (option) {
+                    case "--server":
+                        servers.add(value);
+                        break;
+                    case "--rate":
+                        rate = Integer.parseInt(value);
+                        break;
+                    case "--duration":
+                        duration = Integer.parseInt(value);
+                        break;
+                    case "--warmup":
+                        warmup = Integer.parseInt(value);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--keys":
+                        keys = Integer.parseInt(value);
+                        break;
+                    case "--mode":
+                        mode = value;
+                        break;
+                    case "--timeout":
+                        timeout = Integer.parseInt(value);
+                        break;
+                    case "--latency":
+                        String[] latencies = value.split(":");
+                        latency = Integer.parseInt(latencies[0]);
+                        jitter = (latencies.length > 1 ? Integer.parseInt(latencies[1]) : 0);
+                        break;
+                    case "--contention":
+                        String[] contentions = value.split(":");
+                        contention = Double.parseDouble(contentions[0]);
+                        contentionHold = (contentions.length > 1 ? Integer.parseInt(contentions[1]) : 1);
+                        break;
+                    default:
+                        return (false);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return (false);
+        }
+        return (rate > 0 && duration > 0 && warmup >= 0 && threads > 0 && keys > 0);
+    }
+
+    private void run(PrintStream out) throws Exception {
+
+        StandInServer standIn = null;
+        List<String> targets = servers;
+        if (targets.isEmpty()) {
+            standIn = new StandInServer();
+            standIn.setLatency(latency, jitter);
+            standIn.setContention(contention, contentionHold);
+            targets = new ArrayList<String>();
+            targets.add(standIn.getHost() + ":" + standIn.getPort());
+        }
+        try {
+            out.printf(Locale.ROOT, "%d threads, %d/s for %d s after %d s warm-up, %d keys, mode %s, against %s%n",
+                       threads, rate, duration, warmup, keys, mode, standIn == null ? targets : "a stand-in");
+            Worker[] workers = new Worker[threads];
+            long intervalNanos = TimeUnit.SECONDS.toNanos(1) * threads / rate;
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+            long measureTo = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+            for (int i = 0; i < threads; i++) {
+                BlockdClient client = newClient(targets);
+                client.connect();
+                // Staggered, so the threads together send at an even rate.
+                workers[i] = new Worker(client, start + intervalNanos * i / threads, intervalNanos, measureFrom,
+                                        measureTo);
+                workers[i].setName("load-" + i);
+            }
+            for (Worker worker : workers) {
+                worker.start();
+            }
+            LatencyHistogram corrected = new LatencyHistogram();
+            LatencyHistogram uncorrected = new LatencyHistogram();
+            long timeouts = 0;
+            long errors = 0;
+            long finished = measureTo;
+            Exception firstError = null;
+            for (Worker worker : workers) {
+                worker.join();
+                worker.client.quit();
+                corrected.add(worker.corrected);
+                uncorrected.add(worker.uncorrected);
+                timeouts += worker.timeouts;
+                errors += worker.errors;
+                finished = Math.max(finished, worker.finished);
+                if (firstError == null) {
+                    firstError = worker.firstError;
+                }
+            }
+            report(out, corrected, uncorrected, timeouts, errors, finished - measureFrom);
+            if (firstError != null) {
+                out.println("first error: " + firstError);
+            }
+            if (standIn != null) {
+                out.printf(Locale.ROOT, "stand-in saw %d commands%n", standIn.getCommandCount());
+            }
+        } finally {
+            if (standIn != null) {
+                standIn.close();
+            }
+        }
+    }
+
+    private BlockdClient newClient(List<String> targets) {
+
+        if (targets.size() == 1) {
+            String[] hostPort = targets.get(0).split(":");
+            SimpleClient client = new SimpleClient(hostPort[0], Integer.parseInt(hostPort[1]));
+            client.setPipelined(pipelined);
+            return (client);
+        }
+        ClusterClient cluster = new ClusterClient();
+        cluster.setPipelined(pipelined);
+        for (String target : targets) {
+            String[] hostPort = target.split(":");
+            cluster.addNode(hostPort[0], Integer.parseInt(hostPort[1]));
+        }
+        return (cluster);
+    }
+
+    /**
+     * Throughput is over the time the measured requests actually took, which
+     * is longer than the duration when the rate could not be kept up.
+     */
+    private void report(PrintStream out, LatencyHistogram corrected, LatencyHistogram uncorrected, long timeouts,
+                        long errors, long elapsedNanos) {
+
+        long ok = corrected.getCount() - timeouts - errors;
+        out.printf(Locale.ROOT, "throughput %.1f/s over %.1f s (%d ok, %d timed out, %d failed)%n",
+                   ok * 1e9 / elapsedNanos, elapsedNanos / 1e9, ok, timeouts, errors);
+        out.printf(Locale.ROOT, "%-10s %14s %14s%n", "latency ms", "corrected", "uncorrected");
+        for (double percentile : PERCENTILES) {
+            out.printf(Locale.ROOT, "%-10s %14.3f %14.3f%n", "p" + (percentile == (int) percentile
+                                                                    ? Integer.toString((int) percentile)
+                                                                    : Double.toString(percentile)),
+                       millis(corrected.getValueAtPercentile(percentile)),
+                       millis(uncorrected.getValueAtPercentile(percentile)));
+        }
+        out.printf(Locale.ROOT, "%-10s %14.3f %14.3f%n", "max", millis(corrected.getMax()),
+                   millis(uncorrected.getMax()));
+        out.printf(Locale.ROOT, "%-10s %14.3f %14.3f%n", "mean", corrected.getMean() / 1e6,
+                   uncorrected.getMean() / 1e6);
+    }
+
+    private static double millis(long nanos) {
+
+        return (nanos / 1e6);
+    }
+
+    private final class Worker extends Thread {
+
+        final BlockdClient client;
+        final long first;
+        final long interval;
+        final long measureFrom;
+        final long measureTo;
+        final LatencyHistogram corrected = new LatencyHistogram();
+        final LatencyHistogram uncorrected = new LatencyHistogram();
+        long timeouts;
+        long errors;
+        long finished;
+        Exception firstError;
+
+        Worker(BlockdClient client, long first, long interval, long measureFrom, long measureTo) {
+
+            this.client = client;
+            this.first = first;
+            this.interval = interval;
+            this.measureFrom = measureFrom;
+            this.measureTo = measureTo;
+        }
+
+        @Override
+        public void run() {
+
+            for (long intended = first; intended < measureTo; intended += interval) {
+                long now;
+                while ((now = System.nanoTime()) < intended) {
+                    LockSupport.parkNanos(intended - now);
+                }
+                String lockId = "load/" + ThreadLocalRandom.current().nextInt(keys);
+                boolean timedOut = false;
+                boolean failed = false;
+                try {
+                    if (client.tryAcquire(lockId, timeout, mode)) {
+                        client.release(lockId);
+                    } else {
+                        timedOut = true;
+                    }
+                } catch (Exception e) {
+                    failed = true;
+                    if (firstError == null) {
+                        firstError = e;
+                    }
+                }
+                long end = System.nanoTime();
+                if (intended < measureFrom) {
+                    continue;
+                }
+                corrected.record(end - intended);
+                uncorrected.record(end - now);
+                if (timedOut) {
+                    timeouts++;
+                }
+                if (failed) {
+                    errors++;
+                }
+                finished = end;
+            }
+        }
+
+    }
+
+}
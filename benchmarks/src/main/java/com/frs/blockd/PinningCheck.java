@@ -0,0 +1,131 @@
+package com.frs.blockd;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs many concurrent ACQUIRE/RELEASE pairs on virtual threads against
+ * stand-in servers and counts <code>jdk.VirtualThreadPinned</code> JFR
+ * events, i.e. virtual threads that blocked while pinned to their carrier.
+ * The tasks queue up on the client's socket locks and block in socket
+ * reads; <code>--latency</code> makes the stand-in answer later, so they
+ * block for longer. Needs Java 21 or later:
+ * <pre>
+ * java -cp target/benchmarks.jar com.frs.blockd.PinningCheck --tasks 10000 --client blocking
+ * </pre>
+ * Clients: <code>blocking</code>, <code>pipelined</code> (one
+ * <code>SimpleClient</code> each), <code>pooled</code>, and
+ * <code>cluster</code> (three nodes, fanned out on virtual threads too).
+ * Exits with 1 if anything was pinned.
+ */
+public final class PinningCheck {
+
+    private PinningCheck() {
+        // Static main only.
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        int tasks = 10000;
+        int latency = 0;
+        String clientType = "blocking";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("--tasks".equals(args[i])) {
+                tasks = Integer.parseInt(args[i + 1]);
+            } else if ("--latency".equals(args[i])) {
+                latency = Integer.parseInt(args[i + 1]);
+            } else if ("--client".equals(args[i])) {
+                clientType = args[i + 1];
+            }
+        }
+        if (!VirtualThreads.isSupported()) {
+            System.err.println("Virtual threads need Java 21 or later; this is " + System.getProperty("java.version"));
+            System.exit(2);
+        }
+
+        List<StandInServer> servers = new ArrayList<StandInServer>();
+        for (int i = 0; i < ("cluster".equals(clientType) ? 3 : 1); i++) {
+            StandInServer server = new StandInServer();
+            server.setLatency(latency, 0);
+            servers.add(server);
+        }
+        BlockdClient client = newClient(clientType, servers);
+        client.connect();
+
+        AtomicLong pinned = new AtomicLong();
+        AtomicReference<RecordedEvent> firstPinned = new AtomicReference<RecordedEvent>();
+        try (RecordingStream recording = new RecordingStream()) {
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+            recording.onEvent("jdk.VirtualThreadPinned", event -> {
+                pinned.incrementAndGet();
+                firstPinned.compareAndSet(null, event);
+            });
+            recording.startAsync();
+
+            long start = System.nanoTime();
+            ExecutorService executor = VirtualThreads.newExecutor();
+            List<Future<?>> futures = new ArrayList<Future<?>>(tasks);
+            for (int i = 0; i < tasks; i++) {
+                final String lockId = "pinning/" + i;
+                futures.add(executor.submit(() -> {
+                    client.acquire(lockId, 60000, "W");
+                    client.release(lockId);
+                    return (null);
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long elapsed = System.nanoTime() - start;
+            executor.shutdown();
+            // JFR delivers events about once a second.
+            Thread.sleep(2000);
+
+            System.out.printf(Locale.ROOT, "%s: %d concurrent acquires on virtual threads in %.2f s (%.0f/s)%n",
+                              clientType, tasks, elapsed / 1e9, tasks / (elapsed / 1e9));
+            System.out.printf(Locale.ROOT, "pinned events: %d%n", pinned.get());
+            if (firstPinned.get() != null) {
+                System.out.println(firstPinned.get());
+            }
+        } finally {
+            client.quit();
+            for (StandInServer server : servers) {
+                server.close();
+            }
+        }
+        System.exit(pinned.get() == 0 ? 0 : 1);
+    }
+
+    private static BlockdClient newClient(String clientType, List<StandInServer> servers) {
+
+        StandInServer server = servers.get(0);
+        switch (clientType) {
+            case "pipelined":
+                SimpleClient pipelined = new SimpleClient(server.getHost(), server.getPort());
+                pipelined.setPipelined(true);
+                return (pipelined);
+            case "pooled":
+                return (new PooledClient(server.getHost(), server.getPort()));
+            case "cluster":
+                ClusterClient cluster = new ClusterClient();
+                cluster.setExecutor(VirtualThreads.newExecutor());
+                cluster.setPipelined(true);
+                for (StandInServer node : servers) {
+                    cluster.addNode(node.getHost(), node.getPort());
+                }
+                return (cluster);
+            default:
+                return (new SimpleClient(server.getHost(), server.getPort()));
+        }
+    }
+
+}
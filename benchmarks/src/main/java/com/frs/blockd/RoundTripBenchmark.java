@@ -0,0 +1,132 @@
+package com.frs.blockd;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ACQUIRE/RELEASE round trips against a {@link StandInServer}, for each
+ * client flavour. The stand-in answers at once and every thread has its own
+ * locks, so the numbers are the client's own cost plus the loopback socket.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        StandInServer server;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+
+            server = new StandInServer();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws Exception {
+
+            server.close();
+        }
+
+    }
+
+    /**
+     * One connection per benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+
+        @Param({"blocking", "pipelined", "async"})
+        public String client;
+
+        AsyncBlockdClient blockd;
+        String lockId;
+        List<String> batch;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws Exception {
+
+            int port = server.server.getPort();
+            if ("async".equals(client)) {
+                blockd = new AsyncClient("127.0.0.1", port);
+            } else {
+                SimpleClient simple = new SimpleClient("127.0.0.1", port);
+                simple.setPipelined("pipelined".equals(client));
+                blockd = simple;
+            }
+            blockd.connect();
+            lockId = "bench/" + Thread.currentThread().getId();
+            batch = new ArrayList<String>();
+            for (int i = 0; i < 16; i++) {
+                batch.add(lockId + "/" + i);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void quit() throws Exception {
+
+            blockd.quit();
+        }
+
+    }
+
+    @Benchmark
+    public String acquireRelease(Connection connection) throws Exception {
+
+        connection.blockd.acquire(connection.lockId);
+        return (connection.blockd.release(connection.lockId));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String acquireReleaseContended(Connection connection) throws Exception {
+
+        connection.blockd.acquire(connection.lockId);
+        return (connection.blockd.release(connection.lockId));
+    }
+
+    /**
+     * A pipelined ACQUIRE and RELEASE; on a blocking client the futures are
+     * already complete and this degrades to two round trips.
+     */
+    @Benchmark
+    public String acquireReleaseAsync(Connection connection) throws Exception {
+
+        CompletableFuture<String> acquire = connection.blockd.acquireAsync(connection.lockId);
+        CompletableFuture<String> release = acquire.thenCompose(status -> connection.blockd
+                .releaseAsync(connection.lockId));
+        return (release.get());
+    }
+
+    /**
+     * Sixteen locks taken and given back as one batch.
+     */
+    @Benchmark
+    public List<String> acquireAllReleaseAll(Connection connection) throws Exception {
+
+        connection.blockd.acquireAll(connection.batch, 1000, "W");
+        return (connection.blockd.releaseAll(connection.batch));
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.frs.blockd;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of routing a lock id in <code>ClusterClient</code>: hashing it
+ * and asking the partitioner, across node counts, or reading the answer
+ * cached on a {@link LockKey}. The nodes are added but
+ * never connected.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+
+    private static final int KEYS = 1024;
+
+    @Param({"1", "3", "8", "32"})
+    public int nodes;
+
+    @Param({"ring", "rendezvous", "jump"})
+    public String partitioner;
+
+    private ClusterClient cluster;
+    private final String[] lockIds = new String[KEYS];
+    private final LockKey[] keys = new LockKey[KEYS];
+    private int next;
+
+    @Setup
+    public void setUp() {
+
+        cluster = new ClusterClient();
+        if ("rendezvous".equals(partitioner)) {
+            cluster.setPartitioner(new RendezvousPartitioner());
+        } else if ("jump".equals(partitioner)) {
+            cluster.setPartitioner(new JumpHashPartitioner());
+        }
+        for (int i = 0; i < nodes; i++) {
+            cluster.addNode("blockd-" + i, 11311);
+        }
+        for (int i = 0; i < KEYS; i++) {
+            lockIds[i] = "orders/" + (i * 7919);
+            keys[i] = LockKey.of(lockIds[i]);
+        }
+    }
+
+    @Benchmark
+    public long hash() {
+
+        return (Hashing.hash(lockIds[next++ & (KEYS - 1)]));
+    }
+
+    @Benchmark
+    public int whichNode() throws Exception {
+
+        return (cluster.whichNode(lockIds[next++ & (KEYS - 1)]));
+    }
+
+    /**
+     * Routing a precomputed key: after the first pass, a cache hit.
+     */
+    @Benchmark
+    public int whichNodeKey() throws Exception {
+
+        return (cluster.whichNode(keys[next++ & (KEYS - 1)]));
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.frs.blockd;
+
+/**
+ * Thrown when the server answers ACQUIRETIMEOUT: the lock could not be
+ * acquired within the requested timeout.
+ */
+public class AcquireTimeoutException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String lockId;
+
+    /**
+     * Constructor.
+     *
+     * @param lockId The lock that was not acquired.
+     */
+    public AcquireTimeoutException(String lockId) {
+
+        super("ACQUIRETIMEOUT for " + lockId);
+        this.lockId = lockId;
+    }
+
+    /**
+     * The lock that was not acquired.
+     *
+     * @return
+     */
+    public String getLockId() {
+
+        return (lockId);
+    }
+
+}
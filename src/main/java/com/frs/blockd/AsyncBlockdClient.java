@@ -0,0 +1,103 @@
+package com.frs.blockd;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking variants of the {@link BlockdClient} operations. Every method
+ * returns immediately; the returned future completes with the same value
+ * the blocking method would have returned, or exceptionally with the
+ * exception it would have thrown. Every async client offers the blocking
+ * methods as well.
+ */
+public interface AsyncBlockdClient extends BlockdClient {
+
+    /**
+     * Connect to the blockd server.
+     *
+     * @return A future that completes once the server greeting was received.
+     */
+    public CompletableFuture<Void> connectAsync();
+
+    /**
+     * Implements the QUIT operation.
+     *
+     * @return A future that completes once the connection is closed.
+     */
+    public CompletableFuture<Void> quitAsync();
+
+    /**
+     * Implements the WISDOM operation.
+     *
+     * @return
+     */
+    public CompletableFuture<String> wisdomAsync();
+
+    /**
+     * Implements the SHOW operation.
+     *
+     * @return
+     */
+    public CompletableFuture<List<String>> showAsync();
+
+    /**
+     * Implements the SHOW operation; see {@link BlockdClient#showLocks()}.
+     *
+     * @return
+     */
+    public CompletableFuture<ShowResult> showLocksAsync();
+
+    /**
+     * Implements the ACQUIRE [lockId] operation.
+     *
+     * @param lockId
+     * @return
+     */
+    public CompletableFuture<String> acquireAsync(String lockId);
+
+    /**
+     * Implements the ACQUIRE [lockId] [timeout] operation.
+     *
+     * @param lockId
+     * @param timeout
+     * @return
+     */
+    public CompletableFuture<String> acquireAsync(String lockId, int timeout);
+
+    /**
+     * Implements the ACQUIRE [lockId] [timeout] [mode] operation.
+     *
+     * @param lockId
+     * @param timeout
+     * @param mode
+     * @return
+     */
+    public CompletableFuture<String> acquireAsync(String lockId, int timeout, String mode);
+
+    /**
+     * Like {@link #acquireAsync(String, int, String)}, but ACQUIRETIMEOUT
+     * completes the future with false instead of failing it.
+     *
+     * @param lockId
+     * @param timeout
+     * @param mode
+     * @return
+     */
+    public CompletableFuture<Boolean> tryAcquireAsync(String lockId, int timeout, String mode);
+
+    /**
+     * Implements the RELEASE [lockId] operation.
+     *
+     * @param lockId
+     * @return
+     */
+    public CompletableFuture<String> releaseAsync(String lockId);
+
+    /**
+     * Implements the RELEASEALL operation.
+     *
+     * @return
+     */
+    public CompletableFuture<List<String>> releaseAllAsync();
+
+}
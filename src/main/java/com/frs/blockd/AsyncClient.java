@@ -0,0 +1,617 @@
+package com.frs.blockd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A non-blocking client for the Blockd Server. The socket is driven by an
+ * {@link EventLoop}, so waiting for a lock does not hold a thread; many
+ * clients can share the loops of one {@link EventLoopGroup}.
+ * <p>
+ * The blocking {@link BlockdClient} methods are also implemented and simply
+ * wait on the corresponding future. Status semantics match
+ * {@link SimpleClient}: an ACQUIRETIMEOUT on a timed acquire and a
+ * NOLOCKTORELEASE on release complete the future exceptionally.
+ * See https://github.com/blockd/blockd-server/wiki/Protocol
+ */
+public class AsyncClient implements BlockdClient, AsyncBlockdClient, EventLoop.Handler {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int WRITE_BUFFER_SIZE = 4096;
+
+    private final String host;
+    private final int port;
+    private final EventLoopGroup group;
+
+    private volatile EventLoop loop;
+
+    // Everything below is only touched on the event loop thread.
+    private SocketChannel channel;
+    private SelectionKey key;
+    private final ResponseDispatcher dispatcher = new ResponseDispatcher();
+    private final CommandEncoder encoder = new CommandEncoder();
+    private final LineReader lineReader = new LineReader(READ_BUFFER_SIZE);
+    private final ResponseParser parser = new ResponseParser();
+    private final Response response = new Response();
+    private ByteBuffer outBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private long nonce;
+
+    private volatile boolean connected;
+    private volatile int pendingGrace = SimpleClient.DEFAULT_PENDING_GRACE;
+    private final HeldLockRegistry held = new HeldLockRegistry();
+    private final WireTrace trace;
+    private final ClientMetrics metrics;
+
+    /**
+     * Constructor. Uses the default event loop group; won't connect to the
+     * server until <code>connect()</code> is called.
+     *
+     * @param host blockd host name or IP address
+     * @param port blockd listen port
+     * @throws IOException If the default event loop group cannot be started.
+     */
+    public AsyncClient(String host, int port) throws IOException {
+
+        this(host, port, EventLoopGroup.getDefault());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param host  blockd host name or IP address
+     * @param port  blockd listen port
+     * @param group The event loops to run the connection on.
+     */
+    public AsyncClient(String host, int port, EventLoopGroup group) {
+
+        this.host = host;
+        this.port = port;
+        this.group = group;
+        this.trace = new WireTrace(host, port);
+        this.metrics = new ClientMetrics(host, port);
+    }
+
+    @Override
+    public String getHost() {
+
+        return (host);
+    }
+
+    @Override
+    public int getPort() {
+
+        return (port);
+    }
+
+    /**
+     * How long past its timeout a blocking <code>acquire()</code> waits for
+     * the server to answer before giving up on it.
+     *
+     * @return The grace period in milliseconds.
+     */
+    @Override
+    public int getPendingGrace() {
+
+        return (pendingGrace);
+    }
+
+    /**
+     * Sets the grace period; see <code>getPendingGrace()</code>.
+     *
+     * @param pendingGrace The grace period in milliseconds.
+     */
+    public void setPendingGrace(int pendingGrace) {
+
+        this.pendingGrace = pendingGrace;
+    }
+
+    /**
+     * The tracer wire traffic is handed to, or null for none.
+     *
+     * @return
+     */
+    public WireTracer getTracer() {
+
+        return (trace.getTracer());
+    }
+
+    /**
+     * Sets the tracer. Nothing is traced until a level other than
+     * <code>OFF</code> is set as well.
+     *
+     * @param tracer
+     */
+    public void setTracer(WireTracer tracer) {
+
+        trace.setTracer(tracer);
+    }
+
+    /**
+     * How much wire traffic is traced.
+     *
+     * @return
+     */
+    public TraceLevel getTraceLevel() {
+
+        return (trace.getLevel());
+    }
+
+    /**
+     * Sets how much wire traffic is traced; <code>OFF</code> by default.
+     *
+     * @param level
+     */
+    public void setTraceLevel(TraceLevel level) {
+
+        trace.setLevel(level);
+    }
+
+    /**
+     * One in how many of the lines selected by the trace level is traced.
+     *
+     * @return
+     */
+    public int getTraceSampleRate() {
+
+        return (trace.getSampleRate());
+    }
+
+    /**
+     * Traces only one in <code>sampleRate</code> lines, chosen at random;
+     * 1, the default, traces every line.
+     *
+     * @param sampleRate
+     */
+    public void setTraceSampleRate(int sampleRate) {
+
+        trace.setSampleRate(sampleRate);
+    }
+
+    /**
+     * The locks this connection holds.
+     *
+     * @return
+     */
+    public HeldLockRegistry getHeldLockRegistry() {
+
+        return (held);
+    }
+
+    @Override
+    public List<HeldLockRegistry.HeldLock> getHeldLocks() {
+
+        return (held.getHeld());
+    }
+
+    @Override
+    public MetricsSnapshot getMetrics() {
+
+        return (metrics.snapshot());
+    }
+
+    @Override
+    public ContentionReport getContention() {
+
+        return (metrics.contention());
+    }
+
+    @Override
+    public boolean isConnected() {
+
+        return (connected);
+    }
+
+    @Override
+    public void connect() throws Exception {
+
+        Futures.await(connectAsync());
+    }
+
+    @Override
+    public void quit() throws Exception {
+
+        Futures.await(quitAsync());
+    }
+
+    @Override
+    public String wisdom() throws Exception {
+
+        return (Futures.await(wisdomAsync()));
+    }
+
+    @Override
+    public List<String> show() throws Exception {
+
+        return (Futures.await(showAsync()));
+    }
+
+    @Override
+    public ShowResult showLocks() throws Exception {
+
+        return (Futures.await(showLocksAsync()));
+    }
+
+    @Override
+    public String acquire(String lockId) throws Exception {
+
+        return (Futures.await(acquireAsync(lockId)));
+    }
+
+    @Override
+    public String acquire(String lockId, int timeout) throws Exception {
+
+        return (acquire(lockId, timeout, "W"));
+    }
+
+    @Override
+    public String acquire(String lockId, int timeout, String mode) throws Exception {
+
+        CompletableFuture<String> future = acquireAsync(lockId, timeout, mode);
+        try {
+            return (Futures.await(future, Futures.pendingDeadline(timeout, pendingGrace), "ACQUIRE " + lockId));
+        } catch (SocketTimeoutException e) {
+            Futures.releaseWhenGranted(this, future, lockId);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean tryAcquire(String lockId, int timeout, String mode) throws Exception {
+
+        CompletableFuture<Boolean> future = tryAcquireAsync(lockId, timeout, mode);
+        try {
+            return (Futures.await(future, Futures.pendingDeadline(timeout, pendingGrace), "ACQUIRE " + lockId));
+        } catch (SocketTimeoutException e) {
+            Futures.releaseWhenGranted(this, future, lockId);
+            throw e;
+        }
+    }
+
+    @Override
+    public String release(String lockId) throws Exception {
+
+        return (Futures.await(releaseAsync(lockId)));
+    }
+
+    @Override
+    public String acquire(LockKey key) throws Exception {
+
+        return (acquire(key.getLockId()));
+    }
+
+    @Override
+    public String acquire(LockKey key, int timeout) throws Exception {
+
+        return (acquire(key.getLockId(), timeout));
+    }
+
+    @Override
+    public String acquire(LockKey key, int timeout, String mode) throws Exception {
+
+        return (acquire(key.getLockId(), timeout, mode));
+    }
+
+    @Override
+    public boolean tryAcquire(LockKey key, int timeout, String mode) throws Exception {
+
+        return (tryAcquire(key.getLockId(), timeout, mode));
+    }
+
+    @Override
+    public String release(LockKey key) throws Exception {
+
+        return (release(key.getLockId()));
+    }
+
+    @Override
+    public List<String> releaseAll() throws Exception {
+
+        return (Futures.await(releaseAllAsync()));
+    }
+
+    @Override
+    public List<String> acquireAll(Collection<String> lockIds, int timeout, String mode) throws Exception {
+
+        return (BatchLocks.acquireAll(lockId -> this, lockIds, timeout, mode, pendingGrace));
+    }
+
+    @Override
+    public List<String> releaseAll(Collection<String> lockIds) throws Exception {
+
+        return (BatchLocks.releaseAll(lockId -> this, lockIds));
+    }
+
+    /**
+     * Opens a non-blocking connection on the next loop of the group. The
+     * future completes once the IMUSTBLOCKYOU greeting has been read.
+     *
+     * @return
+     */
+    @Override
+    public CompletableFuture<Void> connectAsync() {
+
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        if (loop != null && connected) {
+            future.completeExceptionally(new IllegalStateException("Already connected."));
+            return (future);
+        }
+        loop = group.next();
+        loop.execute(() -> {
+            try {
+                nonce = 0;
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+                // The greeting is the first response, so it is matched like any other.
+                dispatcher.add(new PendingRequest(PendingRequest.Kind.CONNECT, null, false, future));
+                if (channel.connect(new InetSocketAddress(host, port))) {
+                    key = loop.register(channel, SelectionKey.OP_READ, this);
+                    connected = true;
+                } else {
+                    key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (Exception e) {
+                close(e);
+            }
+        });
+        return (future);
+    }
+
+    @Override
+    public CompletableFuture<Void> quitAsync() {
+
+        return (submit(PendingRequest.Kind.QUIT, null, CommandEncoder.NO_TIMEOUT, null, false,
+                       new CompletableFuture<Void>()));
+    }
+
+    @Override
+    public CompletableFuture<String> wisdomAsync() {
+
+        return (submit(PendingRequest.Kind.WISDOM, null, CommandEncoder.NO_TIMEOUT, null, false,
+                       new CompletableFuture<String>()));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> showAsync() {
+
+        return (showLocksAsync().thenApply(locks -> locks.getLockIds()));
+    }
+
+    @Override
+    public CompletableFuture<ShowResult> showLocksAsync() {
+
+        return (submit(PendingRequest.Kind.SHOW, null, CommandEncoder.NO_TIMEOUT, null, false,
+                       new CompletableFuture<ShowResult>()));
+    }
+
+    @Override
+    public CompletableFuture<String> acquireAsync(String lockId) {
+
+        return (held.enter(lockId, null, CommandEncoder.NO_TIMEOUT,
+                           left -> submit(PendingRequest.Kind.ACQUIRE, lockId, left, null, false,
+                                          new CompletableFuture<String>())));
+    }
+
+    @Override
+    public CompletableFuture<String> acquireAsync(String lockId, int timeout) {
+
+        return (acquireAsync(lockId, timeout, "W"));
+    }
+
+    @Override
+    public CompletableFuture<String> acquireAsync(String lockId, int timeout, String mode) {
+
+        return (held.enter(lockId, mode, timeout,
+                           left -> submit(PendingRequest.Kind.ACQUIRE, lockId, left, mode, true,
+                                          new CompletableFuture<String>())));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> tryAcquireAsync(String lockId, int timeout, String mode) {
+
+        return (held.enter(lockId, mode, timeout,
+                           left -> submit(PendingRequest.Kind.ACQUIRE, lockId, left, mode, false,
+                                          new CompletableFuture<String>()))
+                    .thenApply(status -> "LOCKACQUIRED".equals(status)));
+    }
+
+    @Override
+    public CompletableFuture<String> releaseAsync(String lockId) {
+
+        int left = held.exit(lockId);
+        if (left < 0) {
+            return (Futures.failed(new NoLockToReleaseException(lockId)));
+        }
+        if (left > 0) {
+            return (CompletableFuture.completedFuture("LOCKRELEASED"));
+        }
+        return (submit(PendingRequest.Kind.RELEASE, lockId, CommandEncoder.NO_TIMEOUT, null, false,
+                       new CompletableFuture<String>()));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> releaseAllAsync() {
+
+        if (held.isEmpty()) {
+            return (CompletableFuture.completedFuture((List<String>) new ArrayList<String>()));
+        }
+        CompletableFuture<List<String>> future = submit(PendingRequest.Kind.RELEASEALL, null,
+                                                        CommandEncoder.NO_TIMEOUT, null, false,
+                                                        new CompletableFuture<List<String>>());
+        return (future.thenApply(lockIds -> {
+            held.forget(lockIds);
+            return (lockIds);
+        }));
+    }
+
+    /**
+     * Called by the event loop when the channel is ready.
+     *
+     * @param key
+     * @throws Exception
+     */
+    @Override
+    public void onSelect(SelectionKey key) throws Exception {
+
+        if (key.isConnectable()) {
+            channel.finishConnect();
+            connected = true;
+            key.interestOps(outBuffer.position() == 0 ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        if (key.isValid() && key.isWritable()) {
+            flushWrites();
+        }
+        if (key.isValid() && key.isReadable()) {
+            readResponses();
+        }
+    }
+
+    @Override
+    public void onFailure(Throwable cause) {
+
+        close(cause);
+    }
+
+    /**
+     * Queues a command on the loop thread. Nonces are assigned and the
+     * request is registered with the dispatcher there, in write order, so
+     * responses can never race ahead of their request.
+     */
+    private <T> CompletableFuture<T> submit(final PendingRequest.Kind kind, final String lockId, final int timeout,
+                                            final String mode, final boolean timeoutIsError,
+                                            final CompletableFuture<T> future) {
+
+        EventLoop target = loop;
+        if (target == null) {
+            future.completeExceptionally(new IOException("Not connected."));
+            return (future);
+        }
+        target.execute(() -> {
+            if (channel == null || !channel.isOpen()) {
+                future.completeExceptionally(new IOException("Not connected."));
+                return;
+            }
+            PendingRequest pending = new PendingRequest(kind, lockId, timeoutIsError, future);
+            pending.nonce = ++nonce;
+            queueWrite(encoder.command(kind, lockId, timeout, mode, pending.nonce));
+            if (kind == PendingRequest.Kind.RELEASEALL) {
+                pending.fenceNonce = ++nonce;
+                queueWrite(encoder.command(PendingRequest.Kind.WISDOM, null, CommandEncoder.NO_TIMEOUT, null,
+                                           pending.fenceNonce));
+            }
+            pending.measure(metrics);
+            dispatcher.add(pending);
+            try {
+                flushWrites();
+            } catch (IOException e) {
+                close(e);
+            }
+        });
+        return (future);
+    }
+
+    /**
+     * Appends an encoded command to the outgoing buffer, growing it if
+     * needed.
+     */
+    private void queueWrite(CommandEncoder command) {
+
+        if (outBuffer.remaining() < command.length()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(outBuffer.capacity() * 2,
+                                                            outBuffer.position() + command.length()));
+            outBuffer.flip();
+            grown.put(outBuffer);
+            outBuffer = grown;
+        }
+        trace.sent(command.buffer(), 0, command.length() - 1);
+        metrics.sent(command.length());
+        command.writeTo(outBuffer);
+    }
+
+    /**
+     * Writes as much of the outgoing buffer as the socket accepts, and asks
+     * for OP_WRITE if anything is left over.
+     */
+    private void flushWrites() throws IOException {
+
+        if (!connected) {
+            return;
+        }
+        outBuffer.flip();
+        if (outBuffer.hasRemaining()) {
+            metrics.flushed();
+        }
+        channel.write(outBuffer);
+        outBuffer.compact();
+        if (outBuffer.position() > 0) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Reads what is available, splits it into lines and dispatches each
+     * complete line.
+     */
+    private void readResponses() throws Exception {
+
+        if (lineReader.fill(channel) < 0) {
+            close(new IOException("Connection closed by server."));
+            return;
+        }
+        while (lineReader.nextLine()) {
+            byte[] line = lineReader.buffer();
+            int start = lineReader.lineStart();
+            int length = lineReader.lineLength();
+            metrics.received(length + 1);
+            try {
+                parser.parse(line, start, length, response);
+            } catch (IOException e) {
+                trace.received(line, start, length, null, false);
+                throw e;
+            }
+            trace.received(line, start, length, response.getStatus(), true);
+            PendingRequest request = dispatcher.dispatch(response);
+            if (request != null && request.kind == PendingRequest.Kind.QUIT) {
+                close(new IOException("Connection closed by QUIT."));
+                request.complete(null);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes the channel and fails everything still waiting on it.
+     */
+    private void close(Throwable cause) {
+
+        connected = false;
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closing.
+            }
+        }
+        channel = null;
+        key = null;
+        outBuffer.clear();
+        lineReader.clear();
+        held.clear();
+        dispatcher.failAll(cause);
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.frs.blockd;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The multi-lock <code>acquireAll()</code> and <code>releaseAll()</code>
+ * shared by the clients.
+ * <p>
+ * Lock ids are acquired in one global canonical order (sorted, without
+ * duplicates), so two batches over overlapping ids can never deadlock. To
+ * keep that cheap each round first sends a non-waiting ACQUIRE (timeout 0)
+ * for every id still missing, all pipelined on the owning connections. If
+ * they all succeed the batch took a single round trip. Otherwise the ids
+ * granted after the first refused one are released again, so only a prefix
+ * of the order is ever held, and the refused id is waited for with the
+ * remaining timeout before the next round. If an id cannot be had, the
+ * whole batch is released before the call fails: the caller holds either
+ * every lock or none.
+ */
+final class BatchLocks {
+
+    /**
+     * Finds the connection owning a lock id.
+     */
+    interface Router {
+
+        AsyncBlockdClient clientFor(String lockId) throws Exception;
+
+        /**
+         * Sees each request sent for a lock id, e.g. to note how its
+         * connection answered.
+         *
+         * @param lockId
+         * @param request
+         * @return The future to wait on; by default <code>request</code>.
+         */
+        default <T> CompletableFuture<T> sent(String lockId, CompletableFuture<T> request) {
+
+            return (request);
+        }
+
+    }
+
+    private BatchLocks() {
+        // Static methods only.
+    }
+
+    /**
+     * Acquires all of <code>lockIds</code>, or none.
+     *
+     * @param router
+     * @param lockIds
+     * @param timeout The time the whole batch may wait, in milliseconds.
+     * @param mode    The lock mode, or null for the server default.
+     * @param grace   How long past the timeout to wait for a silent server.
+     * @return The acquired lock ids, in acquisition order.
+     * @throws AcquireTimeoutException If an id could not be acquired in time.
+     * @throws Exception               On a connection failure.
+     */
+    static List<String> acquireAll(Router router, Collection<String> lockIds, int timeout, String mode,
+                                   int grace) throws Exception {
+
+        String[] ids = new TreeSet<String>(lockIds).toArray(new String[0]);
+        AsyncBlockdClient[] owners = new AsyncBlockdClient[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            owners[i] = router.clientFor(ids[i]);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(timeout, 0));
+        // ids[0..held) are held.
+        int held = 0;
+        try {
+            while (held < ids.length) {
+                List<CompletableFuture<String>> tries = new ArrayList<CompletableFuture<String>>(ids.length - held);
+                for (int i = held; i < ids.length; i++) {
+                    tries.add(router.sent(ids[i], owners[i].acquireAsync(ids[i], 0, mode)));
+                }
+                int refused = -1;
+                Exception failure = null;
+                for (int i = held; i < ids.length; i++) {
+                    boolean granted;
+                    try {
+                        granted = "LOCKACQUIRED".equals(Futures.await(tries.get(i - held)));
+                    } catch (AcquireTimeoutException e) {
+                        granted = false;
+                    } catch (Exception e) {
+                        // The outcome is unknown; give up once the rest
+                        // have been answered.
+                        granted = false;
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                    if (granted && refused >= 0) {
+                        release(owners[i], ids[i]);
+                    } else if (!granted && refused < 0) {
+                        refused = i;
+                    }
+                }
+                if (failure != null) {
+                    // Only the prefix before the first id not granted is
+                    // held; the rest were let go above, and a failed
+                    // ACQUIRE holds nothing. Releasing more would drop
+                    // holds the caller had before the batch.
+                    held = refused;
+                    throw failure;
+                }
+                if (refused < 0) {
+                    held = ids.length;
+                    break;
+                }
+                held = refused;
+
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    throw new AcquireTimeoutException(ids[held]);
+                }
+                CompletableFuture<String> wait = owners[held].acquireAsync(ids[held], (int) remaining, mode);
+                wait = router.sent(ids[held], wait);
+                String status;
+                try {
+                    status = Futures.await(wait, Futures.pendingDeadline((int) remaining, grace), "ACQUIRE " + ids[held]);
+                } catch (SocketTimeoutException e) {
+                    Futures.releaseWhenGranted(owners[held], wait, ids[held]);
+                    throw e;
+                }
+                if (!"LOCKACQUIRED".equals(status)) {
+                    throw new AcquireTimeoutException(ids[held]);
+                }
+                held++;
+            }
+        } catch (Exception e) {
+            for (int i = 0; i < held; i++) {
+                release(owners[i], ids[i]);
+            }
+            throw e;
+        }
+        List<String> acquired = new ArrayList<String>(ids.length);
+        for (String id : ids) {
+            acquired.add(id);
+        }
+        return (acquired);
+    }
+
+    /**
+     * Releases all of <code>lockIds</code>, pipelined.
+     *
+     * @param router
+     * @param lockIds
+     * @return The ids that were held and have been released; ids that were
+     *         not held are left out.
+     * @throws Exception The first connection failure, once every release
+     *                   has been answered.
+     */
+    static List<String> releaseAll(Router router, Collection<String> lockIds) throws Exception {
+
+        List<String> ids = new ArrayList<String>(new TreeSet<String>(lockIds));
+        List<CompletableFuture<String>> releases = new ArrayList<CompletableFuture<String>>(ids.size());
+        Exception failure = null;
+        for (String id : ids) {
+            try {
+                releases.add(router.sent(id, router.clientFor(id).releaseAsync(id)));
+            } catch (Exception e) {
+                releases.add(Futures.<String>failed(e));
+            }
+        }
+        List<String> released = new ArrayList<String>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            try {
+                Futures.await(releases.get(i));
+                released.add(ids.get(i));
+            } catch (NoLockToReleaseException e) {
+                // Not held; nothing to do.
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return (released);
+    }
+
+    /**
+     * Fire-and-forget release for rollbacks. With a blocking client this
+     * still waits for the answer, but never throws.
+     */
+    private static void release(AsyncBlockdClient client, String lockId) {
+
+        try {
+            client.releaseAsync(lockId);
+        } catch (RuntimeException e) {
+            // Best effort; the lock goes when the connection does.
+        }
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.frs.blockd;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -57,6 +58,15 @@ public interface BlockdClient {
      */
     public List<String> show() throws Exception;
 
+    /**
+     * Implements the SHOW operation, keeping each lock's mode and other
+     * fields. The entries are parsed as they are iterated.
+     *
+     * @return
+     * @throws Exception
+     */
+    public ShowResult showLocks() throws Exception;
+
     /**
      * Implements the ACQUIRE [lockId] operation.
      *
@@ -87,6 +97,19 @@ public interface BlockdClient {
      */
     public String acquire(String lockId, int timeout, String mode) throws Exception;
 
+    /**
+     * Like {@link #acquire(String, int, String)}, but reports ACQUIRETIMEOUT
+     * by returning false instead of throwing, for callers that expect to
+     * lose now and then.
+     *
+     * @param lockId
+     * @param timeout
+     * @param mode
+     * @return true if the lock was acquired.
+     * @throws Exception
+     */
+    public boolean tryAcquire(String lockId, int timeout, String mode) throws Exception;
+
     /**
      * Implements the RELEASE [lockId] operation.
      *
@@ -96,6 +119,58 @@ public interface BlockdClient {
      */
     public String release(String lockId) throws Exception;
 
+    /**
+     * {@link #acquire(String)} with a precomputed {@link LockKey}.
+     *
+     * @param key
+     * @return
+     * @throws Exception
+     */
+    public String acquire(LockKey key) throws Exception;
+
+    /**
+     * {@link #acquire(String, int)} with a precomputed {@link LockKey}.
+     *
+     * @param key
+     * @param timeout
+     * @return
+     * @throws Exception
+     */
+    public String acquire(LockKey key, int timeout) throws Exception;
+
+    /**
+     * {@link #acquire(String, int, String)} with a precomputed
+     * {@link LockKey}.
+     *
+     * @param key
+     * @param timeout
+     * @param mode
+     * @return
+     * @throws Exception
+     */
+    public String acquire(LockKey key, int timeout, String mode) throws Exception;
+
+    /**
+     * {@link #tryAcquire(String, int, String)} with a precomputed
+     * {@link LockKey}.
+     *
+     * @param key
+     * @param timeout
+     * @param mode
+     * @return true if the lock was acquired.
+     * @throws Exception
+     */
+    public boolean tryAcquire(LockKey key, int timeout, String mode) throws Exception;
+
+    /**
+     * {@link #release(String)} with a precomputed {@link LockKey}.
+     *
+     * @param key
+     * @return
+     * @throws Exception
+     */
+    public String release(LockKey key) throws Exception;
+
     /**
      * Implements the RELEASEALL operation.
      *
@@ -104,4 +179,61 @@ public interface BlockdClient {
      */
     public List<String> releaseAll() throws Exception;
 
+    /**
+     * Acquires several locks as one unit. The ids are acquired in a global
+     * canonical order, so batches over overlapping ids cannot deadlock, and
+     * are pipelined where the connection allows it. If any id cannot be
+     * acquired within <code>timeout</code>, the ones already acquired are
+     * released again before the exception is thrown.
+     *
+     * @param lockIds
+     * @param timeout The time the whole batch may wait, in milliseconds.
+     * @param mode    The lock mode, or null for the server default.
+     * @return The acquired lock ids, in acquisition order.
+     * @throws AcquireTimeoutException If an id could not be acquired in time.
+     * @throws Exception
+     */
+    public List<String> acquireAll(Collection<String> lockIds, int timeout, String mode) throws Exception;
+
+    /**
+     * Releases several locks, pipelined where the connection allows it.
+     *
+     * @param lockIds
+     * @return The ids that were held and have been released.
+     * @throws Exception
+     */
+    public List<String> releaseAll(Collection<String> lockIds) throws Exception;
+
+    /**
+     * The locks held through this client, with their hold counts; for
+     * leak detection.
+     *
+     * @return
+     */
+    public List<HeldLockRegistry.HeldLock> getHeldLocks();
+
+    /**
+     * A snapshot of this client's metrics: command latencies, time spent
+     * LOCKPENDING, timeouts, bytes and requests in flight.
+     *
+     * @return
+     */
+    public MetricsSnapshot getMetrics();
+
+    /**
+     * The lock ids this client waits on most: per-id ACQUIRE and
+     * LOCKPENDING counts and time spent LOCKPENDING, kept in bounded memory.
+     *
+     * @return
+     */
+    public ContentionReport getContention();
+
+    /**
+     * How long past its timeout an ACQUIRE waits for the server to answer
+     * before the server is presumed dead.
+     *
+     * @return The grace period in milliseconds.
+     */
+    public int getPendingGrace();
+
 }
@@ -0,0 +1,231 @@
+package com.frs.blockd;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A {@link Lock} over one blockd lock id, in "W" or "R" mode.
+ * <p>
+ * Acquires go through {@link BlockdClient#tryAcquire(String, int, String)},
+ * so a lost <code>tryLock()</code> is an answer rather than an exception.
+ * With an {@link AsyncBlockdClient} waits are interruptible. An interrupted
+ * wait is abandoned, and should the server grant the lock after all it is
+ * released right away; blockd has no command to withdraw a pending
+ * ACQUIRE. A blocking client can only notice an interrupt before the wait.
+ * <p>
+ * Holds belong to the client's connection, not to a thread, so threads
+ * sharing a connection share its holds. To lock between the threads of one
+ * JVM, build the locks over a {@link MultiplexedClient}.
+ * <p>
+ * The <code>Lock</code> methods cannot throw checked exceptions; connection
+ * failures surface as <code>IllegalStateException</code>.
+ */
+public class BlockdLock implements Lock {
+
+    // The server timeout for waits without one; about 24 days.
+    private static final int FOREVER = Integer.MAX_VALUE;
+
+    private final BlockdClient client;
+    private final String lockId;
+    private final String mode;
+
+    /**
+     * Constructor for a write lock.
+     *
+     * @param client
+     * @param lockId
+     */
+    public BlockdLock(BlockdClient client, String lockId) {
+
+        this(client, lockId, "W");
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param client
+     * @param lockId
+     * @param mode   'W'rite or 'R'ead mode
+     */
+    public BlockdLock(BlockdClient client, String lockId, String mode) {
+
+        this.client = client;
+        this.lockId = lockId;
+        this.mode = mode;
+    }
+
+    public String getLockId() {
+
+        return (lockId);
+    }
+
+    public String getMode() {
+
+        return (mode);
+    }
+
+    /**
+     * Waits for the lock however long it takes. An interrupt does not end
+     * the wait; the thread's interrupt status is restored once the lock is
+     * held.
+     */
+    @Override
+    public void lock() {
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                CompletableFuture<Boolean> attempt = attempt(FOREVER);
+                while (true) {
+                    try {
+                        if (Futures.await(attempt)) {
+                            return;
+                        }
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw failed(e);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        while (!await(attempt(FOREVER), -1)) {
+            // Timed out after FOREVER; ask again.
+        }
+    }
+
+    /**
+     * Takes the lock only if it is free now, at the cost of one round
+     * trip.
+     *
+     * @return
+     */
+    @Override
+    public boolean tryLock() {
+
+        try {
+            return (client.tryAcquire(lockId, 0, mode));
+        } catch (Exception e) {
+            throw failed(e);
+        }
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        long millis = Math.min(unit.toMillis(time), FOREVER);
+        if (millis <= 0) {
+            return (tryLock());
+        }
+        return (await(attempt((int) millis), Futures.pendingDeadline((int) millis, client.getPendingGrace())));
+    }
+
+    /**
+     * Releases the lock.
+     *
+     * @throws IllegalMonitorStateException If the lock is not held.
+     */
+    @Override
+    public void unlock() {
+
+        try {
+            client.release(lockId);
+        } catch (NoLockToReleaseException e) {
+            IllegalMonitorStateException notHeld = new IllegalMonitorStateException(lockId + " is not held");
+            notHeld.initCause(e);
+            throw notHeld;
+        } catch (Exception e) {
+            throw failed(e);
+        }
+    }
+
+    /**
+     * Not supported; blockd has no conditions.
+     *
+     * @return
+     */
+    @Override
+    public Condition newCondition() {
+
+        throw new UnsupportedOperationException("blockd locks have no conditions.");
+    }
+
+    @Override
+    public String toString() {
+
+        return ("BlockdLock[" + lockId + " " + mode + "]");
+    }
+
+    private CompletableFuture<Boolean> attempt(int timeout) {
+
+        if (client instanceof AsyncBlockdClient) {
+            return (((AsyncBlockdClient) client).tryAcquireAsync(lockId, timeout, mode));
+        }
+        try {
+            return (CompletableFuture.completedFuture(client.tryAcquire(lockId, timeout, mode)));
+        } catch (Exception e) {
+            return (Futures.failed(e));
+        }
+    }
+
+    /**
+     * Waits for an attempt; an abandoned attempt is released should it
+     * still be granted.
+     *
+     * @param millis How long to wait, or -1 for as long as it takes.
+     * @return Whether the lock was acquired.
+     */
+    private boolean await(CompletableFuture<Boolean> attempt, long millis) throws InterruptedException {
+
+        try {
+            return (millis < 0 ? Futures.await(attempt) : Futures.await(attempt, millis, "ACQUIRE " + lockId));
+        } catch (InterruptedException e) {
+            abandon(attempt);
+            throw e;
+        } catch (SocketTimeoutException e) {
+            if (attempt.isDone()) {
+                throw failed(e);
+            }
+            abandon(attempt);
+            return (false);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw failed(e);
+        }
+    }
+
+    private void abandon(CompletableFuture<Boolean> attempt) {
+
+        if (client instanceof AsyncBlockdClient) {
+            Futures.releaseWhenGranted((AsyncBlockdClient) client, attempt, lockId);
+        }
+    }
+
+    private IllegalStateException failed(Exception e) {
+
+        return (new IllegalStateException("Lock " + lockId + " failed: " + e.getMessage(), e));
+    }
+
+}
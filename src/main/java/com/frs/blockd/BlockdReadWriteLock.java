@@ -0,0 +1,41 @@
+package com.frs.blockd;
+
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * A {@link ReadWriteLock} over one blockd lock id: the read lock takes it
+ * in "R" mode, the write lock in "W" mode. See {@link BlockdLock}.
+ * <p>
+ * Taking the write lock while holding the read lock asks the server for
+ * an upgrade; whether it is granted is up to the server.
+ */
+public class BlockdReadWriteLock implements ReadWriteLock {
+
+    private final BlockdLock readLock;
+    private final BlockdLock writeLock;
+
+    /**
+     * Constructor.
+     *
+     * @param client
+     * @param lockId
+     */
+    public BlockdReadWriteLock(BlockdClient client, String lockId) {
+
+        readLock = new BlockdLock(client, lockId, "R");
+        writeLock = new BlockdLock(client, lockId, "W");
+    }
+
+    @Override
+    public BlockdLock readLock() {
+
+        return (readLock);
+    }
+
+    @Override
+    public BlockdLock writeLock() {
+
+        return (writeLock);
+    }
+
+}
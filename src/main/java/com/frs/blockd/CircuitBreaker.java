@@ -0,0 +1,122 @@
+package com.frs.blockd;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stops requests to a node that keeps failing, so they fail at once instead
+ * of each waiting out the node's timeouts.
+ * <p>
+ * The breaker is <code>CLOSED</code> while the node works. After
+ * <code>failureThreshold</code> failures in a row it opens, and requests
+ * are refused until <code>openMillis</code> have passed. Then one trial
+ * request is let through (<code>HALF_OPEN</code>): its success closes the
+ * breaker, its failure opens it again. Health checks close or open it
+ * directly. Thread-safe.
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states of a breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * The default number of failures in a row that opens the breaker.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    /**
+     * The default time, in milliseconds, the breaker stays open.
+     */
+    public static final int DEFAULT_OPEN_MILLIS = 1000;
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile long openedAt;
+
+    /**
+     * Constructor with the defaults.
+     */
+    public CircuitBreaker() {
+
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param failureThreshold The number of failures in a row that opens
+     *                         the breaker.
+     * @param openMillis       How long it stays open before a trial.
+     */
+    public CircuitBreaker(int failureThreshold, int openMillis) {
+
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    public State getState() {
+
+        return (state.get());
+    }
+
+    /**
+     * May a request go to the node now? Once the breaker has been open long
+     * enough this lets exactly one caller through for the trial.
+     *
+     * @return
+     */
+    public boolean allowRequest() {
+
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return (true);
+        }
+        if (current == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+            return (state.compareAndSet(State.OPEN, State.HALF_OPEN));
+        }
+        return (false);
+    }
+
+    /**
+     * Records that the node answered.
+     */
+    public void recordSuccess() {
+
+        // Read first; most calls find nothing to change, and need not write.
+        if (failures.get() != 0) {
+            failures.set(0);
+        }
+        if (state.get() != State.CLOSED) {
+            state.set(State.CLOSED);
+        }
+    }
+
+    /**
+     * Records that the node failed or did not answer in time.
+     */
+    public void recordFailure() {
+
+        if (failures.incrementAndGet() >= failureThreshold || state.get() != State.CLOSED) {
+            openedAt = System.nanoTime();
+            state.set(State.OPEN);
+        }
+    }
+
+    /**
+     * Opens the breaker at once, e.g. because a health check failed.
+     */
+    public void trip() {
+
+        failures.set(failureThreshold);
+        openedAt = System.nanoTime();
+        state.set(State.OPEN);
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.frs.blockd;
+
+/**
+ * JDK Flight Recorder events for the commands of a {@link SimpleClient},
+ * so that time spent on blockd shows up in JMC by lock id and node rather
+ * than as anonymous socket reads. They are on in every recording; a
+ * threshold in the recording's settings keeps only the slow ones.
+ * <p>
+ * Each event starts and ends on the thread that called the client, in
+ * blocking and pipelined mode alike, and lasts the whole call. An ACQUIRE's
+ * event includes the wait after LOCKPENDING, and its
+ * <code>pendingDuration</code> says how much of it that was. Reentrant
+ * acquires and releases that never reach the server are not recorded.
+ * <p>
+ * The factory methods return null unless the event is enabled in a running
+ * recording, so a client without a recording pays one flag check per
+ * command and allocates nothing. The client is built for Java 8, where
+ * <code>jdk.jfr</code> only exists from 8u262 on, and may be built on a JDK
+ * without it. So nothing here refers to JFR: the events live in
+ * <code>FlightRecorderEvents</code>, which is loaded by name, and only if
+ * both it and <code>jdk.jfr</code> are there. Otherwise there are no events.
+ */
+final class ClientEvents {
+
+    private static final Recorder RECORDER = load();
+
+    private ClientEvents() {
+        // Static methods only.
+    }
+
+    /**
+     * Are the events in this JVM?
+     *
+     * @return
+     */
+    static boolean isSupported() {
+
+        return (RECORDER != null);
+    }
+
+    static Event connect(String host, int port) {
+
+        return (RECORDER == null ? null : RECORDER.connect(host, port));
+    }
+
+    static Event acquire(String host, int port, String lockId, String mode, int timeout) {
+
+        return (RECORDER == null ? null : RECORDER.acquire(host, port, lockId, mode, timeout));
+    }
+
+    static Event release(String host, int port, String lockId) {
+
+        return (RECORDER == null ? null : RECORDER.release(host, port, lockId));
+    }
+
+    static Event releaseAll(String host, int port) {
+
+        return (RECORDER == null ? null : RECORDER.releaseAll(host, port));
+    }
+
+    static Event show(String host, int port) {
+
+        return (RECORDER == null ? null : RECORDER.show(host, port));
+    }
+
+    private static Recorder load() {
+
+        try {
+            // The events' classes would only fail once used, so check first.
+            Class.forName("jdk.jfr.Event");
+            Class<?> recorder = Class.forName("com.frs.blockd.FlightRecorderEvents");
+            return ((Recorder) recorder.getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return (null);
+        }
+    }
+
+    /**
+     * Makes the events, each started and for the calling thread; null if
+     * it is not enabled.
+     */
+    interface Recorder {
+
+        Event connect(String host, int port);
+
+        Event acquire(String host, int port, String lockId, String mode, int timeout);
+
+        Event release(String host, int port, String lockId);
+
+        Event releaseAll(String host, int port);
+
+        Event show(String host, int port);
+
+    }
+
+    /**
+     * One command's event.
+     */
+    interface Event {
+
+        /**
+         * Ends the event with the server's answer.
+         *
+         * @param status
+         */
+        void finished(String status);
+
+        /**
+         * Ends the event with a failure. Timeouts and releases of locks not
+         * held are reported by their status, like the answers they are.
+         *
+         * @param cause
+         */
+        default void failed(Throwable cause) {
+
+            if (cause instanceof AcquireTimeoutException) {
+                finished("ACQUIRETIMEOUT");
+            } else if (cause instanceof NoLockToReleaseException) {
+                finished("NOLOCKTORELEASE");
+            } else {
+                finished(cause.getClass().getName());
+            }
+        }
+
+        /**
+         * Sets how long an ACQUIRE was LOCKPENDING.
+         *
+         * @param nanos
+         */
+        default void pending(long nanos) {
+            // Only ACQUIREs wait.
+        }
+
+        /**
+         * Sets how many locks a RELEASEALL released.
+         *
+         * @param count
+         */
+        default void released(int count) {
+            // Only RELEASEALL counts.
+        }
+
+    }
+
+}
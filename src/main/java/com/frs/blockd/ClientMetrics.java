@@ -0,0 +1,143 @@
+package com.frs.blockd;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The per-connection metrics recorder behind
+ * {@link BlockdClient#getMetrics()}. Everything is a striped counter
+ * ({@link LongAdder}, {@link LatencyRecorder}), so request threads and the
+ * reader record without locks and without contending with each other; the
+ * cost per command is two <code>nanoTime()</code> calls and a few adds.
+ * Per-lock-id contention goes to a {@link ContentionProfiler}.
+ */
+final class ClientMetrics {
+
+    private final String connection;
+    private final LatencyRecorder[] latencies = new LatencyRecorder[PendingRequest.Kind.values().length];
+    private final LongAdder[] failures = new LongAdder[PendingRequest.Kind.values().length];
+    private final LatencyRecorder lockPending = new LatencyRecorder();
+    private final LongAdder lockPendingFailures = new LongAdder();
+    private final LongAdder acquireTimeouts = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder inFlight = new LongAdder();
+    private final ContentionProfiler contention;
+
+    /**
+     * Constructor.
+     *
+     * @param host
+     * @param port
+     */
+    ClientMetrics(String host, int port) {
+
+        this.connection = host + ":" + port;
+        this.contention = new ContentionProfiler(connection, ContentionProfiler.DEFAULT_TOP_LOCKS);
+        for (PendingRequest.Kind kind : new PendingRequest.Kind[] {PendingRequest.Kind.ACQUIRE,
+                PendingRequest.Kind.RELEASE, PendingRequest.Kind.SHOW, PendingRequest.Kind.RELEASEALL}) {
+            latencies[kind.ordinal()] = new LatencyRecorder();
+            failures[kind.ordinal()] = new LongAdder();
+        }
+    }
+
+    /**
+     * A command is about to be written.
+     *
+     * @return The start time to hand to {@link #end}.
+     */
+    long begin() {
+
+        inFlight.increment();
+        return (System.nanoTime());
+    }
+
+    /**
+     * An ACQUIRE is about to be written.
+     *
+     * @param lockId
+     */
+    void acquired(String lockId) {
+
+        contention.acquired(lockId);
+    }
+
+    /**
+     * A command has seen its last response, or failed.
+     *
+     * @param kind   The command.
+     * @param begun  What {@link #begin()} returned.
+     * @param status The final status, if any.
+     * @param cause  The failure, if any.
+     */
+    void end(PendingRequest.Kind kind, long begun, String status, Throwable cause) {
+
+        inFlight.decrement();
+        LatencyRecorder latency = latencies[kind.ordinal()];
+        if (latency == null) {
+            return;
+        }
+        latency.record(System.nanoTime() - begun);
+        if ("ACQUIRETIMEOUT".equals(status) || cause instanceof AcquireTimeoutException) {
+            acquireTimeouts.increment();
+        } else if (cause != null || "NOLOCKTORELEASE".equals(status)) {
+            failures[kind.ordinal()].increment();
+        }
+    }
+
+    /**
+     * An ACQUIRE that went LOCKPENDING has been answered.
+     *
+     * @param lockId The pending lock.
+     * @param since  When the LOCKPENDING was read.
+     * @param failed Did the connection fail meanwhile?
+     * @return The time spent LOCKPENDING, in nanoseconds.
+     */
+    long pendingEnded(String lockId, long since, boolean failed) {
+
+        long nanos = System.nanoTime() - since;
+        lockPending.record(nanos);
+        contention.pendingEnded(lockId, nanos);
+        if (failed) {
+            lockPendingFailures.increment();
+        }
+        return (nanos);
+    }
+
+    void sent(int bytes) {
+
+        bytesSent.add(bytes);
+    }
+
+    void flushed() {
+
+        flushes.increment();
+    }
+
+    void received(int bytes) {
+
+        bytesReceived.add(bytes);
+    }
+
+    MetricsSnapshot snapshot() {
+
+        return (new MetricsSnapshot(connection, latency(PendingRequest.Kind.ACQUIRE),
+                                    latency(PendingRequest.Kind.RELEASE), latency(PendingRequest.Kind.SHOW),
+                                    latency(PendingRequest.Kind.RELEASEALL),
+                                    lockPending.snapshot(lockPendingFailures.sum()), acquireTimeouts.sum(),
+                                    bytesSent.sum(), bytesReceived.sum(), flushes.sum(), inFlight.sum(),
+                                    Collections.<String, MetricsSnapshot>emptyMap()));
+    }
+
+    ContentionReport contention() {
+
+        return (contention.snapshot());
+    }
+
+    private MetricsSnapshot.Latency latency(PendingRequest.Kind kind) {
+
+        return (latencies[kind.ordinal()].snapshot(failures[kind.ordinal()].sum()));
+    }
+
+}
@@ -1,261 +1,1709 @@
 package com.frs.blockd;
 
+import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The ClusterClient is simply a wrapper around multiple BasicClient instances.
- * A very simple "consistent hashing" method is used to route requests to a particular
- * server.
+ * Requests are routed to a server by a {@link Partitioner}; by default a
+ * consistent-hash ring with virtual nodes, so adding a server only moves
+ * about 1/N of the lock ids.
+ * <p>
+ * Every node has a {@link CircuitBreaker}: once a node keeps failing,
+ * requests for its locks fail at once with a
+ * {@link NodeUnavailableException} rather than each waiting out the
+ * node's timeouts. They are not sent to another node, since a lock must
+ * only ever be granted by one; where that is not good enough, quorum mode
+ * keeps each lock on a majority of several nodes. While connected, every
+ * node is sent a WISDOM as a health check every second; a node that does
+ * not answer in time is cut off right away, and a node that has lost its
+ * connection is reconnected.
+ * <p>
+ * Nodes can be added and removed at any time. Each change publishes a new
+ * immutable {@link RoutingTable}, so routing takes no lock. A lock that is
+ * held keeps going to the node that granted it, even when a change gives
+ * its id to another node. A removed node first drains: it takes no new
+ * locks, and the locks it still holds after the drain timeout are moved
+ * to their new node. {@link TopologyListener}s hear about each change.
  */
 public class ClusterClient implements BlockdClient {
 
-    private TreeMap<Integer, SimpleClient> nodes = new TreeMap<Integer, SimpleClient>();
+    private volatile RoutingTable routing = RoutingTable.empty(new HashRingPartitioner());
+    // Serializes membership changes; routing itself reads the table only.
+    private final ReentrantLock membership = new ReentrantLock();
+    private final List<TopologyListener> listeners = new CopyOnWriteArrayList<TopologyListener>();
+    private volatile boolean live;
+    private Executor executor = defaultExecutor();
+    private int fanOutTimeout;
+    private boolean pipelined;
+    private int poolSize;
+    private SocketOptions socketOptions = new SocketOptions();
+    private int pendingGrace = SimpleClient.DEFAULT_PENDING_GRACE;
+    private boolean reacquireOnReconnect;
+    private int failureThreshold = CircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+    private int openInterval = CircuitBreaker.DEFAULT_OPEN_MILLIS;
+    private int healthCheckInterval = DEFAULT_HEALTH_CHECK_INTERVAL;
+    private ScheduledFuture<?> healthChecks;
+    private int showCacheTtl;
+    private volatile CoalescingCache<ShowResult> showCache;
+    private volatile LockKeyCache lockKeys;
+    private int quorumReplicas;
+    private int quorumWindow = DEFAULT_QUORUM_WINDOW;
+    // The quorum grants held, newest last, by lock id.
+    private final ConcurrentHashMap<String, List<QuorumGrant>> quorumHolds =
+            new ConcurrentHashMap<String, List<QuorumGrant>>();
+    private final AtomicBoolean checking = new AtomicBoolean();
+
+    private static Executor defaultExecutor;
+    private static final AtomicLong grantSequence = new AtomicLong();
+
+    /**
+     * The default time, in milliseconds, between health checks.
+     */
+    public static final int DEFAULT_HEALTH_CHECK_INTERVAL = 1000;
+
+    /**
+     * The default time, in milliseconds, a quorum acquire waits for the
+     * replicas beyond its own timeout.
+     */
+    public static final int DEFAULT_QUORUM_WINDOW = 1000;
+
+    private static final int DRAIN_POLL = 10;
 
     /**
      * Constructor.
      */
-    public ClusterClient() {
-        // No Op
+    public ClusterClient() {
+        // No Op
+    }
+
+    /**
+     * This method adds a blockd server to cluster of servers know to this client.
+     * See {@link #addNode(AsyncBlockdClient)}.
+     *
+     * @param host
+     * @param port
+     */
+    public void addNode(String host, int port) {
+
+        if (poolSize > 0) {
+            PooledClient client = new PooledClient(host, port);
+            client.setMaxConnections(poolSize);
+            client.setSocketOptions(socketOptions);
+            client.setPendingGrace(pendingGrace);
+            addNode(client);
+        } else {
+            SimpleClient client = new SimpleClient(host, port);
+            client.setPipelined(pipelined);
+            client.setSocketOptions(socketOptions);
+            client.setPendingGrace(pendingGrace);
+            client.setReacquireOnReconnect(reacquireOnReconnect);
+            addNode(client);
+        }
+    }
+
+    /**
+     * Adds a blockd server through a client configured by the caller, e.g.
+     * a {@link PooledClient} with custom limits. The node is named after the
+     * client's host and port. If the cluster is connected, the node is
+     * connected before it takes locks; should that fail it starts out cut
+     * off, and the health checks connect it later.
+     *
+     * @param client
+     */
+    public void addNode(AsyncBlockdClient client) {
+
+        RoutingTable.Node node = new RoutingTable.Node(client, new CircuitBreaker(failureThreshold, openInterval));
+        if (live) {
+            try {
+                client.connect();
+            } catch (Exception e) {
+                node.breaker.trip();
+            }
+        }
+        List<String> nodes;
+        membership.lock();
+        try {
+            routing = routing.with(node);
+            nodes = routing.names();
+        } finally {
+            membership.unlock();
+        }
+        for (TopologyListener listener : listeners) {
+            listener.nodeAdded(node.name, nodes);
+        }
+    }
+
+    /**
+     * Removes a node at once; see {@link #removeNode(String, int, int)}.
+     *
+     * @param host
+     * @param port
+     * @return The ids of the locks that were lost.
+     * @throws Exception
+     */
+    public List<String> removeNode(String host, int port) throws Exception {
+
+        return (removeNode(host, port, 0));
+    }
+
+    /**
+     * Removes a node. New locks go to the remaining nodes straight away.
+     * The locks still held on the node go on being served by it for up to
+     * <code>drainTimeout</code>, so that they can be released. Any lock it
+     * holds after that is acquired on its new node without waiting, keeping
+     * its hold count. Then the node is quit.
+     *
+     * @param host
+     * @param port
+     * @param drainTimeout In milliseconds.
+     * @return The ids of the locks that could not be moved, and so are no
+     *         longer held.
+     * @throws IllegalArgumentException If there is no such node.
+     * @throws InterruptedException
+     */
+    public List<String> removeNode(String host, int port, int drainTimeout) throws InterruptedException {
+
+        String name = host + ":" + port;
+        RoutingTable.Node node;
+        membership.lock();
+        try {
+            node = routing.find(name);
+            if (node == null || !Arrays.asList(routing.nodes).contains(node)) {
+                throw new IllegalArgumentException("No node " + name + " in the cluster.");
+            }
+            routing = routing.draining(node);
+        } finally {
+            membership.unlock();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeout);
+        while (!node.client.getHeldLocks().isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(DRAIN_POLL);
+        }
+        List<String> lost = migrate(node);
+
+        List<String> nodes;
+        membership.lock();
+        try {
+            routing = routing.without(node);
+            nodes = routing.names();
+        } finally {
+            membership.unlock();
+        }
+        try {
+            node.client.quit();
+        } catch (Exception e) {
+            // The node may be down; its locks are gone either way.
+        }
+        for (TopologyListener listener : listeners) {
+            listener.nodeRemoved(name, nodes, lost);
+        }
+        return (lost);
+    }
+
+    /**
+     * The nodes taking locks, as <code>host:port</code>, in the order
+     * <code>whichNode()</code> indexes into.
+     *
+     * @return
+     */
+    public List<String> getNodes() {
+
+        return (routing.names());
+    }
+
+    /**
+     * Adds a listener for membership changes.
+     *
+     * @param listener
+     */
+    public void addTopologyListener(TopologyListener listener) {
+
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener
+     */
+    public void removeTopologyListener(TopologyListener listener) {
+
+        listeners.remove(listener);
+    }
+
+    /**
+     * The partitioner routing lock ids to nodes.
+     *
+     * @return
+     */
+    public Partitioner getPartitioner() {
+
+        return (routing.partitioner);
+    }
+
+    /**
+     * Sets the partitioner; it is rebuilt for the nodes already added.
+     *
+     * @param partitioner A {@link HashRingPartitioner},
+     *                    {@link RendezvousPartitioner},
+     *                    {@link JumpHashPartitioner} or your own.
+     */
+    public void setPartitioner(Partitioner partitioner) {
+
+        membership.lock();
+        try {
+            routing = routing.with(partitioner);
+        } finally {
+            membership.unlock();
+        }
+    }
+
+    /**
+     * Are the node connections pipelined? See
+     * {@link SimpleClient#setPipelined(boolean)}.
+     *
+     * @return
+     */
+    public boolean isPipelined() {
+
+        return (pipelined);
+    }
+
+    /**
+     * Turns pipelining on or off for the nodes added from now on. Off by
+     * default, as before. With it on, the per-node part of
+     * <code>acquireAll()</code> and <code>releaseAll(Collection)</code> goes
+     * out in one write, and threads waiting for locks on one node no longer
+     * queue behind each other.
+     *
+     * @param pipelined
+     */
+    public void setPipelined(boolean pipelined) {
+
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * The number of connections per node; 0 means a single
+     * {@link SimpleClient} per node.
+     *
+     * @return
+     */
+    public int getPoolSize() {
+
+        return (poolSize);
+    }
+
+    /**
+     * Backs the nodes added from now on by a {@link PooledClient} with up
+     * to <code>poolSize</code> connections each, so that threads waiting for
+     * locks do not queue behind each other on one socket. 0, the default,
+     * uses one {@link SimpleClient} per node.
+     *
+     * @param poolSize
+     */
+    public void setPoolSize(int poolSize) {
+
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * The executor <code>connect()</code>, <code>quit()</code>,
+     * <code>show()</code> and <code>releaseAll()</code> run their per-node
+     * calls on.
+     *
+     * @return
+     */
+    public Executor getExecutor() {
+
+        return (executor);
+    }
+
+    /**
+     * Sets the fan-out executor. It should be able to run one task per node
+     * at once, or the nodes are visited partly in sequence again. The
+     * default is a shared pool of daemon threads; on Java 21 and later,
+     * <code>VirtualThreads.newExecutor()</code> gives each task a virtual
+     * thread instead.
+     *
+     * @param executor
+     */
+    public void setExecutor(Executor executor) {
+
+        this.executor = executor;
+    }
+
+    /**
+     * How long a SHOW result is reused, in milliseconds.
+     *
+     * @return
+     */
+    public int getShowCacheTtl() {
+
+        return (showCacheTtl);
+    }
+
+    /**
+     * Makes <code>show()</code> and <code>showLocks()</code> reuse their
+     * result for up to <code>showCacheTtl</code>. Concurrent callers share
+     * one SHOW per node, so any number of pollers send at most one per
+     * node per interval, at the price of results up to that old. 0, the
+     * default, sends a SHOW on every call.
+     *
+     * @param showCacheTtl In milliseconds.
+     */
+    public void setShowCacheTtl(int showCacheTtl) {
+
+        this.showCacheTtl = showCacheTtl;
+        this.showCache = showCacheTtl > 0 ? new CoalescingCache<ShowResult>(showCacheTtl) : null;
+    }
+
+    /**
+     * The number of lock keys cached for string lock ids.
+     *
+     * @return 0 if there is no cache.
+     */
+    public int getLockKeyCacheSize() {
+
+        LockKeyCache lockKeys = this.lockKeys;
+        return (lockKeys != null ? lockKeys.size() : 0);
+    }
+
+    /**
+     * Makes the methods that take a string lock id look up its
+     * {@link LockKey} in a cache of <code>size</code> slots, so ids used
+     * over and over are hashed and routed once per membership change rather
+     * than on every call. 0, the default, turns the cache off.
+     *
+     * @param size Rounded up to a power of two.
+     */
+    public void setLockKeyCacheSize(int size) {
+
+        this.lockKeys = size > 0 ? new LockKeyCache(size) : null;
+    }
+
+    /**
+     * How long a fan-out waits for all nodes, in milliseconds; 0 waits
+     * indefinitely.
+     *
+     * @return
+     */
+    public int getFanOutTimeout() {
+
+        return (fanOutTimeout);
+    }
+
+    /**
+     * Sets the fan-out timeout. Nodes that have not answered when it runs
+     * out are reported as failed with a <code>SocketTimeoutException</code>
+     * and their call is left to finish in the background.
+     *
+     * @param fanOutTimeout The timeout in milliseconds; 0 for none.
+     */
+    public void setFanOutTimeout(int fanOutTimeout) {
+
+        this.fanOutTimeout = fanOutTimeout;
+    }
+
+    /**
+     * The socket options of the nodes added from now on.
+     *
+     * @return A copy.
+     */
+    public SocketOptions getSocketOptions() {
+
+        return (new SocketOptions(socketOptions));
+    }
+
+    /**
+     * Sets the timeouts and TCP options of the nodes added from now on; see
+     * {@link SimpleClient#setSocketOptions(SocketOptions)}. Without a read
+     * timeout a hung node is only detected by the health checks.
+     *
+     * @param socketOptions Copied.
+     */
+    public void setSocketOptions(SocketOptions socketOptions) {
+
+        this.socketOptions = new SocketOptions(socketOptions);
+    }
+
+    /**
+     * How long past its timeout an <code>acquireAll()</code>, or an
+     * <code>acquire()</code> on a node added from now on, waits for a node
+     * to answer before the node is presumed dead.
+     *
+     * @return The grace period in milliseconds.
+     */
+    @Override
+    public int getPendingGrace() {
+
+        return (pendingGrace);
+    }
+
+    /**
+     * Sets the grace period; see <code>getPendingGrace()</code>.
+     *
+     * @param pendingGrace The grace period in milliseconds.
+     */
+    public void setPendingGrace(int pendingGrace) {
+
+        this.pendingGrace = pendingGrace;
+    }
+
+    /**
+     * Do reconnected nodes acquire the locks they lost again?
+     *
+     * @return
+     */
+    public boolean isReacquireOnReconnect() {
+
+        return (reacquireOnReconnect);
+    }
+
+    /**
+     * See {@link SimpleClient#setReacquireOnReconnect(boolean)}; for the
+     * single-connection nodes added from now on. Locks that are not regained
+     * drop out of <code>getHeldLocks()</code>.
+     *
+     * @param reacquireOnReconnect
+     */
+    public void setReacquireOnReconnect(boolean reacquireOnReconnect) {
+
+        this.reacquireOnReconnect = reacquireOnReconnect;
+    }
+
+    /**
+     * The number of failures in a row that cuts a node off.
+     *
+     * @return
+     */
+    public int getFailureThreshold() {
+
+        return (failureThreshold);
+    }
+
+    /**
+     * Sets the failure threshold of the breakers of the nodes added from
+     * now on.
+     *
+     * @param failureThreshold
+     */
+    public void setFailureThreshold(int failureThreshold) {
+
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * How long a node is cut off before a request is let through to try
+     * it, in milliseconds.
+     *
+     * @return
+     */
+    public int getOpenInterval() {
+
+        return (openInterval);
+    }
+
+    /**
+     * Sets the open interval of the breakers of the nodes added from now
+     * on.
+     *
+     * @param openInterval In milliseconds.
+     */
+    public void setOpenInterval(int openInterval) {
+
+        this.openInterval = openInterval;
+    }
+
+    /**
+     * The time between health checks, in milliseconds.
+     *
+     * @return
+     */
+    public int getHealthCheckInterval() {
+
+        return (healthCheckInterval);
+    }
+
+    /**
+     * Sets the time between health checks; 0 turns them off. Takes effect
+     * on the next <code>connect()</code>. A node must answer its check
+     * within the same time.
+     *
+     * @param healthCheckInterval In milliseconds.
+     */
+    public void setHealthCheckInterval(int healthCheckInterval) {
+
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    /**
+     * The number of nodes each lock is acquired on in quorum mode.
+     *
+     * @return 0 if quorum mode is off.
+     */
+    public int getQuorumReplicas() {
+
+        return (quorumReplicas);
+    }
+
+    /**
+     * Turns quorum mode on or off. In quorum mode every ACQUIRE is sent to
+     * <code>quorumReplicas</code> nodes at once, the owner of the lock id
+     * and the ones after it, and the lock is held as soon as a majority of
+     * them grant it; a stalled or dead node no longer stalls its locks, and
+     * an acquire takes as long as the median replica rather than the
+     * slowest. The other replicas' grants are released in the background.
+     * See {@link #acquireQuorum(String, int, String)}.
+     * <p>
+     * Locks held in quorum mode show up once per granting node in SHOW and
+     * <code>getHeldLocks()</code>, and are not migrated off removed nodes.
+     * 0, the default, turns quorum mode off; locks acquired in it are still
+     * released on all their replicas.
+     *
+     * @param quorumReplicas Capped at the number of nodes; best odd.
+     */
+    public void setQuorumReplicas(int quorumReplicas) {
+
+        this.quorumReplicas = quorumReplicas;
+    }
+
+    /**
+     * How long a quorum acquire waits for the replicas beyond its timeout,
+     * in milliseconds.
+     *
+     * @return
+     */
+    public int getQuorumWindow() {
+
+        return (quorumWindow);
+    }
+
+    /**
+     * Sets how long a quorum acquire waits for a majority beyond its
+     * timeout. An acquire without a timeout, which otherwise waits for as
+     * long as it takes, gives up after just this window in quorum mode.
+     *
+     * @param quorumWindow In milliseconds.
+     */
+    public void setQuorumWindow(int quorumWindow) {
+
+        this.quorumWindow = quorumWindow;
+    }
+
+    /**
+     * The state of every node's circuit breaker, by <code>host:port</code>
+     * in the order the nodes were added.
+     *
+     * @return
+     */
+    public Map<String, CircuitBreaker.State> getNodeStates() {
+
+        Map<String, CircuitBreaker.State> states = new LinkedHashMap<String, CircuitBreaker.State>();
+        for (RoutingTable.Node node : routing.all()) {
+            states.put(node.name, node.breaker.getState());
+        }
+        return (states);
+    }
+
+    /**
+     * Determine which server will handle a request for a given
+     * lockId.
+     *
+     * @param lockId    A lock
+     * @return          The index, into <code>getNodes()</code>, of the
+     *                  server that should handle this lock.
+     * @throws Exception If no nodes have been added.
+     */
+    public int whichNode(String lockId) throws Exception {
+
+        RoutingTable routing = this.routing;
+        if (routing.nodes.length == 0) {
+            throw new Exception("No nodes in the cluster.");
+        }
+        return (routing.partitioner.nodeFor(Hashing.hash(lockId)));
+    }
+
+    /**
+     * Like <code>whichNode(lockId)</code>, with the answer cached on the
+     * key until the membership changes.
+     *
+     * @param key
+     * @return
+     * @throws Exception If no nodes have been added.
+     */
+    public int whichNode(LockKey key) throws Exception {
+
+        RoutingTable routing = this.routing;
+        if (routing.nodes.length == 0) {
+            throw new Exception("No nodes in the cluster.");
+        }
+        return (routing.index(key));
+    }
+
+    /**
+     * For this client, this is a no-op.
+     *
+     * @return  null
+     */
+    @Override
+    public String getHost() {
+
+        return (null);
+    }
+
+    /**
+     * For this client, this is a no-op.
+     *
+     * @return Zero
+     */
+    @Override
+    public int getPort() {
+
+        return (0);
+    }
+
+    /**
+     * Connects to all the blockd servers added via <code>addNode()</code>,
+     * concurrently.
+     *
+     * @throws ClusterException If some nodes could not be connected; the
+     *                          others stay connected.
+     * @throws Exception
+     */
+    @Override
+    public void connect() throws Exception {
+
+        live = true;
+        ClusterResult<Void> result = connectEach();
+        startHealthChecks();
+        check("CONNECT", result);
+    }
+
+    /**
+     * Connects to every node concurrently and reports the outcome per node.
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public ClusterResult<Void> connectEach() throws InterruptedException {
+
+        return (fanOut(routing.all(), false, new NodeCall<Void>() {
+            @Override
+            public Void call(BlockdClient client) throws Exception {
+
+                client.connect();
+                return (null);
+            }
+        }));
+    }
+
+    /**
+     * This method checks to see if the client is connected. In the case of
+     * the ClusterClient, this will return true iif we're connected to
+     * all specified nodes.
+     *
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public boolean isConnected() throws Exception {
+
+        RoutingTable.Node[] nodes = routing.all();
+        if (nodes.length == 0) {
+            return (false);
+        }
+        boolean connected = true;
+        for (RoutingTable.Node node : nodes) {
+            connected = connected && node.client.isConnected();
+        }
+        return (connected);
+    }
+
+    /**
+     * This method implements the QUIT operation on every node,
+     * concurrently.
+     *
+     * @throws ClusterException If QUIT failed on some nodes.
+     * @throws Exception
+     */
+    @Override
+    public void quit() throws Exception {
+
+        live = false;
+        stopHealthChecks();
+        quorumHolds.clear();
+        check("QUIT", quitEach());
+    }
+
+    /**
+     * QUITs every node concurrently and reports the outcome per node.
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public ClusterResult<Void> quitEach() throws InterruptedException {
+
+        return (fanOut(routing.all(), false, new NodeCall<Void>() {
+            @Override
+            public Void call(BlockdClient client) throws Exception {
+
+                client.quit();
+                return (null);
+            }
+        }));
+    }
+
+    /**
+     * This method implements the WISDOM operation
+     *
+     * @return
+     * @throws Exception
+     */
+    public String wisdom() throws Exception {
+
+        RoutingTable routing = this.routing;
+        if (routing.nodes.length == 0) {
+            throw new Exception("No nodes in the cluster.");
+        }
+        return (routing.nodes[0].client.wisdom());
+    }
+
+    /**
+     * This method implements the SHOW operation on every node,
+     * concurrently.
+     *
+     * @return The locks of all nodes.
+     * @throws ClusterException If SHOW failed on some nodes; the locks of
+     *                          the others are in its result.
+     * @throws Exception
+     */
+    @Override
+    public List<String> show() throws Exception {
+
+        return (showLocks().getLockIds());
+    }
+
+    /**
+     * SHOWs every node concurrently, or reuses a recent result; see
+     * <code>setShowCacheTtl()</code>. The nodes' results are chained, not
+     * copied, and parsed as they are iterated.
+     *
+     * @return The locks of all nodes.
+     * @throws ClusterException If SHOW failed on some nodes; the locks of
+     *                          the others are in its result.
+     * @throws Exception
+     */
+    @Override
+    public ShowResult showLocks() throws Exception {
+
+        CoalescingCache<ShowResult> cache = showCache;
+        if (cache == null) {
+            return (ShowResult.concat(check("SHOW", showLocksEach()).getValues().values()));
+        }
+        return (cache.get(() -> ShowResult.concat(check("SHOW", showLocksEach()).getValues().values())));
+    }
+
+    /**
+     * SHOWs every node concurrently and reports the locks per node.
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public ClusterResult<List<String>> showEach() throws InterruptedException {
+
+        return (fanOut(routing.all(), true, new NodeCall<List<String>>() {
+            @Override
+            public List<String> call(BlockdClient client) throws Exception {
+
+                return (client.show());
+            }
+        }));
+    }
+
+    /**
+     * SHOWs every node concurrently and reports the locks, with their
+     * fields, per node. Never cached.
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public ClusterResult<ShowResult> showLocksEach() throws InterruptedException {
+
+        return (fanOut(routing.all(), true, new NodeCall<ShowResult>() {
+            @Override
+            public ShowResult call(BlockdClient client) throws Exception {
+
+                return (client.showLocks());
+            }
+        }));
+    }
+
+    /**
+     * This method implements the ACQUIRE operation.
+     *
+     * @param lockId
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public String acquire(String lockId) throws Exception {
+
+        if (quorumReplicas > 0) {
+            quorum(lockId, CommandEncoder.NO_TIMEOUT, null, true);
+            return ("LOCKACQUIRED");
+        }
+        LockKeyCache lockKeys = this.lockKeys;
+        if (lockKeys != null) {
+            return (acquire(lockKeys.get(lockId)));
+        }
+        return (routed(route(lockId), client -> client.acquire(lockId)));
+    }
+
+    /**
+     * This method implements the ACQUIRE operation.
+     *
+     * @param lockId
+     * @param timeout
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public String acquire(String lockId, int timeout) throws Exception {
+
+        if (quorumReplicas > 0) {
+            quorum(lockId, timeout, null, true);
+            return ("LOCKACQUIRED");
+        }
+        LockKeyCache lockKeys = this.lockKeys;
+        if (lockKeys != null) {
+            return (acquire(lockKeys.get(lockId), timeout));
+        }
+        return (routed(route(lockId), client -> client.acquire(lockId, timeout)));
+    }
+
+    /**
+     * This method implements the ACQUIRE operation.
+     *
+     * @param lockId
+     * @param timeout
+     * @param mode
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public String acquire(String lockId, int timeout, String mode) throws Exception {
+
+        if (quorumReplicas > 0) {
+            quorum(lockId, timeout, mode, true);
+            return ("LOCKACQUIRED");
+        }
+        LockKeyCache lockKeys = this.lockKeys;
+        if (lockKeys != null) {
+            return (acquire(lockKeys.get(lockId), timeout, mode));
+        }
+        return (routed(route(lockId), client -> client.acquire(lockId, timeout, mode)));
     }
 
     /**
-     * This method adds a blockd server to cluster of servers know to this client
+     * Tries the ACQUIRE operation on the node owning the lock.
      *
-     * @param host
-     * @param port
+     * @param lockId
+     * @param timeout
+     * @param mode
+     * @return
+     * @throws Exception
      */
-    public void addNode(String host, int port) {
+    @Override
+    public boolean tryAcquire(String lockId, int timeout, String mode) throws Exception {
 
-        SimpleClient client = new SimpleClient(host, port);
-        nodes.put(computeHash(host + port), client);
+        if (quorumReplicas > 0) {
+            return (quorum(lockId, timeout, mode, false) != null);
+        }
+        LockKeyCache lockKeys = this.lockKeys;
+        if (lockKeys != null) {
+            return (tryAcquire(lockKeys.get(lockId), timeout, mode));
+        }
+        return (routed(route(lockId), client -> client.tryAcquire(lockId, timeout, mode)));
     }
 
     /**
-     * A very contrived hash function, but one that should be easily
-     * implemented in JS.
+     * This method implements the RELEASE operation, on the node holding the
+     * lock.
      *
-     * @param key   The value to be hashed.
-     * @return      An integer has representing the key.
+     * @param lockId
+     * @return
+     * @throws Exception
      */
-    private int computeHash(String key) {
+    @Override
+    public String release(String lockId) throws Exception {
 
-        int hash = 7;
-        for (int i = 0; i < key.length(); i++) {
-            hash = hash * 31 + key.charAt(i);
+        if (quorumHolds.containsKey(lockId)) {
+            return (releaseQuorum(lockId));
+        }
+        LockKeyCache lockKeys = this.lockKeys;
+        if (lockKeys != null) {
+            return (release(lockKeys.get(lockId)));
+        }
+        try {
+            return (routed(route(lockId), client -> client.release(lockId)));
+        } catch (NoLockToReleaseException e) {
+            // Acquired while the routing table was being replaced?
+            RoutingTable.Node holder = routing.holder(lockId);
+            if (holder == null) {
+                throw e;
+            }
+            return (holder.client.release(lockId));
         }
-        hash = Math.abs(hash);
-        return (hash);
     }
 
     /**
-     * Determine which server will handle a request for a given
-     * lockId.
+     * ACQUIRE on the node owning the key, which the key remembers until the
+     * membership changes.
      *
-     * @param lockId    A lock
-     * @return          The key of the server that should handle this lock.
+     * @param key
+     * @return
      * @throws Exception
      */
-    public int whichNode(String lockId) throws Exception {
+    @Override
+    public String acquire(LockKey key) throws Exception {
+
+        if (quorumReplicas > 0) {
+            return (acquire(key.getLockId()));
+        }
+        return (routed(route(key), client -> client.acquire(key)));
+    }
+
+    @Override
+    public String acquire(LockKey key, int timeout) throws Exception {
+
+        if (quorumReplicas > 0) {
+            return (acquire(key.getLockId(), timeout));
+        }
+        return (routed(route(key), client -> client.acquire(key, timeout)));
+    }
+
+    @Override
+    public String acquire(LockKey key, int timeout, String mode) throws Exception {
+
+        if (quorumReplicas > 0) {
+            return (acquire(key.getLockId(), timeout, mode));
+        }
+        return (routed(route(key), client -> client.acquire(key, timeout, mode)));
+    }
+
+    @Override
+    public boolean tryAcquire(LockKey key, int timeout, String mode) throws Exception {
+
+        if (quorumReplicas > 0) {
+            return (tryAcquire(key.getLockId(), timeout, mode));
+        }
+        return (routed(route(key), client -> client.tryAcquire(key, timeout, mode)));
+    }
+
+    @Override
+    public String release(LockKey key) throws Exception {
 
-        int lockKey = computeHash(lockId);
-        int range = Integer.MAX_VALUE / nodes.size();
-        int start = 0;
-        int end = range;
-        Iterator<Integer> keys = nodes.keySet().iterator();
-        while (keys.hasNext()) {
-            int key = keys.next();
-            if (lockKey >= start && lockKey < end) {
-                return (key);
+        if (quorumHolds.containsKey(key.getLockId())) {
+            return (releaseQuorum(key.getLockId()));
+        }
+        try {
+            return (routed(route(key), client -> client.release(key)));
+        } catch (NoLockToReleaseException e) {
+            RoutingTable.Node holder = routing.holder(key.getLockId());
+            if (holder == null) {
+                throw e;
             }
-            start += range;
-            end += range;
+            return (holder.client.release(key));
         }
-        throw new Exception("Should never get here!");
     }
 
     /**
-     * For this client, this is a no-op.
+     * Acquires a lock on a majority of <code>quorumReplicas</code> nodes,
+     * asked all at once. Each acquire of a lock, re-entrant or not, is a
+     * grant of its own with its own sequence number, and is undone by one
+     * <code>release()</code>, newest first.
      *
-     * @return  null
+     * @param lockId
+     * @param timeout How long each replica may take to grant the lock; the
+     *                acquire waits up to <code>quorumWindow</code> longer
+     *                for their answers.
+     * @param mode
+     * @return The grant.
+     * @throws AcquireTimeoutException If a majority did not grant it in time.
+     * @throws ClusterException        If so many replicas failed that no
+     *                                 majority could be had.
+     * @throws Exception
      */
-    @Override
-    public String getHost() {
+    public QuorumGrant acquireQuorum(String lockId, int timeout, String mode) throws Exception {
 
-        return (null);
+        return (quorum(lockId, timeout, mode, true));
     }
 
     /**
-     * For this client, this is a no-op.
+     * Like {@link #acquireQuorum(String, int, String)}, but returns null if
+     * a majority did not grant the lock in time.
      *
-     * @return Zero
+     * @param lockId
+     * @param timeout
+     * @param mode
+     * @return
+     * @throws ClusterException If so many replicas failed that no majority
+     *                          could be had.
+     * @throws Exception
      */
-    @Override
-    public int getPort() {
+    public QuorumGrant tryAcquireQuorum(String lockId, int timeout, String mode) throws Exception {
 
-        return (0);
+        return (quorum(lockId, timeout, mode, false));
+    }
+
+    /**
+     * The newest quorum grant of a lock this client holds.
+     *
+     * @param lockId
+     * @return null if it does not hold the lock in quorum mode.
+     */
+    public QuorumGrant getQuorumGrant(String lockId) {
+
+        List<QuorumGrant> grants = quorumHolds.get(lockId);
+        return (grants != null ? grants.get(grants.size() - 1) : null);
     }
 
     /**
-     * Connects to all the blockd servers added via <code>addNode()</code>
+     * This method implements the RELEASEALL operation.
      *
+     * @return
      * @throws Exception
      */
     @Override
-    public void connect() throws Exception {
+    public List<String> releaseAll() throws Exception {
 
-        Iterator<Integer> keys = nodes.keySet().iterator();
-        while (keys.hasNext()) {
-            BlockdClient client = nodes.get(keys.next());
-            client.connect();
-        }
+        quorumHolds.clear();
+        return (merge(check("RELEASEALL", releaseAllEach())));
     }
 
     /**
-     * This method checks to see if the client is connected. In the case of
-     * the ClusterClient, this will return true iif we're connected to
-     * all specified nodes.
+     * See {@link BlockdClient#acquireAll(Collection, int, String)}. Each id
+     * is routed once; the attempts for each node are pipelined on that
+     * node's connection and all nodes are worked on at the same time.
+     * Each node's breaker is told how its answers went.
+     * <p>
+     * Not available in quorum mode, where a lock is only held once a
+     * majority of its replicas have granted it; acquire the ids one by one
+     * instead, in a fixed order.
      *
+     * @param lockIds
+     * @param timeout
+     * @param mode
      * @return
+     * @throws UnsupportedOperationException In quorum mode.
      * @throws Exception
      */
     @Override
-    public boolean isConnected() throws Exception {
+    public List<String> acquireAll(Collection<String> lockIds, int timeout, String mode) throws Exception {
 
-        boolean connected = false;
-        Iterator<Integer> keys = nodes.keySet().iterator();
-        while (keys.hasNext()) {
-            BlockdClient client = nodes.get(keys.next());
-            connected = connected && client.isConnected();
+        if (quorumReplicas > 0) {
+            throw new UnsupportedOperationException("acquireAll() is not available in quorum mode.");
         }
-        return (connected);
+        return (BatchLocks.acquireAll(router(), lockIds, timeout, mode, pendingGrace));
     }
 
     /**
-     * This method implements the QUIT operation.
+     * See {@link BlockdClient#releaseAll(Collection)}. Locks held in quorum
+     * mode are released on all the replicas that granted them, like
+     * <code>release()</code> does; the rest on their nodes, pipelined.
      *
+     * @param lockIds
+     * @return
      * @throws Exception
      */
     @Override
-    public void quit() throws Exception {
+    public List<String> releaseAll(Collection<String> lockIds) throws Exception {
 
-        Iterator<Integer> keys = nodes.keySet().iterator();
-        while (keys.hasNext()) {
-            BlockdClient client = nodes.get(keys.next());
-            client.quit();
+        List<String> released = new ArrayList<String>(lockIds.size());
+        List<String> routed = new ArrayList<String>(lockIds.size());
+        Exception failure = null;
+        for (String lockId : new TreeSet<String>(lockIds)) {
+            if (!quorumHolds.containsKey(lockId)) {
+                routed.add(lockId);
+                continue;
+            }
+            try {
+                releaseQuorum(lockId);
+                released.add(lockId);
+            } catch (NoLockToReleaseException e) {
+                // Released by another thread meanwhile.
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        try {
+            released.addAll(BatchLocks.releaseAll(router(), routed));
+        } catch (Exception e) {
+            if (failure == null) {
+                failure = e;
+            }
         }
+        if (failure != null) {
+            throw failure;
+        }
+        return (released);
     }
 
     /**
-     * This method implements the WISDOM operation
+     * RELEASEALLs on every node concurrently and reports the released locks
+     * per node.
      *
      * @return
-     * @throws Exception
+     * @throws InterruptedException
      */
-    public String wisdom() throws Exception {
+    public ClusterResult<List<String>> releaseAllEach() throws InterruptedException {
 
-        BlockdClient client = nodes.get(nodes.keySet().iterator().next());
-        return client.wisdom();
+        return (fanOut(routing.all(), true, new NodeCall<List<String>>() {
+            @Override
+            public List<String> call(BlockdClient client) throws Exception {
+
+                return (client.releaseAll());
+            }
+        }));
     }
 
     /**
-     * This method implements the SHOW operation.
+     * The locks held through all nodes.
      *
      * @return
-     * @throws Exception
      */
     @Override
-    public List<String> show() throws Exception {
+    public List<HeldLockRegistry.HeldLock> getHeldLocks() {
 
-        List<String> lockIds = new ArrayList<String>();
-        StringBuilder buff = new StringBuilder();
-        Iterator<Integer> keys = nodes.keySet().iterator();
-        while (keys.hasNext()) {
-            BlockdClient client = nodes.get(keys.next());
-            buff.append(client.getHost());
-            buff.append(client.getPort());
-            lockIds.addAll(client.show());
+        List<HeldLockRegistry.HeldLock> locks = new ArrayList<HeldLockRegistry.HeldLock>();
+        for (RoutingTable.Node node : routing.all()) {
+            locks.addAll(node.client.getHeldLocks());
         }
-        return (lockIds);
+        return (locks);
     }
 
     /**
-     * This method implements the ACQUIRE operation.
+     * The metrics of all nodes added up, with each node's own under
+     * <code>getNodes()</code>.
      *
-     * @param lockId
      * @return
-     * @throws Exception
      */
     @Override
-    public String acquire(String lockId) throws Exception {
+    public MetricsSnapshot getMetrics() {
 
-        BlockdClient client = nodes.get(whichNode(lockId));
-        return client.acquire(lockId);
+        RoutingTable.Node[] all = routing.all();
+        List<MetricsSnapshot> nodes = new ArrayList<MetricsSnapshot>(all.length);
+        for (RoutingTable.Node node : all) {
+            nodes.add(node.client.getMetrics());
+        }
+        return (MetricsSnapshot.sum("cluster", nodes, true));
     }
 
     /**
-     * This method implements the ACQUIRE operation.
+     * The most contended lock ids over all nodes, with each node's own
+     * report under <code>getNodes()</code>; the skews show whether some
+     * nodes take more of the load than others.
      *
-     * @param lockId
-     * @param timeout
      * @return
-     * @throws Exception
      */
     @Override
-    public String acquire(String lockId, int timeout) throws Exception {
+    public ContentionReport getContention() {
 
-        BlockdClient client = nodes.get(whichNode(lockId));
-        return client.acquire(lockId, timeout);
+        RoutingTable.Node[] all = routing.all();
+        List<ContentionReport> nodes = new ArrayList<ContentionReport>(all.length);
+        for (RoutingTable.Node node : all) {
+            nodes.add(node.client.getContention());
+        }
+        return (ContentionReport.sum("cluster", nodes, true));
     }
 
     /**
-     * This method implements the ACQUIRE operation.
+     * Checks the health of every node now, concurrently: a node that has
+     * lost its connection is reconnected, and every node must answer a
+     * WISDOM within the health check interval. The breakers of the nodes
+     * that pass are closed; those of the others are opened.
      *
-     * @param lockId
-     * @param timeout
-     * @param mode
      * @return
-     * @throws Exception
+     * @throws InterruptedException
      */
-    @Override
-    public String acquire(String lockId, int timeout, String mode) throws Exception {
+    public ClusterResult<Void> checkHealth() throws InterruptedException {
 
-        BlockdClient client = nodes.get(whichNode(lockId));
-        return client.acquire(lockId, timeout, mode);
+        final int timeout = healthCheckInterval > 0 ? healthCheckInterval : DEFAULT_HEALTH_CHECK_INTERVAL;
+        RoutingTable.Node[] nodes = routing.all();
+        ClusterResult<Void> result = fanOut(nodes, false, new NodeCall<Void>() {
+            @Override
+            public Void call(BlockdClient client) throws Exception {
+
+                if (!client.isConnected()) {
+                    if (client instanceof SimpleClient) {
+                        ((SimpleClient) client).reconnect();
+                    } else {
+                        client.connect();
+                    }
+                }
+                if (client instanceof SimpleClient) {
+                    // A blocking node would answer wisdomAsync() only once
+                    // the server has, so the await could not time out.
+                    ((SimpleClient) client).probe(timeout);
+                } else {
+                    Futures.await(((AsyncBlockdClient) client).wisdomAsync(), timeout, "WISDOM");
+                }
+                return (null);
+            }
+        });
+        for (RoutingTable.Node node : nodes) {
+            if (result.getFailures().containsKey(node.name)) {
+                node.breaker.trip();
+            } else {
+                node.breaker.recordSuccess();
+            }
+        }
+        return (result);
+    }
+
+    /**
+     * Runs a routed call on the node owning the lock, unless that node is
+     * cut off, and tells its breaker how it went.
+     */
+    private <T> T routed(RoutingTable.Node node, NodeCall<T> call) throws Exception {
+
+        CircuitBreaker breaker = node.breaker;
+        if (!breaker.allowRequest()) {
+            throw new NodeUnavailableException(node.name);
+        }
+        T value;
+        try {
+            value = call.call(node.client);
+        } catch (IOException e) {
+            breaker.recordFailure();
+            throw e;
+        } catch (Exception e) {
+            // The node answered, e.g. ACQUIRETIMEOUT.
+            breaker.recordSuccess();
+            throw e;
+        }
+        breaker.recordSuccess();
+        return (value);
+    }
+
+    /**
+     * The node a request for a lock goes to.
+     */
+    private RoutingTable.Node route(String lockId) throws Exception {
+
+        RoutingTable routing = this.routing;
+        if (routing.nodes.length == 0) {
+            throw new Exception("No nodes in the cluster.");
+        }
+        return (routing.route(lockId));
+    }
+
+    private RoutingTable.Node route(LockKey key) throws Exception {
+
+        RoutingTable routing = this.routing;
+        if (routing.nodes.length == 0) {
+            throw new Exception("No nodes in the cluster.");
+        }
+        return (routing.route(key));
     }
 
     /**
-     * This method implements the RELEASE operation.
+     * Sends an ACQUIRE to the replicas of a lock and waits for a majority.
      *
-     * @param lockId
-     * @return
-     * @throws Exception
+     * @return The grant, or null if there was none and
+     *         <code>timeoutIsError</code> is false.
      */
-    @Override
-    public String release(String lockId) throws Exception {
+    private QuorumGrant quorum(String lockId, int timeout, String mode, boolean timeoutIsError) throws Exception {
+
+        RoutingTable routing = this.routing;
+        int replicas = quorumReplicas;
+        if (replicas <= 0) {
+            throw new IllegalStateException("Quorum mode is off.");
+        }
+        if (routing.nodes.length == 0) {
+            throw new Exception("No nodes in the cluster.");
+        }
+        QuorumTally tally = new QuorumTally(lockId, Math.min(replicas, routing.nodes.length));
+        for (RoutingTable.Node node : routing.replicas(lockId, replicas)) {
+            vote(node, lockId, timeout, mode).whenComplete((grant, failure) -> tally.answered(node, grant, failure));
+        }
+        RoutingTable.Node[] granted = tally.await(Futures.pendingDeadline(timeout, quorumWindow));
+        if (granted != null) {
+            QuorumGrant grant = new QuorumGrant(lockId, mode != null ? mode : "W", nextSequence(), granted);
+            quorumHolds.merge(lockId, Collections.singletonList(grant), (held, more) -> {
+                List<QuorumGrant> grants = new ArrayList<QuorumGrant>(held);
+                grants.addAll(more);
+                return (grants);
+            });
+            return (grant);
+        }
+        if (tally.unreachable()) {
+            throw new ClusterException("ACQUIRE " + lockId, tally.result());
+        }
+        if (timeoutIsError) {
+            throw new AcquireTimeoutException(lockId);
+        }
+        return (null);
+    }
+
+    /**
+     * Asks one replica for a quorum lock, unless it is cut off. The ACQUIRE
+     * is sent from the fan-out executor, since a blocking node client only
+     * returns once the server has answered; so all replicas are asked at
+     * once, whatever their clients.
+     *
+     * @return Whether it granted the lock.
+     */
+    private CompletableFuture<Boolean> vote(final RoutingTable.Node node, final String lockId, final int timeout,
+                                            String mode) {
+
+        final CircuitBreaker breaker = node.breaker;
+        if (!breaker.allowRequest()) {
+            return (Futures.failed(new NodeUnavailableException(node.name)));
+        }
+        final String voteMode = mode != null ? mode : "W";
+        final CompletableFuture<Boolean> vote = new CompletableFuture<Boolean>();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
 
-        BlockdClient client = nodes.get(whichNode(lockId));
-        return client.release(lockId);
+                    CompletableFuture<Boolean> asked;
+                    try {
+                        if (timeout == CommandEncoder.NO_TIMEOUT) {
+                            asked = node.client.acquireAsync(lockId, timeout, voteMode)
+                                               .thenApply("LOCKACQUIRED"::equals);
+                        } else {
+                            asked = node.client.tryAcquireAsync(lockId, timeout, voteMode);
+                        }
+                    } catch (RuntimeException e) {
+                        asked = Futures.failed(e);
+                    }
+                    asked.whenComplete((grant, failure) -> {
+                        if (failure != null) {
+                            vote.completeExceptionally(failure);
+                        } else {
+                            vote.complete(grant);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            vote.completeExceptionally(e);
+        }
+        return (vote.whenComplete((grant, failure) -> answered(breaker, failure)));
     }
 
     /**
-     * This method implements the RELEASEALL operation.
+     * Tells a breaker how a request to its node went: only a connection
+     * failure counts against it.
+     */
+    private static void answered(CircuitBreaker breaker, Throwable failure) {
+
+        Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+        if (cause instanceof IOException) {
+            breaker.recordFailure();
+        } else {
+            breaker.recordSuccess();
+        }
+    }
+
+    /**
+     * Releases the newest quorum grant of a lock on all the nodes that
+     * granted it.
      *
-     * @return
-     * @throws Exception
+     * @return The status of the first node to release it.
+     * @throws ClusterException If no node released it.
      */
-    @Override
-    public List<String> releaseAll() throws Exception {
+    private String releaseQuorum(String lockId) throws Exception {
+
+        QuorumGrant[] newest = new QuorumGrant[1];
+        quorumHolds.computeIfPresent(lockId, (id, grants) -> {
+            newest[0] = grants.get(grants.size() - 1);
+            return (grants.size() > 1 ? new ArrayList<QuorumGrant>(grants.subList(0, grants.size() - 1)) : null);
+        });
+        if (newest[0] == null) {
+            // Released by another thread meanwhile.
+            throw new NoLockToReleaseException(lockId);
+        }
+        RoutingTable.Node[] granted = newest[0].granted();
+        List<CompletableFuture<String>> releases = new ArrayList<CompletableFuture<String>>(granted.length);
+        for (RoutingTable.Node node : granted) {
+            releases.add(node.client.releaseAsync(lockId));
+        }
+        ClusterResult<String> result = new ClusterResult<String>();
+        long deadline = System.currentTimeMillis() + quorumWindow;
+        for (int i = 0; i < granted.length; i++) {
+            try {
+                long remaining = Math.max(1, deadline - System.currentTimeMillis());
+                result.succeeded(granted[i].name, Futures.await(releases.get(i), remaining, "RELEASE " + lockId));
+            } catch (Exception e) {
+                // A replica that is gone took the lock with it.
+                result.failed(granted[i].name, e);
+            }
+        }
+        if (result.getValues().isEmpty()) {
+            throw new ClusterException("RELEASE " + lockId, result);
+        }
+        return (result.getValues().values().iterator().next());
+    }
+
+    /**
+     * The next grant sequence number; see {@link QuorumGrant#getSequence()}.
+     */
+    private static long nextSequence() {
+
+        return (grantSequence.incrementAndGet());
+    }
+
+    /**
+     * Moves the locks a removed node still holds to their new nodes:
+     * acquired there first, and released on the old node when it is quit.
+     *
+     * @return The ids of the locks that could not be moved.
+     */
+    private List<String> migrate(RoutingTable.Node node) {
+
+        RoutingTable routing = this.routing;
+        List<String> lost = new ArrayList<String>();
+        for (HeldLockRegistry.HeldLock hold : node.client.getHeldLocks()) {
+            String lockId = hold.getLockId();
+            if (quorumHolds.containsKey(lockId)) {
+                // Its other replicas still hold it.
+                continue;
+            }
+            String mode = hold.getMode() != null ? hold.getMode() : "W";
+            boolean moved = false;
+            try {
+                // The owner, not the route, which still leads to the old node.
+                BlockdClient target = routing.nodes.length > 0 ? routing.owner(lockId).client : null;
+                if (target != null && target.tryAcquire(lockId, 0, mode)) {
+                    // The first hold went to the server, the others count up locally.
+                    for (int i = 1; i < hold.getHoldCount(); i++) {
+                        target.acquire(lockId, 0, mode);
+                    }
+                    moved = true;
+                }
+            } catch (Exception e) {
+                // The new node failed; the lock is lost.
+            }
+            if (!moved) {
+                lost.add(lockId);
+            }
+        }
+        return (lost);
+    }
+
+    private synchronized void startHealthChecks() {
+
+        if (healthChecks != null || healthCheckInterval <= 0) {
+            return;
+        }
+        // The timer thread only hands the checks to the executor, and skips
+        // a round while the previous one is still running.
+        healthChecks = Timer.get().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+
+                if (!checking.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+
+                            try {
+                                checkHealth();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            } finally {
+                                checking.set(false);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    checking.set(false);
+                }
+            }
+        }, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopHealthChecks() {
+
+        if (healthChecks != null) {
+            healthChecks.cancel(false);
+            healthChecks = null;
+        }
+    }
+
+    /**
+     * Runs <code>call</code> on every node through the executor and waits
+     * for all of them, or until the fan-out timeout. Nodes that fail or do
+     * not answer in time are recorded as failures; the others' results are
+     * kept. If <code>guarded</code>, nodes that are cut off fail at once.
+     */
+    private <T> ClusterResult<T> fanOut(RoutingTable.Node[] nodes, boolean guarded, final NodeCall<T> call)
+            throws InterruptedException {
+
+        int count = nodes.length;
+        List<CompletableFuture<T>> futures = new ArrayList<CompletableFuture<T>>(count);
+        for (int i = 0; i < count; i++) {
+            final BlockdClient client = nodes[i].client;
+            CompletableFuture<T> future = new CompletableFuture<T>();
+            if (guarded && nodes[i].breaker.getState() != CircuitBreaker.State.CLOSED) {
+                future.completeExceptionally(new NodeUnavailableException(nodes[i].name));
+                futures.add(future);
+                continue;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+
+                        try {
+                            future.complete(call.call(client));
+                        } catch (Throwable e) {
+                            future.completeExceptionally(e);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(e);
+            }
+            futures.add(future);
+        }
+
+        ClusterResult<T> result = new ClusterResult<T>();
+        int timeout = fanOutTimeout;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        for (int i = 0; i < count; i++) {
+            String node = nodes[i].name;
+            try {
+                T value;
+                if (timeout > 0) {
+                    value = futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } else {
+                    value = futures.get(i).get();
+                }
+                result.succeeded(node, value);
+            } catch (ExecutionException e) {
+                result.failed(node, e.getCause());
+            } catch (TimeoutException e) {
+                result.failed(node, new SocketTimeoutException("No answer from " + node + " within " + timeout + "ms"));
+            }
+        }
+        return (result);
+    }
+
+    /**
+     * Routes the ids of one batch, and tells each node's breaker how its
+     * answers went.
+     */
+    private BatchLocks.Router router() {
+
+        return (new BatchLocks.Router() {
+            private final Map<String, RoutingTable.Node> nodes = new HashMap<String, RoutingTable.Node>();
+
+            @Override
+            public AsyncBlockdClient clientFor(String lockId) throws Exception {
+
+                RoutingTable.Node node = route(lockId);
+                if (node.breaker.getState() != CircuitBreaker.State.CLOSED) {
+                    throw new NodeUnavailableException(node.name);
+                }
+                nodes.put(lockId, node);
+                return (node.client);
+            }
+
+            @Override
+            public <T> CompletableFuture<T> sent(String lockId, CompletableFuture<T> request) {
+
+                final CircuitBreaker breaker = nodes.get(lockId).breaker;
+                return (request.whenComplete((value, failure) -> answered(breaker, failure)));
+            }
+        });
+    }
+
+    private static <T> ClusterResult<T> check(String operation, ClusterResult<T> result) throws ClusterException {
+
+        if (!result.isSuccess()) {
+            throw new ClusterException(operation, result);
+        }
+        return (result);
+    }
+
+    private static List<String> merge(ClusterResult<List<String>> result) {
 
         List<String> lockIds = new ArrayList<String>();
-        Iterator<Integer> keys = nodes.keySet().iterator();
-        while (keys.hasNext()) {
-            BlockdClient client = nodes.get(keys.next());
-            lockIds.addAll(client.releaseAll());
+        for (List<String> nodeLockIds : result.getValues().values()) {
+            lockIds.addAll(nodeLockIds);
         }
         return (lockIds);
     }
 
+    /**
+     * The shared pool fan-outs run on unless an executor is set. Threads
+     * are daemons and die after a minute idle.
+     */
+    private static synchronized Executor defaultExecutor() {
+
+        if (defaultExecutor == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                                                             new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+
+                    Thread thread = new Thread(runnable, "blockd-cluster-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return (thread);
+                }
+            });
+            defaultExecutor = pool;
+        }
+        return (defaultExecutor);
+    }
+
+    /**
+     * One per-node step of a fan-out.
+     */
+    private interface NodeCall<T> {
+
+        T call(BlockdClient client) throws Exception;
+
+    }
+
 }
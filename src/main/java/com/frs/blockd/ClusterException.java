@@ -0,0 +1,52 @@
+package com.frs.blockd;
+
+import java.util.Map;
+
+/**
+ * Thrown by {@link ClusterClient} when an operation fanned out to every
+ * node failed on some of them. The per-node results, including those of the
+ * nodes that succeeded, are available from <code>getResult()</code>.
+ */
+public class ClusterException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ClusterResult<?> result;
+
+    /**
+     * Constructor.
+     *
+     * @param operation The operation, for the message.
+     * @param result    The per-node results; must contain a failure.
+     */
+    public ClusterException(String operation, ClusterResult<?> result) {
+
+        super(message(operation, result), result.getFailures().values().iterator().next());
+        this.result = result;
+    }
+
+    /**
+     * The per-node results.
+     *
+     * @return
+     */
+    public ClusterResult<?> getResult() {
+
+        return (result);
+    }
+
+    private static String message(String operation, ClusterResult<?> result) {
+
+        StringBuilder message = new StringBuilder(operation).append(" failed on ");
+        boolean first = true;
+        for (Map.Entry<String, Throwable> failure : result.getFailures().entrySet()) {
+            if (!first) {
+                message.append(", ");
+            }
+            message.append(failure.getKey()).append(" (").append(failure.getValue()).append(")");
+            first = false;
+        }
+        return (message.toString());
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.frs.blockd;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The per-node outcome of an operation {@link ClusterClient} ran on every
+ * node. Nodes are identified as <code>host:port</code> and appear in the
+ * order they were added to the cluster.
+ *
+ * @param <T> The per-node result type.
+ */
+public class ClusterResult<T> {
+
+    private final Map<String, T> values = new LinkedHashMap<String, T>();
+    private final Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+
+    void succeeded(String node, T value) {
+
+        values.put(node, value);
+    }
+
+    void failed(String node, Throwable failure) {
+
+        failures.put(node, failure);
+    }
+
+    /**
+     * Did the operation succeed on every node?
+     *
+     * @return
+     */
+    public boolean isSuccess() {
+
+        return (failures.isEmpty());
+    }
+
+    /**
+     * The results of the nodes the operation succeeded on.
+     *
+     * @return
+     */
+    public Map<String, T> getValues() {
+
+        return (Collections.unmodifiableMap(values));
+    }
+
+    /**
+     * Why the operation failed on the other nodes.
+     *
+     * @return
+     */
+    public Map<String, Throwable> getFailures() {
+
+        return (Collections.unmodifiableMap(failures));
+    }
+
+    @Override
+    public String toString() {
+
+        return ("ClusterResult[values=" + values + ", failures=" + failures + "]");
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.frs.blockd;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a value for a while and makes callers share its loading: while a
+ * load is running, everyone who asks waits for that one, and its value is
+ * then handed out until it is <code>ttl</code> old. A failed load is not
+ * kept; the next caller loads again.
+ *
+ * @param <T>
+ */
+final class CoalescingCache<T> {
+
+    private final long ttlNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by lock.
+    private CompletableFuture<T> current;
+    private long loadedAt;
+
+    /**
+     * Constructor.
+     *
+     * @param ttl How long a value is handed out, in milliseconds.
+     */
+    CoalescingCache(int ttl) {
+
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    /**
+     * The cached value, or the value of the load in progress, or else the
+     * value of a new load run on the calling thread.
+     *
+     * @param loader
+     * @return
+     * @throws Exception The exception the load failed with.
+     */
+    T get(Callable<T> loader) throws Exception {
+
+        CompletableFuture<T> future;
+        boolean load = false;
+        lock.lock();
+        try {
+            future = current;
+            if (future == null || future.isCompletedExceptionally()
+                || (future.isDone() && System.nanoTime() - loadedAt >= ttlNanos)) {
+                future = new CompletableFuture<T>();
+                current = future;
+                load = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (load) {
+            try {
+                T value = loader.call();
+                lock.lock();
+                try {
+                    loadedAt = System.nanoTime();
+                } finally {
+                    lock.unlock();
+                }
+                future.complete(value);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+        return (Futures.await(future));
+    }
+
+    /**
+     * Forgets the cached value.
+     */
+    void clear() {
+
+        lock.lock();
+        try {
+            if (current != null && current.isDone()) {
+                current = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
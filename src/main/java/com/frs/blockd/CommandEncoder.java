@@ -0,0 +1,331 @@
+package com.frs.blockd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes blockd command lines into a reusable, growable byte buffer. The
+ * fixed parts of every command are precomputed byte templates and numbers
+ * are written digit by digit, so encoding a command allocates nothing once
+ * the buffer has grown to fit the longest lock id. Lock ids are JSON-escaped
+ * and UTF-8 encoded in a single pass, or copied as they are from a
+ * {@link LockKey}, which has them encoded already.
+ * <p>
+ * Usage: <code>begin(kind)</code>, any of the field methods,
+ * <code>end()</code>, then write the buffer out. Not thread-safe.
+ */
+final class CommandEncoder {
+
+    /**
+     * Passed as the timeout of commands that have none.
+     */
+    static final int NO_TIMEOUT = Integer.MIN_VALUE;
+
+    private static final byte[] LOCK_ID = ascii(",\"lockId\":\"");
+    private static final byte[] TIMEOUT = ascii(",\"timeout\":");
+    private static final byte[] MODE = ascii(",\"mode\":\"");
+    private static final byte[] NONCE = ascii(",\"nonce\":");
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    private byte[] buffer = new byte[128];
+    private int length;
+
+    /**
+     * The template that starts a command line, e.g.
+     * <code>{"command":"ACQUIRE"</code>.
+     *
+     * @param command The command name.
+     * @return
+     */
+    static byte[] template(String command) {
+
+        return (ascii("{\"command\":\"" + command + "\""));
+    }
+
+    /**
+     * Starts a new command, discarding whatever was encoded before.
+     *
+     * @param kind The command to encode.
+     * @return this
+     */
+    CommandEncoder begin(PendingRequest.Kind kind) {
+
+        length = 0;
+        append(kind.template);
+        return (this);
+    }
+
+    /**
+     * Encodes a whole command line.
+     *
+     * @param kind    The command.
+     * @param lockId  The lock id, or null for none.
+     * @param timeout The timeout, or <code>NO_TIMEOUT</code>.
+     * @param mode    The mode, or null for none.
+     * @param nonce   The nonce.
+     * @return this
+     */
+    CommandEncoder command(PendingRequest.Kind kind, String lockId, int timeout, String mode, long nonce) {
+
+        return (command(kind, lockId, null, timeout, mode, nonce));
+    }
+
+    /**
+     * Encodes a whole command line, with the lock id already encoded if
+     * <code>encodedId</code> is given.
+     *
+     * @param kind      The command.
+     * @param lockId    The lock id, or null for none.
+     * @param encodedId The lock id as {@link #escape(String)} encodes it,
+     *                  or null to encode <code>lockId</code>.
+     * @param timeout   The timeout, or <code>NO_TIMEOUT</code>.
+     * @param mode      The mode, or null for none.
+     * @param nonce     The nonce.
+     * @return this
+     */
+    CommandEncoder command(PendingRequest.Kind kind, String lockId, byte[] encodedId, int timeout, String mode,
+                           long nonce) {
+
+        begin(kind);
+        if (encodedId != null) {
+            lockId(encodedId);
+        } else if (lockId != null) {
+            lockId(lockId);
+        }
+        if (timeout != NO_TIMEOUT) {
+            timeout(timeout);
+        }
+        if (mode != null) {
+            mode(mode);
+        }
+        return (nonce(nonce).end());
+    }
+
+    /**
+     * Adds the <code>lockId</code> field.
+     *
+     * @param lockId
+     * @return this
+     */
+    CommandEncoder lockId(String lockId) {
+
+        append(LOCK_ID);
+        appendEscaped(lockId);
+        appendByte('"');
+        return (this);
+    }
+
+    /**
+     * Adds the <code>lockId</code> field from an id encoded by
+     * {@link #escape(String)}.
+     *
+     * @param encodedId
+     * @return this
+     */
+    CommandEncoder lockId(byte[] encodedId) {
+
+        append(LOCK_ID);
+        append(encodedId);
+        appendByte('"');
+        return (this);
+    }
+
+    /**
+     * Adds the <code>timeout</code> field.
+     *
+     * @param timeout
+     * @return this
+     */
+    CommandEncoder timeout(int timeout) {
+
+        append(TIMEOUT);
+        appendNumber(timeout);
+        return (this);
+    }
+
+    /**
+     * Adds the <code>mode</code> field.
+     *
+     * @param mode
+     * @return this
+     */
+    CommandEncoder mode(String mode) {
+
+        append(MODE);
+        appendEscaped(mode);
+        appendByte('"');
+        return (this);
+    }
+
+    /**
+     * Adds the <code>nonce</code> field.
+     *
+     * @param nonce
+     * @return this
+     */
+    CommandEncoder nonce(long nonce) {
+
+        append(NONCE);
+        appendNumber(nonce);
+        return (this);
+    }
+
+    /**
+     * Closes the JSON object and terminates the line.
+     *
+     * @return this
+     */
+    CommandEncoder end() {
+
+        ensure(2);
+        buffer[length++] = '}';
+        buffer[length++] = '\n';
+        return (this);
+    }
+
+    byte[] buffer() {
+
+        return (buffer);
+    }
+
+    int length() {
+
+        return (length);
+    }
+
+    /**
+     * Writes the encoded command.
+     *
+     * @param out
+     * @throws IOException
+     */
+    void writeTo(OutputStream out) throws IOException {
+
+        out.write(buffer, 0, length);
+    }
+
+    /**
+     * Appends the encoded command to <code>out</code>, which must have room.
+     *
+     * @param out
+     */
+    void writeTo(ByteBuffer out) {
+
+        out.put(buffer, 0, length);
+    }
+
+    /**
+     * A string JSON-escaped and UTF-8 encoded as it goes between the
+     * quotes of a field.
+     *
+     * @param value
+     * @return
+     */
+    static byte[] escape(String value) {
+
+        CommandEncoder encoder = new CommandEncoder();
+        encoder.appendEscaped(value);
+        return (Arrays.copyOf(encoder.buffer, encoder.length));
+    }
+
+    private void appendEscaped(String value) {
+
+        int n = value.length();
+        // Worst case is six bytes (\\u00XX) per char; most ids are ASCII.
+        ensure(n * 3);
+        for (int i = 0; i < n; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    ensure(2 + (n - i) * 3);
+                    buffer[length++] = '\\';
+                }
+                buffer[length++] = (byte) c;
+            } else if (c < 0x20) {
+                ensure(6 + (n - i) * 3);
+                appendUnicodeEscape(c);
+            } else if (c < 0x800) {
+                buffer[length++] = (byte) (0xc0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                ensure(4 + (n - i) * 3);
+                buffer[length++] = (byte) (0xf0 | (cp >> 18));
+                buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // A lone surrogate has no UTF-8 form; JSON can still carry it.
+                ensure(6 + (n - i) * 3);
+                appendUnicodeEscape(c);
+            } else {
+                buffer[length++] = (byte) (0xe0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void appendUnicodeEscape(char c) {
+
+        buffer[length++] = '\\';
+        buffer[length++] = 'u';
+        buffer[length++] = HEX[(c >> 12) & 0xf];
+        buffer[length++] = HEX[(c >> 8) & 0xf];
+        buffer[length++] = HEX[(c >> 4) & 0xf];
+        buffer[length++] = HEX[c & 0xf];
+    }
+
+    private void appendNumber(long value) {
+
+        ensure(20);
+        if (value < 0) {
+            buffer[length++] = '-';
+            if (value == Long.MIN_VALUE) {
+                append(ascii("9223372036854775808"));
+                return;
+            }
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void append(byte[] bytes) {
+
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void appendByte(char c) {
+
+        ensure(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void ensure(int extra) {
+
+        if (length + extra > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+
+    private static byte[] ascii(String value) {
+
+        return (value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.frs.blockd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks which lock ids a connection contends on, in bounded memory: ACQUIRE
+ * counts, LOCKPENDING counts and time spent LOCKPENDING per lock id go into
+ * count-min sketches, and the {@link #DEFAULT_TOP_LOCKS} ids with the most
+ * time spent LOCKPENDING are kept in a small heap. Millions of distinct ids
+ * cost no more than a few.
+ * <p>
+ * An ACQUIRE costs one hash and a few atomic adds. Only a LOCKPENDING,
+ * which has already waited on the server, takes the lock around the heap.
+ * Like the other metrics, counts are totals since the client was created.
+ */
+final class ContentionProfiler {
+
+    /**
+     * How many of the most contended lock ids are kept.
+     */
+    static final int DEFAULT_TOP_LOCKS = 20;
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 512;
+
+    private final String name;
+    private final int top;
+    private final CountMinSketch acquires = new CountMinSketch(DEPTH, WIDTH);
+    private final CountMinSketch lockPendings = new CountMinSketch(DEPTH, WIDTH);
+    private final CountMinSketch waits = new CountMinSketch(DEPTH, WIDTH);
+    private final LongAdder totalAcquires = new LongAdder();
+    private final LongAdder totalLockPendings = new LongAdder();
+    private final LongAdder totalWaitMicros = new LongAdder();
+    private final ReentrantLock heapLock = new ReentrantLock();
+    private final PriorityQueue<Candidate> heap = new PriorityQueue<Candidate>();
+    private final Map<String, Candidate> candidates = new HashMap<String, Candidate>();
+
+    /**
+     * Constructor.
+     *
+     * @param name The connection (<code>host:port</code>) it covers.
+     * @param top  How many of the most contended lock ids to keep.
+     */
+    ContentionProfiler(String name, int top) {
+
+        this.name = name;
+        this.top = top;
+    }
+
+    /**
+     * An ACQUIRE was sent.
+     *
+     * @param lockId
+     */
+    void acquired(String lockId) {
+
+        acquires.add(Hashing.hash(lockId), 1);
+        totalAcquires.increment();
+    }
+
+    /**
+     * An ACQUIRE that went LOCKPENDING has been answered.
+     *
+     * @param lockId
+     * @param nanos  How long it was pending.
+     */
+    void pendingEnded(String lockId, long nanos) {
+
+        long hash = Hashing.hash(lockId);
+        long micros = Math.max(nanos / 1000, 0);
+        lockPendings.add(hash, 1);
+        waits.add(hash, micros);
+        totalLockPendings.increment();
+        totalWaitMicros.add(micros);
+        long wait = waits.estimate(hash);
+
+        heapLock.lock();
+        try {
+            Candidate candidate = candidates.get(lockId);
+            if (candidate != null) {
+                heap.remove(candidate);
+            } else if (heap.size() < top) {
+                candidate = new Candidate(lockId, hash);
+                candidates.put(lockId, candidate);
+            } else if (wait > heap.peek().wait) {
+                candidates.remove(heap.poll().lockId);
+                candidate = new Candidate(lockId, hash);
+                candidates.put(lockId, candidate);
+            } else {
+                return;
+            }
+            candidate.wait = wait;
+            heap.add(candidate);
+        } finally {
+            heapLock.unlock();
+        }
+    }
+
+    ContentionReport snapshot() {
+
+        List<Candidate> kept;
+        heapLock.lock();
+        try {
+            kept = new ArrayList<Candidate>(heap);
+        } finally {
+            heapLock.unlock();
+        }
+        List<ContentionReport.HotLock> locks = new ArrayList<ContentionReport.HotLock>(kept.size());
+        for (Candidate candidate : kept) {
+            locks.add(new ContentionReport.HotLock(candidate.lockId, acquires.estimate(candidate.hash),
+                                                   lockPendings.estimate(candidate.hash),
+                                                   waits.estimate(candidate.hash)));
+        }
+        Collections.sort(locks);
+        return (new ContentionReport(name, totalAcquires.sum(), totalLockPendings.sum(), totalWaitMicros.sum(),
+                                     locks, Collections.<String, ContentionReport>emptyMap()));
+    }
+
+    /**
+     * A lock id in the heap, ordered by its estimated wait when it was last
+     * updated; the least contended is at the head.
+     */
+    private static final class Candidate implements Comparable<Candidate> {
+
+        final String lockId;
+        final long hash;
+        long wait;
+
+        Candidate(String lockId, long hash) {
+
+            this.lockId = lockId;
+            this.hash = hash;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+
+            return (Long.compare(wait, other.wait));
+        }
+
+    }
+
+}
@@ -0,0 +1,270 @@
+package com.frs.blockd;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A point-in-time copy of the lock ids a client contends on most, as
+ * returned by {@link BlockdClient#getContention()}. Counts are totals since
+ * the client was created.
+ * <p>
+ * Per-lock counts are estimates from a count-min sketch: never too low,
+ * and too high by a small fraction of the totals when many ids share the
+ * sketch. The totals are exact. A <code>ClusterClient</code> also reports
+ * each node under {@link #getNodes()}, and how unevenly the load falls on
+ * them.
+ */
+public final class ContentionReport {
+
+    private final String name;
+    private final long acquires;
+    private final long lockPendings;
+    private final long waitMicros;
+    private final List<HotLock> locks;
+    private final Map<String, ContentionReport> nodes;
+
+    ContentionReport(String name, long acquires, long lockPendings, long waitMicros, List<HotLock> locks,
+                     Map<String, ContentionReport> nodes) {
+
+        this.name = name;
+        this.acquires = acquires;
+        this.lockPendings = lockPendings;
+        this.waitMicros = waitMicros;
+        this.locks = Collections.unmodifiableList(locks);
+        this.nodes = nodes;
+    }
+
+    /**
+     * Adds reports up. A lock id in several parts, e.g. one that moved
+     * between nodes, has its counts added.
+     *
+     * @param name   The name of the sum.
+     * @param parts  The reports to add.
+     * @param byNode Keep the parts as the per-node breakdown?
+     * @return
+     */
+    static ContentionReport sum(String name, Collection<ContentionReport> parts, boolean byNode) {
+
+        long acquires = 0;
+        long lockPendings = 0;
+        long waitMicros = 0;
+        int top = 0;
+        Map<String, HotLock> locks = new LinkedHashMap<String, HotLock>();
+        Map<String, ContentionReport> nodes = new LinkedHashMap<String, ContentionReport>();
+        for (ContentionReport part : parts) {
+            acquires += part.acquires;
+            lockPendings += part.lockPendings;
+            waitMicros += part.waitMicros;
+            top = Math.max(top, part.locks.size());
+            for (HotLock lock : part.locks) {
+                HotLock seen = locks.get(lock.lockId);
+                locks.put(lock.lockId, seen == null ? lock : seen.plus(lock));
+            }
+            if (byNode) {
+                nodes.put(part.name, part);
+            }
+        }
+        List<HotLock> sorted = new ArrayList<HotLock>(locks.values());
+        Collections.sort(sorted);
+        if (sorted.size() > top) {
+            sorted = new ArrayList<HotLock>(sorted.subList(0, top));
+        }
+        return (new ContentionReport(name, acquires, lockPendings, waitMicros, sorted,
+                                     Collections.unmodifiableMap(nodes)));
+    }
+
+    /**
+     * The connection (<code>host:port</code>) or client this covers.
+     *
+     * @return
+     */
+    public String getName() {
+
+        return (name);
+    }
+
+    /**
+     * ACQUIREs sent.
+     *
+     * @return
+     */
+    public long getAcquires() {
+
+        return (acquires);
+    }
+
+    /**
+     * ACQUIREs answered with LOCKPENDING.
+     *
+     * @return
+     */
+    public long getLockPendings() {
+
+        return (lockPendings);
+    }
+
+    /**
+     * Time spent LOCKPENDING, over all lock ids.
+     *
+     * @return
+     */
+    public long getWaitMicros() {
+
+        return (waitMicros);
+    }
+
+    /**
+     * The lock ids with the most time spent LOCKPENDING, most contended
+     * first.
+     *
+     * @return
+     */
+    public List<HotLock> getLocks() {
+
+        return (locks);
+    }
+
+    /**
+     * The per-node reports of a <code>ClusterClient</code> by
+     * <code>host:port</code>; empty for other clients.
+     *
+     * @return
+     */
+    public Map<String, ContentionReport> getNodes() {
+
+        return (nodes);
+    }
+
+    /**
+     * How unevenly ACQUIREs fall on the nodes: the busiest node's count
+     * over the mean. 1 is perfectly even; 1 also without nodes.
+     *
+     * @return
+     */
+    public double getAcquireSkew() {
+
+        long[] counts = new long[nodes.size()];
+        int i = 0;
+        for (ContentionReport node : nodes.values()) {
+            counts[i++] = node.acquires;
+        }
+        return (skew(counts));
+    }
+
+    /**
+     * How unevenly time spent LOCKPENDING falls on the nodes: the most
+     * waited-on node's time over the mean. 1 is perfectly even; 1 also
+     * without nodes or waits.
+     *
+     * @return
+     */
+    public double getWaitSkew() {
+
+        long[] waits = new long[nodes.size()];
+        int i = 0;
+        for (ContentionReport node : nodes.values()) {
+            waits[i++] = node.waitMicros;
+        }
+        return (skew(waits));
+    }
+
+    @Override
+    public String toString() {
+
+        return (name + " acquires=" + acquires + " lockPendings=" + lockPendings + " waitMicros=" + waitMicros
+                + " top=" + locks);
+    }
+
+    private static double skew(long[] values) {
+
+        long sum = 0;
+        long max = 0;
+        for (long value : values) {
+            sum += value;
+            max = Math.max(max, value);
+        }
+        return (sum == 0 ? 1 : (double) max * values.length / sum);
+    }
+
+    /**
+     * One contended lock id.
+     */
+    public static final class HotLock implements Comparable<HotLock> {
+
+        private final String lockId;
+        private final long acquires;
+        private final long lockPendings;
+        private final long waitMicros;
+
+        HotLock(String lockId, long acquires, long lockPendings, long waitMicros) {
+
+            this.lockId = lockId;
+            this.acquires = acquires;
+            this.lockPendings = lockPendings;
+            this.waitMicros = waitMicros;
+        }
+
+        public String getLockId() {
+
+            return (lockId);
+        }
+
+        /**
+         * ACQUIREs sent for the lock id, estimated.
+         *
+         * @return
+         */
+        public long getAcquires() {
+
+            return (acquires);
+        }
+
+        /**
+         * Of those, answered with LOCKPENDING, estimated.
+         *
+         * @return
+         */
+        public long getLockPendings() {
+
+            return (lockPendings);
+        }
+
+        /**
+         * Time spent LOCKPENDING on the lock id, estimated.
+         *
+         * @return
+         */
+        public long getWaitMicros() {
+
+            return (waitMicros);
+        }
+
+        /**
+         * Most time spent LOCKPENDING first.
+         */
+        @Override
+        public int compareTo(HotLock other) {
+
+            return (Long.compare(other.waitMicros, waitMicros));
+        }
+
+        HotLock plus(HotLock other) {
+
+            return (new HotLock(lockId, acquires + other.acquires, lockPendings + other.lockPendings,
+                                waitMicros + other.waitMicros));
+        }
+
+        @Override
+        public String toString() {
+
+            return (lockId + " acquires=" + acquires + " lockPendings=" + lockPendings + " waitMicros="
+                    + waitMicros);
+        }
+
+    }
+
+}
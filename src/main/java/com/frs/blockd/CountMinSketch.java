@@ -0,0 +1,74 @@
+package com.frs.blockd;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch: per-key counts in a fixed amount of memory, however
+ * many distinct keys are added. Each key adds to one counter in every row
+ * and its estimate is the smallest of them, so an estimate is never too
+ * low and is too high by at most about <code>e / width</code> of the total
+ * added, with a probability that shrinks exponentially with the depth.
+ * <p>
+ * Adding is lock-free. A key's string is hashed once; each row remixes
+ * that hash with its own seed, so rows collide independently. (Double
+ * hashing would be cheaper, but with narrow rows it makes keys that share
+ * a few low bits collide in every row at once.)
+ */
+final class CountMinSketch {
+
+    private static final long SEED = 0x9e3779b97f4a7c15L;
+
+    private final int depth;
+    private final int mask;
+    private final AtomicLongArray counts;
+
+    /**
+     * Constructor.
+     *
+     * @param depth The number of rows.
+     * @param width The counters per row; a power of two.
+     */
+    CountMinSketch(int depth, int width) {
+
+        if (depth < 1 || width < 1 || Integer.bitCount(width) != 1) {
+            throw new IllegalArgumentException("Depth " + depth + ", width " + width);
+        }
+        this.depth = depth;
+        this.mask = width - 1;
+        this.counts = new AtomicLongArray(depth * width);
+    }
+
+    /**
+     * Adds to a key's count.
+     *
+     * @param hash   The key's hash, from {@link Hashing#hash(String)}.
+     * @param amount
+     */
+    void add(long hash, long amount) {
+
+        for (int row = 0; row < depth; row++) {
+            counts.addAndGet(index(hash, row), amount);
+        }
+    }
+
+    /**
+     * A key's count, or more.
+     *
+     * @param hash The key's hash, from {@link Hashing#hash(String)}.
+     * @return
+     */
+    long estimate(long hash) {
+
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counts.get(index(hash, row)));
+        }
+        return (estimate);
+    }
+
+    private int index(long hash, int row) {
+
+        return (row * (mask + 1) + ((int) Hashing.mix(hash + row * SEED) & mask));
+    }
+
+}
@@ -0,0 +1,166 @@
+package com.frs.blockd;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single thread driving a <code>Selector</code>. Any number of channels can
+ * be registered with one loop. Channel state is only ever touched by the loop
+ * thread, either from a {@link Handler} callback or from a task passed to
+ * <code>execute()</code>, so it needs no locking.
+ */
+public class EventLoop implements Runnable {
+
+    /**
+     * Callback for channels registered with an event loop.
+     */
+    public interface Handler {
+
+        /**
+         * Called on the loop thread when the channel is ready.
+         *
+         * @param key The selected key.
+         * @throws Exception
+         */
+        public void onSelect(SelectionKey key) throws Exception;
+
+        /**
+         * Called on the loop thread when <code>onSelect()</code> threw, or
+         * when the loop shuts down with the channel still registered.
+         *
+         * @param cause
+         */
+        public void onFailure(Throwable cause);
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile boolean running = true;
+
+    /**
+     * Constructor. Opens the selector and starts the (daemon) loop thread.
+     *
+     * @param name The name of the loop thread.
+     * @throws IOException If the selector cannot be opened.
+     */
+    public EventLoop(String name) throws IOException {
+
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Is the calling thread this loop's thread?
+     *
+     * @return
+     */
+    public boolean inEventLoop() {
+
+        return (Thread.currentThread() == thread);
+    }
+
+    /**
+     * Queues a task to be run on the loop thread.
+     *
+     * @param task
+     */
+    public void execute(Runnable task) {
+
+        tasks.add(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers a channel with this loop's selector. Must be called on
+     * the loop thread.
+     *
+     * @param channel  A non-blocking channel.
+     * @param ops      The initial interest set.
+     * @param handler  The callback for readiness events.
+     * @return The selection key.
+     * @throws ClosedChannelException
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+
+        return (channel.register(selector, ops, handler));
+    }
+
+    /**
+     * Stops the loop. Channels still registered get <code>onFailure()</code>.
+     */
+    public void shutdown() {
+
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+
+        while (running) {
+            try {
+                selector.select();
+                wakeupPending.set(false);
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            handler.onSelect(key);
+                        }
+                    } catch (Throwable t) {
+                        key.cancel();
+                        handler.onFailure(t);
+                    }
+                }
+            } catch (Throwable t) {
+                // A broken selector is not recoverable; fall through and close.
+                if (!(t instanceof IOException)) {
+                    running = false;
+                }
+            }
+        }
+        runTasks();
+        IOException closed = new IOException("Event loop shut down.");
+        for (SelectionKey key : selector.keys()) {
+            ((Handler) key.attachment()).onFailure(closed);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Nothing left to clean up.
+        }
+    }
+
+    /**
+     * Runs every queued task. Tasks must not throw; anything they do throw
+     * is swallowed so one bad task cannot stop the loop.
+     */
+    private void runTasks() {
+
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                // Tasks report their own failures through their futures.
+            }
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.frs.blockd;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of {@link EventLoop}s. Connections are spread over the loops
+ * round-robin, so a handful of threads can serve thousands of connections.
+ */
+public class EventLoopGroup {
+
+    private static EventLoopGroup defaultGroup;
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Constructor. Starts <code>threads</code> event loops.
+     *
+     * @param threads The number of loop threads.
+     * @throws IOException If a selector cannot be opened.
+     */
+    public EventLoopGroup(int threads) throws IOException {
+
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop("blockd-loop-" + i);
+        }
+    }
+
+    /**
+     * The group used by clients that were not given one. It is created on
+     * first use with one loop per processor, up to four.
+     *
+     * @return
+     * @throws IOException
+     */
+    public static synchronized EventLoopGroup getDefault() throws IOException {
+
+        if (defaultGroup == null) {
+            defaultGroup = new EventLoopGroup(Math.min(4, Runtime.getRuntime().availableProcessors()));
+        }
+        return (defaultGroup);
+    }
+
+    /**
+     * Picks the loop for a new connection.
+     *
+     * @return
+     */
+    public EventLoop next() {
+
+        return (loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length]);
+    }
+
+    /**
+     * Stops every loop in the group.
+     */
+    public void shutdown() {
+
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+}
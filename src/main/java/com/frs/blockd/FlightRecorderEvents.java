@@ -0,0 +1,182 @@
+package com.frs.blockd;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * The JDK Flight Recorder events behind {@link ClientEvents}. This is the
+ * only class that uses <code>jdk.jfr</code>: builds on a JDK without it
+ * leave it out, and <code>ClientEvents</code> only loads it by name once it
+ * has found JFR in the running JVM.
+ */
+final class FlightRecorderEvents implements ClientEvents.Recorder {
+
+    @Override
+    public ClientEvents.Event connect(String host, int port) {
+
+        if (!Connect.PROBE.isEnabled()) {
+            return (null);
+        }
+        Connect event = new Connect();
+        event.start(host, port, null, null);
+        return (event);
+    }
+
+    @Override
+    public ClientEvents.Event acquire(String host, int port, String lockId, String mode, int timeout) {
+
+        if (!Acquire.PROBE.isEnabled()) {
+            return (null);
+        }
+        Acquire event = new Acquire();
+        event.timeout = timeout;
+        event.start(host, port, lockId, mode);
+        return (event);
+    }
+
+    @Override
+    public ClientEvents.Event release(String host, int port, String lockId) {
+
+        if (!Release.PROBE.isEnabled()) {
+            return (null);
+        }
+        Release event = new Release();
+        event.start(host, port, lockId, null);
+        return (event);
+    }
+
+    @Override
+    public ClientEvents.Event releaseAll(String host, int port) {
+
+        if (!ReleaseAll.PROBE.isEnabled()) {
+            return (null);
+        }
+        ReleaseAll event = new ReleaseAll();
+        event.start(host, port, null, null);
+        return (event);
+    }
+
+    @Override
+    public ClientEvents.Event show(String host, int port) {
+
+        if (!Show.PROBE.isEnabled()) {
+            return (null);
+        }
+        Show event = new Show();
+        event.start(host, port, null, null);
+        return (event);
+    }
+
+    /**
+     * The fields every blockd event has.
+     */
+    @Category("blockd")
+    abstract static class ClientEvent extends Event implements ClientEvents.Event {
+
+        @Label("Node")
+        @Description("The server, as host:port.")
+        String node;
+
+        @Label("Lock Id")
+        String lockId;
+
+        @Label("Mode")
+        String mode;
+
+        @Label("Status")
+        @Description("The server's final answer, or the exception the command failed with.")
+        String status;
+
+        void start(String host, int port, String lockId, String mode) {
+
+            this.node = host + ":" + port;
+            this.lockId = lockId;
+            this.mode = mode;
+            begin();
+        }
+
+        @Override
+        public void finished(String status) {
+
+            end();
+            if (shouldCommit()) {
+                this.status = status;
+                commit();
+            }
+        }
+
+    }
+
+    @Name("com.frs.blockd.Connect")
+    @Label("blockd Connect")
+    @Description("Opening a connection, up to the server's greeting.")
+    static final class Connect extends ClientEvent {
+
+        static final Connect PROBE = new Connect();
+
+    }
+
+    @Name("com.frs.blockd.Acquire")
+    @Label("blockd Acquire")
+    @Description("An ACQUIRE, including any wait after LOCKPENDING.")
+    static final class Acquire extends ClientEvent {
+
+        static final Acquire PROBE = new Acquire();
+
+        @Label("Timeout")
+        @Description("The ACQUIRE timeout; negative for none.")
+        @Timespan(Timespan.MILLISECONDS)
+        long timeout;
+
+        @Label("Pending Duration")
+        @Description("The time between LOCKPENDING and the final answer; 0 if the lock was free.")
+        @Timespan
+        long pendingDuration;
+
+        @Override
+        public void pending(long nanos) {
+
+            this.pendingDuration = nanos;
+        }
+
+    }
+
+    @Name("com.frs.blockd.Release")
+    @Label("blockd Release")
+    static final class Release extends ClientEvent {
+
+        static final Release PROBE = new Release();
+
+    }
+
+    @Name("com.frs.blockd.ReleaseAll")
+    @Label("blockd Release All")
+    static final class ReleaseAll extends ClientEvent {
+
+        static final ReleaseAll PROBE = new ReleaseAll();
+
+        @Label("Released")
+        @Description("The number of locks released.")
+        int released;
+
+        @Override
+        public void released(int count) {
+
+            this.released = count;
+        }
+
+    }
+
+    @Name("com.frs.blockd.Show")
+    @Label("blockd Show")
+    static final class Show extends ClientEvent {
+
+        static final Show PROBE = new Show();
+
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.frs.blockd;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Helpers for waiting on the futures handed out by the async clients.
+ */
+final class Futures {
+
+    private Futures() {
+        // No instances.
+    }
+
+    /**
+     * Waits for a future and rethrows the exception it failed with.
+     *
+     * @param future
+     * @return The value of the future.
+     * @throws Exception The exception the future failed with.
+     */
+    static <T> T await(CompletableFuture<T> future) throws Exception {
+
+        try {
+            return (future.get());
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Waits at most <code>millis</code> for a future.
+     *
+     * @param future
+     * @param millis  The deadline, in milliseconds.
+     * @param what    Describes the wait, for the timeout message.
+     * @return The value of the future.
+     * @throws SocketTimeoutException If the deadline passes first.
+     * @throws Exception              The exception the future failed with.
+     */
+    static <T> T await(CompletableFuture<T> future, long millis, String what) throws Exception {
+
+        try {
+            return (future.get(millis, TimeUnit.MILLISECONDS));
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("No answer to " + what + " within " + millis + "ms");
+        }
+    }
+
+    /**
+     * Releases a lock whose ACQUIRE the caller stopped waiting for, should
+     * it be granted after all. Without this a late grant would leak the lock
+     * until the connection closes.
+     *
+     * @param client  The client the ACQUIRE was sent on.
+     * @param acquire The abandoned ACQUIRE; its status, or whether it was
+     *                granted.
+     * @param lockId
+     */
+    static void releaseWhenGranted(final AsyncBlockdClient client, CompletableFuture<?> acquire,
+                                   final String lockId) {
+
+        acquire.thenAccept(status -> {
+            if ("LOCKACQUIRED".equals(status) || Boolean.TRUE.equals(status)) {
+                client.releaseAsync(lockId);
+            }
+        });
+    }
+
+    /**
+     * A future that has already failed.
+     *
+     * @param cause
+     * @return
+     */
+    static <T> CompletableFuture<T> failed(Throwable cause) {
+
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(cause);
+        return (future);
+    }
+
+    /**
+     * The deadline for the answer to an ACQUIRE with the given timeout:
+     * the timeout itself plus a grace period for the network and server.
+     *
+     * @param timeout The ACQUIRE timeout, in milliseconds.
+     * @param grace   The grace period, in milliseconds.
+     * @return The deadline, capped at <code>Integer.MAX_VALUE</code>.
+     */
+    static int pendingDeadline(int timeout, int grace) {
+
+        long deadline = (long) Math.max(timeout, 0) + grace;
+        return ((int) Math.min(deadline, Integer.MAX_VALUE));
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+            return ((Exception) cause);
+        }
+        return (e);
+    }
+
+}
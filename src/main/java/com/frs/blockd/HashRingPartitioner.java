@@ -0,0 +1,120 @@
+package com.frs.blockd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Consistent hashing on a ring. Every node is placed on the ring at
+ * <code>virtualNodes</code> points and a key belongs to the first point at
+ * or after its hash, found by binary search. Adding or removing a node only
+ * moves the keys between its points and their predecessors, about 1/N of
+ * all keys; more virtual nodes give a more even split at the cost of a
+ * larger table.
+ */
+public class HashRingPartitioner implements Partitioner {
+
+    /**
+     * The default number of ring points per node.
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final int virtualNodes;
+    private final int size;
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     * Constructor for an empty ring with the default number of virtual
+     * nodes.
+     */
+    public HashRingPartitioner() {
+
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Constructor for an empty ring.
+     *
+     * @param virtualNodes The number of ring points per node.
+     */
+    public HashRingPartitioner(int virtualNodes) {
+
+        this(virtualNodes, Collections.<String>emptyList());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param virtualNodes The number of ring points per node.
+     * @param nodes        The node names.
+     */
+    public HashRingPartitioner(int virtualNodes, List<String> nodes) {
+
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Need at least one virtual node: " + virtualNodes);
+        }
+        this.virtualNodes = virtualNodes;
+        this.size = nodes.size();
+
+        List<long[]> entries = new ArrayList<long[]>(size * virtualNodes);
+        for (int node = 0; node < size; node++) {
+            String name = nodes.get(node);
+            for (int v = 0; v < virtualNodes; v++) {
+                entries.add(new long[] {Hashing.hash(name + "#" + v), node});
+            }
+        }
+        Collections.sort(entries, (a, b) -> {
+            int c = Long.compare(a[0], b[0]);
+            // Break the (unlikely) tie by node so the ring does not depend
+            // on the order nodes were given in.
+            return (c != 0 ? c : nodes.get((int) a[1]).compareTo(nodes.get((int) b[1])));
+        });
+        points = new long[entries.size()];
+        owners = new int[entries.size()];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = entries.get(i)[0];
+            owners[i] = (int) entries.get(i)[1];
+        }
+    }
+
+    /**
+     * The number of ring points per node.
+     *
+     * @return
+     */
+    public int getVirtualNodes() {
+
+        return (virtualNodes);
+    }
+
+    @Override
+    public Partitioner withNodes(List<String> nodes) {
+
+        return (new HashRingPartitioner(virtualNodes, nodes));
+    }
+
+    @Override
+    public int size() {
+
+        return (size);
+    }
+
+    @Override
+    public int nodeFor(long keyHash) {
+
+        if (points.length == 0) {
+            throw new IllegalStateException("No nodes.");
+        }
+        int i = Arrays.binarySearch(points, keyHash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        if (i == points.length) {
+            i = 0;
+        }
+        return (owners[i]);
+    }
+
+}
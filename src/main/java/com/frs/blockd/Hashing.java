@@ -0,0 +1,50 @@
+package com.frs.blockd;
+
+/**
+ * The 64-bit hashing used to place lock ids and nodes. Keys are hashed with
+ * FNV-1a over their chars and then run through the MurmurHash3 finalizer,
+ * so similar ids ("lock1", "lock2", ...) still spread over the whole range.
+ */
+public final class Hashing {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private Hashing() {
+        // Static methods only.
+    }
+
+    /**
+     * Hashes a lock id or node name.
+     *
+     * @param key
+     * @return A well-mixed 64-bit hash.
+     */
+    public static long hash(String key) {
+
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return (mix(hash));
+    }
+
+    /**
+     * The MurmurHash3 64-bit finalizer: every input bit affects every output
+     * bit.
+     *
+     * @param value
+     * @return
+     */
+    public static long mix(long value) {
+
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return (value);
+    }
+
+}
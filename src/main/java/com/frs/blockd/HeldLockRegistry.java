@@ -0,0 +1,412 @@
+package com.frs.blockd;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * The locks one connection holds, with a hold count for each.
+ * <p>
+ * Blockd locks belong to the connection, and the server grants a lock the
+ * connection already holds again. The registry mirrors that without the
+ * round trip: re-acquiring a held lock in a mode the hold covers just
+ * counts up, and only the release that brings the count back to zero goes
+ * to the server. Releasing a lock that is not held fails locally with
+ * {@link NoLockToReleaseException}, and a RELEASEALL with nothing held is
+ * skipped.
+ * <p>
+ * A write hold covers both modes; a read hold only covers reads, so an
+ * upgrade still asks the server. <code>getHeld()</code> lists what is held
+ * and since when, for leak detection.
+ * <p>
+ * The first acquire of a lock is single-flight: while its ACQUIRE is out,
+ * other threads acquiring the lock in a mode it covers wait for the answer
+ * instead of sending ACQUIREs of their own, then count up the hold or, if
+ * it was not granted, try again.
+ */
+public final class HeldLockRegistry {
+
+    private final Map<String, HeldLock> holds = new ConcurrentHashMap<String, HeldLock>();
+    // The first ACQUIREs still out, by lock id.
+    private final Map<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    /**
+     * Is the lock held?
+     *
+     * @param lockId
+     * @return
+     */
+    public boolean isHeld(String lockId) {
+
+        return (holds.containsKey(lockId));
+    }
+
+    /**
+     * How many times the lock has been acquired and not yet released.
+     *
+     * @param lockId
+     * @return 0 if it is not held.
+     */
+    public int getHoldCount(String lockId) {
+
+        HeldLock hold = holds.get(lockId);
+        return (hold == null ? 0 : hold.getHoldCount());
+    }
+
+    /**
+     * The number of distinct locks held.
+     *
+     * @return
+     */
+    public int size() {
+
+        return (holds.size());
+    }
+
+    /**
+     * Is nothing held?
+     *
+     * @return
+     */
+    public boolean isEmpty() {
+
+        return (holds.isEmpty());
+    }
+
+    /**
+     * A snapshot of everything held.
+     *
+     * @return
+     */
+    public List<HeldLock> getHeld() {
+
+        return (new ArrayList<HeldLock>(holds.values()));
+    }
+
+    /**
+     * The locks first acquired more than <code>millis</code> ago and still
+     * held; likely leaks.
+     *
+     * @param millis
+     * @return
+     */
+    public List<HeldLock> getHeldLongerThan(long millis) {
+
+        long cutoff = System.currentTimeMillis() - millis;
+        List<HeldLock> old = new ArrayList<HeldLock>();
+        for (HeldLock hold : holds.values()) {
+            if (hold.getSince() < cutoff) {
+                old.add(hold);
+            }
+        }
+        return (old);
+    }
+
+    /**
+     * Counts up a held lock if the hold covers <code>mode</code>.
+     *
+     * @param lockId
+     * @param mode   The requested mode; null for the server default (W).
+     * @return true if the acquire completed locally.
+     */
+    boolean enter(String lockId, String mode) {
+
+        final boolean[] local = new boolean[1];
+        holds.computeIfPresent(lockId, (id, hold) -> {
+            if (hold.covers(mode)) {
+                local[0] = true;
+                return (hold.withHoldCount(hold.getHoldCount() + 1));
+            }
+            return (hold);
+        });
+        return (local[0]);
+    }
+
+    /**
+     * Acquires a lock on the connection, sending an ACQUIRE only if the
+     * lock is neither held in a mode that covers <code>mode</code> nor
+     * being acquired so already. The first acquire leaves a placeholder
+     * that later ones join, as long as it gives up no later than they
+     * would; those that cannot join send their own ACQUIRE, as before.
+     * <p>
+     * <code>send</code> must not block: a joined acquire that has to try
+     * again sends on the thread that completed the first one.
+     *
+     * @param lockId
+     * @param mode    The requested mode; null for the server default (W).
+     * @param timeout The ACQUIRE timeout in milliseconds; negative for none.
+     * @param send    Sends an ACQUIRE with the given timeout.
+     * @return The answer, after a grant has been recorded.
+     */
+    CompletableFuture<String> enter(String lockId, String mode, int timeout,
+                                    IntFunction<CompletableFuture<String>> send) {
+
+        long deadline = (timeout < 0 ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout));
+        return (enter(lockId, mode, timeout, deadline, send, Thread.currentThread().getName()));
+    }
+
+    private CompletableFuture<String> enter(final String lockId, final String mode, final int timeout,
+                                            final long deadline, final IntFunction<CompletableFuture<String>> send,
+                                            final String thread) {
+
+        if (enter(lockId, mode)) {
+            return (CompletableFuture.completedFuture("LOCKACQUIRED"));
+        }
+        int left = timeout;
+        if (timeout > 0) {
+            left = (int) Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+        }
+        final Flight flight = new Flight(mode, timeout >= 0, deadline);
+        Flight first = flights.putIfAbsent(lockId, flight);
+        if (first == null) {
+            // The grant may have been recorded since the check above.
+            if (enter(lockId, mode)) {
+                land(lockId, flight);
+                return (CompletableFuture.completedFuture("LOCKACQUIRED"));
+            }
+            return (send(send, left).whenComplete((status, failure) -> {
+                if (failure == null) {
+                    acquired(lockId, mode, status, thread);
+                }
+                land(lockId, flight);
+            }));
+        }
+        if (!first.covers(mode, timeout >= 0, deadline)) {
+            return (track(lockId, mode, send(send, left), thread));
+        }
+        return (first.landed.thenCompose(ignored -> enter(lockId, mode, timeout, deadline, send, thread)));
+    }
+
+    private static CompletableFuture<String> send(IntFunction<CompletableFuture<String>> send, int timeout) {
+
+        try {
+            return (send.apply(timeout));
+        } catch (RuntimeException e) {
+            return (Futures.failed(e));
+        }
+    }
+
+    /**
+     * Takes down a first ACQUIRE's placeholder, then lets those waiting for
+     * it try again.
+     */
+    private void land(String lockId, Flight flight) {
+
+        flights.remove(lockId, flight);
+        flight.landed.complete(null);
+    }
+
+    /**
+     * Records an ACQUIRE answer; only a grant is recorded.
+     *
+     * @param lockId
+     * @param mode
+     * @param status The server's answer.
+     */
+    void acquired(String lockId, String mode, String status) {
+
+        acquired(lockId, mode, status, Thread.currentThread().getName());
+    }
+
+    private void acquired(String lockId, String mode, String status, String thread) {
+
+        if ("LOCKACQUIRED".equals(status)) {
+            holds.merge(lockId, new HeldLock(lockId, mode, 1, System.currentTimeMillis(), thread),
+                        (hold, granted) -> hold.upgrade(mode));
+        }
+    }
+
+    /**
+     * Records the grant an ACQUIRE future completes with. The returned
+     * future completes after the grant is recorded.
+     *
+     * @param lockId
+     * @param mode
+     * @param acquire
+     * @return
+     */
+    CompletableFuture<String> track(String lockId, String mode, CompletableFuture<String> acquire) {
+
+        return (track(lockId, mode, acquire, Thread.currentThread().getName()));
+    }
+
+    private CompletableFuture<String> track(final String lockId, final String mode, CompletableFuture<String> acquire,
+                                            final String thread) {
+
+        return (acquire.thenApply(status -> {
+            acquired(lockId, mode, status, thread);
+            return (status);
+        }));
+    }
+
+    /**
+     * Counts down a held lock.
+     *
+     * @param lockId
+     * @return The holds left, so 0 if the server must now be told, or -1
+     *         if the lock was not held.
+     */
+    int exit(String lockId) {
+
+        final int[] left = {-1};
+        holds.computeIfPresent(lockId, (id, hold) -> {
+            left[0] = hold.getHoldCount() - 1;
+            return (left[0] > 0 ? hold.withHoldCount(left[0]) : null);
+        });
+        return (left[0]);
+    }
+
+    /**
+     * Forgets the given locks, whatever their counts; e.g. after a
+     * RELEASEALL released them.
+     *
+     * @param lockIds
+     */
+    void forget(Collection<String> lockIds) {
+
+        for (String lockId : lockIds) {
+            holds.remove(lockId);
+        }
+    }
+
+    /**
+     * Puts back a hold, with its count and age, once its lock has been
+     * acquired again on a new connection.
+     *
+     * @param hold
+     */
+    void restore(HeldLock hold) {
+
+        holds.put(hold.getLockId(), hold);
+    }
+
+    /**
+     * Forgets everything; e.g. when the connection closes.
+     */
+    void clear() {
+
+        holds.clear();
+    }
+
+    /**
+     * A first ACQUIRE that is still out.
+     */
+    private static final class Flight {
+
+        final String mode;
+        final boolean timed;
+        final long deadline;
+        // Completes once the answer is recorded.
+        final CompletableFuture<Void> landed = new CompletableFuture<Void>();
+
+        Flight(String mode, boolean timed, long deadline) {
+
+            this.mode = mode;
+            this.timed = timed;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Can an acquire wait for this one? Only if a grant would cover its
+         * mode and this one gives up no later than it would.
+         */
+        boolean covers(String requested, boolean requestTimed, long requestDeadline) {
+
+            if (!"R".equals(requested) && "R".equals(mode)) {
+                return (false);
+            }
+            return (!requestTimed || (timed && deadline - requestDeadline <= 0));
+        }
+
+    }
+
+    /**
+     * One held lock. Immutable.
+     */
+    public static final class HeldLock {
+
+        private final String lockId;
+        private final String mode;
+        private final int holdCount;
+        private final long since;
+        private final String thread;
+
+        HeldLock(String lockId, String mode, int holdCount, long since, String thread) {
+
+            this.lockId = lockId;
+            this.mode = (mode == null ? "W" : mode);
+            this.holdCount = holdCount;
+            this.since = since;
+            this.thread = thread;
+        }
+
+        public String getLockId() {
+
+            return (lockId);
+        }
+
+        /**
+         * "W" or "R".
+         *
+         * @return
+         */
+        public String getMode() {
+
+            return (mode);
+        }
+
+        public int getHoldCount() {
+
+            return (holdCount);
+        }
+
+        /**
+         * When the lock was first acquired, in milliseconds since the epoch.
+         *
+         * @return
+         */
+        public long getSince() {
+
+            return (since);
+        }
+
+        /**
+         * The name of the thread that asked for the first grant.
+         *
+         * @return
+         */
+        public String getThread() {
+
+            return (thread);
+        }
+
+        boolean covers(String requested) {
+
+            return ("W".equals(mode) || "R".equals(requested));
+        }
+
+        HeldLock withHoldCount(int count) {
+
+            return (new HeldLock(lockId, mode, count, since, thread));
+        }
+
+        HeldLock upgrade(String granted) {
+
+            String merged = ("R".equals(granted) ? mode : "W");
+            return (new HeldLock(lockId, merged, holdCount + 1, since, thread));
+        }
+
+        @Override
+        public String toString() {
+
+            return (lockId + "(" + mode + " x" + holdCount + " since " + since + " by " + thread + ")");
+        }
+
+    }
+
+}
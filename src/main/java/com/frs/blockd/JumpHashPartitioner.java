@@ -0,0 +1,64 @@
+package com.frs.blockd;
+
+import java.util.List;
+
+/**
+ * Jump consistent hashing (Lamping and Veach). O(log N) time, no memory
+ * and a near-perfect split, but nodes are numbered buckets: growing the
+ * cluster from N to N+1 nodes moves 1/(N+1) of the keys only if the new
+ * node is appended, and removing a node other than the last one renumbers
+ * the ones after it. Use it when membership only grows or shrinks at the
+ * end of the node list.
+ */
+public class JumpHashPartitioner implements Partitioner {
+
+    private final int size;
+
+    /**
+     * Constructor with no nodes.
+     */
+    public JumpHashPartitioner() {
+
+        this(0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param size The number of nodes.
+     */
+    public JumpHashPartitioner(int size) {
+
+        this.size = size;
+    }
+
+    @Override
+    public Partitioner withNodes(List<String> nodes) {
+
+        return (new JumpHashPartitioner(nodes.size()));
+    }
+
+    @Override
+    public int size() {
+
+        return (size);
+    }
+
+    @Override
+    public int nodeFor(long keyHash) {
+
+        if (size == 0) {
+            throw new IllegalStateException("No nodes.");
+        }
+        long key = keyHash;
+        long bucket = -1;
+        long next = 0;
+        while (next < size) {
+            bucket = next;
+            key = key * 2862933555777941757L + 1;
+            next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return ((int) bucket);
+    }
+
+}
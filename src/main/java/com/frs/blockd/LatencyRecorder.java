@@ -0,0 +1,82 @@
+package com.frs.blockd;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent latency histogram in microseconds. Every power of two is
+ * split into 8 buckets, so a percentile read back is within 12.5% of the
+ * value recorded; values beyond about 19 hours land in the last bucket.
+ * <p>
+ * Recording is lock-free: the buckets are striped by thread, so threads
+ * recording at the same time mostly touch different cache lines, and a
+ * snapshot adds the stripes up. Each stripe also keeps its sum and maximum.
+ */
+final class LatencyRecorder {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_BITS = 36;
+    static final int BUCKETS = (MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final int SUM = BUCKETS;
+    private static final int MAX = BUCKETS + 1;
+    // The buckets plus the sum and maximum, rounded up to whole cache lines.
+    private static final int STRIDE = (BUCKETS + 2 + 15) & ~15;
+    private static final int STRIPES = stripes();
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * STRIDE);
+
+    void record(long nanos) {
+
+        long micros = Math.min(Math.max(nanos / 1000, 0), (1L << MAX_BITS) - 1);
+        int stripe = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE;
+        counts.incrementAndGet(stripe + index(micros));
+        counts.addAndGet(stripe + SUM, micros);
+        if (micros > counts.get(stripe + MAX)) {
+            counts.accumulateAndGet(stripe + MAX, micros, Math::max);
+        }
+    }
+
+    MetricsSnapshot.Latency snapshot(long failures) {
+
+        long[] buckets = new long[BUCKETS];
+        long sum = 0;
+        long max = 0;
+        for (int stripe = 0; stripe < STRIPES * STRIDE; stripe += STRIDE) {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] += counts.get(stripe + i);
+            }
+            sum += counts.get(stripe + SUM);
+            max = Math.max(max, counts.get(stripe + MAX));
+        }
+        return (new MetricsSnapshot.Latency(buckets, sum, max, failures));
+    }
+
+    static int index(long micros) {
+
+        if (micros < 2 * SUB_BUCKETS) {
+            return ((int) micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return (exponent * SUB_BUCKETS + (int) (micros >>> exponent));
+    }
+
+    /**
+     * The highest value that lands in a bucket.
+     */
+    static long highest(int index) {
+
+        if (index < 2 * SUB_BUCKETS) {
+            return (index);
+        }
+        int exponent = index / SUB_BUCKETS - 1;
+        long subBucket = index - exponent * SUB_BUCKETS;
+        return (((subBucket + 1) << exponent) - 1);
+    }
+
+    private static int stripes() {
+
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return (cpus >= 4 ? 4 : cpus >= 2 ? 2 : 1);
+    }
+
+}
@@ -0,0 +1,164 @@
+package com.frs.blockd;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits a byte stream into lines without copying them. Bytes are read in
+ * bulk into one growable buffer and each line is handed out as a range of
+ * that buffer, valid until the next call. The buffer grows to fit the
+ * longest line seen, so there is no line length limit.
+ * <p>
+ * Works with both blocking streams (<code>readLine()</code>) and
+ * non-blocking channels (<code>fill()</code> then <code>nextLine()</code>).
+ * Not thread-safe.
+ */
+final class LineReader {
+
+    private byte[] buffer;
+    private ByteBuffer wrapper;
+    private int start;
+    private int scan;
+    private int end;
+    private int lineStart;
+    private int lineLength;
+
+    /**
+     * Constructor.
+     *
+     * @param initialSize The initial buffer size.
+     */
+    LineReader(int initialSize) {
+
+        buffer = new byte[initialSize];
+        wrapper = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Blocks until a whole line has been read from <code>in</code>.
+     *
+     * @param in
+     * @throws EOFException If the stream ends before a line is complete.
+     * @throws IOException
+     */
+    void readLine(InputStream in) throws IOException {
+
+        while (!nextLine()) {
+            makeRoom();
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                throw new EOFException("Connection closed.");
+            }
+            end += read;
+        }
+    }
+
+    /**
+     * Reads whatever <code>channel</code> has available.
+     *
+     * @param channel A (typically non-blocking) channel.
+     * @return The number of bytes read, or -1 at end of stream.
+     * @throws IOException
+     */
+    int fill(ReadableByteChannel channel) throws IOException {
+
+        makeRoom();
+        wrapper.limit(buffer.length).position(end);
+        int read = channel.read(wrapper);
+        if (read > 0) {
+            end += read;
+        }
+        return (read);
+    }
+
+    /**
+     * Looks for the next complete line among the bytes already read.
+     *
+     * @return true if a line is available through <code>buffer()</code>,
+     *         <code>lineStart()</code> and <code>lineLength()</code>.
+     */
+    boolean nextLine() {
+
+        for (int i = scan; i < end; i++) {
+            if (buffer[i] == '\n') {
+                int lineEnd = i;
+                if (lineEnd > start && buffer[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+                lineStart = start;
+                lineLength = lineEnd - start;
+                start = i + 1;
+                scan = start;
+                return (true);
+            }
+        }
+        scan = end;
+        return (false);
+    }
+
+    /**
+     * Are there bytes read but not yet returned as a line?
+     *
+     * @return
+     */
+    boolean hasBuffered() {
+
+        return (end > start);
+    }
+
+    /**
+     * Drops everything buffered, e.g. after a reconnect.
+     */
+    void clear() {
+
+        start = 0;
+        scan = 0;
+        end = 0;
+    }
+
+    byte[] buffer() {
+
+        return (buffer);
+    }
+
+    int lineStart() {
+
+        return (lineStart);
+    }
+
+    int lineLength() {
+
+        return (lineLength);
+    }
+
+    /**
+     * Moves the unread bytes to the front of the buffer, and doubles the
+     * buffer if a single partial line fills it.
+     */
+    private void makeRoom() {
+
+        if (start == end) {
+            start = 0;
+            scan = 0;
+            end = 0;
+        }
+        if (end < buffer.length) {
+            return;
+        }
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            scan -= start;
+            start = 0;
+        } else {
+            byte[] grown = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, grown, 0, end);
+            buffer = grown;
+            wrapper = ByteBuffer.wrap(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.frs.blockd;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One lock listed by a SHOW: its id, its mode and whatever else the server
+ * reported about it. Immutable.
+ */
+public final class LockInfo {
+
+    private final String lockId;
+    private final String mode;
+    private final Map<String, String> fields;
+
+    LockInfo(String lockId, String mode, Map<String, String> fields) {
+
+        this.lockId = lockId;
+        this.mode = mode;
+        this.fields = fields;
+    }
+
+    public String getLockId() {
+
+        return (lockId);
+    }
+
+    /**
+     * The mode the lock is held in, "W" or "R".
+     *
+     * @return null if the server did not say.
+     */
+    public String getMode() {
+
+        return (mode);
+    }
+
+    /**
+     * The other fields of the entry, by name. Strings are decoded; numbers
+     * and the like are given as their JSON text.
+     *
+     * @return
+     */
+    public Map<String, String> getFields() {
+
+        return (Collections.unmodifiableMap(fields));
+    }
+
+    @Override
+    public String toString() {
+
+        return (lockId + (mode != null ? " (" + mode + ")" : "") + (fields.isEmpty() ? "" : " " + fields));
+    }
+
+}
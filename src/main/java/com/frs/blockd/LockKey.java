@@ -0,0 +1,97 @@
+package com.frs.blockd;
+
+/**
+ * A lock id with the work every request for it repeats done once: its
+ * routing hash, its JSON-escaped UTF-8 bytes for the wire, and the node a
+ * <code>ClusterClient</code> last routed it to, which is reused for as long
+ * as the cluster's membership stays the same. Requests made with a key
+ * hash, route and encode nothing and allocate nothing for it.
+ * <p>
+ * Keys are immutable as far as callers can tell, thread-safe, and equal
+ * when their lock ids are. They pay off for ids used over and over: keep
+ * them in constants or a map, or let a {@link LockKeyCache} find them.
+ */
+public final class LockKey {
+
+    private final String lockId;
+    private final long hash;
+    private final byte[] encoded;
+    // The owner in the last routing table this key was routed with.
+    private volatile RoutingTable.Owner owner;
+
+    private LockKey(String lockId) {
+
+        this.lockId = lockId;
+        this.hash = Hashing.hash(lockId);
+        this.encoded = CommandEncoder.escape(lockId);
+    }
+
+    /**
+     * The key for a lock id.
+     *
+     * @param lockId
+     * @return
+     */
+    public static LockKey of(String lockId) {
+
+        if (lockId == null) {
+            throw new NullPointerException("lockId");
+        }
+        return (new LockKey(lockId));
+    }
+
+    public String getLockId() {
+
+        return (lockId);
+    }
+
+    /**
+     * The hash the partitioners place the lock with.
+     *
+     * @return
+     */
+    long hash() {
+
+        return (hash);
+    }
+
+    /**
+     * The lock id as it goes between the quotes of the <code>lockId</code>
+     * field; not to be modified.
+     *
+     * @return
+     */
+    byte[] encoded() {
+
+        return (encoded);
+    }
+
+    RoutingTable.Owner owner() {
+
+        return (owner);
+    }
+
+    void owner(RoutingTable.Owner owner) {
+
+        this.owner = owner;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+
+        return (other instanceof LockKey && ((LockKey) other).lockId.equals(lockId));
+    }
+
+    @Override
+    public int hashCode() {
+
+        return (lockId.hashCode());
+    }
+
+    @Override
+    public String toString() {
+
+        return (lockId);
+    }
+
+}
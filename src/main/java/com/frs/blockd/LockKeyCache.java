@@ -0,0 +1,70 @@
+package com.frs.blockd;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Finds the {@link LockKey} for a lock id string, so callers that only have
+ * strings still get a key's precomputed hash, route and bytes. The cache
+ * has a fixed number of slots and each id has exactly one: a hit costs the
+ * string's (cached) hash code and one <code>equals()</code>, and allocates
+ * nothing; a miss builds the key and replaces whatever was in its slot.
+ * Ids used over and over stay; ids seen once come and go without growing
+ * the heap.
+ * <p>
+ * Lock-free; two threads missing on the same id at the same time may build
+ * a key each, which is harmless.
+ */
+public final class LockKeyCache {
+
+    private final AtomicReferenceArray<LockKey> slots;
+    private final int mask;
+
+    /**
+     * Constructor.
+     *
+     * @param size The number of slots, rounded up to a power of two. A
+     *             few times the number of hot ids keeps them from evicting
+     *             each other.
+     */
+    public LockKeyCache(int size) {
+
+        if (size < 1 || size > 1 << 30) {
+            throw new IllegalArgumentException("Size " + size);
+        }
+        int slots = Integer.highestOneBit(size);
+        if (slots < size) {
+            slots <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<LockKey>(slots);
+        this.mask = slots - 1;
+    }
+
+    /**
+     * The key for a lock id, from the cache if it is there.
+     *
+     * @param lockId
+     * @return
+     */
+    public LockKey get(String lockId) {
+
+        int slot = (int) Hashing.mix(lockId.hashCode()) & mask;
+        LockKey key = slots.get(slot);
+        if (key != null && key.getLockId().equals(lockId)) {
+            return (key);
+        }
+        key = LockKey.of(lockId);
+        slots.lazySet(slot, key);
+        return (key);
+    }
+
+    /**
+     * The number of slots.
+     *
+     * @return
+     */
+    public int size() {
+
+        return (mask + 1);
+    }
+
+}
@@ -0,0 +1,450 @@
+package com.frs.blockd;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks under a blockd lock, one lock id at a time, paying for one
+ * ACQUIRE and RELEASE per batch of tasks rather than per task.
+ * <p>
+ * Tasks submitted for a lock id queue up. A worker acquires the lock, runs
+ * the queued tasks one after another, and releases it once the queue is
+ * empty, <code>maxBatchSize</code> tasks have run or
+ * <code>maxHoldTime</code> has passed since the grant, whichever comes
+ * first. Tasks still queued then go to the next batch, behind the other
+ * lock ids, so other processes get their turn at the lock too. Tasks for one
+ * lock id never run concurrently and run in the order submitted; tasks for
+ * different ids run in parallel on the workers.
+ * <p>
+ * If the lock cannot be acquired, the tasks of that batch fail with the
+ * exception and are not run. A task that throws fails its own future only;
+ * the rest of the batch runs.
+ * <p>
+ * The workers share the client, so it should take ACQUIREs from several
+ * threads at once: a pipelined {@link SimpleClient}, a {@link PooledClient}
+ * or a {@link ClusterClient}.
+ */
+public class LockedExecutor implements AutoCloseable {
+
+    /**
+     * The default number of tasks run under one ACQUIRE.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    /**
+     * The default time a batch may keep the lock, in milliseconds.
+     */
+    public static final long DEFAULT_MAX_HOLD_TIME = 100;
+
+    /**
+     * The ACQUIRE timeout that waits for the lock as long as it takes, the
+     * default.
+     */
+    public static final int NO_TIMEOUT = CommandEncoder.NO_TIMEOUT;
+
+    private final BlockdClient client;
+    private final Executor workers;
+    // The pool we started and so shut down, or null.
+    private final ExecutorService ownWorkers;
+    private final Map<String, KeyQueue> queues = new ConcurrentHashMap<String, KeyQueue>();
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private volatile long maxHoldTime = DEFAULT_MAX_HOLD_TIME;
+    private volatile int acquireTimeout = NO_TIMEOUT;
+    private volatile String mode = "W";
+    private volatile boolean closed;
+
+    /**
+     * Constructor with a pool of daemon worker threads, shut down by
+     * {@link #close()}.
+     *
+     * @param client
+     * @param threads The number of lock ids worked on at once.
+     */
+    public LockedExecutor(BlockdClient client, int threads) {
+
+        this.client = client;
+        this.ownWorkers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "blockd-locked-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return (thread);
+            }
+        });
+        this.workers = ownWorkers;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param client
+     * @param workers Runs the batches; left running by {@link #close()}.
+     */
+    public LockedExecutor(BlockdClient client, Executor workers) {
+
+        this.client = client;
+        this.workers = workers;
+        this.ownWorkers = null;
+    }
+
+    public BlockdClient getClient() {
+
+        return (client);
+    }
+
+    /**
+     * The most tasks run under one ACQUIRE.
+     *
+     * @return
+     */
+    public int getMaxBatchSize() {
+
+        return (maxBatchSize);
+    }
+
+    /**
+     * Sets the most tasks run under one ACQUIRE; at least 1.
+     *
+     * @param maxBatchSize
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1: " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * The time after the grant from which a batch starts no more tasks, in
+     * milliseconds.
+     *
+     * @return
+     */
+    public long getMaxHoldTime() {
+
+        return (maxHoldTime);
+    }
+
+    /**
+     * Sets the time after the grant from which a batch starts no more
+     * tasks. A task that is running then is not interrupted, so the lock
+     * can be held longer by up to one task.
+     *
+     * @param maxHoldTime In milliseconds.
+     */
+    public void setMaxHoldTime(long maxHoldTime) {
+
+        this.maxHoldTime = maxHoldTime;
+    }
+
+    /**
+     * The ACQUIRE timeout for each batch.
+     *
+     * @return The timeout in milliseconds, or {@link #NO_TIMEOUT}.
+     */
+    public int getAcquireTimeout() {
+
+        return (acquireTimeout);
+    }
+
+    /**
+     * Sets the ACQUIRE timeout for each batch; by default there is none.
+     *
+     * @param acquireTimeout In milliseconds, or {@link #NO_TIMEOUT} to wait
+     *                       as long as it takes.
+     */
+    public void setAcquireTimeout(int acquireTimeout) {
+
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    public String getMode() {
+
+        return (mode);
+    }
+
+    /**
+     * Sets the lock mode, "W" by default. With "R", batches for one id
+     * still run one at a time here, but can overlap with readers elsewhere.
+     *
+     * @param mode
+     */
+    public void setMode(String mode) {
+
+        this.mode = mode;
+    }
+
+    /**
+     * The number of tasks queued for a lock id and not yet started.
+     *
+     * @param lockId
+     * @return
+     */
+    public int getQueuedCount(String lockId) {
+
+        KeyQueue queue = queues.get(lockId);
+        if (queue == null) {
+            return (0);
+        }
+        synchronized (queue) {
+            return (queue.tasks.size());
+        }
+    }
+
+    /**
+     * Queues a task to run while <code>lockId</code> is held.
+     *
+     * @param lockId
+     * @param task
+     * @return The task's result, or the exception it or the ACQUIRE failed
+     *         with.
+     */
+    public <T> CompletableFuture<T> submit(String lockId, Callable<T> task) {
+
+        Task<T> queued = new Task<T>(task);
+        if (closed) {
+            queued.result.completeExceptionally(new RejectedExecutionException("LockedExecutor is closed."));
+            return (queued.result);
+        }
+        while (true) {
+            KeyQueue queue = queues.computeIfAbsent(lockId, KeyQueue::new);
+            boolean schedule;
+            synchronized (queue) {
+                if (queue.retired) {
+                    continue;
+                }
+                queue.tasks.add(queued);
+                schedule = !queue.scheduled;
+                queue.scheduled = true;
+            }
+            if (schedule) {
+                schedule(queue);
+            }
+            return (queued.result);
+        }
+    }
+
+    /**
+     * Queues a task to run while <code>lockId</code> is held.
+     *
+     * @param lockId
+     * @param task
+     * @return Completes when the task has run.
+     */
+    public CompletableFuture<Void> execute(String lockId, final Runnable task) {
+
+        return (submit(lockId, new Callable<Void>() {
+            @Override
+            public Void call() {
+
+                task.run();
+                return (null);
+            }
+        }));
+    }
+
+    /**
+     * Stops taking tasks. Queued tasks still run; the worker pool, if this
+     * executor started it, ends once they have.
+     */
+    @Override
+    public void close() {
+
+        closed = true;
+        if (ownWorkers != null) {
+            ownWorkers.shutdown();
+        }
+    }
+
+    /**
+     * Waits for the queued tasks after {@link #close()}; only for the
+     * executor's own worker pool.
+     *
+     * @param timeout
+     * @param unit
+     * @return Whether all tasks have run.
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+
+        if (ownWorkers == null) {
+            throw new IllegalStateException("The workers belong to the caller.");
+        }
+        return (ownWorkers.awaitTermination(timeout, unit));
+    }
+
+    private void schedule(final KeyQueue queue) {
+
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+
+                    runBatch(queue);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (queue) {
+                failAll(queue.tasks, e);
+                queue.tasks.clear();
+                queue.scheduled = false;
+                retireIfIdle(queue);
+            }
+        }
+    }
+
+    /**
+     * One ACQUIRE, the tasks it covers, one RELEASE; then back in line if
+     * there are more.
+     */
+    private void runBatch(KeyQueue queue) {
+
+        int limit = maxBatchSize;
+        try {
+            acquire(queue.key);
+        } catch (Exception e) {
+            // The tasks that were waiting for this grant fail; later ones get
+            // their own ACQUIRE.
+            List<Task<?>> failed = new ArrayList<Task<?>>();
+            synchronized (queue) {
+                while (failed.size() < limit && !queue.tasks.isEmpty()) {
+                    failed.add(queue.tasks.poll());
+                }
+            }
+            failAll(failed, e);
+            next(queue);
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxHoldTime);
+        int run = 0;
+        while (run < limit && (run == 0 || System.nanoTime() - deadline < 0)) {
+            Task<?> task;
+            synchronized (queue) {
+                task = queue.tasks.poll();
+            }
+            if (task == null) {
+                break;
+            }
+            task.run();
+            run++;
+        }
+        try {
+            client.release(queue.key);
+        } catch (Exception e) {
+            // The tasks have run, so there is nobody to tell. A lock the
+            // release did not reach stays in the client's held locks, where
+            // leak checks find it, until the connection goes.
+        }
+        next(queue);
+    }
+
+    /**
+     * Acquires the lock with the configured timeout and mode. Without a
+     * timeout, a write lock goes out as a plain ACQUIRE, which the client
+     * waits for as long as it takes; other modes need the timed form, so
+     * they get the longest timeout there is.
+     */
+    private void acquire(LockKey key) throws Exception {
+
+        int timeout = acquireTimeout;
+        String mode = this.mode;
+        if (timeout != NO_TIMEOUT) {
+            client.acquire(key, timeout, mode);
+        } else if ("W".equals(mode)) {
+            client.acquire(key);
+        } else {
+            client.acquire(key, Integer.MAX_VALUE, mode);
+        }
+    }
+
+    /**
+     * Schedules the queue again if tasks came in during the batch, else
+     * lets it go.
+     */
+    private void next(KeyQueue queue) {
+
+        synchronized (queue) {
+            if (queue.tasks.isEmpty()) {
+                queue.scheduled = false;
+                retireIfIdle(queue);
+                return;
+            }
+        }
+        schedule(queue);
+    }
+
+    /**
+     * Drops an unused queue from the map. Guarded by the queue; a submitter
+     * that still finds it there retries with a fresh one.
+     */
+    private void retireIfIdle(KeyQueue queue) {
+
+        if (!queue.scheduled && queue.tasks.isEmpty()) {
+            queue.retired = true;
+            queues.remove(queue.key.getLockId(), queue);
+        }
+    }
+
+    private static void failAll(Iterable<Task<?>> tasks, Throwable cause) {
+
+        for (Task<?> task : tasks) {
+            task.result.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * One lock id's queued tasks. Guarded by itself.
+     */
+    private static final class KeyQueue {
+
+        final LockKey key;
+        final ArrayDeque<Task<?>> tasks = new ArrayDeque<Task<?>>();
+        // A batch is running or waiting for a worker.
+        boolean scheduled;
+        boolean retired;
+
+        KeyQueue(String lockId) {
+
+            this.key = LockKey.of(lockId);
+        }
+
+    }
+
+    private static final class Task<T> {
+
+        final Callable<T> callable;
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+
+        Task(Callable<T> callable) {
+
+            this.callable = callable;
+        }
+
+        void run() {
+
+            try {
+                result.complete(callable.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,171 @@
+package com.frs.blockd;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Publishes a client's {@link MetricsSnapshot} over JMX, using only the JDK.
+ * The attributes are the read-only values of
+ * <code>MetricsSnapshot.toMap()</code>, taken from a fresh snapshot on
+ * every read:
+ * <pre>
+ * MetricsMBean.register("orders", client);
+ * // com.frs.blockd:type=Client,name="orders"              totals
+ * // com.frs.blockd:type=Client,name="orders",node="h:p"   one per cluster node
+ * </pre>
+ */
+public class MetricsMBean implements DynamicMBean {
+
+    /**
+     * The JMX domain the beans are registered under.
+     */
+    public static final String DOMAIN = "com.frs.blockd";
+
+    private final BlockdClient client;
+    private final String node;
+
+    /**
+     * Constructor, for the client's totals.
+     *
+     * @param client
+     */
+    public MetricsMBean(BlockdClient client) {
+
+        this(client, null);
+    }
+
+    /**
+     * Constructor, for one node of a cluster client.
+     *
+     * @param client
+     * @param node   The node, as <code>host:port</code>.
+     */
+    public MetricsMBean(BlockdClient client, String node) {
+
+        this.client = client;
+        this.node = node;
+    }
+
+    /**
+     * Registers beans for a client with the platform MBean server: one for
+     * the totals and, for a <code>ClusterClient</code>, one per node it has
+     * now.
+     *
+     * @param name   Tells this client's beans apart from others'.
+     * @param client
+     * @return The names registered, for {@link #unregister(List)}.
+     * @throws JMException
+     */
+    public static List<ObjectName> register(String name, BlockdClient client) throws JMException {
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        List<ObjectName> names = new ArrayList<ObjectName>();
+        String base = DOMAIN + ":type=Client,name=" + ObjectName.quote(name);
+        names.add(server.registerMBean(new MetricsMBean(client), new ObjectName(base)).getObjectName());
+        for (String node : client.getMetrics().getNodes().keySet()) {
+            ObjectName objectName = new ObjectName(base + ",node=" + ObjectName.quote(node));
+            names.add(server.registerMBean(new MetricsMBean(client, node), objectName).getObjectName());
+        }
+        return (names);
+    }
+
+    /**
+     * Unregisters what {@link #register(String, BlockdClient)} registered.
+     *
+     * @param names
+     * @throws JMException
+     */
+    public static void unregister(List<ObjectName> names) throws JMException {
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : names) {
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+
+        Number value = snapshot().toMap().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return (value);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+
+        Map<String, Number> values = snapshot().toMap();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return (list);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only.");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+
+        return (new AttributeList());
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Number> entry : snapshot().toMap().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                                                  entry.getKey(), true, false, false));
+        }
+        String description = "blockd client metrics" + (node == null ? "" : " for " + node);
+        return (new MBeanInfo(getClass().getName(), description,
+                              attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null));
+    }
+
+    private MetricsSnapshot snapshot() {
+
+        MetricsSnapshot snapshot = client.getMetrics();
+        if (node == null) {
+            return (snapshot);
+        }
+        MetricsSnapshot nodeSnapshot = snapshot.getNodes().get(node);
+        if (nodeSnapshot == null) {
+            // The node has gone; report it as empty.
+            return (MetricsSnapshot.sum(node, Collections.<MetricsSnapshot>emptyList(), false));
+        }
+        return (nodeSnapshot);
+    }
+
+}
@@ -0,0 +1,328 @@
+package com.frs.blockd;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A point-in-time copy of a client's metrics, as returned by
+ * {@link BlockdClient#getMetrics()}. Counts are totals since the client
+ * was created; subtract two snapshots for rates.
+ * <p>
+ * Latencies are in microseconds and measured from when a command is
+ * written until its last response is read; for an ACQUIRE that includes
+ * any time spent LOCKPENDING, which is also reported on its own. A client
+ * spanning several connections (a pool, a cluster) reports their sum, and
+ * a <code>ClusterClient</code> also reports each node under
+ * {@link #getNodes()}.
+ */
+public final class MetricsSnapshot {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final String name;
+    private final Latency acquire;
+    private final Latency release;
+    private final Latency show;
+    private final Latency releaseAll;
+    private final Latency lockPending;
+    private final long acquireTimeouts;
+    private final long bytesSent;
+    private final long bytesReceived;
+    private final long flushes;
+    private final long inFlight;
+    private final Map<String, MetricsSnapshot> nodes;
+
+    MetricsSnapshot(String name, Latency acquire, Latency release, Latency show, Latency releaseAll,
+                    Latency lockPending, long acquireTimeouts, long bytesSent, long bytesReceived, long flushes,
+                    long inFlight, Map<String, MetricsSnapshot> nodes) {
+
+        this.name = name;
+        this.acquire = acquire;
+        this.release = release;
+        this.show = show;
+        this.releaseAll = releaseAll;
+        this.lockPending = lockPending;
+        this.acquireTimeouts = acquireTimeouts;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+        this.flushes = flushes;
+        this.inFlight = inFlight;
+        this.nodes = nodes;
+    }
+
+    /**
+     * Adds snapshots up.
+     *
+     * @param name   The name of the sum.
+     * @param parts  The snapshots to add.
+     * @param byNode Keep the parts as the per-node breakdown?
+     * @return
+     */
+    static MetricsSnapshot sum(String name, Collection<MetricsSnapshot> parts, boolean byNode) {
+
+        Latency acquire = Latency.EMPTY;
+        Latency release = Latency.EMPTY;
+        Latency show = Latency.EMPTY;
+        Latency releaseAll = Latency.EMPTY;
+        Latency lockPending = Latency.EMPTY;
+        long acquireTimeouts = 0;
+        long bytesSent = 0;
+        long bytesReceived = 0;
+        long flushes = 0;
+        long inFlight = 0;
+        Map<String, MetricsSnapshot> nodes = new LinkedHashMap<String, MetricsSnapshot>();
+        for (MetricsSnapshot part : parts) {
+            acquire = acquire.plus(part.acquire);
+            release = release.plus(part.release);
+            show = show.plus(part.show);
+            releaseAll = releaseAll.plus(part.releaseAll);
+            lockPending = lockPending.plus(part.lockPending);
+            acquireTimeouts += part.acquireTimeouts;
+            bytesSent += part.bytesSent;
+            bytesReceived += part.bytesReceived;
+            flushes += part.flushes;
+            inFlight += part.inFlight;
+            if (byNode) {
+                nodes.put(part.name, part);
+            }
+        }
+        return (new MetricsSnapshot(name, acquire, release, show, releaseAll, lockPending, acquireTimeouts,
+                                    bytesSent, bytesReceived, flushes, inFlight, Collections.unmodifiableMap(nodes)));
+    }
+
+    /**
+     * The connection (<code>host:port</code>) or client this covers.
+     *
+     * @return
+     */
+    public String getName() {
+
+        return (name);
+    }
+
+    public Latency getAcquire() {
+
+        return (acquire);
+    }
+
+    public Latency getRelease() {
+
+        return (release);
+    }
+
+    public Latency getShow() {
+
+        return (show);
+    }
+
+    public Latency getReleaseAll() {
+
+        return (releaseAll);
+    }
+
+    /**
+     * Time from LOCKPENDING to the LOCKACQUIRED or ACQUIRETIMEOUT that
+     * followed it, i.e. time spent waiting on other holders.
+     *
+     * @return
+     */
+    public Latency getLockPending() {
+
+        return (lockPending);
+    }
+
+    /**
+     * ACQUIREs answered with ACQUIRETIMEOUT, thrown or returned.
+     *
+     * @return
+     */
+    public long getAcquireTimeouts() {
+
+        return (acquireTimeouts);
+    }
+
+    public long getBytesSent() {
+
+        return (bytesSent);
+    }
+
+    public long getBytesReceived() {
+
+        return (bytesReceived);
+    }
+
+    /**
+     * Writes of buffered commands to the socket. Fewer than commands sent
+     * when commands from several threads were flushed together.
+     *
+     * @return
+     */
+    public long getFlushes() {
+
+        return (flushes);
+    }
+
+    /**
+     * Commands written and not yet answered when the snapshot was taken,
+     * LOCKPENDING ACQUIREs included.
+     *
+     * @return
+     */
+    public long getInFlight() {
+
+        return (inFlight);
+    }
+
+    /**
+     * The per-node snapshots of a <code>ClusterClient</code> by
+     * <code>host:port</code>; empty for other clients.
+     *
+     * @return
+     */
+    public Map<String, MetricsSnapshot> getNodes() {
+
+        return (nodes);
+    }
+
+    /**
+     * The snapshot as flat, named values, e.g. <code>AcquireP99Micros</code>;
+     * these are the attributes of {@link MetricsMBean}. Nodes are left out.
+     *
+     * @return
+     */
+    public Map<String, Number> toMap() {
+
+        Map<String, Number> values = new LinkedHashMap<String, Number>();
+        acquire.addTo(values, "Acquire");
+        release.addTo(values, "Release");
+        show.addTo(values, "Show");
+        releaseAll.addTo(values, "ReleaseAll");
+        lockPending.addTo(values, "LockPending");
+        values.put("AcquireTimeouts", acquireTimeouts);
+        values.put("BytesSent", bytesSent);
+        values.put("BytesReceived", bytesReceived);
+        values.put("Flushes", flushes);
+        values.put("InFlight", inFlight);
+        return (values);
+    }
+
+    @Override
+    public String toString() {
+
+        return (name + " " + toMap());
+    }
+
+    /**
+     * The latency distribution of one kind of command, in microseconds.
+     */
+    public static final class Latency {
+
+        static final Latency EMPTY = new Latency(new long[LatencyRecorder.BUCKETS], 0, 0, 0);
+
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+        private final long max;
+        private final long failures;
+
+        Latency(long[] buckets, long sum, long max, long failures) {
+
+            long count = 0;
+            for (long bucket : buckets) {
+                count += bucket;
+            }
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+            this.failures = failures;
+        }
+
+        /**
+         * How many were recorded.
+         *
+         * @return
+         */
+        public long getCount() {
+
+            return (count);
+        }
+
+        /**
+         * How many of them failed: an error response such as
+         * NOLOCKTORELEASE, or a broken connection. ACQUIRETIMEOUTs are
+         * counted separately.
+         *
+         * @return
+         */
+        public long getFailures() {
+
+            return (failures);
+        }
+
+        public double getMeanMicros() {
+
+            return (count == 0 ? 0 : (double) sum / count);
+        }
+
+        public long getMaxMicros() {
+
+            return (max);
+        }
+
+        /**
+         * The latency the given percentage of commands stayed within.
+         *
+         * @param percentile From 0 to 100.
+         * @return
+         */
+        public long getPercentileMicros(double percentile) {
+
+            if (count == 0) {
+                return (0);
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return (Math.min(LatencyRecorder.highest(i), max));
+                }
+            }
+            return (max);
+        }
+
+        Latency plus(Latency other) {
+
+            long[] sum = new long[buckets.length];
+            for (int i = 0; i < sum.length; i++) {
+                sum[i] = buckets[i] + other.buckets[i];
+            }
+            return (new Latency(sum, this.sum + other.sum, Math.max(max, other.max), failures + other.failures));
+        }
+
+        void addTo(Map<String, Number> values, String prefix) {
+
+            values.put(prefix + "Count", count);
+            values.put(prefix + "Failures", failures);
+            values.put(prefix + "MeanMicros", getMeanMicros());
+            for (double percentile : PERCENTILES) {
+                String digits = (percentile == (int) percentile ? Integer.toString((int) percentile)
+                                                                 : Double.toString(percentile).replace(".", ""));
+                values.put(prefix + "P" + digits + "Micros", getPercentileMicros(percentile));
+            }
+            values.put(prefix + "MaxMicros", max);
+        }
+
+        @Override
+        public String toString() {
+
+            return ("count=" + count + " p50=" + getPercentileMicros(50) + "us p99=" + getPercentileMicros(99)
+                    + "us max=" + max + "us");
+        }
+
+    }
+
+}
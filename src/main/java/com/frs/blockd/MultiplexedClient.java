@@ -0,0 +1,684 @@
+package com.frs.blockd;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multiplexes the threads of one JVM onto a single server-side hold per
+ * lock id.
+ * <p>
+ * Without it every thread contending for a hot lock sends its own ACQUIRE,
+ * and the server queues and answers each of them. Here the threads queue
+ * locally instead, and at most one ACQUIRE per id is outstanding. When a
+ * holder releases and the next local waiter is compatible, the lock is
+ * handed over without a RELEASE and re-ACQUIRE. After
+ * <code>maxHandoffs</code> handovers in a row it is released to the server
+ * anyway, so that other processes get their turn.
+ * <p>
+ * "R" acquires share one server lock: while local readers hold it, further
+ * readers join with a reference count, and only the last one releases. A
+ * reader arriving behind a queued writer waits, so local writers are not
+ * starved. A "W" hold covers readers too, so a released write lock is
+ * handed to all readers at the head of the queue at once.
+ * <p>
+ * Holds belong to the client, not to a thread, just as server locks belong
+ * to the connection: any thread may release. The lock ids should only be
+ * used through this client, not through the wrapped one directly.
+ */
+public class MultiplexedClient implements BlockdClient {
+
+    /**
+     * The default number of local handovers before a contended lock goes
+     * back to the server.
+     */
+    public static final int DEFAULT_MAX_HANDOFFS = 16;
+
+    private final BlockdClient client;
+    private final Map<String, LocalLock> locks = new ConcurrentHashMap<String, LocalLock>();
+    private volatile int maxHandoffs = DEFAULT_MAX_HANDOFFS;
+
+    /**
+     * Constructor.
+     *
+     * @param client The client to acquire and release through; typically a
+     *               pipelined {@link SimpleClient}, a {@link PooledClient}
+     *               or a {@link ClusterClient}.
+     */
+    public MultiplexedClient(BlockdClient client) {
+
+        this.client = client;
+    }
+
+    /**
+     * The wrapped client.
+     *
+     * @return
+     */
+    public BlockdClient getClient() {
+
+        return (client);
+    }
+
+    /**
+     * The number of local handovers in a row before a lock with local
+     * waiters is released to the server instead.
+     *
+     * @return
+     */
+    public int getMaxHandoffs() {
+
+        return (maxHandoffs);
+    }
+
+    /**
+     * Sets the number of local handovers in a row; 0 always releases to the
+     * server, which still saves the ACQUIREs of the queued threads.
+     *
+     * @param maxHandoffs
+     */
+    public void setMaxHandoffs(int maxHandoffs) {
+
+        this.maxHandoffs = maxHandoffs;
+    }
+
+    /**
+     * The number of local holders of a lock: 1 for a writer, the reference
+     * count for readers.
+     *
+     * @param lockId
+     * @return 0 if it is not held locally.
+     */
+    public int getHolderCount(String lockId) {
+
+        LocalLock lock = locks.get(lockId);
+        if (lock == null) {
+            return (0);
+        }
+        synchronized (lock) {
+            return (lock.holders);
+        }
+    }
+
+    /**
+     * The number of threads queued locally for a lock.
+     *
+     * @param lockId
+     * @return
+     */
+    public int getWaiterCount(String lockId) {
+
+        LocalLock lock = locks.get(lockId);
+        if (lock == null) {
+            return (0);
+        }
+        synchronized (lock) {
+            return (lock.waiters.size());
+        }
+    }
+
+    @Override
+    public String getHost() {
+
+        return (client.getHost());
+    }
+
+    @Override
+    public int getPort() {
+
+        return (client.getPort());
+    }
+
+    @Override
+    public void connect() throws Exception {
+
+        client.connect();
+    }
+
+    @Override
+    public boolean isConnected() throws Exception {
+
+        return (client.isConnected());
+    }
+
+    /**
+     * QUITs the wrapped client; threads still queued for a lock fail.
+     *
+     * @throws Exception
+     */
+    @Override
+    public void quit() throws Exception {
+
+        try {
+            client.quit();
+        } finally {
+            for (LocalLock lock : locks.values()) {
+                synchronized (lock) {
+                    for (Waiter waiter : lock.waiters) {
+                        waiter.turn.completeExceptionally(new IOException("Connection closed."));
+                    }
+                    lock.waiters.clear();
+                    lock.dropHold();
+                    retireIfIdle(lock);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String wisdom() throws Exception {
+
+        return (client.wisdom());
+    }
+
+    @Override
+    public List<String> show() throws Exception {
+
+        return (client.show());
+    }
+
+    @Override
+    public ShowResult showLocks() throws Exception {
+
+        return (client.showLocks());
+    }
+
+    @Override
+    public String acquire(String lockId) throws Exception {
+
+        return (acquire(lockId, CommandEncoder.NO_TIMEOUT, null));
+    }
+
+    @Override
+    public String acquire(String lockId, int timeout) throws Exception {
+
+        return (acquire(lockId, timeout, "W"));
+    }
+
+    /**
+     * Acquires the lock locally if it can be shared or handed over, and
+     * otherwise waits in the local queue until it is this thread's turn to
+     * ask the server. A timeout of 0 fails at once if the lock is taken
+     * locally.
+     *
+     * @param lockId
+     * @param timeout
+     * @param mode
+     * @return
+     * @throws AcquireTimeoutException If the lock could not be had in time.
+     * @throws Exception
+     */
+    @Override
+    public String acquire(String lockId, int timeout, String mode) throws Exception {
+
+        return (acquire(lockId, timeout, mode, true));
+    }
+
+    /**
+     * Like <code>acquire(lockId, timeout, mode)</code>, but a timeout, local
+     * or at the server, is reported by returning false.
+     *
+     * @param lockId
+     * @param timeout
+     * @param mode
+     * @return true if the lock was acquired.
+     * @throws Exception
+     */
+    @Override
+    public boolean tryAcquire(String lockId, int timeout, String mode) throws Exception {
+
+        return ("LOCKACQUIRED".equals(acquire(lockId, timeout, mode, false)));
+    }
+
+    private String acquire(String lockId, int timeout, String mode, boolean timeoutIsError) throws Exception {
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(timeout, 0));
+        Waiter waiter = null;
+        LocalLock lock;
+        while (true) {
+            lock = locks.computeIfAbsent(lockId, LocalLock::new);
+            synchronized (lock) {
+                if (lock.retired) {
+                    continue;
+                }
+                if (lock.reading && "R".equals(mode) && lock.waiters.isEmpty() && !lock.releasing) {
+                    lock.holders++;
+                    return ("LOCKACQUIRED");
+                }
+                if (lock.isIdle()) {
+                    lock.acquiring = true;
+                } else if (timeout == 0) {
+                    return (timedOut(lockId, timeoutIsError));
+                } else {
+                    waiter = new Waiter(mode);
+                    lock.waiters.add(waiter);
+                }
+            }
+            break;
+        }
+
+        if (waiter != null) {
+            Boolean granted = awaitTurn(lock, waiter, timeout, deadline);
+            if (granted == null) {
+                return (timedOut(lockId, timeoutIsError));
+            }
+            if (granted) {
+                return ("LOCKACQUIRED");
+            }
+        }
+        // Our turn to ask the server; acquiring is set for us.
+        int remaining = timeout;
+        if (timeout > 0) {
+            remaining = (int) TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        }
+        String status;
+        try {
+            if (timeout > 0 && remaining <= 0) {
+                status = null;
+            } else if (timeout == CommandEncoder.NO_TIMEOUT) {
+                status = client.acquire(lockId);
+            } else if (timeoutIsError) {
+                status = client.acquire(lockId, remaining, mode);
+            } else {
+                status = (client.tryAcquire(lockId, remaining, mode) ? "LOCKACQUIRED" : "ACQUIRETIMEOUT");
+            }
+        } catch (Exception e) {
+            synchronized (lock) {
+                lock.acquiring = false;
+                next(lock);
+            }
+            throw e;
+        }
+        synchronized (lock) {
+            lock.acquiring = false;
+            if ("LOCKACQUIRED".equals(status)) {
+                lock.mode = ("R".equals(mode) ? "R" : "W");
+                lock.reading = "R".equals(mode);
+                lock.holders = 1;
+                lock.handoffs = 0;
+                if (lock.reading) {
+                    grantReaders(lock);
+                }
+            } else {
+                next(lock);
+            }
+        }
+        return (status != null ? status : timedOut(lockId, timeoutIsError));
+    }
+
+    /**
+     * Releases one local hold. The lock goes back to the server only when
+     * the last holder releases it and no local waiter can take it over.
+     *
+     * @param lockId
+     * @return
+     * @throws NoLockToReleaseException If the lock is not held locally.
+     * @throws Exception
+     */
+    @Override
+    public String release(String lockId) throws Exception {
+
+        LocalLock lock = locks.get(lockId);
+        if (lock == null) {
+            throw new NoLockToReleaseException(lockId);
+        }
+        synchronized (lock) {
+            if (lock.holders == 0) {
+                throw new NoLockToReleaseException(lockId);
+            }
+            lock.holders--;
+            if (lock.holders > 0) {
+                return ("LOCKRELEASED");
+            }
+            lock.reading = false;
+            Waiter head = lock.waiters.peek();
+            if (head != null && lock.covers(head.mode) && lock.handoffs < maxHandoffs) {
+                lock.handoffs++;
+                grant(lock);
+                return ("LOCKRELEASED");
+            }
+            lock.releasing = true;
+        }
+        try {
+            return (client.release(lockId));
+        } finally {
+            synchronized (lock) {
+                lock.releasing = false;
+                lock.dropHold();
+                next(lock);
+            }
+        }
+    }
+
+    @Override
+    public String acquire(LockKey key) throws Exception {
+
+        return (acquire(key.getLockId()));
+    }
+
+    @Override
+    public String acquire(LockKey key, int timeout) throws Exception {
+
+        return (acquire(key.getLockId(), timeout));
+    }
+
+    @Override
+    public String acquire(LockKey key, int timeout, String mode) throws Exception {
+
+        return (acquire(key.getLockId(), timeout, mode));
+    }
+
+    @Override
+    public boolean tryAcquire(LockKey key, int timeout, String mode) throws Exception {
+
+        return (tryAcquire(key.getLockId(), timeout, mode));
+    }
+
+    @Override
+    public String release(LockKey key) throws Exception {
+
+        return (release(key.getLockId()));
+    }
+
+    /**
+     * RELEASEALLs through the wrapped client, which ends every local hold;
+     * queued threads then take their turn at the server.
+     *
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public List<String> releaseAll() throws Exception {
+
+        List<String> lockIds = client.releaseAll();
+        for (LocalLock lock : locks.values()) {
+            synchronized (lock) {
+                if (lock.acquiring || lock.releasing) {
+                    continue;
+                }
+                lock.dropHold();
+                next(lock);
+            }
+        }
+        return (lockIds);
+    }
+
+    /**
+     * Acquires the ids one by one in sorted order, so overlapping batches
+     * cannot deadlock, and releases them again if one cannot be had. The
+     * ACQUIREs are not pipelined, as each may have to queue locally.
+     *
+     * @param lockIds
+     * @param timeout
+     * @param mode
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public List<String> acquireAll(Collection<String> lockIds, int timeout, String mode) throws Exception {
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(timeout, 0));
+        List<String> acquired = new ArrayList<String>(lockIds.size());
+        try {
+            for (String lockId : new TreeSet<String>(lockIds)) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                String status = acquire(lockId, (int) Math.max(remaining, 0), mode);
+                if (!"LOCKACQUIRED".equals(status)) {
+                    throw new AcquireTimeoutException(lockId);
+                }
+                acquired.add(lockId);
+            }
+        } catch (Exception e) {
+            for (String lockId : acquired) {
+                try {
+                    release(lockId);
+                } catch (Exception ignored) {
+                    // Rolling back; the original failure is what matters.
+                }
+            }
+            throw e;
+        }
+        return (acquired);
+    }
+
+    /**
+     * Releases the ids held locally; others are skipped.
+     *
+     * @param lockIds
+     * @return The ids that were held and have been released.
+     * @throws Exception The first failure, once every release was tried.
+     */
+    @Override
+    public List<String> releaseAll(Collection<String> lockIds) throws Exception {
+
+        List<String> released = new ArrayList<String>(lockIds.size());
+        Exception failure = null;
+        for (String lockId : new TreeSet<String>(lockIds)) {
+            try {
+                release(lockId);
+                released.add(lockId);
+            } catch (NoLockToReleaseException e) {
+                // Not held.
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return (released);
+    }
+
+    /**
+     * The locks the wrapped client holds at the server.
+     *
+     * @return
+     */
+    @Override
+    public List<HeldLockRegistry.HeldLock> getHeldLocks() {
+
+        return (client.getHeldLocks());
+    }
+
+    /**
+     * The wrapped client's metrics; ACQUIREs handed over locally never
+     * reach it and are not counted.
+     *
+     * @return
+     */
+    @Override
+    public MetricsSnapshot getMetrics() {
+
+        return (client.getMetrics());
+    }
+
+    /**
+     * The wrapped client's grace period.
+     *
+     * @return
+     */
+    @Override
+    public int getPendingGrace() {
+
+        return (client.getPendingGrace());
+    }
+
+    /**
+     * The wrapped client's contention. Threads queued here behind another
+     * thread's ACQUIRE are not counted; only the one ACQUIRE per lock id
+     * that reaches the server is.
+     *
+     * @return
+     */
+    @Override
+    public ContentionReport getContention() {
+
+        return (client.getContention());
+    }
+
+    /**
+     * Waits in the queue.
+     *
+     * @return true if the lock was handed over, false if it is now this
+     *         thread's turn to ask the server, null if the time ran out.
+     */
+    private Boolean awaitTurn(LocalLock lock, Waiter waiter, int timeout, long deadline) throws Exception {
+
+        try {
+            if (timeout == CommandEncoder.NO_TIMEOUT) {
+                return (Futures.await(waiter.turn));
+            }
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            return (Futures.await(waiter.turn, Math.max(remaining, 0), "ACQUIRE " + lock.lockId));
+        } catch (SocketTimeoutException | InterruptedException e) {
+            synchronized (lock) {
+                if (!waiter.turn.isDone()) {
+                    lock.waiters.remove(waiter);
+                    retireIfIdle(lock);
+                    if (e instanceof InterruptedException) {
+                        throw e;
+                    }
+                    return (null);
+                }
+            }
+            // Our turn came just as we gave up.
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            return (Futures.await(waiter.turn));
+        }
+    }
+
+    private static String timedOut(String lockId, boolean timeoutIsError) throws AcquireTimeoutException {
+
+        if (timeoutIsError) {
+            throw new AcquireTimeoutException(lockId);
+        }
+        return ("ACQUIRETIMEOUT");
+    }
+
+    /**
+     * Hands the lock to the head of the queue, and to the readers behind it
+     * if it is a reader. Guarded by the lock.
+     */
+    private static void grant(LocalLock lock) {
+
+        Waiter head = lock.waiters.poll();
+        lock.holders = 1;
+        lock.reading = "R".equals(head.mode);
+        head.turn.complete(Boolean.TRUE);
+        if (lock.reading) {
+            grantReaders(lock);
+        }
+    }
+
+    private static void grantReaders(LocalLock lock) {
+
+        while (!lock.waiters.isEmpty() && "R".equals(lock.waiters.peek().mode)) {
+            lock.waiters.poll().turn.complete(Boolean.TRUE);
+            lock.holders++;
+        }
+    }
+
+    /**
+     * Once the lock is neither held nor being asked for, sends the head of
+     * the queue to the server. Guarded by the lock.
+     */
+    private void next(LocalLock lock) {
+
+        if (!lock.isFree()) {
+            return;
+        }
+        Waiter head = lock.waiters.poll();
+        if (head == null) {
+            retireIfIdle(lock);
+            return;
+        }
+        lock.acquiring = true;
+        head.turn.complete(Boolean.FALSE);
+    }
+
+    /**
+     * Drops an unused lock from the map. Guarded by the lock; a thread
+     * that still finds it there retries with a fresh one.
+     */
+    private void retireIfIdle(LocalLock lock) {
+
+        if (lock.isIdle()) {
+            lock.retired = true;
+            locks.remove(lock.lockId, lock);
+        }
+    }
+
+    /**
+     * One lock id's local state. Guarded by itself.
+     */
+    private static final class LocalLock {
+
+        final String lockId;
+        final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+        // The mode held at the server, or null.
+        String mode;
+        // Local holders: 1 writer or that many readers.
+        int holders;
+        boolean reading;
+        int handoffs;
+        boolean acquiring;
+        boolean releasing;
+        boolean retired;
+
+        LocalLock(String lockId) {
+
+            this.lockId = lockId;
+        }
+
+        boolean covers(String requested) {
+
+            return ("W".equals(mode) || "R".equals(requested));
+        }
+
+        boolean isFree() {
+
+            return (mode == null && holders == 0 && !acquiring && !releasing);
+        }
+
+        boolean isIdle() {
+
+            return (isFree() && waiters.isEmpty());
+        }
+
+        void dropHold() {
+
+            mode = null;
+            holders = 0;
+            reading = false;
+            handoffs = 0;
+        }
+
+    }
+
+    private static final class Waiter {
+
+        final String mode;
+        // true once handed the lock, false once it is its turn to ask the
+        // server.
+        final CompletableFuture<Boolean> turn = new CompletableFuture<Boolean>();
+
+        Waiter(String mode) {
+
+            this.mode = mode;
+        }
+
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.frs.blockd;
+
+/**
+ * Thrown when the server answers NOLOCKTORELEASE: this connection did not
+ * hold the lock it tried to release.
+ */
+public class NoLockToReleaseException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String lockId;
+
+    /**
+     * Constructor.
+     *
+     * @param lockId The lock that was not held.
+     */
+    public NoLockToReleaseException(String lockId) {
+
+        super("NOLOCKTORELEASE for " + lockId);
+        this.lockId = lockId;
+    }
+
+    /**
+     * The lock that was not held.
+     *
+     * @return
+     */
+    public String getLockId() {
+
+        return (lockId);
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.frs.blockd;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link ClusterClient} without contacting a node whose circuit
+ * breaker is open, i.e. a node that recently kept failing and has not yet
+ * recovered.
+ */
+public class NodeUnavailableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String node;
+
+    /**
+     * Constructor.
+     *
+     * @param node The node, as <code>host:port</code>.
+     */
+    public NodeUnavailableException(String node) {
+
+        super(node + " is unavailable.");
+        this.node = node;
+    }
+
+    /**
+     * The node, as <code>host:port</code>.
+     *
+     * @return
+     */
+    public String getNode() {
+
+        return (node);
+    }
+
+}
@@ -0,0 +1,174 @@
+package com.frs.blockd;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how well a {@link Partitioner} spreads lock ids and how many of
+ * them move when a node joins or leaves. Run <code>main()</code> for a
+ * side-by-side report of the built-in partitioners:
+ * <pre>
+ * java -cp blockd-client.jar com.frs.blockd.PartitionReport [nodes] [keys]
+ * </pre>
+ */
+public final class PartitionReport {
+
+    private final String name;
+    private final int nodes;
+    private final int keys;
+    private final int[] counts;
+    private final double movedOnAdd;
+    private final double movedOnRemoveLast;
+    private final double movedOnRemoveFirst;
+
+    /**
+     * Runs the measurements.
+     *
+     * @param name        A label for the report.
+     * @param partitioner The partitioner to measure; its nodes are replaced.
+     * @param nodes       The number of nodes to simulate.
+     * @param keys        The number of lock ids to place.
+     */
+    public PartitionReport(String name, Partitioner partitioner, int nodes, int keys) {
+
+        if (nodes < 2) {
+            throw new IllegalArgumentException("Need at least two nodes: " + nodes);
+        }
+        this.name = name;
+        this.nodes = nodes;
+        this.keys = keys;
+
+        List<String> names = nodeNames(nodes);
+        List<String> grown = nodeNames(nodes + 1);
+        List<String> withoutLast = new ArrayList<String>(names.subList(0, nodes - 1));
+        List<String> withoutFirst = new ArrayList<String>(names.subList(1, nodes));
+
+        Partitioner base = partitioner.withNodes(names);
+        Partitioner added = partitioner.withNodes(grown);
+        Partitioner removedLast = partitioner.withNodes(withoutLast);
+        Partitioner removedFirst = partitioner.withNodes(withoutFirst);
+
+        counts = new int[nodes];
+        int moved = 0;
+        int movedLast = 0;
+        int movedFirst = 0;
+        for (int i = 0; i < keys; i++) {
+            long hash = Hashing.hash("lock-" + i);
+            int owner = base.nodeFor(hash);
+            counts[owner]++;
+            if (added.nodeFor(hash) != owner) {
+                moved++;
+            }
+            if (owner != nodes - 1 && removedLast.nodeFor(hash) != owner) {
+                movedLast++;
+            }
+            // Without the first node every index shifts down by one.
+            if (owner != 0 && removedFirst.nodeFor(hash) != owner - 1) {
+                movedFirst++;
+            }
+        }
+        movedOnAdd = (double) moved / keys;
+        movedOnRemoveLast = (double) movedLast / keys;
+        movedOnRemoveFirst = (double) movedFirst / keys;
+    }
+
+    /**
+     * The spread of the per-node key counts: the standard deviation as a
+     * fraction of the mean.
+     *
+     * @return
+     */
+    public double getRelativeStdDev() {
+
+        double mean = (double) keys / nodes;
+        double sum = 0;
+        for (int count : counts) {
+            sum += (count - mean) * (count - mean);
+        }
+        return (Math.sqrt(sum / nodes) / mean);
+    }
+
+    /**
+     * The busiest node's share relative to a perfectly even split.
+     *
+     * @return 1.0 for a perfect split.
+     */
+    public double getMaxOverMean() {
+
+        int max = 0;
+        for (int count : counts) {
+            max = Math.max(max, count);
+        }
+        return (max * (double) nodes / keys);
+    }
+
+    /**
+     * The fraction of keys that changed node when a node was added.
+     * Ideally 1/(N+1).
+     *
+     * @return
+     */
+    public double getMovedOnAdd() {
+
+        return (movedOnAdd);
+    }
+
+    /**
+     * The fraction of keys not on the last node that changed node when the
+     * last node was removed. Ideally 0.
+     *
+     * @return
+     */
+    public double getMovedOnRemoveLast() {
+
+        return (movedOnRemoveLast);
+    }
+
+    /**
+     * The fraction of keys not on the first node that changed node when the
+     * first node was removed. Ideally 0.
+     *
+     * @return
+     */
+    public double getMovedOnRemoveFirst() {
+
+        return (movedOnRemoveFirst);
+    }
+
+    @Override
+    public String toString() {
+
+        return (String.format("%-12s nodes=%d keys=%d stddev=%.2f%% max/mean=%.3f "
+                                      + "moved(add)=%.2f%% (ideal %.2f%%) moved(remove last)=%.2f%% "
+                                      + "moved(remove first)=%.2f%%",
+                              name, nodes, keys, getRelativeStdDev() * 100, getMaxOverMean(),
+                              movedOnAdd * 100, 100.0 / (nodes + 1), movedOnRemoveLast * 100,
+                              movedOnRemoveFirst * 100));
+    }
+
+    /**
+     * Prints a report for each built-in partitioner.
+     *
+     * @param args Optionally the number of nodes and of keys.
+     */
+    public static void main(String[] args) {
+
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        System.out.println(new PartitionReport("ring(40)", new HashRingPartitioner(40), nodes, keys));
+        System.out.println(new PartitionReport("ring(160)", new HashRingPartitioner(160), nodes, keys));
+        System.out.println(new PartitionReport("ring(640)", new HashRingPartitioner(640), nodes, keys));
+        System.out.println(new PartitionReport("rendezvous", new RendezvousPartitioner(), nodes, keys));
+        System.out.println(new PartitionReport("jump", new JumpHashPartitioner(), nodes, keys));
+    }
+
+    private static List<String> nodeNames(int count) {
+
+        List<String> names = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            names.add("blockd-" + i + ":11311");
+        }
+        return (names);
+    }
+
+}
@@ -0,0 +1,41 @@
+package com.frs.blockd;
+
+import java.util.List;
+
+/**
+ * Decides which node of a cluster owns a lock id. Implementations are
+ * immutable: <code>withNodes()</code> returns a new partitioner for a new
+ * membership, so a routing decision never sees a half-updated table and
+ * lookups need no locking.
+ * <p>
+ * Nodes are identified by name (<code>host:port</code> in
+ * {@link ClusterClient}) and lookups return an index into the list given to
+ * <code>withNodes()</code>.
+ */
+public interface Partitioner {
+
+    /**
+     * A partitioner of the same kind and settings for the given nodes.
+     *
+     * @param nodes The node names, in the order lookups index into.
+     * @return
+     */
+    public Partitioner withNodes(List<String> nodes);
+
+    /**
+     * The number of nodes this partitioner routes to.
+     *
+     * @return
+     */
+    public int size();
+
+    /**
+     * The node owning a key.
+     *
+     * @param keyHash The key's hash, from {@link Hashing#hash(String)}.
+     * @return An index into the node list.
+     * @throws IllegalStateException If there are no nodes.
+     */
+    public int nodeFor(long keyHash);
+
+}
@@ -0,0 +1,141 @@
+package com.frs.blockd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A command that was written to a connection and is waiting for its
+ * response(s).
+ */
+class PendingRequest {
+
+    enum Kind {
+        CONNECT(null), QUIT("QUIT"), WISDOM("WISDOM"), SHOW("SHOW"), ACQUIRE("ACQUIRE"),
+        RELEASE("RELEASE"), RELEASEALL("RELEASEALL");
+
+        /**
+         * The encoded start of the command line; null for CONNECT, which
+         * sends nothing.
+         */
+        final byte[] template;
+
+        Kind(String command) {
+
+            template = command == null ? null : CommandEncoder.template(command);
+        }
+    }
+
+    final Kind kind;
+    final String lockId;
+    final boolean timeoutIsError;
+    final CompletableFuture<?> future;
+
+    /**
+     * The nonce the command was sent with, or -1 before it is sent.
+     */
+    long nonce = -1;
+
+    /**
+     * The nonce of the WISDOM fence that terminates a RELEASEALL.
+     */
+    long fenceNonce = -1;
+
+    /**
+     * When the request was handed to the dispatcher, right before it was
+     * written.
+     */
+    long sentAt;
+
+    /**
+     * Set once an ACQUIRE was answered with LOCKPENDING.
+     */
+    boolean lockPending;
+
+    /**
+     * When the LOCKPENDING was read.
+     */
+    long pendingSince;
+
+    /**
+     * The calling thread's flight recorder event for an ACQUIRE, told how
+     * long the request was LOCKPENDING; null if none is recorded.
+     */
+    ClientEvents.Event event;
+
+    /**
+     * Lock ids collected so far by a RELEASEALL.
+     */
+    List<String> lockIds;
+
+    /**
+     * Where the request is recorded once it is answered; null if it is not
+     * measured.
+     */
+    private ClientMetrics metrics;
+    private long begun;
+
+    /**
+     * Constructor.
+     *
+     * @param kind            The command that was sent.
+     * @param lockId          The lock id, for ACQUIRE and RELEASE.
+     * @param timeoutIsError  Should an ACQUIRETIMEOUT fail the future?
+     * @param future          The future completed by the response.
+     */
+    PendingRequest(Kind kind, String lockId, boolean timeoutIsError, CompletableFuture<?> future) {
+
+        this.kind = kind;
+        this.lockId = lockId;
+        this.timeoutIsError = timeoutIsError;
+        this.future = future;
+        if (kind == Kind.RELEASEALL) {
+            lockIds = new ArrayList<String>();
+        }
+    }
+
+    /**
+     * Starts measuring the request; called right before it is written.
+     *
+     * @param metrics
+     */
+    void measure(ClientMetrics metrics) {
+
+        this.metrics = metrics;
+        this.begun = metrics.begin();
+        if (kind == Kind.ACQUIRE) {
+            metrics.acquired(lockId);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void complete(Object value) {
+
+        record(value instanceof String ? (String) value : null, null);
+        ((CompletableFuture<Object>) future).complete(value);
+    }
+
+    void fail(Throwable cause) {
+
+        record(null, cause);
+        future.completeExceptionally(cause);
+    }
+
+    private void record(String status, Throwable cause) {
+
+        ClientMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return;
+        }
+        this.metrics = null;
+        if (lockPending) {
+            long waited = metrics.pendingEnded(lockId, pendingSince,
+                                               cause != null && !(cause instanceof AcquireTimeoutException));
+            if (event != null) {
+                event.pending(waited);
+            }
+        }
+        metrics.end(kind, begun, status, cause);
+    }
+
+}
@@ -0,0 +1,866 @@
+package com.frs.blockd;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A thread-safe client that spreads requests over a bounded pool of
+ * connections to one blockd server.
+ * <p>
+ * Blockd locks belong to the connection that acquired them, so every lock
+ * this client acquires is pinned to its connection and the thread that
+ * asked for it. <code>release()</code> is sent there, whichever thread makes
+ * it, and so are re-acquires by the same thread. An acquire by any other
+ * thread goes to a connection that does not hold the id, so that the two
+ * contend at the server like separate clients. Everything else leases the
+ * least busy connection, opening another one (up to
+ * <code>maxConnections</code>) when all are busy. Connections are
+ * pipelined, so a thread waiting for a lock never holds up another thread's
+ * release on the same connection.
+ * <p>
+ * An acquire of an id that every connection holds for other threads, with
+ * the pool full, fails with an <code>IOException</code>; use at least two
+ * connections for locks that threads of this client compete for.
+ * <p>
+ * A connection that fails is dropped from the pool; the locks pinned to it
+ * are gone with it, as the server releases them when it disconnects.
+ */
+public class PooledClient implements AsyncBlockdClient {
+
+    /**
+     * The default upper bound on connections.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    /**
+     * The default number of connections opened by <code>connect()</code>.
+     */
+    public static final int DEFAULT_MIN_CONNECTIONS = 1;
+
+    private final String host;
+    private final int port;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int minConnections = DEFAULT_MIN_CONNECTIONS;
+    private int pendingGrace = SimpleClient.DEFAULT_PENDING_GRACE;
+    private SocketOptions socketOptions = new SocketOptions();
+
+    // Guarded by this.
+    private final List<Connection> connections = new ArrayList<Connection>();
+    private int opening;
+    private boolean connected;
+
+    // The connections holding each lock id, with the threads they hold it
+    // for. Read locks can be held on several. The lists are replaced, never
+    // changed.
+    private final Map<String, List<Pin>> pins = new ConcurrentHashMap<String, List<Pin>>();
+
+    // Shared by all connections, so dropped ones still count.
+    private final ClientMetrics metrics;
+
+    /**
+     * Constructor. Won't connect to the server until <code>connect()</code>
+     * is called.
+     *
+     * @param host blockd host name or IP address
+     * @param port blockd listen port
+     */
+    public PooledClient(String host, int port) {
+
+        this.host = host;
+        this.port = port;
+        this.metrics = new ClientMetrics(host, port);
+    }
+
+    @Override
+    public String getHost() {
+
+        return (host);
+    }
+
+    @Override
+    public int getPort() {
+
+        return (port);
+    }
+
+    /**
+     * The most connections the pool opens.
+     *
+     * @return
+     */
+    public int getMaxConnections() {
+
+        return (maxConnections);
+    }
+
+    /**
+     * Sets the most connections the pool opens.
+     *
+     * @param maxConnections
+     */
+    public synchronized void setMaxConnections(int maxConnections) {
+
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Need at least one connection: " + maxConnections);
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * The number of warm connections <code>connect()</code> opens.
+     *
+     * @return
+     */
+    public int getMinConnections() {
+
+        return (minConnections);
+    }
+
+    /**
+     * Sets the number of warm connections <code>connect()</code> opens.
+     *
+     * @param minConnections
+     */
+    public synchronized void setMinConnections(int minConnections) {
+
+        this.minConnections = minConnections;
+    }
+
+    /**
+     * See {@link SimpleClient#getPendingGrace()}.
+     *
+     * @return
+     */
+    @Override
+    public int getPendingGrace() {
+
+        return (pendingGrace);
+    }
+
+    /**
+     * Sets the grace period for the connections opened from now on.
+     *
+     * @param pendingGrace The grace period in milliseconds.
+     */
+    public void setPendingGrace(int pendingGrace) {
+
+        this.pendingGrace = pendingGrace;
+    }
+
+    /**
+     * The socket options of the connections opened from now on.
+     *
+     * @return A copy.
+     */
+    public SocketOptions getSocketOptions() {
+
+        return (new SocketOptions(socketOptions));
+    }
+
+    /**
+     * Sets the socket options for the connections opened from now on; see
+     * {@link SimpleClient#setSocketOptions(SocketOptions)}.
+     *
+     * @param socketOptions Copied.
+     */
+    public void setSocketOptions(SocketOptions socketOptions) {
+
+        this.socketOptions = new SocketOptions(socketOptions);
+    }
+
+    /**
+     * The number of open connections.
+     *
+     * @return
+     */
+    public synchronized int getConnectionCount() {
+
+        return (connections.size());
+    }
+
+    /**
+     * The number of locks currently pinned to a connection.
+     *
+     * @return
+     */
+    public int getHeldCount() {
+
+        return (pins.size());
+    }
+
+    /**
+     * The locks held through all connections of the pool.
+     *
+     * @return
+     */
+    @Override
+    public List<HeldLockRegistry.HeldLock> getHeldLocks() {
+
+        List<HeldLockRegistry.HeldLock> locks = new ArrayList<HeldLockRegistry.HeldLock>();
+        for (Connection connection : snapshot()) {
+            locks.addAll(connection.client.getHeldLocks());
+        }
+        return (locks);
+    }
+
+    /**
+     * The metrics of all connections the pool has had.
+     *
+     * @return
+     */
+    @Override
+    public MetricsSnapshot getMetrics() {
+
+        return (metrics.snapshot());
+    }
+
+    /**
+     * The contention of all connections the pool has had.
+     *
+     * @return
+     */
+    @Override
+    public ContentionReport getContention() {
+
+        return (metrics.contention());
+    }
+
+    /**
+     * Opens the warm connections.
+     *
+     * @throws Exception
+     */
+    @Override
+    public void connect() throws Exception {
+
+        synchronized (this) {
+            connected = true;
+        }
+        List<Connection> warm = new ArrayList<Connection>();
+        try {
+            for (int i = 0; i < Math.min(minConnections, maxConnections); i++) {
+                warm.add(lease());
+            }
+        } finally {
+            for (Connection connection : warm) {
+                giveBack(connection);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> connectAsync() {
+
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        try {
+            connect();
+            future.complete(null);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return (future);
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+
+        return (connected);
+    }
+
+    /**
+     * QUITs every connection, which releases all locks held through this
+     * client.
+     *
+     * @throws Exception The first failure, after every connection was tried.
+     */
+    @Override
+    public void quit() throws Exception {
+
+        List<Connection> closing;
+        synchronized (this) {
+            connected = false;
+            closing = new ArrayList<Connection>(connections);
+            connections.clear();
+        }
+        pins.clear();
+        Exception failure = null;
+        for (Connection connection : closing) {
+            try {
+                connection.client.quit();
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> quitAsync() {
+
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        try {
+            quit();
+            future.complete(null);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return (future);
+    }
+
+    @Override
+    public String wisdom() throws Exception {
+
+        return (Futures.await(wisdomAsync()));
+    }
+
+    @Override
+    public CompletableFuture<String> wisdomAsync() {
+
+        try {
+            Connection connection = lease();
+            return (settle(connection, connection.client.wisdomAsync()));
+        } catch (Exception e) {
+            return (Futures.failed(e));
+        }
+    }
+
+    @Override
+    public List<String> show() throws Exception {
+
+        return (Futures.await(showAsync()));
+    }
+
+    @Override
+    public ShowResult showLocks() throws Exception {
+
+        return (Futures.await(showLocksAsync()));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> showAsync() {
+
+        return (showLocksAsync().thenApply(locks -> locks.getLockIds()));
+    }
+
+    @Override
+    public CompletableFuture<ShowResult> showLocksAsync() {
+
+        try {
+            Connection connection = lease();
+            return (settle(connection, connection.client.showLocksAsync()));
+        } catch (Exception e) {
+            return (Futures.failed(e));
+        }
+    }
+
+    @Override
+    public String acquire(String lockId) throws Exception {
+
+        return (Futures.await(acquireAsync(lockId)));
+    }
+
+    @Override
+    public String acquire(String lockId, int timeout) throws Exception {
+
+        return (acquire(lockId, timeout, "W"));
+    }
+
+    @Override
+    public String acquire(String lockId, int timeout, String mode) throws Exception {
+
+        CompletableFuture<String> future = acquireAsync(lockId, timeout, mode);
+        try {
+            return (Futures.await(future, Futures.pendingDeadline(timeout, pendingGrace), "ACQUIRE " + lockId));
+        } catch (SocketTimeoutException e) {
+            Futures.releaseWhenGranted(this, future, lockId);
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> acquireAsync(String lockId) {
+
+        try {
+            Thread caller = Thread.currentThread();
+            Connection connection = connectionFor(lockId, caller);
+            return (pin(lockId, connection, caller, connection.client.acquireAsync(lockId)));
+        } catch (Exception e) {
+            return (Futures.failed(e));
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> acquireAsync(String lockId, int timeout) {
+
+        return (acquireAsync(lockId, timeout, "W"));
+    }
+
+    @Override
+    public CompletableFuture<String> acquireAsync(String lockId, int timeout, String mode) {
+
+        try {
+            Thread caller = Thread.currentThread();
+            Connection connection = connectionFor(lockId, caller);
+            return (pin(lockId, connection, caller, connection.client.acquireAsync(lockId, timeout, mode)));
+        } catch (Exception e) {
+            return (Futures.failed(e));
+        }
+    }
+
+    @Override
+    public boolean tryAcquire(String lockId, int timeout, String mode) throws Exception {
+
+        CompletableFuture<Boolean> future = tryAcquireAsync(lockId, timeout, mode);
+        try {
+            return (Futures.await(future, Futures.pendingDeadline(timeout, pendingGrace), "ACQUIRE " + lockId));
+        } catch (SocketTimeoutException e) {
+            Futures.releaseWhenGranted(this, future, lockId);
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> tryAcquireAsync(String lockId, int timeout, String mode) {
+
+        try {
+            Thread caller = Thread.currentThread();
+            Connection connection = connectionFor(lockId, caller);
+            CompletableFuture<String> acquire = connection.client.tryAcquireAsync(lockId, timeout, mode)
+                .thenApply(granted -> (granted ? "LOCKACQUIRED" : "ACQUIRETIMEOUT"));
+            return (pin(lockId, connection, caller, acquire).thenApply(status -> "LOCKACQUIRED".equals(status)));
+        } catch (Exception e) {
+            return (Futures.failed(e));
+        }
+    }
+
+    @Override
+    public String release(String lockId) throws Exception {
+
+        return (Futures.await(releaseAsync(lockId)));
+    }
+
+    @Override
+    public String acquire(LockKey key) throws Exception {
+
+        return (acquire(key.getLockId()));
+    }
+
+    @Override
+    public String acquire(LockKey key, int timeout) throws Exception {
+
+        return (acquire(key.getLockId(), timeout));
+    }
+
+    @Override
+    public String acquire(LockKey key, int timeout, String mode) throws Exception {
+
+        return (acquire(key.getLockId(), timeout, mode));
+    }
+
+    @Override
+    public boolean tryAcquire(LockKey key, int timeout, String mode) throws Exception {
+
+        return (tryAcquire(key.getLockId(), timeout, mode));
+    }
+
+    @Override
+    public String release(LockKey key) throws Exception {
+
+        return (release(key.getLockId()));
+    }
+
+    /**
+     * Releases a lock on the connection that acquired it; the calling
+     * thread's own hold if it has one.
+     *
+     * @param lockId
+     * @return
+     */
+    @Override
+    public CompletableFuture<String> releaseAsync(final String lockId) {
+
+        final Connection connection = pinned(lockId, Thread.currentThread(), true);
+        if (connection == null) {
+            return (Futures.failed(new NoLockToReleaseException(lockId)));
+        }
+        synchronized (this) {
+            connection.inFlight++;
+        }
+        // The pin goes before the release completes, and only this
+        // connection's: another connection may have been granted the lock
+        // in the meantime.
+        return (settle(connection, connection.client.releaseAsync(lockId).whenComplete((status, e) -> {
+            unpinIfReleased(lockId, connection);
+        })));
+    }
+
+    @Override
+    public List<String> releaseAll() throws Exception {
+
+        return (Futures.await(releaseAllAsync()));
+    }
+
+    /**
+     * RELEASEALLs on every connection.
+     *
+     * @return
+     */
+    @Override
+    public CompletableFuture<List<String>> releaseAllAsync() {
+
+        List<Connection> all;
+        synchronized (this) {
+            all = new ArrayList<Connection>(connections);
+            for (Connection connection : all) {
+                connection.inFlight++;
+            }
+        }
+        final List<CompletableFuture<List<String>>> releases = new ArrayList<CompletableFuture<List<String>>>();
+        for (final Connection connection : all) {
+            releases.add(settle(connection, connection.client.releaseAllAsync().thenApply(lockIds -> {
+                for (String lockId : lockIds) {
+                    unpin(lockId, connection);
+                }
+                return (lockIds);
+            })));
+        }
+        return (CompletableFuture.allOf(releases.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<String> lockIds = new ArrayList<String>();
+            for (CompletableFuture<List<String>> release : releases) {
+                lockIds.addAll(release.join());
+            }
+            return (lockIds);
+        }));
+    }
+
+    /**
+     * Acquires the batch on one leased connection, except for ids the
+     * calling thread already holds, which go to their own connections. The
+     * leased connection holds none of the ids for other threads. See
+     * {@link BlockdClient#acquireAll(Collection, int, String)}.
+     *
+     * @param lockIds
+     * @param timeout
+     * @param mode
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public List<String> acquireAll(Collection<String> lockIds, int timeout, String mode) throws Exception {
+
+        final Thread caller = Thread.currentThread();
+        Set<Connection> avoid = new HashSet<Connection>();
+        for (String lockId : lockIds) {
+            avoid.addAll(holders(lockId));
+        }
+        final Connection leased = lease(avoid);
+        try {
+            List<String> acquired = BatchLocks.acquireAll(lockId -> {
+                Connection own = pinned(lockId, caller, false);
+                return ((own != null ? own : leased).client);
+            }, lockIds, timeout, mode, pendingGrace);
+            for (String lockId : acquired) {
+                if (pinned(lockId, caller, false) == null) {
+                    pin(lockId, leased, caller);
+                }
+            }
+            return (acquired);
+        } catch (Exception e) {
+            dropIfBroken(leased);
+            throw e;
+        } finally {
+            giveBack(leased);
+        }
+    }
+
+    /**
+     * Releases the ids on the connections that acquired them; ids this
+     * client does not hold are skipped.
+     *
+     * @param lockIds
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public List<String> releaseAll(Collection<String> lockIds) throws Exception {
+
+        final Thread caller = Thread.currentThread();
+        final Map<String, Connection> held = new HashMap<String, Connection>();
+        for (String lockId : lockIds) {
+            Connection pinned = pinned(lockId, caller, true);
+            if (pinned != null) {
+                held.put(lockId, pinned);
+            }
+        }
+        try {
+            return (BatchLocks.releaseAll(lockId -> held.get(lockId).client, held.keySet()));
+        } finally {
+            for (Map.Entry<String, Connection> entry : held.entrySet()) {
+                unpinIfReleased(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * The connection holding the lock for the caller, so that a re-acquire
+     * counts up there; or else a leased one that does not hold the lock for
+     * anyone, so that the acquire waits at the server. Either way the
+     * caller must <code>settle()</code> it.
+     */
+    private Connection connectionFor(String lockId, Thread caller) throws Exception {
+
+        Connection own = pinned(lockId, caller, false);
+        if (own != null) {
+            synchronized (this) {
+                if (connections.contains(own)) {
+                    own.inFlight++;
+                    return (own);
+                }
+            }
+            unpin(lockId, own);
+        }
+        return (lease(holders(lockId)));
+    }
+
+    /**
+     * Pins the lock to the connection and the caller once acquired. The pin
+     * is recorded before the returned future completes, so a release issued
+     * after it always finds it.
+     */
+    private CompletableFuture<String> pin(final String lockId, final Connection connection, final Thread caller,
+                                          CompletableFuture<String> acquire) {
+
+        return (settle(connection, acquire.thenApply(status -> {
+            if ("LOCKACQUIRED".equals(status)) {
+                pin(lockId, connection, caller);
+            }
+            return (status);
+        })));
+    }
+
+    /**
+     * Records that the connection holds the lock for the caller, in place
+     * of any older pin of that connection.
+     */
+    private void pin(String lockId, Connection connection, Thread caller) {
+
+        final Pin added = new Pin(connection, caller);
+        pins.compute(lockId, (id, current) -> {
+            List<Pin> updated = new ArrayList<Pin>(current == null ? 1 : current.size() + 1);
+            if (current != null) {
+                for (Pin pin : current) {
+                    if (pin.connection != connection) {
+                        updated.add(pin);
+                    }
+                }
+            }
+            updated.add(added);
+            return (updated);
+        });
+    }
+
+    /**
+     * Drops the connection's pin for the lock, if it has one.
+     */
+    private void unpin(String lockId, final Connection connection) {
+
+        pins.computeIfPresent(lockId, (id, current) -> {
+            List<Pin> updated = new ArrayList<Pin>(current.size());
+            for (Pin pin : current) {
+                if (pin.connection != connection) {
+                    updated.add(pin);
+                }
+            }
+            return (updated.isEmpty() ? null : updated);
+        });
+    }
+
+    /**
+     * Drops the connection's pin once it no longer holds the lock:
+     * released for good, not held after all, or gone with the connection.
+     * A reentrant hold keeps the pin.
+     */
+    private void unpinIfReleased(String lockId, Connection connection) {
+
+        if (!connection.client.getHeldLockRegistry().isHeld(lockId)) {
+            unpin(lockId, connection);
+        }
+    }
+
+    /**
+     * The connection holding the lock for the caller; with
+     * <code>anyHolder</code>, failing that, any connection holding it.
+     */
+    private Connection pinned(String lockId, Thread caller, boolean anyHolder) {
+
+        List<Pin> current = pins.get(lockId);
+        if (current == null) {
+            return (null);
+        }
+        for (Pin pin : current) {
+            if (pin.owner == caller) {
+                return (pin.connection);
+            }
+        }
+        return (anyHolder ? current.get(0).connection : null);
+    }
+
+    /**
+     * The connections holding the lock.
+     */
+    private Set<Connection> holders(String lockId) {
+
+        List<Pin> current = pins.get(lockId);
+        if (current == null) {
+            return (Collections.<Connection>emptySet());
+        }
+        Set<Connection> holders = new HashSet<Connection>();
+        for (Pin pin : current) {
+            holders.add(pin.connection);
+        }
+        return (holders);
+    }
+
+    /**
+     * Gives the connection back once the request is answered, and drops it
+     * if it broke.
+     */
+    private <T> CompletableFuture<T> settle(final Connection connection, CompletableFuture<T> request) {
+
+        return (request.whenComplete((value, e) -> {
+            if (e != null) {
+                dropIfBroken(connection);
+            }
+            giveBack(connection);
+        }));
+    }
+
+    /**
+     * Leases the least busy connection, or opens a new one if all are busy
+     * and the pool is not full. The connect happens outside the pool lock.
+     */
+    private Connection lease() throws Exception {
+
+        return (lease(Collections.<Connection>emptySet()));
+    }
+
+    /**
+     * Like <code>lease()</code>, but never one of <code>avoid</code>.
+     */
+    private Connection lease(Set<Connection> avoid) throws Exception {
+
+        Connection fresh;
+        synchronized (this) {
+            if (!connected) {
+                throw new IOException("Not connected.");
+            }
+            Connection best = null;
+            for (Connection connection : connections) {
+                if (!avoid.contains(connection) && (best == null || connection.inFlight < best.inFlight)) {
+                    best = connection;
+                }
+            }
+            boolean full = connections.size() + opening >= maxConnections;
+            if (best != null && (best.inFlight == 0 || full)) {
+                best.inFlight++;
+                return (best);
+            }
+            if (best == null && full) {
+                throw new IOException(avoid.isEmpty()
+                                      ? "All " + maxConnections + " connections are still opening."
+                                      : "All " + maxConnections + " connections hold the lock for other threads.");
+            }
+            opening++;
+            SimpleClient client = new SimpleClient(host, port, metrics);
+            client.setPipelined(true);
+            client.setPendingGrace(pendingGrace);
+            client.setSocketOptions(socketOptions);
+            fresh = new Connection(client);
+        }
+        try {
+            fresh.client.connect();
+        } catch (Exception e) {
+            synchronized (this) {
+                opening--;
+            }
+            throw e;
+        }
+        synchronized (this) {
+            opening--;
+            fresh.inFlight++;
+            connections.add(fresh);
+        }
+        return (fresh);
+    }
+
+    private synchronized List<Connection> snapshot() {
+
+        return (new ArrayList<Connection>(connections));
+    }
+
+    private synchronized void giveBack(Connection connection) {
+
+        connection.inFlight--;
+    }
+
+    /**
+     * Drops a connection that is no longer connected, and forgets the locks
+     * pinned to it.
+     */
+    private void dropIfBroken(Connection connection) {
+
+        if (connection.client.isConnected()) {
+            return;
+        }
+        synchronized (this) {
+            connections.remove(connection);
+        }
+        for (String lockId : pins.keySet()) {
+            unpin(lockId, connection);
+        }
+    }
+
+    /**
+     * A connection holding a lock, and the thread it holds it for.
+     */
+    private static final class Pin {
+
+        final Connection connection;
+        final Thread owner;
+
+        Pin(Connection connection, Thread owner) {
+
+            this.connection = connection;
+            this.owner = owner;
+        }
+
+    }
+
+    private static final class Connection {
+
+        final SimpleClient client;
+        // Guarded by the pool.
+        int inFlight;
+
+        Connection(SimpleClient client) {
+
+            this.client = client;
+        }
+
+    }
+
+}
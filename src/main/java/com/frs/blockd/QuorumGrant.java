@@ -0,0 +1,83 @@
+package com.frs.blockd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One quorum acquire of a lock by a {@link ClusterClient}: the replicas
+ * that granted it and its sequence number.
+ * <p>
+ * The sequence number only tells apart the grants made in this JVM; it is
+ * not a fencing token. blockd hands out no tokens, and numbers made by
+ * separate clients cannot be ordered against each other, so a resource
+ * guarded by the lock must not turn away writes by comparing them.
+ */
+public final class QuorumGrant {
+
+    private final String lockId;
+    private final String mode;
+    private final long sequence;
+    private final RoutingTable.Node[] granted;
+
+    QuorumGrant(String lockId, String mode, long sequence, RoutingTable.Node[] granted) {
+
+        this.lockId = lockId;
+        this.mode = mode;
+        this.sequence = sequence;
+        this.granted = granted;
+    }
+
+    public String getLockId() {
+
+        return (lockId);
+    }
+
+    /**
+     * The mode the lock was acquired in.
+     *
+     * @return "W" if none was given.
+     */
+    public String getMode() {
+
+        return (mode);
+    }
+
+    /**
+     * The grant's sequence number: higher than that of any grant made
+     * before it in this JVM, and meaningless across JVMs.
+     *
+     * @return
+     */
+    public long getSequence() {
+
+        return (sequence);
+    }
+
+    /**
+     * The nodes that granted the lock, as <code>host:port</code>; at least
+     * a majority of the replicas.
+     *
+     * @return
+     */
+    public List<String> getNodes() {
+
+        List<String> nodes = new ArrayList<String>(granted.length);
+        for (RoutingTable.Node node : granted) {
+            nodes.add(node.name);
+        }
+        return (Collections.unmodifiableList(nodes));
+    }
+
+    RoutingTable.Node[] granted() {
+
+        return (granted);
+    }
+
+    @Override
+    public String toString() {
+
+        return (lockId + " #" + sequence + " " + getNodes());
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.frs.blockd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counts the answers of the replicas to one quorum ACQUIRE. The outcome is
+ * decided as soon as a majority has granted the lock, or so many replicas
+ * have refused or failed that no majority is left; the acquiring thread
+ * need not wait for the slowest replica either way.
+ * <p>
+ * Once the caller stops waiting the tally is closed. Grants that come in
+ * later, and all grants of a quorum that did not form, are released in the
+ * background, so a replica never keeps a lock nobody knows it holds.
+ */
+final class QuorumTally {
+
+    private final String lockId;
+    private final int replicas;
+    private final int majority;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<RoutingTable.Node> granted = new ArrayList<RoutingTable.Node>();
+    private final ClusterResult<Boolean> result = new ClusterResult<Boolean>();
+    private final CompletableFuture<Void> decided = new CompletableFuture<Void>();
+    private int refused;
+    private int failed;
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param lockId
+     * @param replicas The number of replicas asked.
+     */
+    QuorumTally(String lockId, int replicas) {
+
+        this.lockId = lockId;
+        this.replicas = replicas;
+        this.majority = replicas / 2 + 1;
+    }
+
+    /**
+     * Records a replica's answer.
+     *
+     * @param node
+     * @param grant   Whether it granted the lock; null if it failed.
+     * @param failure What it failed with, if it did.
+     */
+    void answered(RoutingTable.Node node, Boolean grant, Throwable failure) {
+
+        boolean late;
+        lock.lock();
+        try {
+            late = closed;
+            if (!late) {
+                if (failure != null) {
+                    failed++;
+                    result.failed(node.name, cause(failure));
+                } else {
+                    result.succeeded(node.name, grant);
+                    if (grant) {
+                        granted.add(node);
+                    } else {
+                        refused++;
+                    }
+                }
+                if (granted.size() >= majority || refused + failed > replicas - majority) {
+                    decided.complete(null);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (late && failure == null && grant) {
+            node.client.releaseAsync(lockId);
+        }
+    }
+
+    /**
+     * Waits for the outcome and closes the tally.
+     *
+     * @param millis The longest to wait.
+     * @return The replicas that granted the lock, or null if they were not
+     *         a majority.
+     * @throws InterruptedException
+     */
+    RoutingTable.Node[] await(long millis) throws InterruptedException {
+
+        try {
+            decided.get(millis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // Undecided; whatever has been granted so far counts.
+        }
+        RoutingTable.Node[] nodes;
+        lock.lock();
+        try {
+            closed = true;
+            nodes = granted.toArray(new RoutingTable.Node[granted.size()]);
+        } finally {
+            lock.unlock();
+        }
+        if (nodes.length >= majority) {
+            return (nodes);
+        }
+        for (RoutingTable.Node node : nodes) {
+            node.client.releaseAsync(lockId);
+        }
+        return (null);
+    }
+
+    /**
+     * Did failed replicas alone rule out a majority, as opposed to replicas
+     * that refused the lock because it is held elsewhere?
+     *
+     * @return
+     */
+    boolean unreachable() {
+
+        lock.lock();
+        try {
+            return (failed > replicas - majority);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The answers so far, per replica: whether it granted the lock, or what
+     * it failed with.
+     *
+     * @return
+     */
+    ClusterResult<Boolean> result() {
+
+        return (result);
+    }
+
+    private static Throwable cause(Throwable failure) {
+
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            return (failure.getCause());
+        }
+        return (failure);
+    }
+
+}
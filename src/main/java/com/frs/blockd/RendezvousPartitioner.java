@@ -0,0 +1,67 @@
+package com.frs.blockd;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Rendezvous (highest random weight) hashing: every node scores the key and
+ * the highest score wins. Needs no table and moves exactly the keys of a
+ * removed node, or the 1/N share a new node wins, but a lookup is O(N), so
+ * it suits clusters of tens of nodes rather than thousands.
+ */
+public class RendezvousPartitioner implements Partitioner {
+
+    private final long[] nodeHashes;
+
+    /**
+     * Constructor with no nodes.
+     */
+    public RendezvousPartitioner() {
+
+        this(Collections.<String>emptyList());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param nodes The node names.
+     */
+    public RendezvousPartitioner(List<String> nodes) {
+
+        nodeHashes = new long[nodes.size()];
+        for (int i = 0; i < nodeHashes.length; i++) {
+            nodeHashes[i] = Hashing.hash(nodes.get(i));
+        }
+    }
+
+    @Override
+    public Partitioner withNodes(List<String> nodes) {
+
+        return (new RendezvousPartitioner(nodes));
+    }
+
+    @Override
+    public int size() {
+
+        return (nodeHashes.length);
+    }
+
+    @Override
+    public int nodeFor(long keyHash) {
+
+        if (nodeHashes.length == 0) {
+            throw new IllegalStateException("No nodes.");
+        }
+        int best = 0;
+        long bestScore = Long.MIN_VALUE;
+        for (int i = 0; i < nodeHashes.length; i++) {
+            long score = Hashing.mix(keyHash ^ nodeHashes[i]);
+            if (score > bestScore || (score == bestScore && nodeHashes[i] > nodeHashes[best])) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        return (best);
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.frs.blockd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One parsed blockd response line. A connection reuses a single instance
+ * for every line it reads, so the values are only valid until the next line
+ * is parsed. The status is matched against the known status strings and
+ * never allocated for them; the lock id and quote are kept as ranges of the
+ * line buffer and only turned into strings when asked for, and so is the
+ * locks array of a SHOW.
+ */
+final class Response {
+
+    String status;
+    long nonce;
+    boolean hasNonce;
+
+    private byte[] line;
+    private int lockIdStart;
+    private int lockIdEnd;
+    private boolean lockIdEscaped;
+    private String lockId;
+    private int quoteStart;
+    private int quoteEnd;
+    private boolean quoteEscaped;
+    private String quote;
+    private int locksStart;
+    private int locksEnd;
+    private List<String> locks;
+
+    /**
+     * Clears everything before the next line is parsed into this response.
+     *
+     * @param line The buffer the line is held in.
+     */
+    void reset(byte[] line) {
+
+        this.line = line;
+        status = null;
+        nonce = -1;
+        hasNonce = false;
+        locksStart = -1;
+        locks = null;
+        lockIdStart = -1;
+        lockId = null;
+        quoteStart = -1;
+        quote = null;
+    }
+
+    void setLockId(int start, int end, boolean escaped) {
+
+        lockIdStart = start;
+        lockIdEnd = end;
+        lockIdEscaped = escaped;
+    }
+
+    void setLocks(int start, int end) {
+
+        locksStart = start;
+        locksEnd = end;
+    }
+
+    void setQuote(int start, int end, boolean escaped) {
+
+        quoteStart = start;
+        quoteEnd = end;
+        quoteEscaped = escaped;
+    }
+
+    /**
+     * The status field, or null if there was none.
+     *
+     * @return
+     */
+    String getStatus() {
+
+        return (status);
+    }
+
+    /**
+     * The lock id field, or null if there was none.
+     *
+     * @return
+     */
+    String getLockId() {
+
+        if (lockId == null && lockIdStart >= 0) {
+            lockId = ResponseParser.decode(line, lockIdStart, lockIdEnd, lockIdEscaped);
+        }
+        return (lockId);
+    }
+
+    /**
+     * Does the lock id field equal <code>expected</code>? Avoids decoding
+     * the id for the common all-ASCII case.
+     *
+     * @param expected
+     * @return
+     */
+    boolean lockIdEquals(String expected) {
+
+        if (lockIdStart < 0 || expected == null) {
+            return (false);
+        }
+        if (lockIdEscaped || lockId != null) {
+            return (expected.equals(getLockId()));
+        }
+        int length = lockIdEnd - lockIdStart;
+        if (length != expected.length()) {
+            // Multi-byte UTF-8 changes the length; decode to compare.
+            return (expected.equals(getLockId()));
+        }
+        for (int i = 0; i < length; i++) {
+            if (line[lockIdStart + i] != expected.charAt(i)) {
+                return (expected.equals(getLockId()));
+            }
+        }
+        return (true);
+    }
+
+    /**
+     * Was there a quote field, i.e. is this the answer to a WISDOM?
+     *
+     * @return
+     */
+    boolean hasQuote() {
+
+        return (quoteStart >= 0);
+    }
+
+    /**
+     * The quote field, or null if there was none.
+     *
+     * @return
+     */
+    String getQuote() {
+
+        if (quote == null && quoteStart >= 0) {
+            quote = ResponseParser.decode(line, quoteStart, quoteEnd, quoteEscaped);
+        }
+        return (quote);
+    }
+
+    /**
+     * The lock ids of a SHOW response, or null if there were none.
+     *
+     * @return
+     */
+    List<String> getLocks() {
+
+        if (locks == null && locksStart >= 0) {
+            try {
+                List<String> lockIds = new ArrayList<String>();
+                new ResponseParser().lockIds(line, locksStart, locksEnd - locksStart, lockIds);
+                locks = lockIds;
+            } catch (IOException e) {
+                // The array was checked when the line was parsed.
+                throw new IllegalStateException(e);
+            }
+        }
+        return (locks);
+    }
+
+    /**
+     * The locks of a SHOW response, copied out of the line buffer so they
+     * can be read after the next line; parsed as they are read.
+     *
+     * @return
+     */
+    ShowResult copyLocks() {
+
+        if (locksStart < 0) {
+            return (ShowResult.EMPTY);
+        }
+        return (new ShowResult(Arrays.copyOfRange(line, locksStart, locksEnd)));
+    }
+
+}
@@ -0,0 +1,227 @@
+package com.frs.blockd;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Matches responses read from one connection to the requests that were
+ * written to it. Every command carries a per-connection, monotonically
+ * increasing nonce which blockd echoes back, so a response is normally
+ * routed by its nonce. That includes the LOCKACQUIRED/ACQUIRETIMEOUT
+ * follow-ups to a LOCKPENDING, which can arrive at any later point.
+ * <p>
+ * Responses without a nonce fall back to ordering: blockd answers commands
+ * in the order it receives them, so those go to the oldest request still
+ * waiting for its first response, and follow-ups are matched by lock id.
+ * <p>
+ * A RELEASEALL has no terminating response, so it is always sent followed by
+ * a WISDOM "fence": every response read before the quote belongs to the
+ * RELEASEALL.
+ * <p>
+ * Not thread-safe; the owning connection serializes access.
+ */
+class ResponseDispatcher {
+
+    private final ArrayDeque<PendingRequest> inFlight = new ArrayDeque<PendingRequest>();
+    private final Map<Long, PendingRequest> byNonce = new HashMap<Long, PendingRequest>();
+    private final Map<String, ArrayDeque<PendingRequest>> lockPending = new HashMap<String, ArrayDeque<PendingRequest>>();
+
+    /**
+     * Registers a request. Must be called in the order the requests are
+     * written to the socket, after their nonces have been assigned.
+     *
+     * @param request
+     */
+    void add(PendingRequest request) {
+
+        request.sentAt = System.nanoTime();
+        inFlight.add(request);
+        if (request.nonce >= 0) {
+            byNonce.put(request.nonce, request);
+        }
+        if (request.fenceNonce >= 0) {
+            byNonce.put(request.fenceNonce, request);
+        }
+    }
+
+    /**
+     * Are there requests waiting for a response?
+     *
+     * @return
+     */
+    boolean isEmpty() {
+
+        return (inFlight.isEmpty() && lockPending.isEmpty());
+    }
+
+    /**
+     * When the oldest request still waiting for its first response was
+     * sent. Requests answered with LOCKPENDING are not waiting for a first
+     * response any more, however long their lock takes.
+     *
+     * @return Its <code>System.nanoTime()</code>, or -1 if there is none.
+     */
+    long oldestSentAt() {
+
+        PendingRequest request = inFlight.peek();
+        return (request == null ? -1 : request.sentAt);
+    }
+
+    /**
+     * Routes one response to the request it answers and completes that
+     * request's future when it has seen its last response.
+     *
+     * @param response A parsed response line; only valid during the call.
+     * @return The request the response was routed to, or null if it did
+     *         not belong to anything in flight.
+     */
+    PendingRequest dispatch(Response response) {
+
+        String status = response.getStatus();
+        PendingRequest request = null;
+        if (response.hasNonce) {
+            request = byNonce.get(response.nonce);
+        }
+        if (request == null && ("LOCKACQUIRED".equals(status) || "ACQUIRETIMEOUT".equals(status))) {
+            request = firstLockPending(response.getLockId());
+        }
+        if (request == null) {
+            request = inFlight.peek();
+            if (request == null) {
+                return (null);
+            }
+        }
+
+        if (request.lockPending) {
+            finish(request);
+            completeAcquire(request, status);
+            return (request);
+        }
+        switch (request.kind) {
+            case CONNECT:
+                finish(request);
+                if ("IMUSTBLOCKYOU".equals(status)) {
+                    request.complete(null);
+                } else {
+                    request.fail(new Exception("Invalid connect response."));
+                }
+                break;
+            case QUIT:
+                // Completed by the connection once it has closed the socket.
+                finish(request);
+                break;
+            case WISDOM:
+                finish(request);
+                request.complete(response.getQuote());
+                break;
+            case SHOW:
+                finish(request);
+                completeShow(request, response);
+                break;
+            case ACQUIRE:
+                if ("LOCKPENDING".equals(status)) {
+                    inFlight.remove(request);
+                    request.lockPending = true;
+                    request.pendingSince = System.nanoTime();
+                    ArrayDeque<PendingRequest> waiting = lockPending.get(request.lockId);
+                    if (waiting == null) {
+                        waiting = new ArrayDeque<PendingRequest>(2);
+                        lockPending.put(request.lockId, waiting);
+                    }
+                    waiting.add(request);
+                } else {
+                    finish(request);
+                    completeAcquire(request, status);
+                }
+                break;
+            case RELEASE:
+                finish(request);
+                if ("NOLOCKTORELEASE".equals(status)) {
+                    request.fail(new NoLockToReleaseException(request.lockId));
+                } else {
+                    request.complete(status);
+                }
+                break;
+            case RELEASEALL:
+                if (response.hasQuote()) {
+                    finish(request);
+                    request.complete(request.lockIds);
+                } else if (!"NOLOCKSTORELEASEALL".equals(status)) {
+                    request.lockIds.add(response.getLockId());
+                }
+                break;
+        }
+        return (request);
+    }
+
+    /**
+     * Fails every outstanding request, e.g. because the connection died.
+     *
+     * @param cause
+     */
+    void failAll(Throwable cause) {
+
+        PendingRequest request;
+        while ((request = inFlight.poll()) != null) {
+            request.fail(cause);
+        }
+        for (ArrayDeque<PendingRequest> waiting : lockPending.values()) {
+            for (PendingRequest pending : waiting) {
+                pending.fail(cause);
+            }
+        }
+        lockPending.clear();
+        byNonce.clear();
+    }
+
+    /**
+     * Forgets a request that has seen its last response.
+     */
+    private void finish(PendingRequest request) {
+
+        if (request.lockPending) {
+            ArrayDeque<PendingRequest> waiting = lockPending.get(request.lockId);
+            if (waiting != null) {
+                waiting.remove(request);
+                if (waiting.isEmpty()) {
+                    lockPending.remove(request.lockId);
+                }
+            }
+        } else if (inFlight.peek() == request) {
+            inFlight.poll();
+        } else {
+            inFlight.remove(request);
+        }
+        if (request.nonce >= 0) {
+            byNonce.remove(request.nonce);
+        }
+        if (request.fenceNonce >= 0) {
+            byNonce.remove(request.fenceNonce);
+        }
+    }
+
+    private PendingRequest firstLockPending(String lockId) {
+
+        if (lockId == null) {
+            return (null);
+        }
+        ArrayDeque<PendingRequest> waiting = lockPending.get(lockId);
+        return (waiting == null ? null : waiting.peek());
+    }
+
+    private void completeAcquire(PendingRequest request, String status) {
+
+        if (request.timeoutIsError && "ACQUIRETIMEOUT".equals(status)) {
+            request.fail(new AcquireTimeoutException(request.lockId));
+        } else {
+            request.complete(status);
+        }
+    }
+
+    private void completeShow(PendingRequest request, Response response) {
+
+        request.complete(response.copyLocks());
+    }
+
+}
@@ -0,0 +1,486 @@
+package com.frs.blockd;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single-pass parser for blockd response lines. It understands just
+ * enough JSON to pick out the fields the clients use (status, lockId,
+ * nonce, quote and the locks array of a SHOW) straight from the line bytes;
+ * every other field is skipped without being materialized. The locks array
+ * is only checked and its bounds kept; its entries are parsed one at a time
+ * when they are read, see <code>beginLocks()</code>. Not thread-safe; each
+ * connection owns one.
+ */
+final class ResponseParser {
+
+    /**
+     * The statuses blockd sends. A status matching one of these is returned
+     * as the constant instead of a new string.
+     */
+    static final String[] KNOWN_STATUSES = {
+            "IMUSTBLOCKYOU", "LOCKACQUIRED", "LOCKPENDING", "ACQUIRETIMEOUT", "LOCKRELEASED",
+            "NOLOCKTORELEASE", "NOLOCKSTORELEASEALL", "GOODBYE",
+    };
+
+    private static final byte[][] KNOWN_STATUS_BYTES = new byte[KNOWN_STATUSES.length][];
+    private static final byte[] STATUS = ascii("status");
+    private static final byte[] LOCK_ID = ascii("lockId");
+    private static final byte[] NONCE = ascii("nonce");
+    private static final byte[] QUOTE = ascii("quote");
+    private static final byte[] LOCKS = ascii("locks");
+    private static final byte[] MODE = ascii("mode");
+
+    static {
+        for (int i = 0; i < KNOWN_STATUSES.length; i++) {
+            KNOWN_STATUS_BYTES[i] = ascii(KNOWN_STATUSES[i]);
+        }
+    }
+
+    private byte[] buf;
+    private int start;
+    private int pos;
+    private int end;
+
+    // The bounds of the last string scanned, without the quotes.
+    private int stringStart;
+    private int stringEnd;
+    private boolean stringEscaped;
+
+    // The locks array being read, and the fields of its last entry.
+    private boolean locksDone;
+    private String entryLockId;
+    private String entryMode;
+    private Map<String, String> entryFields;
+
+    /**
+     * Parses one response line into <code>response</code>.
+     *
+     * @param line     The buffer holding the line.
+     * @param offset   Where the line starts.
+     * @param length   The line length, without the line terminator.
+     * @param response Receives the parsed fields; reset first.
+     * @throws IOException If the line is not a JSON object.
+     */
+    void parse(byte[] line, int offset, int length, Response response) throws IOException {
+
+        buf = line;
+        start = offset;
+        pos = offset;
+        end = offset + length;
+        response.reset(line);
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            scanString();
+            int keyStart = stringStart;
+            int keyEnd = stringEnd;
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            if (keyIs(keyStart, keyEnd, STATUS) && peek() == '"') {
+                scanString();
+                response.status = status();
+            } else if (keyIs(keyStart, keyEnd, LOCK_ID) && peek() == '"') {
+                scanString();
+                response.setLockId(stringStart, stringEnd, stringEscaped);
+            } else if (keyIs(keyStart, keyEnd, QUOTE) && peek() == '"') {
+                scanString();
+                response.setQuote(stringStart, stringEnd, stringEscaped);
+            } else if (keyIs(keyStart, keyEnd, NONCE) && isNumberStart(peek())) {
+                response.nonce = scanLong();
+                response.hasNonce = true;
+            } else if (keyIs(keyStart, keyEnd, LOCKS) && peek() == '[') {
+                int locksStart = pos;
+                skipValue();
+                response.setLocks(locksStart, pos);
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+            byte c = next();
+            if (c == '}') {
+                return;
+            }
+            if (c != ',') {
+                throw malformed("expected ',' or '}'");
+            }
+        }
+    }
+
+    /**
+     * Turns a range of a line into a string, resolving JSON escapes.
+     *
+     * @param buf
+     * @param start   The first byte after the opening quote.
+     * @param end     The closing quote.
+     * @param escaped Does the range contain a backslash?
+     * @return
+     */
+    static String decode(byte[] buf, int start, int end, boolean escaped) {
+
+        if (!escaped) {
+            return (new String(buf, start, end - start, StandardCharsets.UTF_8));
+        }
+        StringBuilder out = new StringBuilder(end - start);
+        int run = start;
+        int i = start;
+        while (i < end) {
+            if (buf[i] != '\\') {
+                i++;
+                continue;
+            }
+            if (i > run) {
+                out.append(new String(buf, run, i - run, StandardCharsets.UTF_8));
+            }
+            byte c = buf[i + 1];
+            i += 2;
+            switch (c) {
+                case 'b': out.append('\b'); break;
+                case 'f': out.append('\f'); break;
+                case 'n': out.append('\n'); break;
+                case 'r': out.append('\r'); break;
+                case 't': out.append('\t'); break;
+                case 'u':
+                    out.append((char) Integer.parseInt(new String(buf, i, 4, StandardCharsets.US_ASCII), 16));
+                    i += 4;
+                    break;
+                default: out.append((char) c); break;
+            }
+            run = i;
+        }
+        if (end > run) {
+            out.append(new String(buf, run, end - run, StandardCharsets.UTF_8));
+        }
+        return (out.toString());
+    }
+
+    /**
+     * Adds the lock ids in a SHOW's locks array to a list.
+     *
+     * @param array   The buffer holding the array.
+     * @param offset  Where the array starts.
+     * @param length  The array length, brackets included.
+     * @param lockIds
+     * @throws IOException If the array is malformed.
+     */
+    void lockIds(byte[] array, int offset, int length, List<String> lockIds) throws IOException {
+
+        beginLocks(array, offset, length);
+        while (nextLock(false)) {
+            lockIds.add(entryLockId);
+        }
+    }
+
+    /**
+     * Starts reading the entries of a SHOW's locks array; the array must
+     * stay unchanged until the last entry is read.
+     *
+     * @param array  The buffer holding the array.
+     * @param offset Where the array starts.
+     * @param length The array length, brackets included.
+     * @throws IOException If the array is malformed.
+     */
+    void beginLocks(byte[] array, int offset, int length) throws IOException {
+
+        buf = array;
+        start = offset;
+        pos = offset;
+        end = offset + length;
+        skipWhitespace();
+        expect('[');
+        skipWhitespace();
+        locksDone = peek() == ']';
+    }
+
+    /**
+     * Reads the next entry of the locks array. Entries without a lock id
+     * are skipped.
+     *
+     * @return The entry, or null after the last one.
+     * @throws IOException If the array is malformed.
+     */
+    LockInfo nextLock() throws IOException {
+
+        if (!nextLock(true)) {
+            return (null);
+        }
+        return (new LockInfo(entryLockId, entryMode, entryFields));
+    }
+
+    /**
+     * Reads the next entry with a lock id into the entry fields.
+     *
+     * @param allFields Collect the fields other than the lock id and mode?
+     * @return false after the last entry.
+     */
+    private boolean nextLock(boolean allFields) throws IOException {
+
+        while (!locksDone) {
+            skipWhitespace();
+            boolean found = false;
+            if (peek() == '{') {
+                found = parseLockEntry(allFields);
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+            byte c = next();
+            if (c == ']') {
+                locksDone = true;
+            } else if (c != ',') {
+                throw malformed("expected ',' or ']'");
+            }
+            if (found) {
+                return (true);
+            }
+        }
+        return (false);
+    }
+
+    /**
+     * Parses one entry of the locks array into the entry fields.
+     *
+     * @return Did it have a lock id?
+     */
+    private boolean parseLockEntry(boolean allFields) throws IOException {
+
+        entryLockId = null;
+        entryMode = null;
+        entryFields = Collections.emptyMap();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return (false);
+        }
+        while (true) {
+            skipWhitespace();
+            scanString();
+            int keyStart = stringStart;
+            int keyEnd = stringEnd;
+            boolean keyEscaped = stringEscaped;
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            if (keyIs(keyStart, keyEnd, LOCK_ID) && peek() == '"') {
+                scanString();
+                entryLockId = decode(buf, stringStart, stringEnd, stringEscaped);
+            } else if (allFields && keyIs(keyStart, keyEnd, MODE) && peek() == '"') {
+                scanString();
+                entryMode = decode(buf, stringStart, stringEnd, stringEscaped);
+            } else if (allFields) {
+                String key = decode(buf, keyStart, keyEnd, keyEscaped);
+                String value;
+                if (peek() == '"') {
+                    scanString();
+                    value = decode(buf, stringStart, stringEnd, stringEscaped);
+                } else {
+                    // Numbers, booleans and the like are kept as their JSON text.
+                    int valueStart = pos;
+                    skipValue();
+                    value = new String(buf, valueStart, pos - valueStart, StandardCharsets.UTF_8);
+                }
+                if (entryFields.isEmpty()) {
+                    entryFields = new HashMap<String, String>(4);
+                }
+                entryFields.put(key, value);
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+            byte c = next();
+            if (c == '}') {
+                return (entryLockId != null);
+            }
+            if (c != ',') {
+                throw malformed("expected ',' or '}'");
+            }
+        }
+    }
+
+    private String status() {
+
+        int length = stringEnd - stringStart;
+        if (!stringEscaped) {
+            for (int i = 0; i < KNOWN_STATUS_BYTES.length; i++) {
+                if (regionEquals(stringStart, length, KNOWN_STATUS_BYTES[i])) {
+                    return (KNOWN_STATUSES[i]);
+                }
+            }
+        }
+        return (decode(buf, stringStart, stringEnd, stringEscaped));
+    }
+
+    private void scanString() throws IOException {
+
+        expect('"');
+        stringStart = pos;
+        stringEscaped = false;
+        while (pos < end) {
+            byte c = buf[pos];
+            if (c == '"') {
+                stringEnd = pos++;
+                return;
+            }
+            if (c == '\\') {
+                stringEscaped = true;
+                pos++;
+            }
+            pos++;
+        }
+        throw malformed("unterminated string");
+    }
+
+    private long scanLong() throws IOException {
+
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            pos++;
+        }
+        long value = 0;
+        int digits = 0;
+        while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+            value = value * 10 + (buf[pos++] - '0');
+            digits++;
+        }
+        if (digits == 0) {
+            throw malformed("expected a number");
+        }
+        // Tolerate a fraction or exponent; nonces are integers.
+        while (pos < end && isNumberPart(buf[pos])) {
+            pos++;
+        }
+        return (negative ? -value : value);
+    }
+
+    private void skipValue() throws IOException {
+
+        byte c = peek();
+        if (c == '"') {
+            scanString();
+        } else if (c == '{' || c == '[') {
+            skipContainer();
+        } else if (isNumberStart(c)) {
+            pos++;
+            while (pos < end && isNumberPart(buf[pos])) {
+                pos++;
+            }
+        } else if (c == 't' || c == 'f' || c == 'n') {
+            while (pos < end && buf[pos] >= 'a' && buf[pos] <= 'z') {
+                pos++;
+            }
+        } else {
+            throw malformed("unexpected character");
+        }
+    }
+
+    /**
+     * Skips a nested object or array, honouring strings so brackets inside
+     * them are not counted.
+     */
+    private void skipContainer() throws IOException {
+
+        int depth = 0;
+        while (pos < end) {
+            byte c = buf[pos];
+            if (c == '"') {
+                scanString();
+                continue;
+            }
+            pos++;
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0) {
+                    return;
+                }
+            }
+        }
+        throw malformed("unterminated object or array");
+    }
+
+    private void skipWhitespace() {
+
+        while (pos < end) {
+            byte c = buf[pos];
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private byte peek() throws IOException {
+
+        if (pos >= end) {
+            throw malformed("unexpected end of line");
+        }
+        return (buf[pos]);
+    }
+
+    private byte next() throws IOException {
+
+        byte c = peek();
+        pos++;
+        return (c);
+    }
+
+    private void expect(char c) throws IOException {
+
+        if (next() != c) {
+            pos--;
+            throw malformed("expected '" + c + "'");
+        }
+    }
+
+    private boolean keyIs(int start, int keyEnd, byte[] key) {
+
+        return (keyEnd - start == key.length && regionEquals(start, key.length, key));
+    }
+
+    private boolean regionEquals(int start, int length, byte[] expected) {
+
+        if (length != expected.length) {
+            return (false);
+        }
+        for (int i = 0; i < length; i++) {
+            if (buf[start + i] != expected[i]) {
+                return (false);
+            }
+        }
+        return (true);
+    }
+
+    private static boolean isNumberStart(byte c) {
+
+        return (c == '-' || (c >= '0' && c <= '9'));
+    }
+
+    private static boolean isNumberPart(byte c) {
+
+        return ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-');
+    }
+
+    private IOException malformed(String problem) {
+
+        return (new IOException("Malformed response (" + problem + " at " + (pos - start) + "): "
+                                        + new String(buf, start, end - start, StandardCharsets.UTF_8)));
+    }
+
+    private static byte[] ascii(String value) {
+
+        return (value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.frs.blockd;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link WireTracer} that never blocks the traced thread. Each line is
+ * copied into a slot of a fixed-size, lock-free ring and a daemon thread
+ * drains the ring to a <code>PrintStream</code>. When the ring is full the
+ * line is dropped and counted instead of waiting for the drainer.
+ * <p>
+ * Lines are printed as <code>host:port SEND: ...</code> and
+ * <code>host:port RECV: ...</code>.
+ */
+public class RingBufferTracer implements WireTracer {
+
+    private static final long IDLE_PARK_NANOS = 1000000L;
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final PrintStream out;
+    private final Thread drainer;
+
+    // Only written by the drainer thread.
+    private volatile long head;
+    private volatile boolean running = true;
+
+    /**
+     * Constructor. Starts the drainer thread.
+     *
+     * @param capacity The number of lines the ring holds; rounded up to a
+     *                 power of two.
+     * @param out      Where the lines are printed.
+     */
+    public RingBufferTracer(int capacity, PrintStream out) {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<Entry>(size);
+        this.mask = size - 1;
+        this.out = out;
+        this.drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                drain();
+            }
+        }, "blockd-wire-trace");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    @Override
+    public void trace(String connection, boolean sent, byte[] line, int offset, int length) {
+
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot - head > mask) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+        slots.lazySet((int) (slot & mask),
+                      new Entry(connection, sent, Arrays.copyOfRange(line, offset, offset + length)));
+    }
+
+    /**
+     * The number of lines dropped because the ring was full.
+     *
+     * @return
+     */
+    public long getDropped() {
+
+        return (dropped.get());
+    }
+
+    /**
+     * Prints whatever is still in the ring and stops the drainer thread.
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+
+        running = false;
+        LockSupport.unpark(drainer);
+        drainer.join();
+    }
+
+    private void drain() {
+
+        while (true) {
+            boolean stopping = !running;
+            int printed = 0;
+            while (true) {
+                int index = (int) (head & mask);
+                Entry entry = slots.get(index);
+                if (entry == null) {
+                    // Either empty, or a producer has claimed the slot but
+                    // not yet published into it.
+                    if (head == tail.get()) {
+                        break;
+                    }
+                    Thread.yield();
+                    continue;
+                }
+                slots.lazySet(index, null);
+                head = head + 1;
+                print(entry);
+                printed++;
+            }
+            if (printed > 0) {
+                out.flush();
+            }
+            if (stopping) {
+                return;
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    private void print(Entry entry) {
+
+        out.println(entry.connection + (entry.sent ? " SEND: " : " RECV: ")
+                            + new String(entry.line, StandardCharsets.UTF_8));
+    }
+
+    private static final class Entry {
+
+        final String connection;
+        final boolean sent;
+        final byte[] line;
+
+        Entry(String connection, boolean sent, byte[] line) {
+
+            this.connection = connection;
+            this.sent = sent;
+            this.line = line;
+        }
+
+    }
+
+}
@@ -0,0 +1,338 @@
+package com.frs.blockd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One membership of a {@link ClusterClient}: its nodes and the partitioner
+ * over them. Immutable; a membership change builds a new table and
+ * publishes it with one volatile write, so routing a request is one
+ * volatile read and needs no locking.
+ * <p>
+ * Locks this client holds stay with the node that granted them, even after
+ * a membership change gives their id to another node. The table pins them
+ * to that node so re-acquires and releases still go there, until the lock
+ * is released or migrated. Nodes being removed are kept as draining: they
+ * take no new locks, but still serve the ones they hold.
+ */
+final class RoutingTable {
+
+    /**
+     * One node: its client and circuit breaker.
+     */
+    static final class Node {
+
+        final AsyncBlockdClient client;
+        final String name;
+        final CircuitBreaker breaker;
+
+        Node(AsyncBlockdClient client, CircuitBreaker breaker) {
+
+            this.client = client;
+            this.name = client.getHost() + ":" + client.getPort();
+            this.breaker = breaker;
+        }
+
+    }
+
+    /**
+     * A lock key's owner in one table, cached on the {@link LockKey} so the
+     * next request with the same table skips the partitioner.
+     */
+    static final class Owner {
+
+        final RoutingTable table;
+        final int index;
+
+        Owner(RoutingTable table, int index) {
+
+            this.table = table;
+            this.index = index;
+        }
+
+    }
+
+    private static final Node[] NONE = new Node[0];
+
+    final Node[] nodes;
+    final Node[] draining;
+    final Partitioner partitioner;
+    private final Map<String, Node> pinned;
+
+    /**
+     * Constructor.
+     *
+     * @param nodes       The nodes that take new locks, in the order the
+     *                    partitioner indexes into.
+     * @param draining    Nodes being removed.
+     * @param partitioner Rebuilt for <code>nodes</code>.
+     */
+    RoutingTable(Node[] nodes, Node[] draining, Partitioner partitioner) {
+
+        this.nodes = nodes;
+        this.draining = draining;
+        this.partitioner = partitioner.withNodes(names(nodes));
+        this.pinned = pin();
+    }
+
+    /**
+     * An empty table.
+     *
+     * @param partitioner
+     * @return
+     */
+    static RoutingTable empty(Partitioner partitioner) {
+
+        return (new RoutingTable(NONE, NONE, partitioner));
+    }
+
+    /**
+     * This table with a node added.
+     *
+     * @param node
+     * @return
+     */
+    RoutingTable with(Node node) {
+
+        Node[] more = Arrays.copyOf(nodes, nodes.length + 1);
+        more[nodes.length] = node;
+        return (new RoutingTable(more, draining, partitioner));
+    }
+
+    /**
+     * This table with a node moved to the draining nodes.
+     *
+     * @param node
+     * @return
+     */
+    RoutingTable draining(Node node) {
+
+        Node[] more = Arrays.copyOf(draining, draining.length + 1);
+        more[draining.length] = node;
+        return (new RoutingTable(remove(nodes, node), more, partitioner));
+    }
+
+    /**
+     * This table without a node, whether it was draining or not.
+     *
+     * @param node
+     * @return
+     */
+    RoutingTable without(Node node) {
+
+        return (new RoutingTable(remove(nodes, node), remove(draining, node), partitioner));
+    }
+
+    /**
+     * This table with another partitioner.
+     *
+     * @param partitioner
+     * @return
+     */
+    RoutingTable with(Partitioner partitioner) {
+
+        return (new RoutingTable(nodes, draining, partitioner));
+    }
+
+    /**
+     * The node that takes new locks for a lock id.
+     *
+     * @param lockId
+     * @return
+     */
+    Node owner(String lockId) {
+
+        return (nodes[partitioner.nodeFor(Hashing.hash(lockId))]);
+    }
+
+    /**
+     * The index, into <code>nodes</code>, of the node that takes new locks
+     * for a lock key; cached on the key for this table.
+     *
+     * @param key
+     * @return
+     */
+    int index(LockKey key) {
+
+        Owner owner = key.owner();
+        if (owner != null && owner.table == this) {
+            return (owner.index);
+        }
+        int index = partitioner.nodeFor(key.hash());
+        key.owner(new Owner(this, index));
+        return (index);
+    }
+
+    /**
+     * Like {@link #route(String)}, for a lock key.
+     *
+     * @param key
+     * @return
+     */
+    Node route(LockKey key) {
+
+        if (!pinned.isEmpty()) {
+            Node node = pinned.get(key.getLockId());
+            if (node != null && holds(node.client, key.getLockId())) {
+                return (node);
+            }
+        }
+        return (nodes[index(key)]);
+    }
+
+    /**
+     * The node to send a request for a lock id to: the one holding it if
+     * it is pinned, otherwise its owner.
+     *
+     * @param lockId
+     * @return
+     */
+    Node route(String lockId) {
+
+        if (!pinned.isEmpty()) {
+            Node node = pinned.get(lockId);
+            if (node != null && holds(node.client, lockId)) {
+                return (node);
+            }
+        }
+        return (owner(lockId));
+    }
+
+    /**
+     * The nodes a quorum lock is kept on: the owner of its id and the nodes
+     * after it, wrapping around.
+     *
+     * @param lockId
+     * @param count  Capped at the number of nodes.
+     * @return
+     */
+    Node[] replicas(String lockId, int count) {
+
+        int first = partitioner.nodeFor(Hashing.hash(lockId));
+        Node[] replicas = new Node[Math.min(count, nodes.length)];
+        for (int i = 0; i < replicas.length; i++) {
+            replicas[i] = nodes[(first + i) % nodes.length];
+        }
+        return (replicas);
+    }
+
+    /**
+     * Searches every node for one holding the lock; for a lock acquired
+     * while the table was being replaced, which is not pinned.
+     *
+     * @param lockId
+     * @return The node, or null if none holds it.
+     */
+    Node holder(String lockId) {
+
+        for (Node node : all()) {
+            if (holds(node.client, lockId)) {
+                return (node);
+            }
+        }
+        return (null);
+    }
+
+    /**
+     * The node with the given name.
+     *
+     * @param name <code>host:port</code>
+     * @return The node, or null if there is none.
+     */
+    Node find(String name) {
+
+        for (Node node : all()) {
+            if (node.name.equals(name)) {
+                return (node);
+            }
+        }
+        return (null);
+    }
+
+    /**
+     * All nodes, draining ones last.
+     *
+     * @return
+     */
+    Node[] all() {
+
+        if (draining.length == 0) {
+            return (nodes);
+        }
+        Node[] all = Arrays.copyOf(nodes, nodes.length + draining.length);
+        System.arraycopy(draining, 0, all, nodes.length, draining.length);
+        return (all);
+    }
+
+    /**
+     * The names of the nodes that take new locks.
+     *
+     * @return
+     */
+    List<String> names() {
+
+        return (names(nodes));
+    }
+
+    /**
+     * Does a node's client hold a lock?
+     *
+     * @param client
+     * @param lockId
+     * @return
+     */
+    static boolean holds(BlockdClient client, String lockId) {
+
+        if (client instanceof SimpleClient) {
+            return (((SimpleClient) client).getHeldLockRegistry().isHeld(lockId));
+        }
+        for (HeldLockRegistry.HeldLock hold : client.getHeldLocks()) {
+            if (hold.getLockId().equals(lockId)) {
+                return (true);
+            }
+        }
+        return (false);
+    }
+
+    /**
+     * Finds the held locks that this table gives to another node than the
+     * one holding them.
+     */
+    private Map<String, Node> pin() {
+
+        Map<String, Node> pinned = null;
+        for (Node node : all()) {
+            for (HeldLockRegistry.HeldLock hold : node.client.getHeldLocks()) {
+                String lockId = hold.getLockId();
+                if (nodes.length == 0 || owner(lockId) != node) {
+                    if (pinned == null) {
+                        pinned = new HashMap<String, Node>();
+                    }
+                    pinned.put(lockId, node);
+                }
+            }
+        }
+        return (pinned == null ? Collections.<String, Node>emptyMap() : pinned);
+    }
+
+    private static Node[] remove(Node[] nodes, Node node) {
+
+        List<Node> kept = new ArrayList<Node>(Arrays.asList(nodes));
+        kept.remove(node);
+        return (kept.toArray(new Node[kept.size()]));
+    }
+
+    private static List<String> names(Node[] nodes) {
+
+        List<String> names = new ArrayList<String>(nodes.length);
+        for (Node node : nodes) {
+            names.add(node.name);
+        }
+        return (names);
+    }
+
+}
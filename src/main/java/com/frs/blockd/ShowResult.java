@@ -0,0 +1,137 @@
+package com.frs.blockd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The locks listed by a SHOW, kept as the raw bytes of the response's
+ * locks array and parsed one entry at a time as they are iterated. A server
+ * holding many locks thus costs one byte array per SHOW rather than a
+ * string and a list slot per lock, and a caller that only wants some of
+ * them can stop early. A cluster's result chains its nodes' results
+ * without copying them. Immutable; every iteration parses afresh.
+ */
+public final class ShowResult implements Iterable<LockInfo> {
+
+    static final ShowResult EMPTY = new ShowResult(Collections.<byte[]>emptyList());
+
+    private final List<byte[]> arrays;
+
+    /**
+     * Constructor.
+     *
+     * @param array A locks array, brackets included, checked when it was read.
+     */
+    ShowResult(byte[] array) {
+
+        this(Collections.singletonList(array));
+    }
+
+    private ShowResult(List<byte[]> arrays) {
+
+        this.arrays = arrays;
+    }
+
+    /**
+     * The results of several nodes, one after the other.
+     *
+     * @param parts
+     * @return
+     */
+    static ShowResult concat(Collection<ShowResult> parts) {
+
+        List<byte[]> arrays = new ArrayList<byte[]>();
+        for (ShowResult part : parts) {
+            arrays.addAll(part.arrays);
+        }
+        return (new ShowResult(arrays));
+    }
+
+    /**
+     * Parses the entries as they are asked for.
+     *
+     * @return
+     */
+    @Override
+    public Iterator<LockInfo> iterator() {
+
+        return (new Iterator<LockInfo>() {
+            private final ResponseParser parser = new ResponseParser();
+            private int array = -1;
+            private LockInfo next;
+
+            @Override
+            public boolean hasNext() {
+
+                try {
+                    while (next == null) {
+                        if (array >= 0) {
+                            next = parser.nextLock();
+                        }
+                        if (next == null) {
+                            if (array + 1 >= arrays.size()) {
+                                return (false);
+                            }
+                            byte[] bytes = arrays.get(++array);
+                            parser.beginLocks(bytes, 0, bytes.length);
+                        }
+                    }
+                } catch (IOException e) {
+                    // The arrays were checked when they were read.
+                    throw new IllegalStateException(e);
+                }
+                return (true);
+            }
+
+            @Override
+            public LockInfo next() {
+
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                LockInfo lock = next;
+                next = null;
+                return (lock);
+            }
+        });
+    }
+
+    /**
+     * Just the lock ids, which skips collecting the other fields.
+     *
+     * @return
+     */
+    public List<String> getLockIds() {
+
+        List<String> lockIds = new ArrayList<String>();
+        ResponseParser parser = new ResponseParser();
+        try {
+            for (byte[] array : arrays) {
+                parser.lockIds(array, 0, array.length, lockIds);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return (lockIds);
+    }
+
+    /**
+     * The number of locks; parses the entries.
+     *
+     * @return
+     */
+    public int size() {
+
+        int size = 0;
+        for (Iterator<LockInfo> locks = iterator(); locks.hasNext(); locks.next()) {
+            size++;
+        }
+        return (size);
+    }
+
+}
@@ -1,27 +1,101 @@
 package com.frs.blockd;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This is a simple client for the Blockd Server.
  * See https://github.com/blockd/blockd-server/wiki/Protocol
+ * <p>
+ * By default every operation writes one command and then reads its
+ * response on the calling thread. In pipelined mode (see
+ * <code>setPipelined()</code>) commands are written as soon as they are
+ * issued and a dedicated reader thread hands each response to the request
+ * with the matching nonce, so any number of threads can have commands in
+ * flight on the one socket, and the <code>...Async</code> methods return
+ * without waiting.
+ * <p>
+ * Pipelined commands from several threads are flushed together: a thread
+ * that finds others queued behind it for the socket leaves the flush to
+ * the last of them, so a burst costs one write rather than one per
+ * command. <code>setFlushDelay()</code> also holds a lone command back
+ * briefly for others to join, like a group commit, and
+ * <code>flushNow()</code> sends whatever is held back at once.
+ * <p>
+ * Timeouts and TCP options are set with <code>setSocketOptions()</code>.
+ * A connection that is lost takes its locks with it, since blockd releases
+ * them when the socket closes; <code>reconnect()</code> can try to get them
+ * back.
  */
-public class SimpleClient implements BlockdClient {
+public class SimpleClient implements BlockdClient, AsyncBlockdClient {
+
+    /**
+     * The default time, in milliseconds, an <code>acquire()</code> waits for
+     * an answer beyond its own timeout.
+     */
+    public static final int DEFAULT_PENDING_GRACE = 5000;
+
+    /**
+     * The default number of bytes held back for a group flush before they
+     * are written regardless.
+     */
+    public static final int DEFAULT_FLUSH_THRESHOLD = 4096;
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int WRITE_BUFFER_SIZE = 8192;
 
     private Socket socket;
     private OutputStream outputStream;
-    private BufferedInputStream inputStream;
+    private InputStream inputStream;
     private String host;
     private int port;
+    private boolean pipelined;
+    private volatile boolean connected;
+    private long nonce;
+    private ResponseDispatcher dispatcher;
+    private Thread reader;
+    private int pendingGrace = DEFAULT_PENDING_GRACE;
+    private SocketOptions socketOptions = new SocketOptions();
+    private boolean reacquireOnReconnect;
+    private int flushDelay;
+    private int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+    // Bytes written since the last flush, and is a sender waiting out the
+    // flush delay? Both guarded by the write lock.
+    private int unflushed;
+    private boolean flushPending;
+    // The locks held when the connection was lost, for reconnect().
+    private volatile List<HeldLockRegistry.HeldLock> lost = Collections.emptyList();
+    private final CommandEncoder encoder = new CommandEncoder();
+    private final LineReader lineReader = new LineReader(READ_BUFFER_SIZE);
+    private final ResponseParser parser = new ResponseParser();
+    private final Response response = new Response();
+    private final HeldLockRegistry held = new HeldLockRegistry();
+    private final WireTrace trace;
+    private final ClientMetrics metrics;
+    // Locks rather than monitors, so a virtual thread blocked on the socket
+    // while holding one does not pin its carrier thread.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Pipelined senders that want the write lock and have not yet written;
+    // while there are any, the flush is left to them.
+    private final AtomicInteger writers = new AtomicInteger();
+    // In blocking mode this is held for a whole command/response exchange.
+    private final ReentrantLock readLock = new ReentrantLock();
+    // Guards the dispatcher; futures are completed while it is held.
+    private final ReentrantLock dispatchLock = new ReentrantLock();
 
 
     /**
@@ -33,8 +107,19 @@ public class SimpleClient implements BlockdClient {
      */
     public SimpleClient(String host, int port) {
 
+        this(host, port, new ClientMetrics(host, port));
+    }
+
+    /**
+     * Constructor for connections that record into shared metrics, like
+     * those of a pool.
+     */
+    SimpleClient(String host, int port, ClientMetrics metrics) {
+
         this.host = host;
         this.port = port;
+        this.trace = new WireTrace(host, port);
+        this.metrics = metrics;
     }
 
     /**
@@ -57,33 +142,379 @@ public class SimpleClient implements BlockdClient {
         return (port);
     }
 
+    /**
+     * Is this client in pipelined mode?
+     *
+     * @return
+     */
+    public boolean isPipelined() {
+
+        return (pipelined);
+    }
+
+    /**
+     * Turns pipelined mode on or off. Takes effect on the next
+     * <code>connect()</code>.
+     *
+     * @param pipelined
+     */
+    public void setPipelined(boolean pipelined) {
+
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * How long past its timeout an <code>acquire()</code> waits for the
+     * server to answer before the server is presumed dead.
+     *
+     * @return The grace period in milliseconds.
+     */
+    @Override
+    public int getPendingGrace() {
+
+        return (pendingGrace);
+    }
+
+    /**
+     * Sets the grace period; see <code>getPendingGrace()</code>.
+     *
+     * @param pendingGrace The grace period in milliseconds.
+     */
+    public void setPendingGrace(int pendingGrace) {
+
+        this.pendingGrace = pendingGrace;
+    }
+
+    /**
+     * The socket options of the next connection.
+     *
+     * @return A copy.
+     */
+    public SocketOptions getSocketOptions() {
+
+        return (new SocketOptions(socketOptions));
+    }
+
+    /**
+     * Sets the timeouts and TCP options; they take effect on the next
+     * <code>connect()</code>. In pipelined mode the read timeout is checked
+     * by the reader thread whenever the socket has been quiet for that long,
+     * so a dead server is noticed within at most twice the timeout.
+     *
+     * @param socketOptions Copied.
+     */
+    public void setSocketOptions(SocketOptions socketOptions) {
+
+        this.socketOptions = new SocketOptions(socketOptions);
+    }
+
+    /**
+     * How long a pipelined command may be held back for others to join it
+     * in one write.
+     *
+     * @return The delay in microseconds; 0 if commands are only combined
+     *         with those already waiting for the socket.
+     */
+    public int getFlushDelay() {
+
+        return (flushDelay);
+    }
+
+    /**
+     * Holds pipelined commands back for up to <code>flushDelay</code>
+     * microseconds, so commands issued meanwhile go out in the same write.
+     * The first command of a group pays the delay, unless the threshold or
+     * <code>flushNow()</code> cuts it short. Off (0) by default, which adds
+     * no latency.
+     *
+     * @param flushDelay In microseconds.
+     */
+    public void setFlushDelay(int flushDelay) {
+
+        this.flushDelay = flushDelay;
+    }
+
+    /**
+     * How many bytes of pipelined commands are held back at most.
+     *
+     * @return
+     */
+    public int getFlushThreshold() {
+
+        return (flushThreshold);
+    }
+
+    /**
+     * Sets how many bytes of pipelined commands may be held back for a
+     * group flush; once that many are waiting they are written at once.
+     * Takes effect on the next <code>connect()</code>.
+     *
+     * @param flushThreshold
+     */
+    public void setFlushThreshold(int flushThreshold) {
+
+        this.flushThreshold = flushThreshold;
+    }
+
+    /**
+     * Writes any pipelined commands held back for a group flush now, for
+     * callers that cannot wait out the flush delay.
+     *
+     * @throws IOException
+     */
+    public void flushNow() throws IOException {
+
+        writeLock.lock();
+        try {
+            if (unflushed > 0 && outputStream != null) {
+                flush();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Does <code>reconnect()</code> acquire the lost locks again?
+     *
+     * @return
+     */
+    public boolean isReacquireOnReconnect() {
+
+        return (reacquireOnReconnect);
+    }
+
+    /**
+     * Makes <code>reconnect()</code> acquire the locks held when the
+     * connection was lost again; off by default. Another client may have
+     * taken a lock in between, so whoever relies on it should check the
+     * locks <code>reconnect()</code> reports as not regained.
+     *
+     * @param reacquireOnReconnect
+     */
+    public void setReacquireOnReconnect(boolean reacquireOnReconnect) {
+
+        this.reacquireOnReconnect = reacquireOnReconnect;
+    }
+
+    /**
+     * The tracer wire traffic is handed to, or null for none.
+     *
+     * @return
+     */
+    public WireTracer getTracer() {
+
+        return (trace.getTracer());
+    }
+
+    /**
+     * Sets the tracer. Nothing is traced until a level other than
+     * <code>OFF</code> is set as well.
+     *
+     * @param tracer
+     */
+    public void setTracer(WireTracer tracer) {
+
+        trace.setTracer(tracer);
+    }
+
+    /**
+     * How much wire traffic is traced.
+     *
+     * @return
+     */
+    public TraceLevel getTraceLevel() {
+
+        return (trace.getLevel());
+    }
+
+    /**
+     * Sets how much wire traffic is traced; <code>OFF</code> by default.
+     *
+     * @param level
+     */
+    public void setTraceLevel(TraceLevel level) {
+
+        trace.setLevel(level);
+    }
+
+    /**
+     * One in how many of the lines selected by the trace level is traced.
+     *
+     * @return
+     */
+    public int getTraceSampleRate() {
+
+        return (trace.getSampleRate());
+    }
+
+    /**
+     * Traces only one in <code>sampleRate</code> lines, chosen at random;
+     * 1, the default, traces every line.
+     *
+     * @param sampleRate
+     */
+    public void setTraceSampleRate(int sampleRate) {
+
+        trace.setSampleRate(sampleRate);
+    }
+
+    /**
+     * The locks this connection holds.
+     *
+     * @return
+     */
+    public HeldLockRegistry getHeldLockRegistry() {
+
+        return (held);
+    }
+
+    @Override
+    public List<HeldLockRegistry.HeldLock> getHeldLocks() {
+
+        return (held.getHeld());
+    }
+
+    @Override
+    public MetricsSnapshot getMetrics() {
+
+        return (metrics.snapshot());
+    }
+
+    @Override
+    public ContentionReport getContention() {
+
+        return (metrics.contention());
+    }
+
     /**
      * This method connects to the blockd server. This must be called
-     * before any commands are sent to the server.
+     * before any commands are sent to the server. Connecting again drops
+     * the previous connection, and with it the locks it held.
      *
      * @throws Exception On a connection/network exception.
      */
     @Override
     public void connect() throws Exception {
 
-        socket = new Socket(host, port);
-        outputStream = new BufferedOutputStream(socket.getOutputStream());
-        inputStream = new BufferedInputStream(socket.getInputStream());
-        JSONObject obj = readResponse();
-        if ( "IMUSTBLOCKYOU".equals(obj.getString("status")) == false ) {
-            throw new Exception("Invalid connect response.");
+        open();
+    }
+
+    /**
+     * Connects again after the connection was lost. With
+     * <code>setReacquireOnReconnect(true)</code> the locks held at the time
+     * are acquired again, without waiting, and keep their hold counts.
+     *
+     * @return The ids of the lost locks that are not held again.
+     * @throws Exception On a connection/network exception; the lost locks
+     *                   are kept for the next attempt.
+     */
+    public List<String> reconnect() throws Exception {
+
+        List<HeldLockRegistry.HeldLock> dropped = open();
+        List<String> lockIds = new ArrayList<String>();
+        for (HeldLockRegistry.HeldLock hold : dropped) {
+            String mode = hold.getMode() != null ? hold.getMode() : "W";
+            if (reacquireOnReconnect && tryAcquire(hold.getLockId(), 0, mode)) {
+                held.restore(hold);
+            } else {
+                lockIds.add(hold.getLockId());
+            }
         }
+        return (lockIds);
     }
 
     /**
-     * Checks that the socket is connected to the server and that the
-     * input and output streams are non-null.
+     * Opens a new connection.
+     *
+     * @return The locks lost with the previous connection.
+     */
+    private List<HeldLockRegistry.HeldLock> open() throws Exception {
+
+        ClientEvents.Event event = ClientEvents.connect(host, port);
+        List<HeldLockRegistry.HeldLock> dropped;
+        try {
+            dropped = openSocket();
+        } catch (Exception e) {
+            if (event != null) {
+                event.failed(e);
+            }
+            throw e;
+        }
+        if (event != null) {
+            event.finished("IMUSTBLOCKYOU");
+        }
+        return (dropped);
+    }
+
+    private List<HeldLockRegistry.HeldLock> openSocket() throws Exception {
+
+        if (socket != null && !socket.isClosed()) {
+            // Drop the previous connection; this also stops its reader.
+            connected = false;
+            socket.close();
+        }
+        // The old reader reads the connection fields, so it must be gone
+        // before they are replaced; the closed socket ends its read.
+        Thread previous = reader;
+        if (previous != null && previous != Thread.currentThread()) {
+            previous.join();
+        }
+        if (!held.isEmpty()) {
+            lost = held.getHeld();
+        }
+        held.clear();
+        socket = socketOptions.open(host, port);
+        outputStream = new BufferedOutputStream(socket.getOutputStream(),
+                                                Math.max(WRITE_BUFFER_SIZE, flushThreshold));
+        unflushed = 0;
+        inputStream = socket.getInputStream();
+        nonce = 0;
+        readLock.lock();
+        try {
+            lineReader.clear();
+            try {
+                if ( "IMUSTBLOCKYOU".equals(awaitResponse().getStatus()) == false ) {
+                    throw new Exception("Invalid connect response.");
+                }
+            } catch (Exception e) {
+                socket.close();
+                throw e;
+            }
+        } finally {
+            readLock.unlock();
+        }
+        connected = true;
+        if (pipelined) {
+            dispatcher = new ResponseDispatcher();
+            reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    readLoop();
+                }
+            }, "blockd-reader-" + host + ":" + port);
+            reader.setDaemon(true);
+            reader.start();
+        } else {
+            dispatcher = null;
+            reader = null;
+        }
+        List<HeldLockRegistry.HeldLock> dropped = lost;
+        lost = Collections.emptyList();
+        return (dropped);
+    }
+
+    /**
+     * Checks that the server has greeted us and the socket has not been
+     * closed since.
      *
      * @return true if connected, false otherwise.
      */
     public boolean isConnected() {
 
-        return (socket != null && socket.isConnected() && inputStream != null && outputStream != null);
+        Socket socket = this.socket;
+        return (connected && socket != null && !socket.isClosed());
     }
 
     /**
@@ -96,11 +527,19 @@ public class SimpleClient implements BlockdClient {
     @Override
     public void quit() throws Exception {
 
-        JSONObject request = new JSONObject();
-        request.put("command", "QUIT");
-        request.put("nonce", System.currentTimeMillis());
-        sendCommand(request);
-        JSONObject response = readResponse();
+        if (pipelined) {
+            call(PendingRequest.Kind.QUIT, null);
+        } else {
+            readLock.lock();
+            try {
+                roundTrip(PendingRequest.Kind.QUIT, null);
+            } finally {
+                readLock.unlock();
+            }
+        }
+        connected = false;
+        held.clear();
+        lost = Collections.emptyList();
         outputStream.close();
         inputStream.close();
         socket.close();
@@ -114,12 +553,15 @@ public class SimpleClient implements BlockdClient {
     @Override
     public String wisdom() throws Exception {
 
-        JSONObject request = new JSONObject();
-        request.put("command", "WISDOM");
-        request.put("nonce", System.currentTimeMillis());
-        sendCommand(request);
-        JSONObject response = readResponse();
-        return ( response.getString("quote"));
+        if (pipelined) {
+            return ((String) call(PendingRequest.Kind.WISDOM, null));
+        }
+        readLock.lock();
+        try {
+            return (roundTrip(PendingRequest.Kind.WISDOM, null).getQuote());
+        } finally {
+            readLock.unlock();
+        }
     }
 
     /**
@@ -131,20 +573,60 @@ public class SimpleClient implements BlockdClient {
     @Override
     public List<String> show() throws Exception {
 
-        List<String> lockIds = new ArrayList<String>();
-        JSONObject request = new JSONObject();
-        request.put("command", "SHOW");
-        request.put("nonce", System.currentTimeMillis());
-        sendCommand(request);
-        JSONObject response = readResponse();
-        JSONArray locks = response.getJSONArray("locks");
-        StringBuffer buff = new StringBuffer();
-        for ( int i = 0; i < locks.length(); i++ ) {
-            JSONObject lock = locks.getJSONObject(i);
-            lockIds.add(lock.getString("lockId"));
+        if (pipelined) {
+            return (showLocks().getLockIds());
+        }
+        ClientEvents.Event event = ClientEvents.show(host, port);
+        List<String> lockIds;
+        readLock.lock();
+        try {
+            lockIds = roundTrip(PendingRequest.Kind.SHOW, null).getLocks();
+        } catch (Exception e) {
+            if (event != null) {
+                event.failed(e);
+            }
+            throw e;
+        } finally {
+            readLock.unlock();
+        }
+        if (event != null) {
+            event.finished("OK");
+        }
+        return (lockIds != null ? lockIds : new ArrayList<String>());
+    }
+
+    /**
+     * Calls blockd's SHOW command; see {@link BlockdClient#showLocks()}.
+     *
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public ShowResult showLocks() throws Exception {
 
+        ClientEvents.Event event = ClientEvents.show(host, port);
+        ShowResult locks;
+        try {
+            if (pipelined) {
+                locks = (ShowResult) call(PendingRequest.Kind.SHOW, null);
+            } else {
+                readLock.lock();
+                try {
+                    locks = roundTrip(PendingRequest.Kind.SHOW, null).copyLocks();
+                } finally {
+                    readLock.unlock();
+                }
+            }
+        } catch (Exception e) {
+            if (event != null) {
+                event.failed(e);
+            }
+            throw e;
         }
-        return (lockIds);
+        if (event != null) {
+            event.finished("OK");
+        }
+        return (locks);
     }
 
     /**
@@ -157,13 +639,58 @@ public class SimpleClient implements BlockdClient {
     @Override
     public String acquire(String lockId) throws Exception {
 
-        JSONObject request = new JSONObject();
-        request.put("command", "ACQUIRE");
-        request.put("lockId", lockId);
-        request.put("nonce", System.currentTimeMillis());
-        sendCommand(request);
-        JSONObject response = readResponse();
-        return ( response.getString("status"));
+        return (acquire(lockId, (byte[]) null));
+    }
+
+    /**
+     * Like <code>acquire(lockId)</code>, with the key's encoded id.
+     *
+     * @param key
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public String acquire(LockKey key) throws Exception {
+
+        return (acquire(key.getLockId(), key.encoded()));
+    }
+
+    private String acquire(String lockId, byte[] encodedId) throws Exception {
+
+        if (held.enter(lockId, null)) {
+            return ("LOCKACQUIRED");
+        }
+        ClientEvents.Event event = ClientEvents.acquire(host, port, lockId, null, CommandEncoder.NO_TIMEOUT);
+        String status;
+        try {
+            if (pipelined) {
+                status = Futures.await(held.enter(lockId, null, CommandEncoder.NO_TIMEOUT,
+                                                  left -> submit(PendingRequest.Kind.ACQUIRE, lockId, encodedId, left,
+                                                                 null, false, event)));
+            } else {
+                readLock.lock();
+                try {
+                    // Granted while we waited for the connection?
+                    if (held.enter(lockId, null)) {
+                        status = "LOCKACQUIRED";
+                    } else {
+                        status = roundTrip(PendingRequest.Kind.ACQUIRE, lockId, encodedId).getStatus();
+                        held.acquired(lockId, null, status);
+                    }
+                } finally {
+                    readLock.unlock();
+                }
+            }
+        } catch (Exception e) {
+            if (event != null) {
+                event.failed(e);
+            }
+            throw e;
+        }
+        if (event != null) {
+            event.finished(status);
+        }
+        return (status);
     }
 
     /**
@@ -180,24 +707,13 @@ public class SimpleClient implements BlockdClient {
     @Override
     public String acquire(String lockId, int timeout) throws Exception {
 
-        JSONObject request = new JSONObject();
-        request.put("command", "ACQUIRE");
-        request.put("lockId", lockId);
-        request.put("nonce", System.currentTimeMillis());
-        request.put("timeout", timeout);
-        request.put("mode", "W");
-        sendCommand(request);
-        JSONObject response = readResponse();
-        if ( response.getString("status").equals("LOCKPENDING") ) {
-            while (inputStream.available() == 0) {
-                Thread.sleep(100);
-            }
-            response = readResponse();
-            if ( response.getString("status").equals("ACQUIRETIMEOUT") ) {
-                throw new Exception("ACQUIRETIMEOUT for " + lockId);
-            }
-        }
-        return ( response.getString("status") );
+        return (acquire(lockId, timeout, "W"));
+    }
+
+    @Override
+    public String acquire(LockKey key, int timeout) throws Exception {
+
+        return (acquire(key, timeout, "W"));
     }
 
     /**
@@ -213,117 +729,882 @@ public class SimpleClient implements BlockdClient {
     @Override
     public String acquire(String lockId, int timeout, String mode) throws Exception {
 
-        JSONObject request = new JSONObject();
-        request.put("command", "ACQUIRE");
-        request.put("lockId", lockId);
-        request.put("nonce", System.currentTimeMillis());
-        request.put("timeout", timeout);
-        request.put("mode", mode);
-        sendCommand(request);
-        JSONObject response = readResponse();
-        if ( response.getString("status").equals("LOCKPENDING") ) {
-            while (inputStream.available() == 0) {
-                Thread.sleep(100);
+        return (acquire(lockId, null, timeout, mode, true));
+    }
+
+    @Override
+    public String acquire(LockKey key, int timeout, String mode) throws Exception {
+
+        return (acquire(key.getLockId(), key.encoded(), timeout, mode, true));
+    }
+
+    /**
+     * Like <code>acquire(lockId, timeout, mode)</code>, but a timeout is
+     * reported by returning false rather than by an exception.
+     *
+     * @param lockId  The identifier to lock
+     * @param timeout The amount of time to wait for a lock.
+     * @param mode    'W'rite or 'R'ead mode
+     * @return true if the lock was acquired.
+     * @throws Exception
+     */
+    @Override
+    public boolean tryAcquire(String lockId, int timeout, String mode) throws Exception {
+
+        return ("LOCKACQUIRED".equals(acquire(lockId, null, timeout, mode, false)));
+    }
+
+    @Override
+    public boolean tryAcquire(LockKey key, int timeout, String mode) throws Exception {
+
+        return ("LOCKACQUIRED".equals(acquire(key.getLockId(), key.encoded(), timeout, mode, false)));
+    }
+
+    private String acquire(String lockId, byte[] encodedId, int timeout, String mode, boolean timeoutIsError)
+            throws Exception {
+
+        if (held.enter(lockId, mode)) {
+            return ("LOCKACQUIRED");
+        }
+        ClientEvents.Event event = ClientEvents.acquire(host, port, lockId, mode, timeout);
+        String status;
+        try {
+            status = pipelined ? acquirePipelined(lockId, encodedId, timeout, mode, timeoutIsError, event)
+                               : acquireBlocking(lockId, encodedId, timeout, mode, timeoutIsError, event);
+        } catch (Exception e) {
+            if (event != null) {
+                event.failed(e);
             }
-            response = readResponse();
-            if ( response.getString("status").equals("ACQUIRETIMEOUT") ) {
-                throw new Exception("ACQUIRETIMEOUT for " + lockId);
+            throw e;
+        }
+        if (event != null) {
+            event.finished(status);
+        }
+        return (status);
+    }
+
+    private String acquirePipelined(String lockId, byte[] encodedId, int timeout, String mode,
+                                    boolean timeoutIsError, ClientEvents.Event event) throws Exception {
+
+        CompletableFuture<String> future = held.enter(lockId, mode, timeout,
+                                                      left -> submit(PendingRequest.Kind.ACQUIRE, lockId, encodedId,
+                                                                     left, mode, timeoutIsError, event));
+        try {
+            return (Futures.await(future, Futures.pendingDeadline(timeout, pendingGrace), "ACQUIRE " + lockId));
+        } catch (SocketTimeoutException e) {
+            Futures.releaseWhenGranted(this, future, lockId);
+            throw e;
+        }
+    }
+
+    private String acquireBlocking(String lockId, byte[] encodedId, int timeout, String mode,
+                                   boolean timeoutIsError, ClientEvents.Event event) throws Exception {
+
+        String status;
+        readLock.lock();
+        try {
+            // Granted while we waited for the connection?
+            if (held.enter(lockId, mode)) {
+                return ("LOCKACQUIRED");
             }
+            long begun = metrics.begin();
+            metrics.acquired(lockId);
+            try {
+                sendCommand(PendingRequest.Kind.ACQUIRE, lockId, encodedId, timeout, mode);
+                Response response = awaitResponse();
+                if ( "LOCKPENDING".equals(response.getStatus()) ) {
+                    response = awaitPending(lockId, timeout, event);
+                    if ( timeoutIsError && "ACQUIRETIMEOUT".equals(response.getStatus()) ) {
+                        throw new AcquireTimeoutException(lockId);
+                    }
+                }
+                status = response.getStatus();
+            } catch (Exception e) {
+                metrics.end(PendingRequest.Kind.ACQUIRE, begun, null, e);
+                throw e;
+            }
+            metrics.end(PendingRequest.Kind.ACQUIRE, begun, status, null);
+            held.acquired(lockId, mode, status);
+        } finally {
+            readLock.unlock();
         }
-        return ( response.getString("status") );
+        return ( status );
     }
 
     /**
-     * Releases the specified lock identifier.
+     * Blocks on the socket until the server follows up a LOCKPENDING. The
+     * read deadline is the ACQUIRE timeout plus the grace period; if the
+     * server stays silent past that it is presumed dead and the connection
+     * is closed, since a late answer would otherwise be read as the response
+     * to the next command.
+     *
+     * @param lockId  The pending lock.
+     * @param timeout The ACQUIRE timeout.
+     * @param event   The ACQUIRE's flight recorder event, or null.
+     * @return The LOCKACQUIRED or ACQUIRETIMEOUT response.
+     * @throws Exception
+     */
+    private Response awaitPending(String lockId, int timeout, ClientEvents.Event event) throws Exception {
+
+        int deadline = Futures.pendingDeadline(timeout, pendingGrace);
+        int previous = socket.getSoTimeout();
+        socket.setSoTimeout(deadline);
+        long since = System.nanoTime();
+        boolean answered = false;
+        try {
+            Response response = readResponse();
+            answered = true;
+            return (response);
+        } catch (SocketTimeoutException e) {
+            socket.close();
+            throw new SocketTimeoutException("No answer to ACQUIRE " + lockId + " within " + deadline + "ms");
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        } finally {
+            long waited = metrics.pendingEnded(lockId, since, !answered);
+            if (event != null) {
+                event.pending(waited);
+            }
+            if (!socket.isClosed()) {
+                socket.setSoTimeout(previous);
+            }
+        }
+    }
+
+    /**
+     * Releases the specified lock identifier. Only the release matching
+     * the first acquire goes to the server; see {@link HeldLockRegistry}.
      *
      * @param lockId The lock identifier to release
      * @return
+     * @throws NoLockToReleaseException If the lock is not held.
      * @throws Exception
      */
     @Override
     public String release(String lockId) throws Exception {
 
-        JSONObject request = new JSONObject();
-        request.put("command", "RELEASE");
-        request.put("lockId", lockId);
-        request.put("nonce", System.currentTimeMillis());
-        sendCommand(request);
-        JSONObject response = readResponse();
-        if ("NOLOCKTORELEASE".equals(response.getString("status")) ) {
-            throw new Exception("NOLOCKTORELEASE for " + lockId);
+        return (release(lockId, null));
+    }
+
+    @Override
+    public String release(LockKey key) throws Exception {
+
+        return (release(key.getLockId(), key.encoded()));
+    }
+
+    private String release(String lockId, byte[] encodedId) throws Exception {
+
+        int left = held.exit(lockId);
+        if (left < 0) {
+            throw new NoLockToReleaseException(lockId);
+        }
+        if (left > 0) {
+            return ("LOCKRELEASED");
         }
-        return (response.getString("status"));
+        ClientEvents.Event event = ClientEvents.release(host, port, lockId);
+        String status;
+        try {
+            if (pipelined) {
+                status = (String) call(PendingRequest.Kind.RELEASE, lockId, encodedId);
+            } else {
+                readLock.lock();
+                try {
+                    status = roundTrip(PendingRequest.Kind.RELEASE, lockId, encodedId).getStatus();
+                } finally {
+                    readLock.unlock();
+                }
+                if ("NOLOCKTORELEASE".equals(status) ) {
+                    throw new NoLockToReleaseException(lockId);
+                }
+            }
+        } catch (Exception e) {
+            if (event != null) {
+                event.failed(e);
+            }
+            throw e;
+        }
+        if (event != null) {
+            event.finished(status);
+        }
+        return (status);
     }
 
     /**
-     * Calls blockd's command to release all locked items.
+     * Calls blockd's command to release all locked items. A RELEASEALL gets
+     * one response per released lock and nothing to mark the end, so it is
+     * followed by a WISDOM whose quote marks the end instead. Skipped when
+     * nothing is held.
      *
      * @return
      * @throws Exception
      */
     @Override
+    @SuppressWarnings("unchecked")
     public List<String> releaseAll() throws Exception {
 
+        if (held.isEmpty()) {
+            return (new ArrayList<String>());
+        }
+        ClientEvents.Event event = ClientEvents.releaseAll(host, port);
+        List<String> lockIds;
+        try {
+            lockIds = pipelined ? (List<String>) call(PendingRequest.Kind.RELEASEALL, null) : releaseAllBlocking();
+        } catch (Exception e) {
+            if (event != null) {
+                event.failed(e);
+            }
+            throw e;
+        }
+        held.forget(lockIds);
+        if (event != null) {
+            event.released(lockIds.size());
+            event.finished("OK");
+        }
+        return (lockIds);
+    }
+
+    /**
+     * RELEASEALL and its WISDOM fence as a blocking round trip.
+     *
+     * @return The released lock ids.
+     */
+    private List<String> releaseAllBlocking() throws Exception {
+
         List<String> lockIds = new ArrayList<String>();
-        JSONObject request = new JSONObject();
-        request.put("command", "RELEASEALL");
-        request.put("nonce", System.currentTimeMillis());
-        sendCommand(request);
-        JSONObject response = readResponse();
-        if ( "NOLOCKSTORELEASEALL".equals(response.getString("status")) == false ) {
-            lockIds.add(response.getString("lockId"));
-            while ( inputStream.available() > 0 ) {
-                response = readResponse();
-                lockIds.add(response.getString("lockId"));
+        readLock.lock();
+        try {
+            long begun = metrics.begin();
+            try {
+                writeLock.lock();
+                try {
+                    writeCommand(PendingRequest.Kind.RELEASEALL, null, null, CommandEncoder.NO_TIMEOUT, null);
+                    writeCommand(PendingRequest.Kind.WISDOM, null, null, CommandEncoder.NO_TIMEOUT, null);
+                    flush();
+                } finally {
+                    writeLock.unlock();
+                }
+                Response response = awaitResponse();
+                while ( !response.hasQuote() ) {
+                    if ( "NOLOCKSTORELEASEALL".equals(response.getStatus()) == false ) {
+                        lockIds.add(response.getLockId());
+                    }
+                    response = awaitResponse();
+                }
+            } catch (Exception e) {
+                metrics.end(PendingRequest.Kind.RELEASEALL, begun, null, e);
+                throw e;
             }
+            metrics.end(PendingRequest.Kind.RELEASEALL, begun, null, null);
+        } finally {
+            readLock.unlock();
         }
         return (lockIds);
     }
 
+    /**
+     * See {@link BlockdClient#acquireAll(Collection, int, String)}. The
+     * non-waiting first attempts are only pipelined in pipelined mode.
+     *
+     * @param lockIds
+     * @param timeout
+     * @param mode
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public List<String> acquireAll(Collection<String> lockIds, int timeout, String mode) throws Exception {
+
+        return (BatchLocks.acquireAll(lockId -> this, lockIds, timeout, mode, pendingGrace));
+    }
+
+    /**
+     * See {@link BlockdClient#releaseAll(Collection)}. Only pipelined in
+     * pipelined mode.
+     *
+     * @param lockIds
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public List<String> releaseAll(Collection<String> lockIds) throws Exception {
+
+        return (BatchLocks.releaseAll(lockId -> this, lockIds));
+    }
+
+    /**
+     * Connects on the calling thread; provided so a pipelined client can
+     * be used through <code>AsyncBlockdClient</code>.
+     *
+     * @return A completed future.
+     */
+    @Override
+    public CompletableFuture<Void> connectAsync() {
+
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        try {
+            connect();
+            future.complete(null);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return (future);
+    }
+
+    /**
+     * In pipelined mode the QUIT is sent and the returned future completes
+     * once the connection is closed. Otherwise the call blocks.
+     *
+     * @return
+     */
+    @Override
+    public CompletableFuture<Void> quitAsync() {
+
+        if (!pipelined) {
+            CompletableFuture<Void> future = new CompletableFuture<Void>();
+            try {
+                quit();
+                future.complete(null);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+            return (future);
+        }
+        CompletableFuture<Void> future = submit(PendingRequest.Kind.QUIT, null, null, CommandEncoder.NO_TIMEOUT, null,
+                                                false);
+        return (future.thenRun(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    outputStream.close();
+                    inputStream.close();
+                    socket.close();
+                } catch (IOException e) {
+                    // The server already hung up.
+                }
+            }
+        }));
+    }
+
+    /**
+     * See {@link #quitAsync()}; the other async methods also only pipeline
+     * in pipelined mode and otherwise return an already completed future.
+     *
+     * @return
+     */
+    @Override
+    public CompletableFuture<String> wisdomAsync() {
+
+        if (!pipelined) {
+            try {
+                return (CompletableFuture.completedFuture(wisdom()));
+            } catch (Exception e) {
+                return (Futures.failed(e));
+            }
+        }
+        return (submit(PendingRequest.Kind.WISDOM, null, null, CommandEncoder.NO_TIMEOUT, null, false));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> showAsync() {
+
+        if (!pipelined) {
+            try {
+                return (CompletableFuture.completedFuture(show()));
+            } catch (Exception e) {
+                return (Futures.failed(e));
+            }
+        }
+        return (showLocksAsync().thenApply(locks -> locks.getLockIds()));
+    }
+
+    @Override
+    public CompletableFuture<ShowResult> showLocksAsync() {
+
+        if (!pipelined) {
+            try {
+                return (CompletableFuture.completedFuture(showLocks()));
+            } catch (Exception e) {
+                return (Futures.failed(e));
+            }
+        }
+        return (submit(PendingRequest.Kind.SHOW, null, null, CommandEncoder.NO_TIMEOUT, null, false));
+    }
+
+    @Override
+    public CompletableFuture<String> acquireAsync(String lockId) {
+
+        if (!pipelined) {
+            try {
+                return (CompletableFuture.completedFuture(acquire(lockId)));
+            } catch (Exception e) {
+                return (Futures.failed(e));
+            }
+        }
+        return (held.enter(lockId, null, CommandEncoder.NO_TIMEOUT,
+                           left -> submit(PendingRequest.Kind.ACQUIRE, lockId, null, left, null, false)));
+    }
+
+    @Override
+    public CompletableFuture<String> acquireAsync(String lockId, int timeout) {
+
+        return (acquireAsync(lockId, timeout, "W"));
+    }
+
+    @Override
+    public CompletableFuture<String> acquireAsync(String lockId, int timeout, String mode) {
+
+        if (!pipelined) {
+            try {
+                return (CompletableFuture.completedFuture(acquire(lockId, timeout, mode)));
+            } catch (Exception e) {
+                return (Futures.failed(e));
+            }
+        }
+        return (held.enter(lockId, mode, timeout,
+                           left -> submit(PendingRequest.Kind.ACQUIRE, lockId, null, left, mode, true)));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> tryAcquireAsync(String lockId, int timeout, String mode) {
+
+        if (!pipelined) {
+            try {
+                return (CompletableFuture.completedFuture(tryAcquire(lockId, timeout, mode)));
+            } catch (Exception e) {
+                return (Futures.failed(e));
+            }
+        }
+        return (held.enter(lockId, mode, timeout,
+                           left -> submit(PendingRequest.Kind.ACQUIRE, lockId, null, left, mode, false))
+                    .thenApply(status -> "LOCKACQUIRED".equals(status)));
+    }
+
+    @Override
+    public CompletableFuture<String> releaseAsync(String lockId) {
+
+        if (!pipelined) {
+            try {
+                return (CompletableFuture.completedFuture(release(lockId)));
+            } catch (Exception e) {
+                return (Futures.failed(e));
+            }
+        }
+        int left = held.exit(lockId);
+        if (left < 0) {
+            return (Futures.failed(new NoLockToReleaseException(lockId)));
+        }
+        if (left > 0) {
+            return (CompletableFuture.completedFuture("LOCKRELEASED"));
+        }
+        return (submit(PendingRequest.Kind.RELEASE, lockId, null, CommandEncoder.NO_TIMEOUT, null, false));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> releaseAllAsync() {
+
+        if (!pipelined) {
+            try {
+                return (CompletableFuture.completedFuture(releaseAll()));
+            } catch (Exception e) {
+                return (Futures.failed(e));
+            }
+        }
+        if (held.isEmpty()) {
+            return (CompletableFuture.completedFuture((List<String>) new ArrayList<String>()));
+        }
+        CompletableFuture<List<String>> future = submit(PendingRequest.Kind.RELEASEALL, null, null,
+                                                        CommandEncoder.NO_TIMEOUT, null, false);
+        return (future.thenApply(lockIds -> {
+            held.forget(lockIds);
+            return (lockIds);
+        }));
+    }
+
+    /**
+     * Pipelined round trip: sends a command without timeout or mode and
+     * waits for the reader thread to complete it.
+     */
+    private Object call(PendingRequest.Kind kind, String lockId) throws Exception {
+
+        return (call(kind, lockId, null));
+    }
+
+    private Object call(PendingRequest.Kind kind, String lockId, byte[] encodedId) throws Exception {
+
+        CompletableFuture<Object> future = submit(kind, lockId, encodedId, CommandEncoder.NO_TIMEOUT, null, false);
+        return (Futures.await(future));
+    }
+
+    /**
+     * Blocking round trip for a command without timeout or mode. The caller
+     * holds the read lock, so concurrent callers cannot read each other's
+     * responses.
+     *
+     * @return The response, valid until the next read.
+     */
+    private Response roundTrip(PendingRequest.Kind kind, String lockId) throws Exception {
+
+        return (roundTrip(kind, lockId, null));
+    }
+
+    private Response roundTrip(PendingRequest.Kind kind, String lockId, byte[] encodedId) throws Exception {
+
+        long begun = metrics.begin();
+        if (kind == PendingRequest.Kind.ACQUIRE) {
+            metrics.acquired(lockId);
+        }
+        Response response;
+        try {
+            sendCommand(kind, lockId, encodedId, CommandEncoder.NO_TIMEOUT, null);
+            response = awaitResponse();
+        } catch (Exception e) {
+            metrics.end(kind, begun, null, e);
+            throw e;
+        }
+        metrics.end(kind, begun, response.getStatus(), null);
+        return (response);
+    }
+
+    /**
+     * Pipelined send. The request is registered with the dispatcher under
+     * the write lock, right before it is written, so the dispatcher sees
+     * requests in wire order.
+     * <p>
+     * The command is flushed unless another sender is already on its way
+     * to the write lock, or a group flush is scheduled; either will flush it
+     * along with its own. With a flush delay, a sender that finds nobody to
+     * leave the flush to schedules a group flush after the delay instead.
+     */
+    private <T> CompletableFuture<T> submit(PendingRequest.Kind kind, String lockId, byte[] encodedId, int timeout,
+                                            String mode, boolean timeoutIsError) {
+
+        return (submit(kind, lockId, encodedId, timeout, mode, timeoutIsError, null));
+    }
+
+    private <T> CompletableFuture<T> submit(PendingRequest.Kind kind, String lockId, byte[] encodedId, int timeout,
+                                            String mode, boolean timeoutIsError, ClientEvents.Event event) {
+
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        PendingRequest pending = new PendingRequest(kind, lockId, timeoutIsError, future);
+        pending.event = event;
+        try {
+            boolean leader = false;
+            writers.incrementAndGet();
+            writeLock.lock();
+            try {
+                boolean last = writers.decrementAndGet() == 0;
+                if (dispatcher == null) {
+                    throw new IOException("Not connected.");
+                }
+                pending.nonce = nonce + 1;
+                if (kind == PendingRequest.Kind.RELEASEALL) {
+                    pending.fenceNonce = nonce + 2;
+                }
+                pending.measure(metrics);
+                dispatchLock.lock();
+                try {
+                    dispatcher.add(pending);
+                } finally {
+                    dispatchLock.unlock();
+                }
+                writeCommand(kind, lockId, encodedId, timeout, mode);
+                if (kind == PendingRequest.Kind.RELEASEALL) {
+                    writeCommand(PendingRequest.Kind.WISDOM, null, null, CommandEncoder.NO_TIMEOUT, null);
+                }
+                if (unflushed >= flushThreshold) {
+                    flush();
+                } else if (last && !flushPending) {
+                    if (flushDelay > 0) {
+                        flushPending = true;
+                        leader = true;
+                    } else {
+                        flush();
+                    }
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            if (leader) {
+                Timer.get().schedule(() -> ForkJoinPool.commonPool().execute(this::groupFlush), flushDelay,
+                                     TimeUnit.MICROSECONDS);
+            }
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return (future);
+    }
+
+    /**
+     * The flush scheduled by a pipelined send with a flush delay; writes
+     * whatever has gathered since. Run off the timer thread, since the
+     * write may block. If it fails the socket is closed, and the reader
+     * fails the requests.
+     */
+    private void groupFlush() {
+
+        writeLock.lock();
+        try {
+            flushPending = false;
+            if (unflushed > 0 && dispatcher != null) {
+                flush();
+            }
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Closing is all we wanted.
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * The body of the pipelined reader thread: reads responses until the
+     * connection goes away and hands each one to the dispatcher. A read
+     * timeout only ends the connection if a request has been waiting that
+     * long for its first response.
+     */
+    private void readLoop() {
+
+        ResponseDispatcher dispatcher = this.dispatcher;
+        Socket socket = this.socket;
+        try {
+            while (true) {
+                PendingRequest request;
+                readLock.lock();
+                try {
+                    Response response;
+                    try {
+                        response = readResponse();
+                    } catch (SocketTimeoutException e) {
+                        if (!overdue(dispatcher)) {
+                            continue;
+                        }
+                        socket.close();
+                        throw timedOut();
+                    }
+                    dispatchLock.lock();
+                    try {
+                        request = dispatcher.dispatch(response);
+                    } finally {
+                        dispatchLock.unlock();
+                    }
+                } finally {
+                    readLock.unlock();
+                }
+                if (request != null && request.kind == PendingRequest.Kind.QUIT) {
+                    request.complete(null);
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            dispatchLock.lock();
+            try {
+                dispatcher.failAll(e);
+            } finally {
+                dispatchLock.unlock();
+            }
+        }
+        writeLock.lock();
+        try {
+            if (this.dispatcher == dispatcher) {
+                this.dispatcher = null;
+                connected = false;
+                if (!held.isEmpty()) {
+                    lost = held.getHeld();
+                }
+                held.clear();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        dispatchLock.lock();
+        try {
+            dispatcher.failAll(new IOException("Connection closed."));
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    /**
+     * Has the oldest request waiting for its first response been waiting
+     * longer than the read timeout?
+     */
+    private boolean overdue(ResponseDispatcher dispatcher) {
+
+        long sentAt;
+        dispatchLock.lock();
+        try {
+            sentAt = dispatcher.oldestSentAt();
+        } finally {
+            dispatchLock.unlock();
+        }
+        long timeout = TimeUnit.MILLISECONDS.toNanos(socketOptions.getReadTimeout());
+        return (sentAt >= 0 && System.nanoTime() - sentAt >= timeout);
+    }
+
     /**
      * This private method is a convenience method to print to
      * the socket.
      *
-     * @param cmd The string to be printed.
      * @throws Exception
      */
-    private synchronized void sendCommand(JSONObject cmd) throws Exception {
+    private void sendCommand(PendingRequest.Kind kind, String lockId, byte[] encodedId, int timeout, String mode)
+            throws Exception {
 
-        System.out.println("SEND: " + cmd.toString());
-        outputStream.write(cmd.toString().getBytes());
-        outputStream.write('\n');
-        outputStream.flush();
+        writeLock.lock();
+        try {
+            writeCommand(kind, lockId, encodedId, timeout, mode);
+            flush();
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     /**
-     * This private method is a convenience method to read from
-     * the socket, up to 1024 characters.
-     *
-     * @return The string that was read.
-     * @throws IOException
+     * Flushes the written commands to the socket. With a write timeout the
+     * socket is closed if the flush takes longer, which also ends the
+     * flush. The caller holds the write lock.
      */
-    private synchronized JSONObject readResponse() throws Exception {
+    private void flush() throws IOException {
+
+        unflushed = 0;
+        metrics.flushed();
+        int writeTimeout = socketOptions.getWriteTimeout();
+        if (writeTimeout <= 0) {
+            outputStream.flush();
+            return;
+        }
+        final Socket socket = this.socket;
+        ScheduledFuture<?> deadline = Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
 
-        int maxBytes = 1024;
-        byte[] buffer = new byte[maxBytes];
-        int curbyte = 0;
-        int bytesRead = 0;
-        while (true) {
-            curbyte = inputStream.read();
-            if (curbyte < 0 || curbyte == '\n') {
-                break;
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Closing is all we wanted.
+                }
             }
-            if (curbyte != '\r') {
-                buffer[bytesRead++] = (byte) curbyte;
+        }, writeTimeout, TimeUnit.MILLISECONDS);
+        try {
+            outputStream.flush();
+        } catch (IOException e) {
+            if (!deadline.cancel(false)) {
+                throw new SocketTimeoutException("Write to " + host + ":" + port + " did not finish within "
+                                                 + writeTimeout + "ms");
             }
-            if (bytesRead >= maxBytes) {
-                throw new IOException("readResponse: Line length exceeded "
-                                              + maxBytes + " bytes!");
+            throw e;
+        }
+        deadline.cancel(false);
+    }
+
+    /**
+     * Encodes one command, stamped with the next nonce, and writes it. The
+     * caller holds the write lock and flushes.
+     */
+    private void writeCommand(PendingRequest.Kind kind, String lockId, byte[] encodedId, int timeout, String mode)
+            throws IOException {
+
+        encoder.command(kind, lockId, encodedId, timeout, mode, ++nonce);
+        trace.sent(encoder.buffer(), 0, encoder.length() - 1);
+        metrics.sent(encoder.length());
+        unflushed += encoder.length();
+        encoder.writeTo(outputStream);
+    }
+
+    /**
+     * A WISDOM for the cluster health checks that fails after
+     * <code>timeout</code> milliseconds, however the connection is
+     * configured. In blocking mode it is sent with the socket's read timeout
+     * lowered to <code>timeout</code>; a connection that stays busy with
+     * another command for that long is not probed, since that command
+     * waits under deadlines of its own.
+     *
+     * @param timeout In milliseconds.
+     * @throws SocketTimeoutException If the server did not answer in time;
+     *                                the connection is closed.
+     * @throws Exception
+     */
+    void probe(int timeout) throws Exception {
+
+        if (pipelined) {
+            Futures.await(wisdomAsync(), timeout, "WISDOM");
+            return;
+        }
+        if (!readLock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+            return;
+        }
+        try {
+            Socket socket = this.socket;
+            int previous = socket.getSoTimeout();
+            socket.setSoTimeout(timeout);
+            try {
+                roundTrip(PendingRequest.Kind.WISDOM, null);
+            } finally {
+                if (!socket.isClosed()) {
+                    socket.setSoTimeout(previous);
+                }
             }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Reads a response in blocking mode. If none comes within the read
+     * timeout the connection is closed, since the late answer would
+     * otherwise be read as the response to the next command; so it is if
+     * the read fails.
+     *
+     * @return The parsed response, valid until the next read.
+     * @throws IOException
+     */
+    private Response awaitResponse() throws IOException {
+
+        try {
+            return (readResponse());
+        } catch (SocketTimeoutException e) {
+            socket.close();
+            throw timedOut();
+        } catch (IOException e) {
+            // The server is gone or the stream is out of step. Closing
+            // makes isConnected() say so, so a health check reconnects.
+            socket.close();
+            throw e;
+        }
+    }
+
+    private SocketTimeoutException timedOut() {
+
+        return (new SocketTimeoutException("No answer from " + host + ":" + port + " within "
+                                           + socketOptions.getReadTimeout() + "ms"));
+    }
+
+    /**
+     * This private method is a convenience method to read one response
+     * line from the socket. The caller holds the read lock.
+     *
+     * @return The parsed response, valid until the next read.
+     * @throws IOException
+     */
+    private Response readResponse() throws IOException {
+
+        lineReader.readLine(inputStream);
+        byte[] line = lineReader.buffer();
+        int start = lineReader.lineStart();
+        int length = lineReader.lineLength();
+        metrics.received(length + 1);
+        try {
+            parser.parse(line, start, length, response);
+        } catch (IOException e) {
+            trace.received(line, start, length, null, false);
+            throw e;
         }
-        String result = new String(buffer, 0, bytesRead);
-        System.out.println("RECV: " + result);
-        JSONObject response = new JSONObject(result);
+        trace.received(line, start, length, response.getStatus(), true);
         return ( response );
     }
 
@@ -0,0 +1,177 @@
+package com.frs.blockd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Socket settings for a client's connections: timeouts, so a dead or hung
+ * server is noticed instead of waited on forever, and the usual TCP
+ * options. Copied when handed to a client; changing it afterwards does not
+ * affect that client.
+ * <ul>
+ * <li>The connect timeout bounds <code>connect()</code>.</li>
+ * <li>The read timeout bounds the wait for the first answer to a command.
+ * A LOCKPENDING ACQUIRE then waits for its own timeout plus the pending
+ * grace, as before. When it runs out the connection is closed, because a
+ * late answer could no longer be matched.</li>
+ * <li>The write timeout bounds a write to a server that has stopped
+ * reading; the connection is closed when it runs out.</li>
+ * </ul>
+ * A timeout of 0 means none.
+ */
+public class SocketOptions {
+
+    /**
+     * The default connect timeout, in milliseconds.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout;
+    private int writeTimeout;
+    private boolean tcpNoDelay = true;
+    private boolean keepAlive;
+    private int sendBufferSize;
+    private int receiveBufferSize;
+
+    /**
+     * Constructor with the defaults: a 5 second connect timeout, no read or
+     * write timeout, TCP_NODELAY on, system buffer sizes.
+     */
+    public SocketOptions() {
+        // Defaults.
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param other
+     */
+    public SocketOptions(SocketOptions other) {
+
+        this.connectTimeout = other.connectTimeout;
+        this.readTimeout = other.readTimeout;
+        this.writeTimeout = other.writeTimeout;
+        this.tcpNoDelay = other.tcpNoDelay;
+        this.keepAlive = other.keepAlive;
+        this.sendBufferSize = other.sendBufferSize;
+        this.receiveBufferSize = other.receiveBufferSize;
+    }
+
+    public int getConnectTimeout() {
+
+        return (connectTimeout);
+    }
+
+    /**
+     * @param connectTimeout In milliseconds; 0 for none.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getReadTimeout() {
+
+        return (readTimeout);
+    }
+
+    /**
+     * @param readTimeout In milliseconds; 0 for none.
+     */
+    public void setReadTimeout(int readTimeout) {
+
+        this.readTimeout = readTimeout;
+    }
+
+    public int getWriteTimeout() {
+
+        return (writeTimeout);
+    }
+
+    /**
+     * @param writeTimeout In milliseconds; 0 for none.
+     */
+    public void setWriteTimeout(int writeTimeout) {
+
+        this.writeTimeout = writeTimeout;
+    }
+
+    public boolean isTcpNoDelay() {
+
+        return (tcpNoDelay);
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean isKeepAlive() {
+
+        return (keepAlive);
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+
+        this.keepAlive = keepAlive;
+    }
+
+    public int getSendBufferSize() {
+
+        return (sendBufferSize);
+    }
+
+    /**
+     * @param sendBufferSize SO_SNDBUF in bytes; 0 leaves the system default.
+     */
+    public void setSendBufferSize(int sendBufferSize) {
+
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+
+        return (receiveBufferSize);
+    }
+
+    /**
+     * @param receiveBufferSize SO_RCVBUF in bytes; 0 leaves the system
+     *                          default.
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * Opens a socket to <code>host:port</code> with these options.
+     *
+     * @param host
+     * @param port
+     * @return
+     * @throws IOException
+     */
+    Socket open(String host, int port) throws IOException {
+
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(tcpNoDelay);
+            socket.setKeepAlive(keepAlive);
+            if (sendBufferSize > 0) {
+                socket.setSendBufferSize(sendBufferSize);
+            }
+            if (receiveBufferSize > 0) {
+                socket.setReceiveBufferSize(receiveBufferSize);
+            }
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return (socket);
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.frs.blockd;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The one daemon thread that write deadlines and cluster health checks are
+ * scheduled on. Tasks run on it must be short; anything that talks to a
+ * server is handed on to another executor.
+ */
+final class Timer {
+
+    private static ScheduledExecutorService timer;
+
+    private Timer() {
+        // No instances.
+    }
+
+    /**
+     * The shared timer, started on first use.
+     *
+     * @return
+     */
+    static synchronized ScheduledExecutorService get() {
+
+        if (timer == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+
+                    Thread thread = new Thread(runnable, "blockd-timer");
+                    thread.setDaemon(true);
+                    return (thread);
+                }
+            });
+            // Most write deadlines are cancelled; don't let them pile up.
+            executor.setRemoveOnCancelPolicy(true);
+            timer = executor;
+        }
+        return (timer);
+    }
+
+}
@@ -0,0 +1,29 @@
+package com.frs.blockd;
+
+import java.util.List;
+
+/**
+ * Told about membership changes of a {@link ClusterClient}. Called on the
+ * thread that made the change, once the new membership is in effect.
+ */
+public interface TopologyListener {
+
+    /**
+     * A node was added and now takes locks.
+     *
+     * @param node  The node, as <code>host:port</code>.
+     * @param nodes All nodes taking locks now.
+     */
+    public void nodeAdded(String node, List<String> nodes);
+
+    /**
+     * A node was removed and its connection closed.
+     *
+     * @param node        The node, as <code>host:port</code>.
+     * @param nodes       All nodes taking locks now.
+     * @param lostLockIds The locks it still held that could not be moved to
+     *                    their new node, and so are no longer held.
+     */
+    public void nodeRemoved(String node, List<String> nodes, List<String> lostLockIds);
+
+}
@@ -0,0 +1,24 @@
+package com.frs.blockd;
+
+/**
+ * How much of the wire traffic a client hands to its {@link WireTracer}.
+ */
+public enum TraceLevel {
+
+    /**
+     * Nothing is traced. This is the default.
+     */
+    OFF,
+
+    /**
+     * Only responses reporting a failure (ACQUIRETIMEOUT, NOLOCKTORELEASE)
+     * and lines that could not be parsed.
+     */
+    ERRORS,
+
+    /**
+     * Every command sent and every response received.
+     */
+    ALL
+
+}
@@ -0,0 +1,64 @@
+package com.frs.blockd;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual threads, where the JVM has them (Java 21 and later), without
+ * requiring them: the client is built for Java 8, so they are looked up
+ * reflectively.
+ * <p>
+ * The clients are safe to call from virtual threads. The blocking socket
+ * I/O in <code>SimpleClient</code> is guarded by
+ * <code>ReentrantLock</code>s, not monitors, so a virtual thread blocked
+ * on blockd unmounts from its carrier instead of pinning it; the monitors
+ * left elsewhere only guard short bookkeeping.
+ */
+public final class VirtualThreads {
+
+    private static final Method NEW_EXECUTOR = lookup();
+
+    private VirtualThreads() {
+        // Static methods only.
+    }
+
+    /**
+     * Does this JVM have virtual threads?
+     *
+     * @return
+     */
+    public static boolean isSupported() {
+
+        return (NEW_EXECUTOR != null);
+    }
+
+    /**
+     * A new executor that starts a virtual thread per task, e.g. for
+     * <code>ClusterClient.setExecutor()</code>.
+     *
+     * @return
+     * @throws UnsupportedOperationException Before Java 21.
+     */
+    public static ExecutorService newExecutor() {
+
+        if (NEW_EXECUTOR == null) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later.");
+        }
+        try {
+            return ((ExecutorService) NEW_EXECUTOR.invoke(null));
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads are not available.", e);
+        }
+    }
+
+    private static Method lookup() {
+
+        try {
+            return (Executors.class.getMethod("newVirtualThreadPerTaskExecutor"));
+        } catch (NoSuchMethodException e) {
+            return (null);
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.frs.blockd;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The per-client tracing switch. The hot path checks a single field and
+ * returns when tracing is off, so a disabled trace costs neither strings
+ * nor locks. Sampling draws from a thread-local random, so it adds no
+ * shared state between request threads either.
+ */
+final class WireTrace {
+
+    private final String connection;
+    private volatile TraceLevel level = TraceLevel.OFF;
+    private volatile WireTracer tracer;
+    private volatile int sampleRate = 1;
+
+    /**
+     * Constructor.
+     *
+     * @param host
+     * @param port
+     */
+    WireTrace(String host, int port) {
+
+        this.connection = host + ":" + port;
+    }
+
+    TraceLevel getLevel() {
+
+        return (level);
+    }
+
+    void setLevel(TraceLevel level) {
+
+        this.level = (level == null ? TraceLevel.OFF : level);
+    }
+
+    WireTracer getTracer() {
+
+        return (tracer);
+    }
+
+    void setTracer(WireTracer tracer) {
+
+        this.tracer = tracer;
+    }
+
+    int getSampleRate() {
+
+        return (sampleRate);
+    }
+
+    void setSampleRate(int sampleRate) {
+
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("Sample rate must be at least 1: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Traces a command line about to be written.
+     */
+    void sent(byte[] line, int offset, int length) {
+
+        if (level != TraceLevel.ALL) {
+            return;
+        }
+        emit(true, line, offset, length);
+    }
+
+    /**
+     * Traces a response line.
+     *
+     * @param status The parsed status, if any.
+     * @param parsed false if the line could not be parsed.
+     */
+    void received(byte[] line, int offset, int length, String status, boolean parsed) {
+
+        TraceLevel level = this.level;
+        if (level == TraceLevel.OFF) {
+            return;
+        }
+        if (level == TraceLevel.ERRORS && parsed && !isError(status)) {
+            return;
+        }
+        emit(false, line, offset, length);
+    }
+
+    private void emit(boolean sent, byte[] line, int offset, int length) {
+
+        WireTracer tracer = this.tracer;
+        if (tracer == null) {
+            return;
+        }
+        int sampleRate = this.sampleRate;
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        tracer.trace(connection, sent, line, offset, length);
+    }
+
+    private static boolean isError(String status) {
+
+        return ("ACQUIRETIMEOUT".equals(status) || "NOLOCKTORELEASE".equals(status));
+    }
+
+}
@@ -0,0 +1,25 @@
+package com.frs.blockd;
+
+/**
+ * Receives the protocol lines a client sends and receives, as selected by
+ * the client's {@link TraceLevel} and sample rate.
+ * <p>
+ * Tracers are called on the request (or event loop) thread with the line
+ * still in the client's reusable buffer, so an implementation must copy
+ * what it needs before returning and must not block.
+ * {@link RingBufferTracer} is a ready-made one.
+ */
+public interface WireTracer {
+
+    /**
+     * Traces one protocol line.
+     *
+     * @param connection The connection, as <code>host:port</code>.
+     * @param sent       true for a command sent, false for a response received.
+     * @param line       The buffer holding the line; only valid during the call.
+     * @param offset     Where the line starts.
+     * @param length     The line length, without the line terminator.
+     */
+    public void trace(String connection, boolean sent, byte[] line, int offset, int length);
+
+}
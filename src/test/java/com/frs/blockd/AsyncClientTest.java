@@ -0,0 +1,112 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+@Test
+public class AsyncClientTest {
+
+
+    @Test
+    public void testHelloGoodbye() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            AsyncClient client = new AsyncClient(server.getHost(), server.getPort());
+            client.connect();
+            assert(client.isConnected());
+            client.quit();
+            assert(!client.isConnected());
+        }
+    }
+
+    @Test
+    public void testWisdom() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            AsyncClient client = new AsyncClient(server.getHost(), server.getPort());
+            client.connect();
+            String wisdom = client.wisdomAsync().get();
+            assert(wisdom != null && wisdom.length() > 0 );
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testManyInFlight() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            AsyncClient client = new AsyncClient(server.getHost(), server.getPort());
+            client.connect();
+            List<CompletableFuture<String>> acquires = new ArrayList<CompletableFuture<String>>();
+            for (int i = 0; i < 100; i++) {
+                acquires.add(client.acquireAsync("AsyncHello" + i, 1000));
+            }
+            for (CompletableFuture<String> acquire : acquires) {
+                String status = acquire.get();
+                assert("LOCKACQUIRED".equals(status));
+            }
+            List<String> released = client.releaseAllAsync().get();
+            assert(released.size() == 100);
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testPendingGrantedAfterRelease() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            AsyncClient clientOne = new AsyncClient(server.getHost(), server.getPort());
+            AsyncClient clientTwo = new AsyncClient(server.getHost(), server.getPort());
+            clientOne.connect();
+            clientTwo.connect();
+            clientOne.acquire("AsyncPending", 1000);
+            CompletableFuture<String> pending = clientTwo.acquireAsync("AsyncPending", 5000);
+            clientOne.release("AsyncPending");
+            String status = pending.get();
+            assert("LOCKACQUIRED".equals(status));
+            clientTwo.release("AsyncPending");
+            clientOne.quit();
+            clientTwo.quit();
+        }
+    }
+
+    @Test
+    public void testAcquireLockTimeout() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            AsyncClient clientOne = new AsyncClient(server.getHost(), server.getPort());
+            AsyncClient clientTwo = new AsyncClient(server.getHost(), server.getPort());
+            clientOne.connect();
+            clientTwo.connect();
+            clientOne.acquire("AsyncTimeout");
+            try {
+                clientTwo.acquire("AsyncTimeout", 500);
+                assert(false);
+            } catch (AcquireTimeoutException e) {
+                // Expected.
+            }
+            clientOne.quit();
+            clientTwo.quit();
+        }
+    }
+
+    @Test
+    public void testReleaseNonLockedId() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            AsyncClient client = new AsyncClient(server.getHost(), server.getPort());
+            client.connect();
+            try {
+                client.release("NeverLocked");
+                assert(false);
+            } catch (NoLockToReleaseException e) {
+                // Expected.
+            }
+            client.quit();
+        }
+    }
+
+}
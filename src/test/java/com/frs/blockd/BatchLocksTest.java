@@ -0,0 +1,202 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+@Test
+public class BatchLocksTest {
+
+
+    @Test
+    public void testAcquireAllReleaseAll() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+            client.setPipelined(true);
+            client.connect();
+            List<String> ids = ids("BatchHello", 50);
+            Collections.shuffle(ids);
+            List<String> acquired = client.acquireAll(ids, 1000, "W");
+            assert(acquired.size() == 50);
+            assert(acquired.get(0).equals("BatchHello0"));
+            List<String> released = client.releaseAll(ids);
+            assert(released.size() == 50);
+            released = client.releaseAll(ids);
+            assert(released.isEmpty());
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testRollback() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient clientOne = new SimpleClient(server.getHost(), server.getPort());
+            clientOne.connect();
+            AsyncClient clientTwo = new AsyncClient(server.getHost(), server.getPort());
+            clientTwo.connect();
+            clientTwo.acquire("BatchRollback5");
+
+            List<String> ids = ids("BatchRollback", 10);
+            try {
+                clientOne.acquireAll(ids, 200, "W");
+                assert(false);
+            } catch (AcquireTimeoutException e) {
+                assert(e.getLockId().equals("BatchRollback5"));
+            }
+            // Nothing from the failed batch is left held.
+            List<String> released = clientOne.releaseAll(ids);
+            assert(released.isEmpty());
+
+            clientTwo.release("BatchRollback5");
+            List<String> acquired = clientTwo.acquireAll(ids, 0, "W");
+            assert(acquired.size() == 10);
+            clientTwo.releaseAll(ids);
+            clientOne.quit();
+            clientTwo.quit();
+        }
+    }
+
+    @Test
+    public void testFailedNodeKeepsEarlierHolds() throws Exception {
+
+        try (StandInServer live = new StandInServer()) {
+            StandInServer dead = new StandInServer();
+            ClusterClient cluster = new ClusterClient();
+            cluster.setHealthCheckInterval(0);
+            cluster.setPipelined(true);
+            cluster.addNode(live.getHost(), live.getPort());
+            cluster.addNode(dead.getHost(), dead.getPort());
+            cluster.connect();
+            // One id on the live node, held before the batch, and one on
+            // the node that goes away.
+            String kept = null;
+            String lost = null;
+            for (int i = 0; kept == null || lost == null; i++) {
+                String lockId = "BatchFailed" + i;
+                if (cluster.whichNode(lockId) == 0) {
+                    kept = (kept == null ? lockId : kept);
+                } else {
+                    lost = (lost == null ? lockId : lost);
+                }
+            }
+            cluster.acquire(kept);
+            dead.close();
+            Thread.sleep(100);
+            try {
+                cluster.acquireAll(Arrays.asList(kept, lost), 1000, "W");
+                assert(false);
+            } catch (AcquireTimeoutException e) {
+                throw e;
+            } catch (Exception e) {
+                // The dead node failed the batch.
+            }
+            // The batch's own hold on kept is gone, the one from before is not.
+            String status = cluster.release(kept);
+            assert(status.equals("LOCKRELEASED"));
+            cluster.quitEach();
+        }
+    }
+
+    @Test
+    public void testWaitsForHeldLock() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            final SimpleClient holder = new SimpleClient(server.getHost(), server.getPort());
+            holder.connect();
+            holder.acquire("BatchWait3");
+            AsyncClient client = new AsyncClient(server.getHost(), server.getPort());
+            client.connect();
+
+            Thread releaser = new Thread(() -> {
+                try {
+                    Thread.sleep(200);
+                    holder.release("BatchWait3");
+                } catch (Exception e) {
+                    // The batch then times out and the test fails.
+                }
+            });
+            releaser.start();
+            List<String> ids = ids("BatchWait", 6);
+            List<String> acquired = client.acquireAll(ids, 5000, "W");
+            assert(acquired.size() == 6);
+            releaser.join();
+            List<String> released = client.releaseAll(ids);
+            assert(released.size() == 6);
+            holder.quit();
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testOverlappingBatchesDoNotDeadlock() throws Exception {
+
+        final List<String> forward = ids("BatchOverlap", 20);
+        final List<String> backward = new ArrayList<String>(forward);
+        Collections.reverse(backward);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try (final StandInServer server = new StandInServer()) {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (final List<String> ids : Arrays.asList(forward, backward)) {
+                results.add(pool.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+
+                        AsyncClient client = new AsyncClient(server.getHost(), server.getPort());
+                        client.connect();
+                        int batches = 0;
+                        for (int i = 0; i < 20; i++) {
+                            client.acquireAll(ids, 5000, "W");
+                            client.releaseAll(ids);
+                            batches++;
+                        }
+                        client.quit();
+                        return (batches);
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                int batches = result.get();
+                assert(batches == 20);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testClusterAcquireAll() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer()) {
+            ClusterClient cluster = new ClusterClient();
+            cluster.setHealthCheckInterval(0);
+            cluster.addNode(one.getHost(), one.getPort());
+            cluster.addNode(two.getHost(), two.getPort());
+            cluster.connect();
+            List<String> ids = ids("BatchCluster", 30);
+            List<String> acquired = cluster.acquireAll(ids, 1000, "W");
+            assert(acquired.size() == 30);
+            List<String> released = cluster.releaseAll(ids);
+            assert(released.size() == 30);
+            cluster.quit();
+        }
+    }
+
+    private List<String> ids(String prefix, int count) {
+
+        List<String> ids = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(prefix + i);
+        }
+        return (ids);
+    }
+
+}
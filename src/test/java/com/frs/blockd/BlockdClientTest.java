@@ -2,7 +2,14 @@ package com.frs.blockd;
 
 import org.testng.annotations.Test;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Test
 public class BlockdClientTest {
@@ -77,6 +84,49 @@ public class BlockdClientTest {
         client.releaseAll();
     }
 
+    @Test
+    public void testReentrantAcquire() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+            client.connect();
+            client.acquire("HelloReentrant");
+            String status = client.acquire("HelloReentrant");
+            assert(status.equals("LOCKACQUIRED"));
+            assert(client.getHeldLockRegistry().getHoldCount("HelloReentrant") == 2);
+            client.release("HelloReentrant");
+            List<String> lockIds = client.show();
+            assert(lockIds.contains("HelloReentrant"));
+            client.release("HelloReentrant");
+            assert(client.getHeldLocks().isEmpty());
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testConcurrentFirstAcquiresShareOneAcquire() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            server.setLatency(100, 0);
+            SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+            client.setPipelined(true);
+            client.connect();
+            long before = server.getCommandCount();
+            List<CompletableFuture<String>> acquires = new ArrayList<CompletableFuture<String>>();
+            for (int i = 0; i < 10; i++) {
+                acquires.add(client.acquireAsync("HelloSingleFlight", 5000, "W"));
+            }
+            for (CompletableFuture<String> acquire : acquires) {
+                String status = acquire.get();
+                assert(status.equals("LOCKACQUIRED"));
+            }
+            long sent = server.getCommandCount() - before;
+            assert(sent == 1) : sent;
+            assert(client.getHeldLockRegistry().getHoldCount("HelloSingleFlight") == 10);
+            client.quit();
+        }
+    }
+
     @Test(expectedExceptions = {Exception.class})
     public void testReleaseNonLockedId() throws Exception {
 
@@ -86,4 +136,122 @@ public class BlockdClientTest {
     }
 
 
+    @Test
+    public void testPipelined() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+            client.setPipelined(true);
+            client.connect();
+            List<CompletableFuture<String>> acquires = new ArrayList<CompletableFuture<String>>();
+            for (int i = 0; i < 50; i++) {
+                acquires.add(client.acquireAsync("Pipelined" + i, 1000));
+            }
+            for (CompletableFuture<String> acquire : acquires) {
+                String status = acquire.get();
+                assert("LOCKACQUIRED".equals(status));
+            }
+            List<String> released = client.releaseAll();
+            assert(released.size() == 50);
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testPipelinedLockPending() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient clientOne = new SimpleClient(server.getHost(), server.getPort());
+            SimpleClient clientTwo = new SimpleClient(server.getHost(), server.getPort());
+            clientOne.setPipelined(true);
+            clientTwo.setPipelined(true);
+            clientOne.connect();
+            clientTwo.connect();
+            clientOne.acquire("PipelinedPending", 1000);
+            CompletableFuture<String> pending = clientTwo.acquireAsync("PipelinedPending", 5000);
+            // Other commands keep flowing while the acquire is pending.
+            String wisdom = clientTwo.wisdom();
+            assert(wisdom != null);
+            assert(!pending.isDone());
+            clientOne.release("PipelinedPending");
+            String status = pending.get();
+            assert("LOCKACQUIRED".equals(status));
+            clientTwo.release("PipelinedPending");
+            clientOne.quit();
+            clientTwo.quit();
+        }
+    }
+
+    @Test
+    public void testPendingAcquireWakesOnGrant() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient clientOne = new SimpleClient(server.getHost(), server.getPort());
+            final SimpleClient clientTwo = new SimpleClient(server.getHost(), server.getPort());
+            clientOne.connect();
+            clientTwo.connect();
+            clientOne.acquire("PendingWake", 1000);
+            final long[] acquiredAt = new long[1];
+            Thread waiter = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        clientTwo.acquire("PendingWake", 5000);
+                        acquiredAt[0] = System.nanoTime();
+                    } catch (Exception e) {
+                        // acquiredAt stays zero
+                    }
+                }
+            };
+            waiter.start();
+            Thread.sleep(200);
+            long releasedAt = System.nanoTime();
+            clientOne.release("PendingWake");
+            waiter.join();
+            assert(acquiredAt[0] != 0);
+            // The old sleep-poll loop added up to 100ms here.
+            assert((acquiredAt[0] - releasedAt) / 1000000 < 50);
+            clientTwo.release("PendingWake");
+            clientOne.quit();
+            clientTwo.quit();
+        }
+    }
+
+    @Test(expectedExceptions = {SocketTimeoutException.class})
+    public void testPendingAcquireDeadline() throws Exception {
+
+        // A server that leaves the ACQUIRE pending forever.
+        final ServerSocket server = new ServerSocket(0);
+        Thread silent = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    OutputStream out = socket.getOutputStream();
+                    out.write("{\"status\":\"IMUSTBLOCKYOU\"}\n".getBytes());
+                    InputStream in = socket.getInputStream();
+                    while (in.read() != '\n') {
+                        // skip the ACQUIRE
+                    }
+                    out.write("{\"status\":\"LOCKPENDING\",\"lockId\":\"Silent\"}\n".getBytes());
+                    out.flush();
+                    in.read();
+                    socket.close();
+                } catch (Exception e) {
+                    // test over
+                }
+            }
+        };
+        silent.setDaemon(true);
+        silent.start();
+        try {
+            SimpleClient client = new SimpleClient("localhost", server.getLocalPort());
+            client.setPendingGrace(100);
+            client.connect();
+            client.acquire("Silent", 100);
+        } finally {
+            server.close();
+        }
+    }
+
 }
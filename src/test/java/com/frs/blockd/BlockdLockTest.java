@@ -0,0 +1,130 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Test
+public class BlockdLockTest {
+
+
+    @Test
+    public void testTryLock() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient clientOne = new SimpleClient(server.getHost(), server.getPort());
+            SimpleClient clientTwo = new SimpleClient(server.getHost(), server.getPort());
+            clientTwo.setPipelined(true);
+            clientOne.connect();
+            clientTwo.connect();
+            BlockdLock one = new BlockdLock(clientOne, "LockTry");
+            BlockdLock two = new BlockdLock(clientTwo, "LockTry");
+
+            boolean locked = one.tryLock();
+            assert(locked);
+            locked = two.tryLock();
+            assert(!locked);
+            locked = two.tryLock(100, TimeUnit.MILLISECONDS);
+            assert(!locked);
+            one.unlock();
+            locked = two.tryLock(1, TimeUnit.SECONDS);
+            assert(locked);
+            two.unlock();
+            try {
+                two.unlock();
+                assert(false);
+            } catch (IllegalMonitorStateException e) {
+                // Expected.
+            }
+            clientOne.quit();
+            clientTwo.quit();
+        }
+    }
+
+    @Test
+    public void testTryLockUsesPendingGrace() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+            client.setPipelined(true);
+            client.setPendingGrace(200);
+            client.connect();
+            BlockdLock lock = new BlockdLock(client, "LockGrace");
+
+            // The answer comes after 100 + 200ms; the lock is released
+            // should it be granted after all.
+            server.setLatency(1500, 0);
+            long start = System.nanoTime();
+            boolean locked = lock.tryLock(100, TimeUnit.MILLISECONDS);
+            long elapsed = System.nanoTime() - start;
+            assert(!locked);
+            assert(elapsed < 1000000000L) : elapsed;
+            server.setLatency(0, 0);
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testSharedReadLock() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient clientOne = new SimpleClient(server.getHost(), server.getPort());
+            SimpleClient clientTwo = new SimpleClient(server.getHost(), server.getPort());
+            clientOne.connect();
+            clientTwo.connect();
+            BlockdReadWriteLock one = new BlockdReadWriteLock(clientOne, "LockShared");
+            BlockdReadWriteLock two = new BlockdReadWriteLock(clientTwo, "LockShared");
+
+            one.readLock().lock();
+            boolean locked = two.readLock().tryLock(1, TimeUnit.SECONDS);
+            assert(locked);
+            locked = two.writeLock().tryLock();
+            assert(!locked);
+            one.readLock().unlock();
+            two.readLock().unlock();
+            clientOne.quit();
+            clientTwo.quit();
+        }
+    }
+
+    @Test
+    public void testInterruptedWaitIsReleased() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient clientOne = new SimpleClient(server.getHost(), server.getPort());
+            final SimpleClient clientTwo = new SimpleClient(server.getHost(), server.getPort());
+            clientTwo.setPipelined(true);
+            clientOne.connect();
+            clientTwo.connect();
+            BlockdLock one = new BlockdLock(clientOne, "LockInterrupt");
+            final BlockdLock two = new BlockdLock(clientTwo, "LockInterrupt");
+            one.lock();
+
+            final AtomicBoolean interrupted = new AtomicBoolean();
+            Thread waiter = new Thread(() -> {
+                try {
+                    two.lockInterruptibly();
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+            });
+            waiter.start();
+            Thread.sleep(200);
+            waiter.interrupt();
+            waiter.join();
+            assert(interrupted.get());
+
+            // The late grant to the abandoned wait is handed straight back.
+            one.unlock();
+            Thread.sleep(200);
+            assert(!clientTwo.getHeldLockRegistry().isHeld("LockInterrupt"));
+            boolean locked = one.tryLock();
+            assert(locked);
+            one.unlock();
+            clientOne.quit();
+            clientTwo.quit();
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+package com.frs.blockd;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+@Test
+public class ClientEventsTest {
+
+
+    @Test
+    public void testEvents() throws Exception {
+
+        if (!ClientEvents.isSupported()) {
+            throw new SkipException("No JDK Flight Recorder in this JVM.");
+        }
+        for (boolean pipelined : new boolean[] {false, true}) {
+            Recorded.events(pipelined);
+        }
+    }
+
+    /**
+     * Everything that needs <code>jdk.jfr</code>, so that the test class
+     * itself loads, and skips, without it.
+     */
+    private static final class Recorded {
+
+        static void events(boolean pipelined) throws Exception {
+
+            try (StandInServer server = new StandInServer(); Recording recording = new Recording()) {
+                recording.enable("com.frs.blockd.Connect");
+                recording.enable("com.frs.blockd.Acquire");
+                recording.enable("com.frs.blockd.Release");
+                recording.enable("com.frs.blockd.ReleaseAll");
+                recording.enable("com.frs.blockd.Show");
+                recording.start();
+
+                String node = server.getHost() + ":" + server.getPort();
+                SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+                client.setPipelined(pipelined);
+                client.connect();
+                SimpleClient other = new SimpleClient(server.getHost(), server.getPort());
+                other.connect();
+
+                other.acquire("EventsPending");
+                Thread releaser = new Thread(() -> {
+                    try {
+                        Thread.sleep(200);
+                        other.release("EventsPending");
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                releaser.start();
+                String status = client.acquire("EventsPending", 5000, "W");
+                assert(status.equals("LOCKACQUIRED"));
+                releaser.join();
+                client.show();
+                client.release("EventsPending");
+                client.acquire("EventsAll");
+                List<String> released = client.releaseAll();
+                assert(released.size() == 1);
+                client.quit();
+                other.quit();
+                recording.stop();
+
+                List<RecordedEvent> events = record(recording);
+                RecordedEvent connect = find(events, "com.frs.blockd.Connect", null);
+                assert(connect.getString("node").equals(node));
+                assert(connect.getString("status").equals("IMUSTBLOCKYOU"));
+
+                RecordedEvent pending = null;
+                for (RecordedEvent event : events) {
+                    if (event.getEventType().getName().equals("com.frs.blockd.Acquire")
+                            && "EventsPending".equals(event.getString("lockId"))
+                            && event.getThread().getJavaThreadId() == Thread.currentThread().getId()) {
+                        pending = event;
+                    }
+                }
+                assert(pending != null) : events;
+                assert(pending.getString("mode").equals("W"));
+                assert(pending.getString("status").equals("LOCKACQUIRED"));
+                Duration waited = pending.getDuration("pendingDuration");
+                assert(waited.toMillis() >= 100) : waited;
+                assert(pending.getDuration().compareTo(waited) >= 0);
+
+                RecordedEvent release = find(events, "com.frs.blockd.Release", "EventsPending");
+                assert(release.getString("status").equals("LOCKRELEASED"));
+                RecordedEvent show = find(events, "com.frs.blockd.Show", null);
+                assert(show.getString("node").equals(node));
+                RecordedEvent releaseAll = find(events, "com.frs.blockd.ReleaseAll", null);
+                assert(releaseAll.getInt("released") == 1);
+            }
+        }
+
+        private static List<RecordedEvent> record(Recording recording) throws Exception {
+
+            File file = File.createTempFile("blockd", ".jfr");
+            try {
+                recording.dump(file.toPath());
+                List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+                for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                    if (event.getEventType().getName().startsWith("com.frs.blockd.")) {
+                        events.add(event);
+                    }
+                }
+                return (events);
+            } finally {
+                file.delete();
+            }
+        }
+
+        private static RecordedEvent find(List<RecordedEvent> events, String name, String lockId) {
+
+            for (RecordedEvent event : events) {
+                if (event.getEventType().getName().equals(name)
+                        && (lockId == null || lockId.equals(event.getString("lockId")))) {
+                    return (event);
+                }
+            }
+            throw new AssertionError(name + " " + lockId + " not recorded: " + events);
+        }
+
+    }
+
+}
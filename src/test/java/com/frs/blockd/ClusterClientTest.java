@@ -0,0 +1,95 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+
+@Test
+public class ClusterClientTest {
+
+
+    @Test
+    public void testFanOut() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer()) {
+            ClusterClient cluster = new ClusterClient();
+            assert(!cluster.isConnected());
+            cluster.addNode(one.getHost(), one.getPort());
+            cluster.addNode(two.getHost(), two.getPort());
+            cluster.connect();
+            assert(cluster.isConnected());
+            for (int i = 0; i < 10; i++) {
+                String status = cluster.acquire("ClusterHello" + i, 1000);
+                assert(status.equals("LOCKACQUIRED"));
+            }
+            ClusterResult<List<String>> shown = cluster.showEach();
+            assert(shown.isSuccess());
+            assert(shown.getValues().size() == 2);
+            List<String> released = cluster.releaseAll();
+            assert(released.size() == 10);
+            cluster.quit();
+            assert(!cluster.isConnected());
+        }
+    }
+
+    @Test
+    public void testSlowNodeDoesNotDelayTheRest() throws Exception {
+
+        // silent accepts connections but never says hello.
+        try (StandInServer live = new StandInServer(); ServerSocket silent = new ServerSocket(0)) {
+            String liveNode = live.getHost() + ":" + live.getPort();
+            ClusterClient cluster = new ClusterClient();
+            cluster.addNode(live.getHost(), live.getPort());
+            cluster.addNode("localhost", silent.getLocalPort());
+            cluster.setFanOutTimeout(500);
+
+            long start = System.currentTimeMillis();
+            ClusterResult<Void> connected = cluster.connectEach();
+            long elapsed = System.currentTimeMillis() - start;
+            assert(elapsed < 5000);
+            assert(connected.getValues().containsKey(liveNode)) : connected;
+            Throwable failure = connected.getFailures().get("localhost:" + silent.getLocalPort());
+            assert(failure instanceof SocketTimeoutException) : connected;
+            assert(!cluster.isConnected());
+
+            try {
+                cluster.connect();
+                assert(false);
+            } catch (ClusterException e) {
+                assert(e.getResult().getFailures().size() == 1) : e.getResult();
+            }
+            cluster.quitEach();
+        }
+    }
+
+    @Test
+    public void testBatchUsesPendingGrace() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient holder = new SimpleClient(server.getHost(), server.getPort());
+            holder.connect();
+            holder.acquire("ClusterGraceB");
+            ClusterClient cluster = new ClusterClient();
+            cluster.setHealthCheckInterval(0);
+            cluster.setPipelined(true);
+            cluster.setPendingGrace(200);
+            cluster.addNode(server.getHost(), server.getPort());
+            cluster.connect();
+            server.setLatency(1000, 0);
+            try {
+                // The wait for B times out at the server after 2s and is
+                // answered 1s later; the grace gives up before that.
+                cluster.acquireAll(Arrays.asList("ClusterGraceA", "ClusterGraceB"), 3000, "W");
+                assert(false);
+            } catch (SocketTimeoutException e) {
+                // Expected.
+            }
+            server.setLatency(0, 0);
+            holder.quit();
+        }
+    }
+
+}
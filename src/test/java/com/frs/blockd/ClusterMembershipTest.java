@@ -0,0 +1,164 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+@Test
+public class ClusterMembershipTest {
+
+
+    @Test
+    public void testAddNodeWhileConnected() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer()) {
+            ClusterClient cluster = new ClusterClient();
+            final List<String> events = new ArrayList<String>();
+            cluster.addTopologyListener(new TopologyListener() {
+                @Override
+                public void nodeAdded(String node, List<String> nodes) {
+
+                    events.add("added " + node + " of " + nodes.size());
+                }
+
+                @Override
+                public void nodeRemoved(String node, List<String> nodes, List<String> lostLockIds) {
+
+                    events.add("removed " + node);
+                }
+            });
+            cluster.addNode(one.getHost(), one.getPort());
+            cluster.connect();
+            for (int i = 0; i < 20; i++) {
+                cluster.acquire("Membership" + i);
+            }
+
+            cluster.addNode(two.getHost(), two.getPort());
+            assert(cluster.getNodes().size() == 2);
+            assert(cluster.isConnected());
+            assert(events.get(1).equals("added " + two.getHost() + ":" + two.getPort() + " of 2"));
+            int moved = 0;
+            for (int i = 0; i < 20; i++) {
+                moved += cluster.whichNode("Membership" + i);
+            }
+            assert(moved > 0);
+            // Held locks stay with the node that granted them.
+            for (int i = 0; i < 20; i++) {
+                cluster.release("Membership" + i);
+            }
+            assert(cluster.getHeldLocks().isEmpty());
+            assert(one.getCommandCount() >= 40);
+            cluster.quit();
+        }
+    }
+
+    @Test
+    public void testRemoveNodeMovesLocks() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer()) {
+            ClusterClient cluster = new ClusterClient();
+            cluster.setHealthCheckInterval(0);
+            final List<String> lost = new ArrayList<String>();
+            cluster.addTopologyListener(new TopologyListener() {
+                @Override
+                public void nodeAdded(String node, List<String> nodes) {
+                    // Not of interest.
+                }
+
+                @Override
+                public void nodeRemoved(String node, List<String> nodes, List<String> lostLockIds) {
+
+                    assert(nodes.size() == 1);
+                    lost.addAll(lostLockIds);
+                }
+            });
+            cluster.addNode(one.getHost(), one.getPort());
+            cluster.addNode(two.getHost(), two.getPort());
+            cluster.connect();
+            List<String> onTwo = lockIdsOn(cluster, 1, 3);
+            for (String lockId : onTwo) {
+                cluster.acquire(lockId);
+            }
+            cluster.acquire(onTwo.get(0));
+
+            // Another client holds one of them on the node they move to.
+            SimpleClient other = new SimpleClient(one.getHost(), one.getPort());
+            other.connect();
+            other.acquire(onTwo.get(2));
+
+            List<String> notMoved = cluster.removeNode(two.getHost(), two.getPort());
+            assert(notMoved.size() == 1 && notMoved.get(0).equals(onTwo.get(2)));
+            assert(lost.equals(notMoved));
+            assert(cluster.getNodes().size() == 1);
+            assert(cluster.getHeldLocks().size() == 2);
+            assert(two.getConnectionCount() == 1);
+
+            cluster.release(onTwo.get(0));
+            cluster.release(onTwo.get(0));
+            cluster.release(onTwo.get(1));
+            assert(cluster.getHeldLocks().isEmpty());
+            List<String> locks = cluster.show();
+            assert(locks.isEmpty());
+            other.quit();
+            cluster.quit();
+        }
+    }
+
+    @Test
+    public void testRemoveNodeDrains() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer()) {
+            final ClusterClient cluster = new ClusterClient();
+            cluster.addNode(one.getHost(), one.getPort());
+            cluster.addNode(two.getHost(), two.getPort());
+            cluster.connect();
+            List<String> onTwo = lockIdsOn(cluster, 1, 2);
+            cluster.acquire(onTwo.get(0));
+
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            Future<List<String>> removal = executor.submit(() -> cluster.removeNode(two.getHost(), two.getPort(),
+                                                                                   10000));
+            while (cluster.getNodes().size() == 2) {
+                Thread.sleep(1);
+            }
+            // New locks go to the remaining node, held ones to the draining one.
+            cluster.acquire(onTwo.get(1));
+            cluster.acquire(onTwo.get(0));
+            cluster.release(onTwo.get(0));
+            assert(!removal.isDone());
+            cluster.release(onTwo.get(0));
+            long start = System.nanoTime();
+            assert(removal.get().isEmpty());
+            assert(System.nanoTime() - start < 1000000000L);
+            executor.shutdown();
+
+            assert(cluster.getHeldLocks().size() == 1);
+            cluster.release(onTwo.get(1));
+            cluster.quit();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRemoveUnknownNode() throws Exception {
+
+        ClusterClient cluster = new ClusterClient();
+        cluster.addNode("127.0.0.1", 1);
+        cluster.removeNode("127.0.0.1", 2);
+    }
+
+    private static List<String> lockIdsOn(ClusterClient cluster, int node, int count) throws Exception {
+
+        List<String> lockIds = new ArrayList<String>();
+        for (int i = 0; lockIds.size() < count; i++) {
+            if (cluster.whichNode("Membership" + i) == node) {
+                lockIds.add("Membership" + i);
+            }
+        }
+        return (lockIds);
+    }
+
+}
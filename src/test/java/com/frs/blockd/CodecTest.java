@@ -0,0 +1,113 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+@Test
+public class CodecTest {
+
+
+    @Test
+    public void testEncodeAcquire() throws Exception {
+
+        CommandEncoder encoder = new CommandEncoder();
+        encoder.command(PendingRequest.Kind.ACQUIRE, "Hello", 100, "W", 7);
+        String line = new String(encoder.buffer(), 0, encoder.length(), StandardCharsets.UTF_8);
+        assert(line.equals("{\"command\":\"ACQUIRE\",\"lockId\":\"Hello\",\"timeout\":100,\"mode\":\"W\",\"nonce\":7}\n"));
+    }
+
+    @Test
+    public void testEscapedLockIdRoundTrip() throws Exception {
+
+        String lockId = "a\"b\\c\né€🔒";
+        CommandEncoder encoder = new CommandEncoder();
+        encoder.begin(PendingRequest.Kind.RELEASE).lockId(lockId).end();
+        String command = new String(encoder.buffer(), 0, encoder.length() - 1, StandardCharsets.UTF_8);
+        byte[] line = command.replace("\"command\":\"RELEASE\"", "\"status\":\"LOCKRELEASED\"")
+                .getBytes(StandardCharsets.UTF_8);
+
+        Response response = new Response();
+        new ResponseParser().parse(line, 0, line.length, response);
+        assert(response.getStatus() == "LOCKRELEASED");
+        assert(lockId.equals(response.getLockId()));
+        assert(response.lockIdEquals(lockId));
+    }
+
+    @Test
+    public void testParseSkipsUnknownFields() throws Exception {
+
+        byte[] line = ("{\"extra\":{\"a\":[1,\"}\"]},\"status\":\"LOCKACQUIRED\",\"n\":null,"
+                       + "\"lockId\":\"x\",\"nonce\":42}").getBytes(StandardCharsets.UTF_8);
+        Response response = new Response();
+        new ResponseParser().parse(line, 0, line.length, response);
+        assert(response.getStatus() == "LOCKACQUIRED");
+        assert(response.hasNonce && response.nonce == 42);
+        assert(response.lockIdEquals("x"));
+        assert(!response.hasQuote());
+    }
+
+    @Test
+    public void testParseShow() throws Exception {
+
+        byte[] line = "{\"locks\":[{\"lockId\":\"a\",\"mode\":\"W\"},{\"mode\":\"R\",\"lockId\":\"b\"}]}"
+                .getBytes(StandardCharsets.UTF_8);
+        Response response = new Response();
+        new ResponseParser().parse(line, 0, line.length, response);
+        assert(response.getLocks().size() == 2);
+        assert(response.getLocks().get(0).equals("a"));
+        assert(response.getLocks().get(1).equals("b"));
+    }
+
+    @Test
+    public void testParseShowLazily() throws Exception {
+
+        byte[] line = ("{\"locks\":[{\"lockId\":\"a\\\"1\",\"mode\":\"W\",\"since\":12,\"owner\":\"x\"},"
+                       + "7,{},{\"mode\":\"R\",\"lockId\":\"b\"}],\"nonce\":3}").getBytes(StandardCharsets.UTF_8);
+        Response response = new Response();
+        new ResponseParser().parse(line, 0, line.length, response);
+        assert(response.nonce == 3);
+        ShowResult locks = response.copyLocks();
+        // The copy outlives the line buffer.
+        Arrays.fill(line, (byte) ' ');
+        assert(locks.size() == 2);
+        assert(locks.getLockIds().equals(Arrays.asList("a\"1", "b")));
+        Iterator<LockInfo> entries = locks.iterator();
+        LockInfo first = entries.next();
+        assert(first.getMode().equals("W"));
+        assert(first.getFields().get("since").equals("12"));
+        assert(first.getFields().get("owner").equals("x"));
+        assert(entries.next().getFields().isEmpty());
+        assert(!entries.hasNext());
+
+        ShowResult both = ShowResult.concat(Arrays.asList(locks, ShowResult.EMPTY, locks));
+        assert(both.getLockIds().size() == 4);
+        assert(both.size() == 4);
+    }
+
+    @Test
+    public void testLongLines() throws Exception {
+
+        StringBuilder quote = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            quote.append((char) ('a' + i % 26));
+        }
+        String input = "{\"quote\":\"" + quote + "\"}\r\n{\"status\":\"GOODBYE\"}\n";
+        ByteArrayInputStream in = new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8));
+
+        LineReader reader = new LineReader(16);
+        ResponseParser parser = new ResponseParser();
+        Response response = new Response();
+        reader.readLine(in);
+        parser.parse(reader.buffer(), reader.lineStart(), reader.lineLength(), response);
+        assert(quote.toString().equals(response.getQuote()));
+        reader.readLine(in);
+        parser.parse(reader.buffer(), reader.lineStart(), reader.lineLength(), response);
+        assert(response.getStatus() == "GOODBYE");
+        assert(!reader.hasBuffered());
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+@Test
+public class ContentionTest {
+
+
+    @Test
+    public void testCountMinSketch() throws Exception {
+
+        CountMinSketch sketch = new CountMinSketch(4, 256);
+        for (int i = 0; i < 10000; i++) {
+            sketch.add(Hashing.hash("Contention" + i), 1);
+        }
+        long hot = Hashing.hash("ContentionHot");
+        sketch.add(hot, 5000);
+        assert(sketch.estimate(hot) >= 5000);
+        assert(sketch.estimate(hot) < 5000 + 200);
+        // Within e / width of the total for most keys.
+        int close = 0;
+        for (int i = 0; i < 100; i++) {
+            long estimate = sketch.estimate(Hashing.hash("Contention" + i));
+            assert(estimate >= 1);
+            if (estimate <= 1 + Math.E / 256 * 15000) {
+                close++;
+            }
+        }
+        assert(close >= 90);
+    }
+
+    @Test
+    public void testTopLocks() throws Exception {
+
+        ContentionProfiler profiler = new ContentionProfiler("test", 5);
+        for (int i = 0; i < 100000; i++) {
+            String lockId = "Contention" + i;
+            profiler.acquired(lockId);
+            profiler.pendingEnded(lockId, 1000);
+            if (i % 1000 == 0) {
+                for (int hot = 0; hot < 3; hot++) {
+                    profiler.acquired("ContentionHot" + hot);
+                    profiler.pendingEnded("ContentionHot" + hot, (hot + 1) * 1000000L);
+                }
+            }
+        }
+        ContentionReport report = profiler.snapshot();
+        assert(report.getAcquires() == 100300);
+        assert(report.getLockPendings() == 100300);
+        List<ContentionReport.HotLock> locks = report.getLocks();
+        assert(locks.size() == 5);
+        for (int hot = 0; hot < 3; hot++) {
+            ContentionReport.HotLock lock = locks.get(hot);
+            assert(lock.getLockId().equals("ContentionHot" + (2 - hot)));
+            assert(lock.getAcquires() >= 100);
+            assert(lock.getWaitMicros() >= (3 - hot) * 100000L);
+        }
+    }
+
+    @Test
+    public void testClientContention() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            for (boolean pipelined : new boolean[] {false, true}) {
+                SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+                client.setPipelined(pipelined);
+                client.connect();
+                server.setContention(1, 20);
+                boolean acquired = client.tryAcquire("ContentionClient", 1000, "W");
+                assert(acquired);
+                client.release("ContentionClient");
+                server.setContention(0, 0);
+                for (int i = 0; i < 10; i++) {
+                    client.acquire("ContentionClient" + i);
+                }
+                ContentionReport report = client.getContention();
+                assert(report.getAcquires() == 11);
+                assert(report.getLockPendings() == 1);
+                assert(report.getLocks().size() == 1);
+                ContentionReport.HotLock lock = report.getLocks().get(0);
+                assert(lock.getLockId().equals("ContentionClient"));
+                assert(lock.getLockPendings() == 1);
+                // How much of the 20ms hold is left once LOCKPENDING is read
+                // depends on how warm the JVM is; only the wait itself is sure.
+                assert(lock.getWaitMicros() > 0);
+                // The per-lock figure is an estimate, which can only be too high.
+                assert(lock.getWaitMicros() >= report.getWaitMicros()) : report;
+                assert(report.getNodes().isEmpty());
+                client.quit();
+            }
+        }
+    }
+
+    @Test
+    public void testClusterSkew() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer()) {
+            ClusterClient cluster = new ClusterClient();
+            cluster.setHealthCheckInterval(0);
+            cluster.addNode(one.getHost(), one.getPort());
+            cluster.addNode(two.getHost(), two.getPort());
+            cluster.connect();
+            for (int i = 0, acquired = 0; acquired < 10; i++) {
+                if (cluster.whichNode("ContentionSkew" + i) == 0) {
+                    cluster.acquire("ContentionSkew" + i);
+                    acquired++;
+                }
+            }
+            two.setContention(1, 10);
+            for (int i = 0, acquired = 0; acquired < 2; i++) {
+                if (cluster.whichNode("ContentionSkew" + i) == 1) {
+                    boolean granted = cluster.tryAcquire("ContentionSkew" + i, 1000, "W");
+                    assert(granted);
+                    acquired++;
+                }
+            }
+            ContentionReport report = cluster.getContention();
+            assert(report.getAcquires() == 12);
+            assert(report.getNodes().size() == 2);
+            assert(report.getNodes().get(two.getHost() + ":" + two.getPort()).getLockPendings() == 2);
+            assert(Math.abs(report.getAcquireSkew() - 10.0 * 2 / 12) < 0.001);
+            assert(report.getWaitSkew() == 2);
+            assert(report.getLocks().size() == 2);
+            cluster.quit();
+        }
+    }
+
+}
@@ -0,0 +1,294 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.List;
+
+@Test
+public class FailureDetectionTest {
+
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+
+        CircuitBreaker breaker = new CircuitBreaker(2, 50);
+        assert(breaker.allowRequest());
+        breaker.recordFailure();
+        assert(breaker.getState() == CircuitBreaker.State.CLOSED);
+        breaker.recordFailure();
+        assert(breaker.getState() == CircuitBreaker.State.OPEN);
+        assert(!breaker.allowRequest());
+        Thread.sleep(60);
+        assert(breaker.allowRequest());
+        assert(breaker.getState() == CircuitBreaker.State.HALF_OPEN);
+        // Only one trial at a time.
+        assert(!breaker.allowRequest());
+        breaker.recordFailure();
+        assert(breaker.getState() == CircuitBreaker.State.OPEN);
+        Thread.sleep(60);
+        assert(breaker.allowRequest());
+        breaker.recordSuccess();
+        assert(breaker.getState() == CircuitBreaker.State.CLOSED);
+        breaker.trip();
+        assert(!breaker.allowRequest());
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SocketOptions options = new SocketOptions();
+            options.setReadTimeout(100);
+            for (boolean pipelined : new boolean[] {false, true}) {
+                SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+                client.setPipelined(pipelined);
+                client.setSocketOptions(options);
+                server.setLatency(0, 0);
+                client.connect();
+                // Idle longer than the timeout; nothing is overdue.
+                Thread.sleep(250);
+                assert(client.isConnected());
+                client.acquire("FailureDetectionRead");
+                server.setLatency(1000, 0);
+                long start = System.nanoTime();
+                try {
+                    client.wisdom();
+                    assert(false);
+                } catch (SocketTimeoutException e) {
+                    // Expected.
+                } catch (IOException e) {
+                    // Pipelined: the reader failed the request.
+                    assert(pipelined);
+                }
+                assert(System.nanoTime() - start < 500000000L);
+                assert(!client.isConnected());
+
+                server.setLatency(0, 0);
+                client.setReacquireOnReconnect(true);
+                List<String> notRegained = client.reconnect();
+                assert(notRegained.isEmpty());
+                assert(client.getHeldLockRegistry().isHeld("FailureDetectionRead"));
+                client.release("FailureDetectionRead");
+                client.quit();
+            }
+        }
+    }
+
+    @Test
+    public void testConnectRefused() throws Exception {
+
+        int port;
+        try (StandInServer server = new StandInServer()) {
+            port = server.getPort();
+        }
+        SimpleClient client = new SimpleClient("127.0.0.1", port);
+        long start = System.nanoTime();
+        try {
+            client.connect();
+            assert(false);
+        } catch (IOException e) {
+            // Expected.
+        }
+        assert(System.nanoTime() - start < 1000000000L);
+    }
+
+    @Test
+    public void testDeadNodeFailsFast() throws Exception {
+
+        try (StandInServer live = new StandInServer()) {
+            StandInServer dead = new StandInServer();
+            int port = dead.getPort();
+            ClusterClient cluster = new ClusterClient();
+            cluster.setHealthCheckInterval(0);
+            cluster.setReacquireOnReconnect(true);
+            cluster.addNode(live.getHost(), live.getPort());
+            cluster.addNode(dead.getHost(), port);
+            cluster.connect();
+
+            String deadLock = null;
+            String otherLock = null;
+            for (int i = 0; otherLock == null; i++) {
+                if (cluster.whichNode("FailureDetection" + i) == 1) {
+                    if (deadLock == null) {
+                        deadLock = "FailureDetection" + i;
+                    } else {
+                        otherLock = "FailureDetection" + i;
+                    }
+                }
+            }
+            cluster.acquire(deadLock);
+            dead.close();
+            Thread.sleep(100);
+
+            int failures = 0;
+            while (cluster.getNodeStates().get(dead.getHost() + ":" + port) != CircuitBreaker.State.OPEN) {
+                try {
+                    cluster.acquire(otherLock);
+                    assert(false);
+                } catch (IOException e) {
+                    failures++;
+                }
+            }
+            assert(failures == CircuitBreaker.DEFAULT_FAILURE_THRESHOLD);
+            long start = System.nanoTime();
+            try {
+                cluster.acquire(otherLock);
+                assert(false);
+            } catch (NodeUnavailableException e) {
+                assert(e.getNode().equals(dead.getHost() + ":" + port));
+            }
+            assert(System.nanoTime() - start < 10000000L);
+            ClusterResult<Void> health = cluster.checkHealth();
+            assert(!health.isSuccess());
+
+            // The other node is unaffected.
+            for (int i = 0; i < 10; i++) {
+                String lockId = "FailureDetectionLive" + i;
+                if (cluster.whichNode(lockId) == 0) {
+                    cluster.acquire(lockId);
+                    cluster.release(lockId);
+                }
+            }
+
+            try (StandInServer revived = new StandInServer(port)) {
+                health = cluster.checkHealth();
+                assert(health.isSuccess());
+                assert(cluster.getNodeStates().get(revived.getHost() + ":" + port) == CircuitBreaker.State.CLOSED);
+                assert(cluster.getHeldLocks().size() == 1);
+                cluster.release(deadLock);
+                cluster.quit();
+            }
+        }
+    }
+
+    @Test
+    public void testHealthChecksReconnect() throws Exception {
+
+        healthChecksReconnect(true);
+        healthChecksReconnect(false);
+    }
+
+    private void healthChecksReconnect(boolean pipelined) throws Exception {
+
+        StandInServer server = new StandInServer();
+        int port = server.getPort();
+        ClusterClient cluster = new ClusterClient();
+        cluster.setHealthCheckInterval(50);
+        cluster.setPipelined(pipelined);
+        cluster.addNode(server.getHost(), port);
+        cluster.connect();
+        server.close();
+        String node = server.getHost() + ":" + port;
+        for (int i = 0; i < 100 && cluster.getNodeStates().get(node) != CircuitBreaker.State.OPEN; i++) {
+            Thread.sleep(10);
+        }
+        assert(cluster.getNodeStates().get(node) == CircuitBreaker.State.OPEN);
+        try (StandInServer revived = new StandInServer(port)) {
+            for (int i = 0; i < 100 && cluster.getNodeStates().get(node) != CircuitBreaker.State.CLOSED; i++) {
+                Thread.sleep(10);
+            }
+            assert(cluster.getNodeStates().get(node) == CircuitBreaker.State.CLOSED);
+            cluster.acquire("FailureDetectionHealth");
+            cluster.quit();
+        }
+    }
+
+    @Test
+    public void testHealthCheckOfBlockingNode() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            ClusterClient cluster = new ClusterClient();
+            cluster.setHealthCheckInterval(0);
+            cluster.setPipelined(false);
+            cluster.addNode(server.getHost(), server.getPort());
+            cluster.connect();
+            cluster.setHealthCheckInterval(200);
+            server.setLatency(2000, 0);
+            long start = System.nanoTime();
+            ClusterResult<Void> health = cluster.checkHealth();
+            long elapsed = System.nanoTime() - start;
+            assert(elapsed < 1500000000L) : elapsed;
+            Throwable failure = health.getFailures().get(server.getHost() + ":" + server.getPort());
+            assert(failure instanceof SocketTimeoutException) : health;
+            // The probe closed the connection, so only the rest can QUIT.
+            cluster.quitEach();
+        }
+    }
+
+    @Test
+    public void testReconnectRetiresReader() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+            client.setPipelined(true);
+            client.connect();
+            String name = "blockd-reader-" + server.getHost() + ":" + server.getPort();
+            for (int i = 0; i < 5; i++) {
+                client.reconnect();
+                int readers = 0;
+                for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                    if (thread.getName().equals(name) && thread.isAlive()) {
+                        readers++;
+                    }
+                }
+                assert(readers == 1) : readers;
+                client.acquire("FailureDetectionReader" + i);
+            }
+            List<String> shown = client.show();
+            // Each reconnect lost the lock before it.
+            assert(shown.size() == 1);
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testDeadNodeTripsBatches() throws Exception {
+
+        try (StandInServer live = new StandInServer()) {
+            StandInServer dead = new StandInServer();
+            int port = dead.getPort();
+            ClusterClient cluster = new ClusterClient();
+            cluster.setHealthCheckInterval(0);
+            cluster.addNode(live.getHost(), live.getPort());
+            cluster.addNode(dead.getHost(), port);
+            cluster.connect();
+
+            String deadLock = null;
+            for (int i = 0; deadLock == null; i++) {
+                if (cluster.whichNode("FailureBatch" + i) == 1) {
+                    deadLock = "FailureBatch" + i;
+                }
+            }
+            List<String> batch = Collections.singletonList(deadLock);
+            dead.close();
+            Thread.sleep(100);
+
+            int failures = 0;
+            while (cluster.getNodeStates().get(dead.getHost() + ":" + port) != CircuitBreaker.State.OPEN) {
+                try {
+                    cluster.acquireAll(batch, 100, "W");
+                    assert(false);
+                } catch (IOException e) {
+                    failures++;
+                }
+                assert(failures <= CircuitBreaker.DEFAULT_FAILURE_THRESHOLD) : failures;
+            }
+            assert(failures == CircuitBreaker.DEFAULT_FAILURE_THRESHOLD);
+            try {
+                cluster.acquireAll(batch, 100, "W");
+                assert(false);
+            } catch (NodeUnavailableException e) {
+                // Cut off now.
+            }
+            try {
+                cluster.quit();
+            } catch (ClusterException e) {
+                // The dead node cannot take its QUIT.
+            }
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntFunction;
+
+@Test
+public class HeldLockRegistryTest {
+
+
+    @Test
+    public void testReentrancy() throws Exception {
+
+        HeldLockRegistry held = new HeldLockRegistry();
+        boolean local = held.enter("HelloWorld", null);
+        assert(!local);
+        held.acquired("HelloWorld", null, "LOCKACQUIRED");
+        local = held.enter("HelloWorld", null);
+        assert(local);
+        local = held.enter("HelloWorld", "R");
+        assert(local);
+        assert(held.getHoldCount("HelloWorld") == 3);
+
+        int left = held.exit("HelloWorld");
+        assert(left == 2);
+        left = held.exit("HelloWorld");
+        assert(left == 1);
+        left = held.exit("HelloWorld");
+        assert(left == 0);
+        assert(held.isEmpty());
+        left = held.exit("HelloWorld");
+        assert(left == -1);
+    }
+
+    @Test
+    public void testReadDoesNotCoverWrite() throws Exception {
+
+        HeldLockRegistry held = new HeldLockRegistry();
+        held.acquired("HelloWorld", "R", "LOCKACQUIRED");
+        boolean local = held.enter("HelloWorld", "R");
+        assert(local);
+        local = held.enter("HelloWorld", "W");
+        assert(!local);
+        held.acquired("HelloWorld", "W", "LOCKACQUIRED");
+        assert(held.getHeld().get(0).getMode().equals("W"));
+        assert(held.getHoldCount("HelloWorld") == 3);
+    }
+
+    @Test
+    public void testOnlyGrantsAreRecorded() throws Exception {
+
+        HeldLockRegistry held = new HeldLockRegistry();
+        held.acquired("HelloWorld", null, "LOCKPENDING");
+        assert(!held.isHeld("HelloWorld"));
+
+        CompletableFuture<String> acquire = new CompletableFuture<String>();
+        CompletableFuture<String> tracked = held.track("HelloWorld", null, acquire);
+        assert(!held.isHeld("HelloWorld"));
+        acquire.complete("LOCKACQUIRED");
+        String status = tracked.get();
+        assert(status.equals("LOCKACQUIRED"));
+        assert(held.isHeld("HelloWorld"));
+    }
+
+    @Test
+    public void testFirstAcquireIsSingleFlight() throws Exception {
+
+        HeldLockRegistry held = new HeldLockRegistry();
+        Sender sender = new Sender();
+        CompletableFuture<String> first = held.enter("HelloWorld", "W", 1000, sender);
+        CompletableFuture<String> second = held.enter("HelloWorld", "R", 5000, sender);
+        CompletableFuture<String> third = held.enter("HelloWorld", null, 5000, sender);
+        assert(sender.sent.size() == 1);
+        assert(!second.isDone());
+
+        sender.sent.get(0).complete("LOCKACQUIRED");
+        String status = first.get();
+        assert(status.equals("LOCKACQUIRED"));
+        status = second.get();
+        assert(status.equals("LOCKACQUIRED"));
+        status = third.get();
+        assert(status.equals("LOCKACQUIRED"));
+        assert(held.getHoldCount("HelloWorld") == 3);
+        assert(sender.sent.size() == 1);
+    }
+
+    @Test
+    public void testJoinedAcquireTriesAgain() throws Exception {
+
+        HeldLockRegistry held = new HeldLockRegistry();
+        Sender sender = new Sender();
+        CompletableFuture<String> first = held.enter("HelloWorld", "W", 100, sender);
+        CompletableFuture<String> second = held.enter("HelloWorld", "W", 5000, sender);
+        assert(sender.sent.size() == 1);
+
+        sender.sent.get(0).complete("ACQUIRETIMEOUT");
+        String status = first.get();
+        assert(status.equals("ACQUIRETIMEOUT"));
+        // The second acquire now sends its own, with what is left of its
+        // timeout.
+        assert(sender.sent.size() == 2);
+        assert(sender.timeouts.get(1) <= 5000 && sender.timeouts.get(1) > 1000);
+        sender.sent.get(1).complete("LOCKACQUIRED");
+        status = second.get();
+        assert(status.equals("LOCKACQUIRED"));
+        assert(held.getHoldCount("HelloWorld") == 1);
+
+        // A failed first acquire is no different.
+        Sender failing = new Sender();
+        first = held.enter("HelloFailed", null, -1, failing);
+        second = held.enter("HelloFailed", null, -1, failing);
+        failing.sent.get(0).completeExceptionally(new IllegalStateException("lost"));
+        assert(first.isCompletedExceptionally());
+        assert(failing.sent.size() == 2);
+        assert(!second.isDone());
+    }
+
+    @Test
+    public void testOnlyCoveredAcquiresJoin() throws Exception {
+
+        HeldLockRegistry held = new HeldLockRegistry();
+        Sender sender = new Sender();
+        // A read grant does not cover a write.
+        held.enter("HelloRead", "R", 1000, sender);
+        held.enter("HelloRead", "W", 1000, sender);
+        assert(sender.sent.size() == 2);
+        // A first acquire that may wait longer than the caller is not joined.
+        held.enter("HelloLong", "W", -1, sender);
+        held.enter("HelloLong", "W", 100, sender);
+        assert(sender.sent.size() == 4);
+        held.enter("HelloShort", "W", 100, sender);
+        held.enter("HelloShort", "W", -1, sender);
+        assert(sender.sent.size() == 5);
+    }
+
+    @Test
+    public void testForgetAndLeaks() throws Exception {
+
+        HeldLockRegistry held = new HeldLockRegistry();
+        held.acquired("HelloWorld1", null, "LOCKACQUIRED");
+        held.acquired("HelloWorld2", null, "LOCKACQUIRED");
+        held.enter("HelloWorld2", null);
+        assert(held.getHeldLongerThan(60000).isEmpty());
+        Thread.sleep(5);
+        assert(held.getHeldLongerThan(0).size() == 2);
+
+        held.forget(Arrays.asList("HelloWorld2"));
+        assert(held.size() == 1);
+        held.clear();
+        assert(held.isEmpty());
+    }
+
+    /**
+     * Stands in for the connection: keeps every ACQUIRE sent, unanswered.
+     */
+    private static final class Sender implements IntFunction<CompletableFuture<String>> {
+
+        final List<CompletableFuture<String>> sent = new ArrayList<CompletableFuture<String>>();
+        final List<Integer> timeouts = new ArrayList<Integer>();
+
+        @Override
+        public CompletableFuture<String> apply(int timeout) {
+
+            CompletableFuture<String> acquire = new CompletableFuture<String>();
+            sent.add(acquire);
+            timeouts.add(timeout);
+            return (acquire);
+        }
+
+    }
+
+}
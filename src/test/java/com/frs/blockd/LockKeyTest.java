@@ -0,0 +1,121 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+@Test
+public class LockKeyTest {
+
+
+    @Test
+    public void testEncodedLikeStrings() throws Exception {
+
+        LockKey key = LockKey.of("a\"b\\cé\n");
+        assert(new String(key.encoded(), StandardCharsets.UTF_8).equals("a\\\"b\\\\cé\\u000a"));
+        assert(key.hash() == Hashing.hash(key.getLockId()));
+        assert(key.equals(LockKey.of("a\"b\\cé\n")));
+        assert(key.hashCode() == key.getLockId().hashCode());
+
+        CommandEncoder fromString = new CommandEncoder();
+        fromString.command(PendingRequest.Kind.ACQUIRE, key.getLockId(), 100, "R", 7);
+        CommandEncoder fromKey = new CommandEncoder();
+        fromKey.command(PendingRequest.Kind.ACQUIRE, key.getLockId(), key.encoded(), 100, "R", 7);
+        assert(Arrays.equals(Arrays.copyOf(fromString.buffer(), fromString.length()),
+                             Arrays.copyOf(fromKey.buffer(), fromKey.length())));
+    }
+
+    @Test
+    public void testCache() throws Exception {
+
+        LockKeyCache cache = new LockKeyCache(100);
+        assert(cache.size() == 128);
+        LockKey key = cache.get("LockKeyCached");
+        LockKey again = cache.get("LockKeyCached");
+        assert(again == key);
+        again = cache.get(new String("LockKeyCached"));
+        assert(again == key);
+        for (int i = 0; i < 10000; i++) {
+            LockKey cached = cache.get("LockKey" + i);
+            assert(cached.getLockId().equals("LockKey" + i));
+        }
+    }
+
+    @Test
+    public void testSimpleClientWithKeys() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            for (boolean pipelined : new boolean[] {false, true}) {
+                SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+                client.setPipelined(pipelined);
+                client.connect();
+                LockKey key = LockKey.of("LockKey \"quoted\"");
+                String status = client.acquire(key);
+                assert(status.equals("LOCKACQUIRED"));
+                boolean acquired = client.tryAcquire(LockKey.of("LockKeyTry"), 0, "R");
+                assert(acquired);
+                List<String> lockIds = client.show();
+                assert(lockIds.contains("LockKey \"quoted\""));
+                // Keys and strings name the same locks.
+                status = client.acquire("LockKey \"quoted\"");
+                assert(status.equals("LOCKACQUIRED"));
+                client.release(key);
+                client.release("LockKey \"quoted\"");
+                client.release(LockKey.of("LockKeyTry"));
+                lockIds = client.show();
+                assert(lockIds.isEmpty());
+                client.quit();
+            }
+        }
+    }
+
+    @Test
+    public void testClusterWithKeys() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer();
+             StandInServer three = new StandInServer()) {
+            ClusterClient cluster = new ClusterClient();
+            cluster.setHealthCheckInterval(0);
+            cluster.addNode(one.getHost(), one.getPort());
+            cluster.addNode(two.getHost(), two.getPort());
+            cluster.connect();
+            LockKey[] keys = new LockKey[20];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = LockKey.of("LockKeyCluster" + i);
+                int node = cluster.whichNode(keys[i]);
+                int byId = cluster.whichNode(keys[i].getLockId());
+                assert(node == byId);
+                cluster.acquire(keys[i], 1000, "W");
+            }
+            List<String> lockIds = cluster.show();
+            assert(lockIds.size() == 20);
+
+            // The cached routes are dropped with the old membership.
+            cluster.addNode(three.getHost(), three.getPort());
+            int moved = 0;
+            for (LockKey key : keys) {
+                int node = cluster.whichNode(key);
+                int byId = cluster.whichNode(key.getLockId());
+                assert(node == byId);
+                moved += node == 2 ? 1 : 0;
+            }
+            assert(moved > 0);
+            // Held locks still go to the node that granted them.
+            for (LockKey key : keys) {
+                cluster.release(key);
+            }
+            assert(cluster.getHeldLocks().isEmpty());
+
+            cluster.setLockKeyCacheSize(64);
+            assert(cluster.getLockKeyCacheSize() == 64);
+            cluster.acquire("LockKeyCached");
+            cluster.release(LockKey.of("LockKeyCached"));
+            lockIds = cluster.show();
+            assert(lockIds.isEmpty());
+            cluster.quit();
+        }
+    }
+
+}
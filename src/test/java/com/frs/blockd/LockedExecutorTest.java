@@ -0,0 +1,125 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Test
+public class LockedExecutorTest {
+
+
+    @Test
+    public void testBatchesShareOneAcquire() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+            client.setPipelined(true);
+            client.connect();
+            LockedExecutor executor = new LockedExecutor(client, 4);
+            executor.setMaxBatchSize(50);
+            executor.setMaxHoldTime(10000);
+
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger overlaps = new AtomicInteger();
+            List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+            for (int i = 0; i < 400; i++) {
+                final int n = i;
+                final String lockId = "Locked" + (i % 4);
+                results.add(executor.submit(lockId, () -> {
+                    if (running.incrementAndGet() > 4) {
+                        overlaps.incrementAndGet();
+                    }
+                    assert(client.getHeldLockRegistry().isHeld(lockId));
+                    running.decrementAndGet();
+                    return (n);
+                }));
+            }
+            for (int i = 0; i < 400; i++) {
+                int result = results.get(i).get(5, TimeUnit.SECONDS);
+                assert(result == i);
+            }
+            assert(overlaps.get() == 0);
+            // At least 100 tasks per id in batches of at most 50.
+            long acquires = client.getMetrics().getAcquire().getCount();
+            assert(acquires >= 8 && acquires < 400) : acquires;
+            executor.close();
+            boolean terminated = executor.awaitTermination(5, TimeUnit.SECONDS);
+            assert(terminated);
+            assert(client.getHeldLocks().isEmpty());
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testFailuresStayWithTheirTask() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+            client.setPipelined(true);
+            client.connect();
+            LockedExecutor executor = new LockedExecutor(client, 2);
+            CompletableFuture<Void> broken = executor.execute("LockedFail", () -> {
+                throw new IllegalStateException("broken");
+            });
+            CompletableFuture<String> fine = executor.submit("LockedFail", () -> "fine");
+            try {
+                broken.get(5, TimeUnit.SECONDS);
+                assert(false);
+            } catch (ExecutionException e) {
+                assert(e.getCause() instanceof IllegalStateException);
+            }
+            String result = fine.get(5, TimeUnit.SECONDS);
+            assert(result.equals("fine"));
+
+            // A lock held elsewhere times the batch out.
+            SimpleClient other = new SimpleClient(server.getHost(), server.getPort());
+            other.connect();
+            other.acquire("LockedHeld");
+            executor.setAcquireTimeout(100);
+            try {
+                executor.submit("LockedHeld", () -> "never").get(5, TimeUnit.SECONDS);
+                assert(false);
+            } catch (ExecutionException e) {
+                assert(e.getCause() instanceof AcquireTimeoutException) : e.getCause();
+            }
+            assert(executor.getQueuedCount("LockedHeld") == 0);
+            other.quit();
+            executor.close();
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testNoTimeoutOutwaitsPendingGrace() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+            client.setPipelined(true);
+            client.setPendingGrace(200);
+            client.connect();
+            SimpleClient other = new SimpleClient(server.getHost(), server.getPort());
+            other.connect();
+            other.acquire("LockedLong");
+            LockedExecutor executor = new LockedExecutor(client, 2);
+            executor.setAcquireTimeout(100);
+            executor.setAcquireTimeout(LockedExecutor.NO_TIMEOUT);
+
+            CompletableFuture<String> waiting = executor.submit("LockedLong", () -> "ran");
+            Thread.sleep(600);
+            assert(!waiting.isDone());
+            other.release("LockedLong");
+            String result = waiting.get(5, TimeUnit.SECONDS);
+            assert(result.equals("ran"));
+            assert(client.isConnected());
+            other.quit();
+            executor.close();
+            client.quit();
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+@Test
+public class MetricsTest {
+
+
+    @Test
+    public void testLatencyRecorder() throws Exception {
+
+        LatencyRecorder recorder = new LatencyRecorder();
+        for (int micros = 1; micros <= 1000; micros++) {
+            recorder.record(micros * 1000L);
+        }
+        MetricsSnapshot.Latency latency = recorder.snapshot(0);
+        assert(latency.getCount() == 1000);
+        assert(latency.getMaxMicros() == 1000);
+        assert(Math.abs(latency.getMeanMicros() - 500.5) < 0.001);
+        long p50 = latency.getPercentileMicros(50);
+        long p99 = latency.getPercentileMicros(99);
+        assert(p50 >= 500 && p50 <= 500 * 1.125);
+        assert(p99 >= 990 && p99 <= 1000);
+        assert(latency.plus(latency).getCount() == 2000);
+    }
+
+    @Test
+    public void testCommandsAreRecorded() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient blocking = new SimpleClient(server.getHost(), server.getPort());
+            SimpleClient pipelined = new SimpleClient(server.getHost(), server.getPort());
+            pipelined.setPipelined(true);
+            blocking.connect();
+            pipelined.connect();
+
+            for (SimpleClient client : new SimpleClient[] {blocking, pipelined}) {
+                client.acquire("Metrics");
+                client.show();
+                client.release("Metrics");
+                client.acquire("Metrics");
+                client.releaseAll();
+                try {
+                    client.release("Metrics");
+                    assert(false);
+                } catch (NoLockToReleaseException e) {
+                    // Expected; answered locally, so not a failure on the wire.
+                }
+                MetricsSnapshot metrics = client.getMetrics();
+                assert(metrics.getAcquire().getCount() == 2);
+                assert(metrics.getRelease().getCount() == 1);
+                assert(metrics.getShow().getCount() == 1);
+                assert(metrics.getReleaseAll().getCount() == 1);
+                assert(metrics.getRelease().getFailures() == 0);
+                assert(metrics.getInFlight() == 0);
+                assert(metrics.getBytesSent() > 0);
+                assert(metrics.getBytesReceived() > metrics.getBytesSent() / 2);
+                assert(metrics.toMap().containsKey("AcquireP99Micros"));
+            }
+            blocking.quit();
+            pipelined.quit();
+        }
+    }
+
+    @Test
+    public void testLockPendingAndTimeouts() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient clientOne = new SimpleClient(server.getHost(), server.getPort());
+            SimpleClient clientTwo = new SimpleClient(server.getHost(), server.getPort());
+            clientTwo.setPipelined(true);
+            clientOne.connect();
+            clientTwo.connect();
+
+            clientOne.acquire("MetricsPending");
+            boolean granted = clientTwo.tryAcquire("MetricsPending", 50, "W");
+            assert(!granted);
+            MetricsSnapshot metrics = clientTwo.getMetrics();
+            assert(metrics.getAcquireTimeouts() == 1);
+            assert(metrics.getLockPending().getCount() == 1);
+            assert(metrics.getLockPending().getMaxMicros() >= 40000);
+            assert(metrics.getAcquire().getFailures() == 0);
+            clientOne.quit();
+            clientTwo.quit();
+        }
+    }
+
+    @Test
+    public void testClusterNodesAndMBeans() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer()) {
+            ClusterClient cluster = new ClusterClient();
+            cluster.addNode(one.getHost(), one.getPort());
+            cluster.addNode(two.getHost(), two.getPort());
+            cluster.connect();
+            for (int i = 0; i < 20; i++) {
+                cluster.acquire("MetricsCluster" + i);
+                cluster.release("MetricsCluster" + i);
+            }
+            MetricsSnapshot metrics = cluster.getMetrics();
+            assert(metrics.getAcquire().getCount() == 20);
+            assert(metrics.getNodes().size() == 2);
+            long perNode = 0;
+            for (MetricsSnapshot node : metrics.getNodes().values()) {
+                perNode += node.getAcquire().getCount();
+            }
+            assert(perNode == 20);
+
+            List<ObjectName> names = MetricsMBean.register("MetricsTest", cluster);
+            assert(names.size() == 3);
+            Object count = ManagementFactory.getPlatformMBeanServer().getAttribute(names.get(0), "AcquireCount");
+            assert(((Long) count) == 20);
+            MetricsMBean.unregister(names);
+            assert(!ManagementFactory.getPlatformMBeanServer().isRegistered(names.get(0)));
+            cluster.quit();
+        }
+    }
+
+}
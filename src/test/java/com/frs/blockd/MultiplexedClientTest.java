@@ -0,0 +1,101 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Test
+public class MultiplexedClientTest {
+
+
+    @Test
+    public void testSharedRead() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient simple = new SimpleClient(server.getHost(), server.getPort());
+            MultiplexedClient client = new MultiplexedClient(simple);
+            client.connect();
+            client.acquire("MuxRead", 1000, "R");
+            client.acquire("MuxRead", 1000, "R");
+            assert(client.getHolderCount("MuxRead") == 2);
+            assert(simple.getHeldLockRegistry().getHoldCount("MuxRead") == 1);
+            client.release("MuxRead");
+            assert(simple.getHeldLockRegistry().isHeld("MuxRead"));
+            client.release("MuxRead");
+            assert(!simple.getHeldLockRegistry().isHeld("MuxRead"));
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testLocalTimeout() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            final MultiplexedClient client = new MultiplexedClient(new SimpleClient(server.getHost(), server.getPort()));
+            client.connect();
+            client.acquire("MuxTimeout");
+            try {
+                client.acquire("MuxTimeout", 100);
+                assert(false);
+            } catch (AcquireTimeoutException e) {
+                // Expected.
+            }
+            assert(client.getWaiterCount("MuxTimeout") == 0);
+            client.release("MuxTimeout");
+            try {
+                client.release("MuxTimeout");
+                assert(false);
+            } catch (NoLockToReleaseException e) {
+                // Expected.
+            }
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testManyThreadsOneLock() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient simple = new SimpleClient(server.getHost(), server.getPort());
+            simple.setPipelined(true);
+            final MultiplexedClient client = new MultiplexedClient(simple);
+            client.connect();
+            final AtomicInteger writers = new AtomicInteger();
+            final AtomicInteger readers = new AtomicInteger();
+            final List<Throwable> failures = new ArrayList<Throwable>();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < 32; t++) {
+                final String mode = (t % 4 == 0 ? "W" : "R");
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 50; i++) {
+                            client.acquire("MuxHot", 10000, mode);
+                            AtomicInteger mine = ("W".equals(mode) ? writers : readers);
+                            mine.incrementAndGet();
+                            assert(writers.get() == 0 || (writers.get() == 1 && readers.get() == 0));
+                            mine.decrementAndGet();
+                            client.release("MuxHot");
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assert(failures.isEmpty()) : failures;
+            assert(client.getHolderCount("MuxHot") == 0);
+            assert(client.getHeldLocks().isEmpty());
+            client.quit();
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+@Test
+public class PartitionerTest {
+
+
+    @Test
+    public void testRing() throws Exception {
+
+        PartitionReport report = new PartitionReport("ring", new HashRingPartitioner(), 8, 50000);
+        assert(report.getRelativeStdDev() < 0.15);
+        assertMovesOneNth(report, 8);
+        assert(report.getMovedOnRemoveLast() == 0);
+        assert(report.getMovedOnRemoveFirst() == 0);
+    }
+
+    @Test
+    public void testRendezvous() throws Exception {
+
+        PartitionReport report = new PartitionReport("rendezvous", new RendezvousPartitioner(), 8, 50000);
+        assert(report.getRelativeStdDev() < 0.05);
+        assertMovesOneNth(report, 8);
+        assert(report.getMovedOnRemoveLast() == 0);
+        assert(report.getMovedOnRemoveFirst() == 0);
+    }
+
+    @Test
+    public void testJumpHash() throws Exception {
+
+        PartitionReport report = new PartitionReport("jump", new JumpHashPartitioner(), 8, 50000);
+        assert(report.getRelativeStdDev() < 0.05);
+        assertMovesOneNth(report, 8);
+        assert(report.getMovedOnRemoveLast() == 0);
+    }
+
+    @Test
+    public void testRingIgnoresNodeOrder() throws Exception {
+
+        String[] first = {"a:1", "b:1", "c:1"};
+        String[] second = {"c:1", "a:1", "b:1"};
+        Partitioner a = new HashRingPartitioner().withNodes(Arrays.asList(first));
+        Partitioner b = new HashRingPartitioner().withNodes(Arrays.asList(second));
+        for (int i = 0; i < 1000; i++) {
+            long hash = Hashing.hash("lock" + i);
+            assert(first[a.nodeFor(hash)].equals(second[b.nodeFor(hash)]));
+        }
+    }
+
+    @Test
+    public void testWhichNode() throws Exception {
+
+        ClusterClient cluster = new ClusterClient();
+        cluster.addNode("localhost", 11311);
+        assert(cluster.whichNode("HelloWorld") == 0);
+        cluster.addNode("localhost", 11312);
+        cluster.setPartitioner(new RendezvousPartitioner());
+        assert(cluster.getPartitioner().size() == 2);
+        int node = cluster.whichNode("HelloWorld");
+        assert(node == 0 || node == 1);
+    }
+
+    private void assertMovesOneNth(PartitionReport report, int nodes) {
+
+        double ideal = 1.0 / (nodes + 1);
+        assert(Math.abs(report.getMovedOnAdd() - ideal) < ideal * 0.5) : report;
+    }
+
+}
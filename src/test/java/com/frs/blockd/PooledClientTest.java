@@ -0,0 +1,197 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+@Test
+public class PooledClientTest {
+
+
+    @Test
+    public void testReleaseOnAcquiringConnection() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            final PooledClient client = new PooledClient(server.getHost(), server.getPort());
+            client.setMinConnections(3);
+            client.connect();
+            assert(client.getConnectionCount() == 3);
+
+            Thread acquirer = new Thread(() -> {
+                try {
+                    client.acquire("PoolHello");
+                } catch (Exception e) {
+                    // The release below then fails.
+                }
+            });
+            acquirer.start();
+            acquirer.join();
+            assert(client.getHeldCount() == 1);
+            String status = client.release("PoolHello");
+            assert(status.equals("LOCKRELEASED"));
+            assert(client.getHeldCount() == 0);
+            try {
+                client.release("PoolHello");
+                assert(false);
+            } catch (NoLockToReleaseException e) {
+                // Expected.
+            }
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testManyThreads() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            final PooledClient client = new PooledClient(server.getHost(), server.getPort());
+            client.setMaxConnections(4);
+            client.connect();
+            List<Thread> threads = new ArrayList<Thread>();
+            final List<Throwable> failures = new ArrayList<Throwable>();
+            for (int t = 0; t < 16; t++) {
+                final int thread = t;
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 50; i++) {
+                            String lockId = "PoolMany" + thread + "-" + i;
+                            client.acquire(lockId, 1000);
+                            client.release(lockId);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assert(failures.isEmpty()) : failures;
+            assert(client.getHeldCount() == 0);
+            assert(client.getConnectionCount() <= 4);
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testWaitingAcquireDoesNotBlockOthers() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient holder = new SimpleClient(server.getHost(), server.getPort());
+            holder.connect();
+            holder.acquire("PoolBusy");
+            PooledClient client = new PooledClient(server.getHost(), server.getPort());
+            client.setMaxConnections(1);
+            client.connect();
+
+            CompletableFuture<String> waiting = client.acquireAsync("PoolBusy", 5000);
+            long start = System.currentTimeMillis();
+            client.acquire("PoolFree");
+            client.release("PoolFree");
+            long elapsed = System.currentTimeMillis() - start;
+            assert(elapsed < 2000) : elapsed;
+            assert(!waiting.isDone());
+
+            holder.release("PoolBusy");
+            String status = waiting.get();
+            assert(status.equals("LOCKACQUIRED"));
+            status = client.release("PoolBusy");
+            assert(status.equals("LOCKRELEASED"));
+            holder.quit();
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testThreadsContendAtServer() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            final PooledClient client = new PooledClient(server.getHost(), server.getPort());
+            client.setMaxConnections(2);
+            client.connect();
+            client.acquire("PoolShared");
+
+            final List<Throwable> outcomes = new ArrayList<Throwable>();
+            Thread other = new Thread(() -> {
+                try {
+                    client.acquire("PoolShared", 500);
+                } catch (Throwable e) {
+                    outcomes.add(e);
+                }
+            });
+            other.start();
+            other.join();
+            assert(outcomes.size() == 1 && outcomes.get(0) instanceof AcquireTimeoutException) : outcomes;
+
+            String status = client.acquire("PoolShared");
+            assert(status.equals("LOCKACQUIRED"));
+            status = client.release("PoolShared");
+            assert(status.equals("LOCKRELEASED"));
+            status = client.release("PoolShared");
+            assert(status.equals("LOCKRELEASED"));
+            assert(client.getHeldCount() == 0);
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testReleaseHandsOverToWaitingThread() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            final PooledClient client = new PooledClient(server.getHost(), server.getPort());
+            client.setMaxConnections(2);
+            client.connect();
+            for (int i = 0; i < 20; i++) {
+                client.acquire("PoolHandOver");
+                final CompletableFuture<String> waiting = new CompletableFuture<String>();
+                Thread other = new Thread(() -> {
+                    try {
+                        String acquired = client.acquire("PoolHandOver", 5000);
+                        String released = client.release("PoolHandOver");
+                        waiting.complete(acquired + " " + released);
+                    } catch (Throwable e) {
+                        waiting.completeExceptionally(e);
+                    }
+                });
+                other.start();
+                Thread.sleep(20);
+                String status = client.release("PoolHandOver");
+                assert(status.equals("LOCKRELEASED"));
+                other.join();
+                status = waiting.get();
+                assert(status.equals("LOCKACQUIRED LOCKRELEASED")) : status;
+                assert(client.getHeldCount() == 0) : client.getHeldCount();
+            }
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testClusterBackend() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer()) {
+            ClusterClient cluster = new ClusterClient();
+            cluster.setPoolSize(2);
+            cluster.addNode(one.getHost(), one.getPort());
+            cluster.addNode(two.getHost(), two.getPort());
+            cluster.connect();
+            List<String> ids = new ArrayList<String>();
+            for (int i = 0; i < 20; i++) {
+                ids.add("PoolCluster" + i);
+            }
+            List<String> acquired = cluster.acquireAll(ids, 1000, "W");
+            assert(acquired.size() == 20);
+            List<String> released = cluster.releaseAll(ids);
+            assert(released.size() == 20);
+            cluster.quit();
+        }
+    }
+
+}
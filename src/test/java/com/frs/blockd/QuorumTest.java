@@ -0,0 +1,234 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+@Test
+public class QuorumTest {
+
+
+    private static ClusterClient cluster(StandInServer... servers) throws Exception {
+
+        ClusterClient cluster = new ClusterClient();
+        cluster.setHealthCheckInterval(0);
+        cluster.setQuorumReplicas(3);
+        for (StandInServer server : servers) {
+            cluster.addNode(server.getHost(), server.getPort());
+        }
+        cluster.connect();
+        return (cluster);
+    }
+
+    /**
+     * Waits for the grants released in the background to be gone.
+     */
+    private static boolean released(ClusterClient cluster) throws Exception {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        List<String> shown = cluster.show();
+        while (!shown.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            shown = cluster.show();
+        }
+        return (shown.isEmpty());
+    }
+
+    @Test
+    public void testSlowReplica() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer();
+             StandInServer three = new StandInServer()) {
+            ClusterClient cluster = cluster(one, two, three);
+            three.setLatency(2000, 0);
+            long begun = System.nanoTime();
+            QuorumGrant grant = cluster.acquireQuorum("QuorumSlow", 1000, "W");
+            assert(System.nanoTime() - begun < 1000000000L);
+            assert(grant.getNodes().size() == 2);
+            assert(!grant.getNodes().contains(three.getHost() + ":" + three.getPort()));
+            assert(cluster.getQuorumGrant("QuorumSlow") == grant);
+            String status = cluster.release("QuorumSlow");
+            assert(status.equals("LOCKRELEASED"));
+            assert(cluster.getQuorumGrant("QuorumSlow") == null);
+
+            // The slow replica's grant comes in late and is let go.
+            three.setLatency(0, 0);
+            boolean released = released(cluster);
+            assert(released);
+            cluster.quit();
+        }
+    }
+
+    @Test
+    public void testDeadReplica() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer()) {
+            StandInServer three = new StandInServer();
+            ClusterClient cluster = cluster(one, two, three);
+            three.close();
+            long sequence = 0;
+            for (int i = 0; i < 10; i++) {
+                boolean acquired = cluster.tryAcquire("QuorumDead" + i, 1000, "W");
+                assert(acquired);
+                QuorumGrant grant = cluster.getQuorumGrant("QuorumDead" + i);
+                assert(grant.getNodes().size() == 2);
+                assert(grant.getSequence() > sequence);
+                sequence = grant.getSequence();
+            }
+            for (int i = 0; i < 10; i++) {
+                cluster.release("QuorumDead" + i);
+            }
+
+            // Without a majority left, the acquire fails.
+            two.close();
+            try {
+                cluster.acquire("QuorumLost", 1000, "W");
+                assert(false);
+            } catch (ClusterException e) {
+                assert(e.getResult().getFailures().size() >= 2);
+            }
+            assert(cluster.getQuorumGrant("QuorumLost") == null);
+        }
+    }
+
+    @Test
+    public void testContention() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer();
+             StandInServer three = new StandInServer()) {
+            ClusterClient first = cluster(one, two, three);
+            ClusterClient second = cluster(one, two, three);
+            QuorumGrant held = first.acquireQuorum("QuorumContended", 1000, "W");
+            assert(held.getNodes().size() >= 2);
+            boolean acquired = second.tryAcquire("QuorumContended", 100, "W");
+            assert(!acquired);
+            try {
+                second.acquireQuorum("QuorumContended", 100, "W");
+                assert(false);
+            } catch (AcquireTimeoutException e) {
+                assert(e.getLockId().equals("QuorumContended"));
+            }
+
+            // Re-entrant acquires are grants of their own.
+            QuorumGrant again = first.acquireQuorum("QuorumContended", 1000, "W");
+            assert(again.getSequence() > held.getSequence());
+            assert(first.getQuorumGrant("QuorumContended") == again);
+            first.release("QuorumContended");
+            assert(first.getQuorumGrant("QuorumContended") == held);
+            first.release("QuorumContended");
+
+            QuorumGrant taken = second.acquireQuorum("QuorumContended", 1000, "W");
+            assert(taken.getSequence() > again.getSequence());
+            second.release("QuorumContended");
+            boolean released = released(second);
+            assert(released);
+            first.quit();
+            second.quit();
+        }
+    }
+
+    @Test
+    public void testKeysAndReplicas() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer()) {
+            ClusterClient cluster = cluster(one, two);
+            assert(cluster.getQuorumReplicas() == 3);
+            LockKey key = LockKey.of("QuorumKey");
+            cluster.acquire(key, 1000, "W");
+            // Capped at the two nodes, which must both grant it.
+            assert(cluster.getQuorumGrant("QuorumKey").getNodes().size() == 2);
+            List<String> shown = cluster.show();
+            assert(shown.size() == 2);
+            cluster.release(key);
+            shown = cluster.show();
+            assert(shown.isEmpty());
+
+            cluster.setQuorumReplicas(0);
+            cluster.acquire(key);
+            assert(cluster.getQuorumGrant("QuorumKey") == null);
+            shown = cluster.show();
+            assert(shown.size() == 1);
+            cluster.release(key);
+            try {
+                cluster.acquireQuorum("QuorumOff", 1000, "W");
+                assert(false);
+            } catch (IllegalStateException e) {
+                // Expected.
+            }
+            cluster.quit();
+        }
+    }
+
+    @Test
+    public void testBlockingNodesVoteAtOnce() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer();
+             StandInServer three = new StandInServer()) {
+            ClusterClient cluster = new ClusterClient();
+            cluster.setHealthCheckInterval(0);
+            cluster.setPipelined(false);
+            cluster.setQuorumReplicas(3);
+            for (StandInServer server : new StandInServer[] {one, two, three}) {
+                server.setLatency(400, 0);
+                cluster.addNode(server.getHost(), server.getPort());
+            }
+            cluster.connect();
+            long begun = System.nanoTime();
+            QuorumGrant grant = cluster.acquireQuorum("QuorumBlocking", 5000, "W");
+            long elapsed = System.nanoTime() - begun;
+            // One after another, two grants take at least 800ms.
+            assert(elapsed < 800000000L) : elapsed;
+            assert(grant.getNodes().size() >= 2);
+            cluster.release("QuorumBlocking");
+            cluster.quit();
+        }
+    }
+
+    @Test
+    public void testModeWithoutTimeout() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer();
+             StandInServer three = new StandInServer()) {
+            ClusterClient first = cluster(one, two, three);
+            ClusterClient second = cluster(one, two, three);
+            first.acquire("QuorumShared", CommandEncoder.NO_TIMEOUT, "R");
+            assert(first.getQuorumGrant("QuorumShared").getMode().equals("R"));
+            // Read locks are shared, so a second reader gets it too.
+            boolean shared = second.tryAcquire("QuorumShared", 100, "R");
+            assert(shared);
+            second.release("QuorumShared");
+            first.release("QuorumShared");
+            first.quit();
+            second.quit();
+        }
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer();
+             StandInServer three = new StandInServer()) {
+            ClusterClient cluster = cluster(one, two, three);
+            List<String> ids = Arrays.asList("QuorumBatchA", "QuorumBatchB");
+            try {
+                cluster.acquireAll(ids, 1000, "W");
+                assert(false);
+            } catch (UnsupportedOperationException e) {
+                // Expected.
+            }
+            for (String lockId : ids) {
+                cluster.acquire(lockId, 1000, "W");
+            }
+            // Released on every replica even with quorum mode off.
+            cluster.setQuorumReplicas(0);
+            List<String> released = cluster.releaseAll(ids);
+            assert(released.equals(ids)) : released;
+            assert(cluster.getQuorumGrant("QuorumBatchA") == null);
+            boolean gone = released(cluster);
+            assert(gone);
+            cluster.quit();
+        }
+    }
+
+}
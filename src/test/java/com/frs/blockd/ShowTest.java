@@ -0,0 +1,92 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+@Test
+public class ShowTest {
+
+
+    @Test
+    public void testShowLocks() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            for (boolean pipelined : new boolean[] {false, true}) {
+                SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+                client.setPipelined(pipelined);
+                client.connect();
+                for (int i = 0; i < 100; i++) {
+                    client.acquire("Show" + i, 0, i % 2 == 0 ? "W" : "R");
+                }
+                ShowResult locks = client.showLocks();
+                // Still readable after more traffic on the connection.
+                client.wisdom();
+                int read = 0;
+                for (LockInfo lock : locks) {
+                    int i = Integer.parseInt(lock.getLockId().substring(4));
+                    assert(lock.getMode().equals(i % 2 == 0 ? "W" : "R"));
+                    read++;
+                }
+                assert(read == 100);
+                List<String> lockIds = client.show();
+                assert(lockIds.size() == 100);
+                ShowResult async = client.showLocksAsync().get();
+                assert(async.getLockIds().equals(lockIds));
+                client.quit();
+            }
+        }
+    }
+
+    @Test
+    public void testClusterShowCache() throws Exception {
+
+        try (StandInServer one = new StandInServer(); StandInServer two = new StandInServer()) {
+            final ClusterClient cluster = new ClusterClient();
+            cluster.setHealthCheckInterval(0);
+            cluster.addNode(one.getHost(), one.getPort());
+            cluster.addNode(two.getHost(), two.getPort());
+            cluster.connect();
+            for (int i = 0; i < 10; i++) {
+                cluster.acquire("ShowCluster" + i);
+            }
+            ShowResult locks = cluster.showLocks();
+            assert(locks.size() == 10);
+
+            cluster.setShowCacheTtl(60000);
+            long before = one.getCommandCount() + two.getCommandCount();
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<List<String>>> polls = new ArrayList<Future<List<String>>>();
+            for (int i = 0; i < 8; i++) {
+                polls.add(executor.submit(() -> {
+                    start.await();
+                    return (cluster.show());
+                }));
+            }
+            start.countDown();
+            for (Future<List<String>> poll : polls) {
+                List<String> lockIds = poll.get();
+                assert(lockIds.size() == 10);
+            }
+            cluster.release("ShowCluster0");
+            // Stale until the entry expires.
+            List<String> cached = cluster.show();
+            assert(cached.size() == 10);
+            executor.shutdown();
+            long sent = one.getCommandCount() + two.getCommandCount() - before;
+            assert(sent == 2 + 1) : sent;
+
+            cluster.setShowCacheTtl(0);
+            List<String> fresh = cluster.show();
+            assert(fresh.size() == 9);
+            cluster.quit();
+        }
+    }
+
+}
@@ -0,0 +1,786 @@
+package com.frs.blockd;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for a blockd server, so the clients can be tested
+ * and load-tested without one. It speaks the line protocol on a loopback
+ * port from a single NIO selector thread: the IMUSTBLOCKYOU greeting,
+ * ACQUIRE with "W"/"R" modes, LOCKPENDING and timeouts, RELEASE,
+ * RELEASEALL, SHOW (of the connection's own locks), WISDOM and QUIT. Nonces
+ * are echoed. A connection that goes away loses its locks and queued
+ * ACQUIREs, as with blockd.
+ * <p>
+ * Two knobs make it behave like a busy server:
+ * <ul>
+ * <li><code>setLatency(millis, jitterMillis)</code> delays every answer by
+ * the latency plus a random jitter, keeping each connection's answers in
+ * order.</li>
+ * <li><code>setContention(probability, holdMillis)</code> makes an ACQUIRE
+ * of a free lock find it held by some other process, with the given
+ * probability, for <code>holdMillis</code>; the ACQUIRE goes LOCKPENDING
+ * like it would against a contended server.</li>
+ * </ul>
+ */
+public class StandInServer implements AutoCloseable {
+
+    private static final String[] WISDOM = {
+            "A lock not taken is a lock not leaked.",
+            "The fastest round trip is the one you do not make.",
+            "Contention is a queue you did not plan for.",
+    };
+
+    // Holds locks for the injected contention.
+    private static final Object ELSEWHERE = new Object();
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Owned by the selector thread.
+    private final Map<String, ServerLock> locks = new HashMap<String, ServerLock>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    private long timerSequence;
+
+    private volatile int latency;
+    private volatile int jitter;
+    private volatile double contention;
+    private volatile int contentionHold;
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+
+    /**
+     * Starts a stand-in on a free loopback port.
+     *
+     * @throws IOException
+     */
+    public StandInServer() throws IOException {
+
+        this(0);
+    }
+
+    /**
+     * Starts a stand-in on the given loopback port.
+     *
+     * @param port The port, or 0 for any free one.
+     * @throws IOException
+     */
+    public StandInServer(int port) throws IOException {
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(this::run, "blockd-stand-in-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public String getHost() {
+
+        return ("127.0.0.1");
+    }
+
+    public int getPort() {
+
+        return (serverChannel.socket().getLocalPort());
+    }
+
+    /**
+     * Delays every answer by <code>latency</code> plus up to
+     * <code>jitter</code> milliseconds.
+     *
+     * @param latency
+     * @param jitter
+     */
+    public void setLatency(int latency, int jitter) {
+
+        this.latency = latency;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Makes a free lock appear held elsewhere for <code>holdMillis</code>,
+     * with the given probability per ACQUIRE.
+     *
+     * @param probability Between 0 (off) and 1.
+     * @param holdMillis
+     */
+    public void setContention(double probability, int holdMillis) {
+
+        this.contention = probability;
+        this.contentionHold = holdMillis;
+    }
+
+    /**
+     * The number of commands received so far.
+     *
+     * @return
+     */
+    public long getCommandCount() {
+
+        return (commands.get());
+    }
+
+    /**
+     * The number of connections accepted so far.
+     *
+     * @return
+     */
+    public long getConnectionCount() {
+
+        return (connections.get());
+    }
+
+    /**
+     * Stops the server and drops every connection. If interrupted while
+     * waiting for that, returns early with the interrupt flag set again.
+     */
+    @Override
+    public void close() {
+
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+
+        try {
+            while (running) {
+                long wait = runTimers();
+                selector.select(wait);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(connection);
+                        }
+                    } catch (IOException e) {
+                        drop(connection);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The selector broke; stop.
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    drop((Connection) key.attachment());
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                // Closing anyway.
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.incrementAndGet();
+        send(connection, "{\"status\":\"IMUSTBLOCKYOU\"}", false);
+    }
+
+    private void read(Connection connection) throws IOException {
+
+        ByteBuffer in = connection.in;
+        if (!in.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            bigger.put(in);
+            connection.in = in = bigger;
+        }
+        if (connection.channel.read(in) < 0) {
+            drop(connection);
+            return;
+        }
+        byte[] bytes = in.array();
+        int start = 0;
+        for (int i = 0; i < in.position(); i++) {
+            if (bytes[i] == '\n') {
+                handle(connection, new String(bytes, start, i - start, StandardCharsets.UTF_8));
+                start = i + 1;
+                if (!connection.channel.isOpen()) {
+                    return;
+                }
+            }
+        }
+        in.limit(in.position());
+        in.position(start);
+        in.compact();
+    }
+
+    private void handle(Connection connection, String line) {
+
+        commands.incrementAndGet();
+        Command command = Command.parse(line);
+        if (command == null || command.name == null) {
+            send(connection, "{\"status\":\"BADCOMMAND\"}", false);
+            return;
+        }
+        switch (command.name) {
+            case "ACQUIRE":
+                acquire(connection, command);
+                break;
+            case "RELEASE":
+                release(connection, command);
+                break;
+            case "RELEASEALL":
+                releaseAll(connection, command.nonce);
+                break;
+            case "SHOW":
+                show(connection, command.nonce);
+                break;
+            case "WISDOM":
+                send(connection, "{\"quote\":" + quote(WISDOM[ThreadLocalRandom.current().nextInt(WISDOM.length)])
+                                 + nonce(command.nonce) + "}", false);
+                break;
+            case "QUIT":
+                send(connection, "{\"status\":\"GOODBYE\"" + nonce(command.nonce) + "}", true);
+                break;
+            default:
+                send(connection, "{\"status\":\"BADCOMMAND\"" + nonce(command.nonce) + "}", false);
+        }
+    }
+
+    private void acquire(Connection connection, Command command) {
+
+        String lockId = command.lockId;
+        String mode = ("R".equals(command.mode) ? "R" : "W");
+        ServerLock lock = locks.get(lockId);
+        if (lock == null) {
+            lock = new ServerLock(lockId);
+            locks.put(lockId, lock);
+        }
+        if (lock.holders.isEmpty() && contention > 0 && ThreadLocalRandom.current().nextDouble() < contention) {
+            final ServerLock contended = lock;
+            hold(lock, ELSEWHERE, "W");
+            schedule(contentionHold, () -> unhold(contended, ELSEWHERE));
+        }
+        if (lock.holders.contains(connection) && ("W".equals(lock.mode) || "R".equals(mode))) {
+            // Already held in a mode that covers the request.
+            send(connection, lockStatus("LOCKACQUIRED", lockId, command.nonce), false);
+            return;
+        }
+        final Pending pending = new Pending(connection, lockId, mode, command.nonce);
+        if (canTake(lock, pending)) {
+            hold(lock, connection, mode);
+            send(connection, lockStatus("LOCKACQUIRED", lockId, command.nonce), false);
+            return;
+        }
+        if (command.timeout != null && command.timeout <= 0) {
+            send(connection, lockStatus("ACQUIRETIMEOUT", lockId, command.nonce), false);
+            return;
+        }
+        send(connection, lockStatus("LOCKPENDING", lockId, command.nonce), false);
+        lock.queue.add(pending);
+        connection.pending.add(pending);
+        if (command.timeout != null) {
+            final ServerLock waitedFor = lock;
+            pending.timer = schedule(command.timeout, () -> {
+                if (waitedFor.queue.remove(pending)) {
+                    connection.pending.remove(pending);
+                    send(connection, lockStatus("ACQUIRETIMEOUT", pending.lockId, pending.nonce), false);
+                    grantWaiters(waitedFor);
+                }
+            });
+        }
+    }
+
+    private void release(Connection connection, Command command) {
+
+        ServerLock lock = locks.get(command.lockId);
+        if (lock == null || !lock.holders.contains(connection)) {
+            send(connection, lockStatus("NOLOCKTORELEASE", command.lockId, command.nonce), false);
+            return;
+        }
+        send(connection, lockStatus("LOCKRELEASED", command.lockId, command.nonce), false);
+        unhold(lock, connection);
+    }
+
+    private void releaseAll(Connection connection, Long nonce) {
+
+        if (connection.held.isEmpty()) {
+            send(connection, "{\"status\":\"NOLOCKSTORELEASEALL\"" + nonce(nonce) + "}", false);
+            return;
+        }
+        for (String lockId : new ArrayList<String>(connection.held)) {
+            send(connection, lockStatus("LOCKRELEASED", lockId, nonce), false);
+            unhold(locks.get(lockId), connection);
+        }
+    }
+
+    private void show(Connection connection, Long nonce) {
+
+        StringBuilder line = new StringBuilder("{\"locks\":[");
+        boolean first = true;
+        for (String lockId : connection.held) {
+            if (!first) {
+                line.append(',');
+            }
+            first = false;
+            line.append("{\"lockId\":").append(quote(lockId)).append(",\"mode\":\"").append(locks.get(lockId).mode)
+                .append("\"}");
+        }
+        send(connection, line.append(']').append(nonce(nonce)).append('}').toString(), false);
+    }
+
+    private static boolean canTake(ServerLock lock, Pending pending) {
+
+        if (lock.holders.isEmpty()) {
+            return (true);
+        }
+        if ("R".equals(pending.mode) && "R".equals(lock.mode) && lock.queue.isEmpty()) {
+            return (true);
+        }
+        // An upgrade by the only holder.
+        return (lock.holders.size() == 1 && lock.holders.contains(pending.connection));
+    }
+
+    private static void hold(ServerLock lock, Object owner, String mode) {
+
+        if (lock.holders.isEmpty() || "W".equals(mode)) {
+            lock.mode = mode;
+        }
+        lock.holders.add(owner);
+        if (owner instanceof Connection) {
+            ((Connection) owner).held.add(lock.lockId);
+        }
+    }
+
+    private void unhold(ServerLock lock, Object owner) {
+
+        lock.holders.remove(owner);
+        if (owner instanceof Connection) {
+            ((Connection) owner).held.remove(lock.lockId);
+        }
+        if (lock.holders.isEmpty()) {
+            lock.mode = null;
+        }
+        grantWaiters(lock);
+    }
+
+    private void grantWaiters(ServerLock lock) {
+
+        Pending head;
+        while ((head = lock.queue.peek()) != null) {
+            boolean upgrade = lock.holders.contains(head.connection);
+            if (!lock.holders.isEmpty() && !upgrade && !("R".equals(head.mode) && "R".equals(lock.mode))) {
+                break;
+            }
+            if (upgrade && lock.holders.size() > 1) {
+                break;
+            }
+            lock.queue.poll();
+            head.connection.pending.remove(head);
+            if (head.timer != null) {
+                head.timer.cancelled = true;
+            }
+            hold(lock, head.connection, head.mode);
+            send(head.connection, lockStatus("LOCKACQUIRED", lock.lockId, head.nonce), false);
+        }
+        if (lock.holders.isEmpty() && lock.queue.isEmpty()) {
+            locks.remove(lock.lockId);
+        }
+    }
+
+    /**
+     * Drops a connection: its locks are released and its queued ACQUIREs
+     * forgotten.
+     */
+    private void drop(Connection connection) {
+
+        if (connection.dropped) {
+            return;
+        }
+        connection.dropped = true;
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Gone anyway.
+        }
+        for (Pending pending : connection.pending) {
+            if (pending.timer != null) {
+                pending.timer.cancelled = true;
+            }
+            ServerLock lock = locks.get(pending.lockId);
+            if (lock != null) {
+                lock.queue.remove(pending);
+                grantWaiters(lock);
+            }
+        }
+        connection.pending.clear();
+        for (String lockId : new ArrayList<String>(connection.held)) {
+            unhold(locks.get(lockId), connection);
+        }
+    }
+
+    /**
+     * Queues an answer, after the injected latency and never ahead of an
+     * earlier answer on the same connection.
+     */
+    private void send(final Connection connection, String line, final boolean thenClose) {
+
+        final byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        int delay = latency + (jitter > 0 ? ThreadLocalRandom.current().nextInt(jitter + 1) : 0);
+        long now = System.nanoTime();
+        long at = Math.max(now + TimeUnit.MILLISECONDS.toNanos(delay), connection.lastSendAt);
+        if (at <= now) {
+            write(connection, bytes, thenClose);
+            return;
+        }
+        connection.lastSendAt = at;
+        scheduleAt(at, () -> write(connection, bytes, thenClose));
+    }
+
+    private void write(Connection connection, byte[] bytes, boolean thenClose) {
+
+        if (connection.dropped) {
+            return;
+        }
+        ByteBuffer out = connection.out;
+        if (out.remaining() < bytes.length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes.length));
+            out.flip();
+            bigger.put(out);
+            connection.out = out = bigger;
+        }
+        out.put(bytes);
+        connection.closeAfterWrite |= thenClose;
+        try {
+            flush(connection);
+        } catch (IOException e) {
+            drop(connection);
+        }
+    }
+
+    private void flush(Connection connection) throws IOException {
+
+        ByteBuffer out = connection.out;
+        out.flip();
+        connection.channel.write(out);
+        out.compact();
+        if (out.position() > 0) {
+            connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } else if (connection.closeAfterWrite) {
+            drop(connection);
+        } else {
+            connection.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private Timer schedule(int millis, Runnable action) {
+
+        return (scheduleAt(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), action));
+    }
+
+    private Timer scheduleAt(long at, Runnable action) {
+
+        Timer timer = new Timer(at, timerSequence++, action);
+        timers.add(timer);
+        return (timer);
+    }
+
+    /**
+     * Runs the timers that are due.
+     *
+     * @return How long the selector may sleep, in milliseconds; 0 for no
+     *         limit.
+     */
+    private long runTimers() {
+
+        while (true) {
+            Timer timer = timers.peek();
+            if (timer == null) {
+                return (0);
+            }
+            long left = timer.at - System.nanoTime();
+            if (left > 0) {
+                return (Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+            }
+            timers.poll();
+            if (!timer.cancelled) {
+                timer.action.run();
+            }
+        }
+    }
+
+    private static String lockStatus(String status, String lockId, Long nonce) {
+
+        return ("{\"status\":\"" + status + "\",\"lockId\":" + quote(lockId) + nonce(nonce) + "}");
+    }
+
+    private static String nonce(Long nonce) {
+
+        return (nonce == null ? "" : ",\"nonce\":" + nonce);
+    }
+
+    private static String quote(String value) {
+
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return (quoted.append('"').toString());
+    }
+
+    private static final class Connection {
+
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        ByteBuffer out = ByteBuffer.allocate(4096);
+        final Set<String> held = new LinkedHashSet<String>();
+        final List<Pending> pending = new ArrayList<Pending>();
+        long lastSendAt;
+        boolean closeAfterWrite;
+        boolean dropped;
+
+        Connection(SocketChannel channel) {
+
+            this.channel = channel;
+        }
+
+    }
+
+    private static final class ServerLock {
+
+        final String lockId;
+        final Set<Object> holders = new LinkedHashSet<Object>();
+        final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+        // "W" or "R" while held.
+        String mode;
+
+        ServerLock(String lockId) {
+
+            this.lockId = lockId;
+        }
+
+    }
+
+    private static final class Pending {
+
+        final Connection connection;
+        final String lockId;
+        final String mode;
+        final Long nonce;
+        Timer timer;
+
+        Pending(Connection connection, String lockId, String mode, Long nonce) {
+
+            this.connection = connection;
+            this.lockId = lockId;
+            this.mode = mode;
+            this.nonce = nonce;
+        }
+
+    }
+
+    private static final class Timer implements Comparable<Timer> {
+
+        final long at;
+        final long sequence;
+        final Runnable action;
+        boolean cancelled;
+
+        Timer(long at, long sequence, Runnable action) {
+
+            this.at = at;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+
+            if (at != other.at) {
+                return (at < other.at ? -1 : 1);
+            }
+            return (Long.compare(sequence, other.sequence));
+        }
+
+    }
+
+    /**
+     * One command line. Commands are flat JSON objects of strings and
+     * numbers.
+     */
+    private static final class Command {
+
+        String name;
+        String lockId;
+        String mode;
+        Integer timeout;
+        Long nonce;
+
+        static Command parse(String line) {
+
+            Command command = new Command();
+            int[] pos = {skip(line, 0)};
+            if (pos[0] >= line.length() || line.charAt(pos[0]) != '{') {
+                return (null);
+            }
+            pos[0]++;
+            while (true) {
+                pos[0] = skip(line, pos[0]);
+                if (pos[0] >= line.length()) {
+                    return (null);
+                }
+                if (line.charAt(pos[0]) == '}') {
+                    return (command);
+                }
+                if (line.charAt(pos[0]) == ',') {
+                    pos[0]++;
+                    continue;
+                }
+                String key = string(line, pos);
+                pos[0] = skip(line, pos[0]);
+                if (key == null || pos[0] >= line.length() || line.charAt(pos[0]) != ':') {
+                    return (null);
+                }
+                pos[0] = skip(line, pos[0] + 1);
+                if (pos[0] >= line.length()) {
+                    return (null);
+                }
+                if (line.charAt(pos[0]) == '"') {
+                    String value = string(line, pos);
+                    if ("command".equals(key)) {
+                        command.name = value;
+                    } else if ("lockId".equals(key)) {
+                        command.lockId = value;
+                    } else if ("mode".equals(key)) {
+                        command.mode = value;
+                    }
+                } else {
+                    int start = pos[0];
+                    while (pos[0] < line.length() && ",}".indexOf(line.charAt(pos[0])) < 0) {
+                        pos[0]++;
+                    }
+                    String value = line.substring(start, pos[0]).trim();
+                    try {
+                        if ("timeout".equals(key)) {
+                            command.timeout = Integer.valueOf(value);
+                        } else if ("nonce".equals(key)) {
+                            command.nonce = Long.valueOf(value);
+                        }
+                    } catch (NumberFormatException e) {
+                        return (null);
+                    }
+                }
+            }
+        }
+
+        private static String string(String line, int[] pos) {
+
+            if (line.charAt(pos[0]) != '"') {
+                return (null);
+            }
+            StringBuilder value = new StringBuilder();
+            int i = pos[0] + 1;
+            while (i < line.length()) {
+                char c = line.charAt(i++);
+                if (c == '"') {
+                    pos[0] = i;
+                    return (value.toString());
+                }
+                if (c != '\\' || i >= line.length()) {
+                    value.append(c);
+                    continue;
+                }
+                char escaped = line.charAt(i++);
+                switch (escaped) {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'u':
+                        value.append((char) Integer.parseInt(line.substring(i, i + 4), 16));
+                        i += 4;
+                        break;
+                    default:
+                        value.append(escaped);
+                }
+            }
+            return (null);
+        }
+
+        private static int skip(String line, int pos) {
+
+            while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+                pos++;
+            }
+            return (pos);
+        }
+
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+@Test
+public class StandInServerTest {
+
+
+    @Test
+    public void testAcquireRelease() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+            client.connect();
+
+            String wisdom = client.wisdom();
+            assert(wisdom != null);
+            String status = client.acquire("StandIn");
+            assert("LOCKACQUIRED".equals(status));
+            status = client.acquire("StandInShared", 1000, "R");
+            assert("LOCKACQUIRED".equals(status));
+            List<String> locks = client.show();
+            assert(locks.contains("StandIn"));
+            assert(locks.contains("StandInShared"));
+            status = client.release("StandIn");
+            assert("LOCKRELEASED".equals(status));
+            List<String> released = client.releaseAll();
+            assert(released.size() == 1);
+            locks = client.show();
+            assert(locks.isEmpty());
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testPendingAndTimeout() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient clientOne = new SimpleClient(server.getHost(), server.getPort());
+            SimpleClient clientTwo = new SimpleClient(server.getHost(), server.getPort());
+            clientTwo.setPipelined(true);
+            clientOne.connect();
+            clientTwo.connect();
+
+            clientOne.acquire("StandInPending");
+            boolean granted = clientTwo.tryAcquire("StandInPending", 0, "W");
+            assert(!granted);
+            granted = clientTwo.tryAcquire("StandInPending", 100, "W");
+            assert(!granted);
+            granted = clientTwo.tryAcquire("StandInPending", 1000, "R");
+            assert(!granted);
+            CompletableFuture<String> waiting = clientTwo.acquireAsync("StandInPending", 5000, "W");
+            Thread.sleep(50);
+            assert(!waiting.isDone());
+            clientOne.release("StandInPending");
+            String status = waiting.get();
+            assert("LOCKACQUIRED".equals(status));
+            clientTwo.release("StandInPending");
+            clientOne.quit();
+            clientTwo.quit();
+        }
+    }
+
+    @Test
+    public void testDisconnectReleases() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient clientOne = new SimpleClient(server.getHost(), server.getPort());
+            SimpleClient clientTwo = new SimpleClient(server.getHost(), server.getPort());
+            clientOne.connect();
+            clientTwo.connect();
+
+            clientOne.acquire("StandInDisconnect");
+            clientOne.quit();
+            boolean granted = clientTwo.tryAcquire("StandInDisconnect", 1000, "W");
+            assert(granted);
+            clientTwo.quit();
+        }
+    }
+
+    @Test
+    public void testLatencyAndContention() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+            client.connect();
+
+            server.setLatency(50, 0);
+            long start = System.nanoTime();
+            client.wisdom();
+            assert(System.nanoTime() - start >= 45000000L);
+
+            server.setLatency(0, 0);
+            server.setContention(1, 100);
+            boolean granted = client.tryAcquire("StandInContended", 0, "W");
+            assert(!granted);
+            start = System.nanoTime();
+            server.setContention(0, 0);
+            granted = client.tryAcquire("StandInContended", 1000, "W");
+            assert(granted);
+            assert(System.nanoTime() - start >= 50000000L);
+            client.quit();
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+@Test
+public class VirtualThreadsTest {
+
+
+    @Test
+    public void testAcquireOnVirtualThreads() throws Exception {
+
+        if (!VirtualThreads.isSupported()) {
+            try {
+                VirtualThreads.newExecutor();
+                assert(false);
+            } catch (UnsupportedOperationException e) {
+                // Expected before Java 21.
+            }
+            return;
+        }
+        try (StandInServer server = new StandInServer()) {
+            final SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+            client.connect();
+            ExecutorService executor = VirtualThreads.newExecutor();
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 1000; i++) {
+                final String lockId = "Virtual" + i;
+                futures.add(executor.submit(() -> {
+                    client.acquire(lockId, 10000, "W");
+                    client.release(lockId);
+                    return (null);
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+            assert(client.getMetrics().getAcquire().getCount() == 1000);
+            client.quit();
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+@Test
+public class WireTraceTest {
+
+
+    @Test
+    public void testLevels() throws Exception {
+
+        final List<String> lines = new ArrayList<String>();
+        WireTrace trace = new WireTrace("localhost", 11311);
+        trace.setTracer(new WireTracer() {
+            @Override
+            public void trace(String connection, boolean sent, byte[] line, int offset, int length) {
+
+                lines.add(connection + (sent ? " > " : " < ") + new String(line, offset, length, StandardCharsets.UTF_8));
+            }
+        });
+        byte[] command = "{\"command\":\"WISDOM\"}".getBytes(StandardCharsets.UTF_8);
+        byte[] acquired = "{\"status\":\"LOCKACQUIRED\"}".getBytes(StandardCharsets.UTF_8);
+        byte[] timedOut = "{\"status\":\"ACQUIRETIMEOUT\"}".getBytes(StandardCharsets.UTF_8);
+
+        trace.sent(command, 0, command.length);
+        trace.received(acquired, 0, acquired.length, "LOCKACQUIRED", true);
+        assert(lines.isEmpty());
+
+        trace.setLevel(TraceLevel.ERRORS);
+        trace.sent(command, 0, command.length);
+        trace.received(acquired, 0, acquired.length, "LOCKACQUIRED", true);
+        trace.received(timedOut, 0, timedOut.length, "ACQUIRETIMEOUT", true);
+        trace.received(command, 0, 5, null, false);
+        assert(lines.size() == 2);
+        assert(lines.get(0).equals("localhost:11311 < {\"status\":\"ACQUIRETIMEOUT\"}"));
+
+        lines.clear();
+        trace.setLevel(TraceLevel.ALL);
+        trace.sent(command, 0, command.length);
+        trace.received(acquired, 0, acquired.length, "LOCKACQUIRED", true);
+        assert(lines.size() == 2);
+        assert(lines.get(0).equals("localhost:11311 > {\"command\":\"WISDOM\"}"));
+    }
+
+    @Test
+    public void testRingBufferTracer() throws Exception {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RingBufferTracer tracer = new RingBufferTracer(1000, new PrintStream(bytes, true, "UTF-8"));
+        byte[] line = "x{\"status\":\"GOODBYE\"}x".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 100; i++) {
+            tracer.trace("localhost:11311", false, line, 1, line.length - 2);
+        }
+        tracer.close();
+        String[] printed = new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assert(printed.length + tracer.getDropped() == 100);
+        assert(printed[0].trim().equals("localhost:11311 RECV: {\"status\":\"GOODBYE\"}"));
+    }
+
+    @Test
+    public void testRingBufferTracerDropsWhenFull() throws Exception {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RingBufferTracer tracer = new RingBufferTracer(4, new PrintStream(bytes));
+        byte[] line = "{}".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 100000; i++) {
+            tracer.trace("localhost:11311", true, line, 0, line.length);
+        }
+        tracer.close();
+        int printed = new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n").length;
+        assert(tracer.getDropped() > 0);
+        assert(printed + tracer.getDropped() == 100000);
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.frs.blockd;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+@Test
+public class WriteCoalescingTest {
+
+
+    @Test
+    public void testConcurrentSendersShareFlushes() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            final SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+            client.setPipelined(true);
+            client.connect();
+            ExecutorService executor = Executors.newFixedThreadPool(16);
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> senders = new ArrayList<Future<?>>();
+            for (int thread = 0; thread < 16; thread++) {
+                final int offset = thread * 500;
+                senders.add(executor.submit(() -> {
+                    start.await();
+                    List<CompletableFuture<String>> acquires = new ArrayList<CompletableFuture<String>>();
+                    // Enough for the senders to overlap even on a single core.
+                    for (int i = 0; i < 500; i++) {
+                        acquires.add(client.acquireAsync("WriteCoalescing" + (offset + i)));
+                    }
+                    for (CompletableFuture<String> acquire : acquires) {
+                        assert(acquire.get().equals("LOCKACQUIRED"));
+                    }
+                    return (null);
+                }));
+            }
+            start.countDown();
+            for (Future<?> sender : senders) {
+                sender.get();
+            }
+            executor.shutdown();
+            MetricsSnapshot metrics = client.getMetrics();
+            assert(metrics.getAcquire().getCount() == 8000);
+            assert(metrics.getFlushes() < 8000);
+            List<String> locks = client.show();
+            assert(locks.size() == 8000);
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testFlushDelay() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+            client.setPipelined(true);
+            client.setFlushDelay(20000);
+            client.connect();
+            List<CompletableFuture<String>> acquires = new ArrayList<CompletableFuture<String>>();
+            for (int i = 0; i < 50; i++) {
+                acquires.add(client.acquireAsync("WriteCoalescingDelay" + i));
+            }
+            for (CompletableFuture<String> acquire : acquires) {
+                assert(acquire.get().equals("LOCKACQUIRED"));
+            }
+            assert(client.getMetrics().getFlushes() <= 2);
+
+            // Without flushNow() this would wait out the full second.
+            client.setFlushDelay(1000000);
+            long begun = System.nanoTime();
+            CompletableFuture<String> urgent = client.acquireAsync("WriteCoalescingUrgent");
+            client.flushNow();
+            assert(urgent.get(500, TimeUnit.MILLISECONDS).equals("LOCKACQUIRED"));
+            assert(System.nanoTime() - begun < 500000000L);
+            client.quit();
+        }
+    }
+
+    @Test
+    public void testFlushThreshold() throws Exception {
+
+        try (StandInServer server = new StandInServer()) {
+            SimpleClient client = new SimpleClient(server.getHost(), server.getPort());
+            client.setPipelined(true);
+            client.setFlushDelay(1000000);
+            client.setFlushThreshold(256);
+            client.connect();
+            List<CompletableFuture<String>> acquires = new ArrayList<CompletableFuture<String>>();
+            for (int i = 0; i < 20; i++) {
+                acquires.add(client.acquireAsync("WriteCoalescingThreshold" + i));
+            }
+            // The early ones went out when the threshold was crossed.
+            assert(acquires.get(0).get(500, TimeUnit.MILLISECONDS).equals("LOCKACQUIRED"));
+            assert(acquires.get(1).get(500, TimeUnit.MILLISECONDS).equals("LOCKACQUIRED"));
+            client.flushNow();
+            for (CompletableFuture<String> acquire : acquires) {
+                assert(acquire.get(500, TimeUnit.MILLISECONDS).equals("LOCKACQUIRED"));
+            }
+            client.quit();
+        }
+    }
+
+}